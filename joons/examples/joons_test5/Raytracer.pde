@@ -1,5 +1,4 @@
 import joons.JoonsRenderer;
-import java.io.File;
 
 JoonsRenderer jr;
 
@@ -30,6 +29,7 @@ void joonsSetup() {
   jr.setSizeMultiplier(1); //Set size of the .PNG file as a multiple of the Processing sketch size.
   jr.setAA(-2, 0, 1); //Set anti-aliasing, (min, max, samples). -2 < min, max < 2, samples = 1,2,3,4..
   jr.setCaustics(1); //Set caustics. 1 ~ 100. affects quality of light scattered through glass.
+  jr.setSaveImages(false); //Frames are saved with saveRendered() instead of captured.png and rendered.png.
   //jr.setTraceDepth(1,4,4); //Set trace depth, (diffraction, reflection, refraction). Affects glass. (1,4,4) is good.
   //jr.setDOF(170, 5); //Set depth of field of camera, (focus distance, lens radius). Larger radius => more blurry.
 }
@@ -45,32 +45,19 @@ void joonsBeginRender() {
 }
 
 void joonsEndRender() {
-  String inPath = "rendered.png";
-  String outDir = "render";
-  String outPath = outDir + "/" + fileName + "_" + zeroPadding(frameCounter, 1000) + "." + fileType;
-  String tempPath = "captured.png";
+  String outPath = "render/" + fileName + "_" + zeroPadding(frameCounter, 1000) + "." + fileType;
 
-  File f1 = new File(sketchPath(inPath));
-  f1.delete();
-  File f2 = new File(sketchPath(outDir));
-  f2.mkdir();
-  File f3 = new File(sketchPath(outPath));
-  //f3.delete();
-  File f4 = new File(sketchPath(tempPath));
-  f4.delete();
-    
   jr.endRecord(); //Make sure to end record.
   jr.displayRendered(true); //Display rendered image if rendering completed, and the argument is true.  
   
-  f1.renameTo(f3);
-  
-  if (isRendering && frameCounter<frameCounterMax) {
-    frameCounter++;
-    jr.render();
-  } else if (isRendering) {
-    f4.delete();
-    f1.delete();
-    exit();
+  if (isRendering) {
+    jr.saveRendered(outPath); //Saved in the background, finished before the sketch exits.
+    if (frameCounter<frameCounterMax) {
+      frameCounter++;
+      jr.render();
+    } else {
+      exit();
+    }
   }
 }
 
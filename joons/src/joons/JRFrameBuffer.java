@@ -0,0 +1,159 @@
+package joons;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import org.sunflow.core.Display;
+import org.sunflow.image.Color;
+import org.sunflow.system.UI;
+
+import processing.core.PImage;
+
+public class JRFrameBuffer implements Display {
+	//Sunflow display that writes straight into the pixels of a PImage.
+	//Render threads never write the same pixels, so no lock is held per pixel.
+	//Each finished region is recorded as a dirty rectangle instead, and the sketch
+	//thread marks only those as modified, so only they are uploaded again.
+	//Sunflow's image is upside down compared to Processing's, rows are flipped on the way in.
+
+	private static final int[] BORDERS = {Color.RED.toRGB(),
+		Color.GREEN.toRGB(), Color.BLUE.toRGB(), Color.YELLOW.toRGB(),
+		Color.CYAN.toRGB(), Color.MAGENTA.toRGB()};
+	//past this many, dirty rectangles are merged into their bounding box
+	private static final int MAX_DIRTY_REGIONS = 64;
+
+	private PImage image;
+	private int[] pixels;
+	private int width, height;
+	private final ArrayList<int[]> dirtyRegions = new ArrayList<int[]>();
+	//set on exit. Sunflow clears a cancel request when the render task starts,
+	//so it is raised again from the render threads each time a region begins.
+	private volatile boolean cancelled = false;
+
+	//stops the current render, and keeps any later one from drawing anything
+	public void cancel() {
+		cancelled = true;
+		UI.taskCancel();
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	//the last image begun, or null if nothing was rendered yet
+	public synchronized PImage getImage() {
+		return image;
+	}
+
+	//marks the regions which changed since the last call as modified, so the
+	//renderer only uploads those, call this from the sketch thread before drawing
+	public PImage updateImage() {
+		PImage img;
+		int[][] regions;
+		synchronized (this) {
+			if (image == null) return null;
+			img = image;
+			regions = dirtyRegions.toArray(new int[dirtyRegions.size()][]);
+			dirtyRegions.clear();
+		}
+		for (int[] r : regions) {
+			img.updatePixels(r[0], r[1], r[2], r[3]);
+		}
+		return img;
+	}
+
+	//writes the current image to disk, must not be called while a frame is being rendered
+	public void save(String path) {
+		PImage img = getImage();
+		if (img == null) return;
+		File parent = new File(path).getParentFile();
+		if (parent != null) parent.mkdirs();
+		img.save(path);
+	}
+
+	@Override
+	public synchronized void imageBegin(int w, int h, int bucketSize) {
+		if (image != null && w == width && h == height) {
+			//dull image if it has same resolution (75%)
+			for (int i = 0; i < pixels.length; i++) {
+				int rgba = pixels[i];
+				pixels[i] = ((rgba & 0xFEFEFEFE) >>> 1) + ((rgba & 0xFCFCFCFC) >>> 2);
+			}
+		} else {
+			//allocate new framebuffer
+			image = new PImage(w, h);
+			pixels = image.pixels;
+			width = w;
+			height = h;
+		}
+		dirtyRegions.clear();
+		dirtyRegions.add(new int[] {0, 0, w, h});
+	}
+
+	@Override
+	public void imagePrepare(int x, int y, int w, int h, int id) {
+		if (cancelled) UI.taskCancel();
+		int border = BORDERS[id % BORDERS.length] | 0xFF000000;
+		for (int by = 0; by < h; by++) {
+			int row = (height - 1 - y - by) * width + x;
+			for (int bx = 0; bx < w; bx++) {
+				if (bx == 0 || bx == w - 1) {
+					if (5 * by < h || 5 * (h - by - 1) < h) {
+						pixels[row + bx] = border;
+					}
+				} else if (by == 0 || by == h - 1) {
+					if (5 * bx < w || 5 * (w - bx - 1) < w) {
+						pixels[row + bx] = border;
+					}
+				}
+			}
+		}
+		markDirty(x, y, w, h);
+	}
+
+	@Override
+	public void imageUpdate(int x, int y, int w, int h, Color[] data, float[] alpha) {
+		Color c = new Color();
+		for (int j = 0, index = 0; j < h; j++) {
+			int row = (height - 1 - y - j) * width + x;
+			for (int i = 0; i < w; i++, index++) {
+				pixels[row + i] = c.set(data[index]).mul(1.0f / alpha[index]).toNonLinear().toRGBA(alpha[index]);
+			}
+		}
+		markDirty(x, y, w, h);
+	}
+
+	@Override
+	public void imageFill(int x, int y, int w, int h, Color c, float alpha) {
+		int rgba = c.copy().mul(1.0f / alpha).toNonLinear().toRGBA(alpha);
+		for (int j = 0; j < h; j++) {
+			int row = (height - 1 - y - j) * width + x;
+			for (int i = 0; i < w; i++) {
+				pixels[row + i] = rgba;
+			}
+		}
+		markDirty(x, y, w, h);
+	}
+
+	@Override
+	public void imageEnd() {
+	}
+
+	//taking the lock here also publishes the pixels written before it to the sketch thread
+	private synchronized void markDirty(int x, int y, int w, int h) {
+		int[] region = {x, height - y - h, w, h};
+		if (dirtyRegions.size() >= MAX_DIRTY_REGIONS) {
+			int x0 = region[0], y0 = region[1];
+			int x1 = x0 + w, y1 = y0 + h;
+			for (int[] r : dirtyRegions) {
+				x0 = Math.min(x0, r[0]);
+				y0 = Math.min(y0, r[1]);
+				x1 = Math.max(x1, r[0] + r[2]);
+				y1 = Math.max(y1, r[1] + r[3]);
+			}
+			dirtyRegions.clear();
+			region = new int[] {x0, y0, x1 - x0, y1 - y0};
+		}
+		dirtyRegions.add(region);
+	}
+}
@@ -55,6 +55,10 @@ public class JRStatics {
 	public static float FOCAL_DISTANCE = -1; //uninitialized -1
 	public static float LENS_RADIUS = 1f;
 	
+	//joons output settings, default unless modified
+	public static boolean SAVE_IMAGES = true;
+	public static boolean BACKGROUND_RENDER = false;
+	
 	//sunflow GI instant variables
 	public static int GI_INSTANT_SAMPLES = 16;
 	public static int GI_INSTANT_SETS = 1;
@@ -118,6 +122,12 @@ public class JRStatics {
 			"Joons-Renderer : Use setAA(int aaMin, int aaMax), or\n" +
 			"Joons-Renderer :     setAA(int aaMin, int aaMax, int aaSamples).";
 	
+	public static final String RENDER_BUSY_ERROR =
+			"Joons-Renderer : ERROR, the previous render is still running. Check isRendering() before calling render().";
+	
+	public static final String RENDER_FAILED_ERROR =
+			"Joons-Renderer : ERROR, the render failed: ";
+	
 	public static final String GI_INSTANT_ERROR = 
 			"Joons-Renderer : ERROR, background type \"gi_instant\" must have 0 or 4 parameters.\n" +
 			"Joons-Renderer : int samples, int sets, float b, float biasSamples.";
@@ -1,6 +1,13 @@
 package joons;
 
 import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
 import org.sunflow.SunflowAPI;
 import org.sunflow.math.Matrix4;
 import org.sunflow.math.Point3;
@@ -17,12 +24,36 @@ public class JoonsRenderer{
 	private boolean renderIsAGo;
 	private boolean rendering = false;
 	private boolean rendered = false;
+	private JRFrameBuffer frameBuffer;
+	private ExecutorService worker; //runs renders and image saves one after another
+	private Future<?> renderTask;
 	
 	public JoonsRenderer (PApplet parent){
 		P=parent;
 		FOV=((PGraphicsOpenGL) P.g).cameraFOV; //default value from Processing
 		ASPECT=((PGraphicsOpenGL) P.g).cameraAspect; //default value from Processing
 		recorder = new JRRecorder(); 
+		frameBuffer = new JRFrameBuffer();
+		worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Joons-Renderer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		P.registerMethod("dispose", this);
+	}
+	
+	//called by Processing when the sketch exits, lets pending saves finish.
+	//a running render is cancelled and the saves queued behind it are skipped.
+	public void dispose(){
+		if(isRendering()) frameBuffer.cancel(); //queued saves would write a half rendered image
+		worker.shutdown();
+		try {
+			worker.awaitTermination(30, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+		}
 	}
 	
 	//rendering command interface
@@ -39,10 +70,30 @@ public class JoonsRenderer{
 	}
 	
 	public void render(){
+		if(isRendering()){
+			PApplet.println(RENDER_BUSY_ERROR);
+			return;
+		}
 		rendering = true;
 		rendered = false;
 	}
 	
+	public boolean isRendering(){
+		return renderTask != null && !renderTask.isDone();
+	}
+	
+	//saves the last rendered image, without blocking the sketch.
+	//a render which is still running is finished first.
+	public void saveRendered(String fileName){
+		final String path = P.sketchPath(fileName);
+		worker.execute(new Runnable() {
+			@Override
+			public void run() {
+				if(!frameBuffer.isCancelled()) frameBuffer.save(path);
+			}
+		});
+	}
+	
 	//image settings interface
 	public void setSizeMultiplier(double multiplier) {
 		SIZE_MULTIPLIER = multiplier;
@@ -86,6 +137,15 @@ public class JoonsRenderer{
 		FOCAL_DISTANCE = focalDistance;
 		LENS_RADIUS = lensRadius; //larger the R, say 5, greater the DOF effect.
 	}
+	
+	//output settings interface
+	public void setSaveImages(boolean save) {
+		SAVE_IMAGES = save; //captured.png and rendered.png in the sketch folder
+	}
+	
+	public void setBackgroundRender(boolean background) {
+		BACKGROUND_RENDER = background; //endRecord() returns at once, displayRendered() shows the progress
+	}
 
 	//background interface
 	public void background(float gray){
@@ -311,23 +371,42 @@ public class JoonsRenderer{
 		checkSettings();		
 		if (renderIsAGo) {
 			//saves processing image to sketch folder
-			P.saveFrame(UNRENDERED_FILE_NAME);
+			if(SAVE_IMAGES) P.saveFrame(UNRENDERED_FILE_NAME);
 			
 			//create & build sunflow renderer api
 			createSunflowRenderer();
 			if(buildSunflowRenderer()){
 				
-				//render using the created & built api
-				JRImagePanel imagePanel = new JRImagePanel();
-				api.render(SunflowAPI.DEFAULT_OPTIONS, imagePanel);
-				IMG_RENDERED = imagePanel.getInversedImage();
-				IMG_RENDERED.save(P.sketchPath(RENDERED_INV_FILE_NAME));				
+				//render using the created & built api, straight into the frame buffer
+				final SunflowAPI renderApi = api;
+				renderTask = worker.submit(new Runnable() {
+					@Override
+					public void run() {
+						if(!frameBuffer.isCancelled()) renderApi.render(SunflowAPI.DEFAULT_OPTIONS, frameBuffer);
+					}
+				});
+				//written once the render is done, on the worker thread
+				if(SAVE_IMAGES) saveRendered(RENDERED_INV_FILE_NAME);
+				if(!BACKGROUND_RENDER) {
+					waitForRender();
+					IMG_RENDERED = frameBuffer.updateImage();
+				}
 				return true;
 			}
 		}
 		return false;
 	}
 	
+	private void waitForRender() {
+		try {
+			renderTask.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			PApplet.println(RENDER_FAILED_ERROR + e.getCause());
+		}
+	}
+	
 	private void checkSettings(){
 		renderIsAGo = true;
 		
@@ -638,6 +717,10 @@ public class JoonsRenderer{
 	public void displayRendered(boolean displaySwitch) {
 		//the below are to reset the display before displaying the rendered image
 		if(rendered && displaySwitch){
+			//only the regions rendered since the last call are uploaded again
+			PImage image = frameBuffer.updateImage();
+			if(image == null) return; //a background render has not started its image yet
+			IMG_RENDERED = image;
 			P.background(255);
 			P.noLights();
 			P.camera();
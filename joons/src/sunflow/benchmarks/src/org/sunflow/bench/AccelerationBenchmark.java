@@ -0,0 +1,68 @@
+package org.sunflow.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.sunflow.PluginRegistry;
+import org.sunflow.bench.BenchmarkScenes.RaySet;
+import org.sunflow.core.AccelerationStructure;
+import org.sunflow.core.IntersectionState;
+import org.sunflow.core.PrimitiveList;
+import org.sunflow.core.Ray;
+
+/**
+ * Ray traversal through the acceleration structures. Each structure is built
+ * once per trial over one of the benchmark scenes, then a fixed set of rays
+ * is traced through it. Build time is excluded from the measurement.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class AccelerationBenchmark {
+
+    private static final int NUM_RAYS = 16384;
+    @Param({"kdtree", "bih", "uniformgrid"})
+    public String accel;
+    @Param({"teapot", "gumbo", "sphereflake"})
+    public String scene;
+    private AccelerationStructure structure;
+    private RaySet rays;
+    private Ray ray;
+    private IntersectionState state;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        PrimitiveList primitives = BenchmarkScenes.create(scene);
+        structure = PluginRegistry.accelPlugins.createObject(accel);
+        structure.build(primitives);
+        rays = BenchmarkScenes.rays(primitives.getWorldBounds(null), NUM_RAYS);
+        ray = new Ray(0, 0, 0, 0, 0, 1);
+        state = new IntersectionState();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_RAYS)
+    public void traverse(Blackhole bh) {
+        for (int i = 0; i < NUM_RAYS; i++) {
+            Ray r = rays.get(i, ray);
+            structure.intersect(r, state);
+            bh.consume(r.getMax());
+        }
+    }
+}
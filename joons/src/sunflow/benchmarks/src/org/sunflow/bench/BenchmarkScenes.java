@@ -0,0 +1,139 @@
+package org.sunflow.bench;
+
+import org.sunflow.core.ParameterList;
+import org.sunflow.core.PrimitiveList;
+import org.sunflow.core.Ray;
+import org.sunflow.core.primitive.SphereFlake;
+import org.sunflow.core.primitive.TriangleMesh;
+import org.sunflow.core.tesselatable.BezierMesh;
+import org.sunflow.core.tesselatable.Gumbo;
+import org.sunflow.core.tesselatable.Teapot;
+import org.sunflow.math.BoundingBox;
+import org.sunflow.math.Point3;
+import org.sunflow.math.QMC;
+import org.sunflow.math.Vector3;
+import org.sunflow.system.UI;
+import org.sunflow.system.ui.SilentInterface;
+
+/**
+ * Reproducible geometry and ray sets shared by the microbenchmarks. Scenes are
+ * generated from the built-in procedural primitives with fixed parameters, and
+ * rays are derived from the Halton sequence so every run of a benchmark traces
+ * exactly the same rays.
+ */
+final class BenchmarkScenes {
+
+    static {
+        // keep scene construction from flooding the benchmark output
+        UI.set(new SilentInterface());
+    }
+
+    private BenchmarkScenes() {
+    }
+
+    /**
+     * Creates one of the benchmark scenes by name. Bezier models are
+     * tesselated into triangle meshes, the sphereflake is the analytic
+     * primitive used by the example scenes.
+     *
+     * @param name one of <code>teapot</code>, <code>gumbo</code> or
+     *            <code>sphereflake</code>
+     * @return primitives of the scene
+     */
+    static PrimitiveList create(String name) {
+        if (name.equals("teapot")) {
+            return tesselate(new Teapot(), 32);
+        } else if (name.equals("gumbo")) {
+            return tesselate(new Gumbo(), 16);
+        } else if (name.equals("sphereflake")) {
+            ParameterList pl = new ParameterList();
+            pl.addInteger("level", 6);
+            SphereFlake flake = new SphereFlake();
+            flake.update(pl, null);
+            return flake;
+        }
+        throw new IllegalArgumentException("Unknown benchmark scene: " + name);
+    }
+
+    /**
+     * Tesselates a bezier model into a triangle mesh.
+     *
+     * @param mesh model to tesselate
+     * @param subdivs number of subdivisions per patch
+     * @return a triangle mesh
+     */
+    static TriangleMesh tesselate(BezierMesh mesh, int subdivs) {
+        ParameterList pl = new ParameterList();
+        pl.addInteger("subdivs", subdivs);
+        pl.addBoolean("smooth", false);
+        mesh.update(pl, null);
+        return (TriangleMesh) mesh.tesselate();
+    }
+
+    /**
+     * Generates rays which start on a sphere enclosing the specified bounds
+     * and point at Halton distributed locations inside them. Most rays hit the
+     * geometry, some graze it or miss it entirely, which exercises both sides
+     * of the traversal code.
+     *
+     * @param bounds scene bounds
+     * @param n number of rays to generate
+     * @return set of <code>n</code> rays, directions are not normalized
+     */
+    static RaySet rays(BoundingBox bounds, int n) {
+        RaySet set = new RaySet(n);
+        Point3 c = bounds.getCenter();
+        Vector3 e = bounds.getExtents();
+        float radius = 0.75f * e.length();
+        for (int i = 0; i < n; i++) {
+            // origin uniformly distributed on the sphere
+            double z = 1 - 2 * QMC.halton(0, i);
+            double phi = 2 * Math.PI * QMC.halton(1, i);
+            double s = Math.sqrt(1 - z * z);
+            Point3 o = set.origins[i];
+            o.x = c.x + radius * (float) (s * Math.cos(phi));
+            o.y = c.y + radius * (float) (s * Math.sin(phi));
+            o.z = c.z + radius * (float) z;
+            // target inside the central part of the bounds
+            float tx = c.x + 0.8f * e.x * (float) (QMC.halton(2, i) - 0.5);
+            float ty = c.y + 0.8f * e.y * (float) (QMC.halton(3, i) - 0.5);
+            float tz = c.z + 0.8f * e.z * (float) (QMC.halton(4, i) - 0.5);
+            set.directions[i].set(tx - o.x, ty - o.y, tz - o.z);
+        }
+        return set;
+    }
+
+    /**
+     * A fixed list of rays. Rays are stored as origin/direction pairs so they
+     * can be reset before each intersection test.
+     */
+    static final class RaySet {
+
+        final Point3[] origins;
+        final Vector3[] directions;
+
+        private RaySet(int n) {
+            origins = new Point3[n];
+            directions = new Vector3[n];
+            for (int i = 0; i < n; i++) {
+                origins[i] = new Point3();
+                directions[i] = new Vector3();
+            }
+        }
+
+        int size() {
+            return origins.length;
+        }
+
+        /**
+         * Resets the specified ray to the i-th ray of the set.
+         *
+         * @param i ray index
+         * @param r ray to reset
+         * @return the reset ray
+         */
+        Ray get(int i, Ray r) {
+            return r.set(origins[i], directions[i]);
+        }
+    }
+}
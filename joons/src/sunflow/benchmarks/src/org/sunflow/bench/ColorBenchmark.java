@@ -0,0 +1,104 @@
+package org.sunflow.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.sunflow.image.Color;
+import org.sunflow.math.QMC;
+
+/**
+ * Color arithmetic and conversions as done per sample by the shaders and the
+ * displays. The allocating operators are measured next to their in place
+ * variants.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ColorBenchmark {
+
+    private static final int NUM_COLORS = 1024;
+    private Color[] colors;
+    private Color result;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        colors = new Color[NUM_COLORS];
+        for (int i = 0; i < NUM_COLORS; i++) {
+            colors[i] = new Color(4 * (float) QMC.halton(0, i), 4 * (float) QMC.halton(1, i), 4 * (float) QMC.halton(2, i));
+        }
+        result = new Color();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_COLORS)
+    public void madd(Blackhole bh) {
+        Color c = result.set(0, 0, 0);
+        for (int i = 1; i < NUM_COLORS; i++) {
+            c.madd(colors[i - 1], colors[i]);
+        }
+        bh.consume(c.getLuminance());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_COLORS)
+    public void mulAllocating(Blackhole bh) {
+        for (int i = 1; i < NUM_COLORS; i++) {
+            bh.consume(Color.mul(colors[i - 1], colors[i]));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_COLORS)
+    public void mulInPlace(Blackhole bh) {
+        for (int i = 1; i < NUM_COLORS; i++) {
+            bh.consume(Color.mul(colors[i - 1], colors[i], result).getAverage());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_COLORS)
+    public void blend(Blackhole bh) {
+        for (int i = 1; i < NUM_COLORS; i++) {
+            bh.consume(Color.blend(colors[i - 1], colors[i], 0.25f, result).getMax());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_COLORS)
+    public void toRGB(Blackhole bh) {
+        for (int i = 0; i < NUM_COLORS; i++) {
+            bh.consume(colors[i].toRGB());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_COLORS)
+    public void toRGBE(Blackhole bh) {
+        for (int i = 0; i < NUM_COLORS; i++) {
+            bh.consume(colors[i].toRGBE());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_COLORS)
+    public void toNonLinear(Blackhole bh) {
+        for (int i = 0; i < NUM_COLORS; i++) {
+            bh.consume(result.set(colors[i]).toNonLinear().getMin());
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.sunflow.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.sunflow.PluginRegistry;
+import org.sunflow.core.Filter;
+import org.sunflow.math.QMC;
+
+/**
+ * Pixel filter evaluation. Offsets are spread over the full extents of each
+ * filter, like the sample splatting done by the image samplers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class FilterBenchmark {
+
+    private static final int NUM_SAMPLES = 1024;
+    @Param({"box", "triangle", "gaussian", "mitchell", "catmull-rom", "blackman-harris", "sinc", "lanczos", "bspline"})
+    public String filter;
+    private Filter f;
+    private float[] offsets;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        f = PluginRegistry.filterPlugins.createObject(filter);
+        float size = f.getSize();
+        offsets = new float[2 * NUM_SAMPLES];
+        for (int i = 0; i < NUM_SAMPLES; i++) {
+            offsets[2 * i + 0] = size * (float) (QMC.halton(0, i) - 0.5);
+            offsets[2 * i + 1] = size * (float) (QMC.halton(1, i) - 0.5);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_SAMPLES)
+    public void get(Blackhole bh) {
+        for (int i = 0; i < 2 * NUM_SAMPLES; i += 2) {
+            bh.consume(f.get(offsets[i], offsets[i + 1]));
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package org.sunflow.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.sunflow.bench.BenchmarkScenes.RaySet;
+import org.sunflow.core.IntersectionState;
+import org.sunflow.core.ParameterList;
+import org.sunflow.core.Ray;
+import org.sunflow.core.primitive.Box;
+import org.sunflow.core.primitive.TriangleMesh;
+import org.sunflow.core.tesselatable.Teapot;
+import org.sunflow.math.BoundingBox;
+import org.sunflow.math.Point3;
+import org.sunflow.math.QMC;
+
+/**
+ * Single primitive intersection kernels: the slab test of the box primitive
+ * and the three triangle tests used by {@link TriangleMesh}. The triangle
+ * method is selected the same way the renderer selects it: Kensler's test is
+ * used in small triangle mode, Wald's projection test otherwise, and the off
+ * heap records are used by compact mesh storage.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class IntersectionBenchmark {
+
+    private static final int NUM_RAYS = 4096;
+
+    @State(Scope.Thread)
+    public static class BoxRays {
+
+        private Box box;
+        private RaySet rays;
+        private Ray ray;
+        private IntersectionState state;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            box = new Box();
+            rays = BenchmarkScenes.rays(new BoundingBox(1.5f), NUM_RAYS);
+            ray = new Ray(0, 0, 0, 0, 0, 1);
+            state = new IntersectionState();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class TriangleRays {
+
+        @Param({"kensler", "wald", "compact"})
+        public String triangle;
+        private TriangleMesh mesh;
+        private RaySet rays;
+        private int[] ids;
+        private Ray ray;
+        private IntersectionState state;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            TriangleMesh.setSmallTriangles(triangle.equals("kensler"));
+            mesh = BenchmarkScenes.tesselate(new Teapot(), 32);
+            TriangleMesh.setSmallTriangles(false);
+            if (triangle.equals("compact")) {
+                ParameterList pl = new ParameterList();
+                pl.addString("storage", "direct");
+                mesh.update(pl, null);
+            }
+            // aim each ray at a jittered point of a triangle, the jitter
+            // overshoots the edges so some of the tests fail
+            rays = BenchmarkScenes.rays(mesh.getWorldBounds(null), NUM_RAYS);
+            ids = new int[NUM_RAYS];
+            Point3 p0 = new Point3(), p1 = new Point3(), p2 = new Point3();
+            int n = mesh.getNumPrimitives();
+            for (int i = 0; i < NUM_RAYS; i++) {
+                int tri = (int) (QMC.halton(5, i) * n);
+                mesh.getPoint(tri, 0, p0);
+                mesh.getPoint(tri, 1, p1);
+                mesh.getPoint(tri, 2, p2);
+                float u = 1.2f * (float) QMC.halton(6, i);
+                float v = 1.2f * (float) QMC.halton(7, i);
+                if (u + v > 1.2f) {
+                    u = 1.2f - u;
+                    v = 1.2f - v;
+                }
+                float w = 1 - u - v;
+                Point3 o = rays.origins[i];
+                rays.directions[i].set(w * p0.x + u * p1.x + v * p2.x - o.x, w * p0.y + u * p1.y + v * p2.y - o.y, w * p0.z + u * p1.z + v * p2.z - o.z);
+                ids[i] = tri;
+            }
+            ray = new Ray(0, 0, 0, 0, 0, 1);
+            state = new IntersectionState();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            TriangleMesh.setSmallTriangles(false);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_RAYS)
+    public void rayBox(BoxRays s, Blackhole bh) {
+        for (int i = 0; i < NUM_RAYS; i++) {
+            Ray r = s.rays.get(i, s.ray);
+            s.box.intersectPrimitive(r, 0, s.state);
+            bh.consume(r.getMax());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_RAYS)
+    public void rayTriangle(TriangleRays s, Blackhole bh) {
+        for (int i = 0; i < NUM_RAYS; i++) {
+            Ray r = s.rays.get(i, s.ray);
+            s.mesh.intersectPrimitive(r, s.ids[i], s.state);
+            bh.consume(r.getMax());
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package org.sunflow.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.sunflow.math.QMC;
+
+/**
+ * Sample sequence generation. Uses the same dimensions and index ranges the
+ * image samplers and light sampling code request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class QMCBenchmark {
+
+    private static final int NUM_SAMPLES = 1024;
+    private int base;
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_SAMPLES)
+    public void halton(Blackhole bh) {
+        int b = base;
+        for (int i = 0; i < NUM_SAMPLES; i++) {
+            bh.consume(QMC.halton(0, b + i));
+            bh.consume(QMC.halton(1, b + i));
+        }
+        // wrap around well before the sample index overflows
+        base = (b + NUM_SAMPLES) & 0xFFFFFF;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_SAMPLES)
+    public void haltonHighDimension(Blackhole bh) {
+        int b = base;
+        for (int i = 0; i < NUM_SAMPLES; i++) {
+            bh.consume(QMC.halton(40, b + i));
+        }
+        base = (b + NUM_SAMPLES) & 0xFFFFFF;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_SAMPLES)
+    public void radicalInverse(Blackhole bh) {
+        for (int i = 0; i < NUM_SAMPLES; i++) {
+            bh.consume(QMC.riVDC(i, 0x5A5A5A5A));
+            bh.consume(QMC.riS(i, 0x5A5A5A5A));
+            bh.consume(QMC.riLP(i, 0x5A5A5A5A));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_SAMPLES)
+    public void korobovLattice(Blackhole bh) {
+        for (int i = 0; i < NUM_SAMPLES; i++) {
+            bh.consume(QMC.korobovLattice(10, i, 0));
+            bh.consume(QMC.korobovLattice(10, i, 1));
+        }
+    }
+}
@@ -0,0 +1,75 @@
+% meshes and a mesh light kept in compact off-heap storage
+% (storage may be heap, direct or mapped)
+
+image {
+  resolution 400 300
+  aa 0 1
+  filter gaussian
+}
+
+photons {
+  caustics 200000 kd 64 0.5
+}
+
+camera {
+  type pinhole
+  eye    0 -12 4
+  target 0 0 1
+  up     0 0 1
+  fov    45
+  aspect 1.333333
+}
+
+shader {
+  name Grey
+  type diffuse
+  diff 0.7 0.7 0.7
+}
+
+shader {
+  name Glass
+  type glass
+  eta 1.5
+  color 1 1 1
+}
+
+light {
+  type meshlight
+  name Panel
+  emit { "sRGB nonlinear" 1 0.95 0.9 }
+  radiance 12
+  samples 16
+  points 4
+    -1.5 -1.5 6
+     1.5 -1.5 6
+     1.5  1.5 6
+    -1.5  1.5 6
+  triangles 2
+    0 2 1
+    0 3 2
+  storage direct
+}
+
+object {
+  shader Grey
+  type generic-mesh
+  name Floor
+  points 4
+    -8 -8 0
+     8 -8 0
+     8  8 0
+    -8  8 0
+  triangles 2
+    0 1 2
+    0 2 3
+  normals none
+  uvs none
+  storage direct
+}
+
+object {
+  shader Glass
+  type sphere
+  c 0 0 1.5
+  r 1.5
+}
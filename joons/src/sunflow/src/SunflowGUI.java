@@ -46,6 +46,7 @@ import javax.swing.plaf.metal.MetalLookAndFeel;
 
 import org.sunflow.Benchmark;
 import org.sunflow.RealtimeBenchmark;
+import org.sunflow.RenderWorker;
 import org.sunflow.SunflowAPI;
 import org.sunflow.core.Display;
 import org.sunflow.core.TextureCache;
@@ -133,12 +134,22 @@ public class SunflowGUI extends javax.swing.JFrame implements UserInterface {
             System.out.println("                   #'s get expanded to the current frame number");
             System.out.println("  -nogui           Don't open the frame showing rendering progress");
             System.out.println("  -ipr             Render using progressive algorithm");
+            System.out.println("  -adaptive n t    Render progressively until the noise is below n (e.g. 0.02) or t seconds elapsed (0: no limit)");
             System.out.println("  -sampler type    Render using the specified algorithm");
             System.out.println("  -threads n       Render using n threads");
+            System.out.println("  -deadline t      Stop rendering after t seconds, unfinished regions are filled from a coarse pass");
+            System.out.println("  -checkpoint file Save finished buckets to file and resume from it when rendering again");
+            System.out.println("  -coordinator p   Distribute the buckets to render workers connecting on port p");
+            System.out.println("                   Use host:p to listen on a single address instead of all interfaces,");
+            System.out.println("                   workers are not authenticated so only use this on a trusted network");
+            System.out.println("  -worker host:p   Render buckets for the coordinator at host:p instead of loading a scene");
             System.out.println("  -lopri           Set thread priority to low (default)");
             System.out.println("  -hipri           Set thread priority to high");
             System.out.println("  -smallmesh       Load triangle meshes using triangles optimized for memory use");
             System.out.println("  -dumpkd          Dump KDTree to an obj file for visualization");
+            System.out.println("  -accelcache dir  Cache built acceleration structures in the specified directory");
+            System.out.println("  -gicache dir     Cache photon maps and irradiance samples in the specified directory");
+            System.out.println("  -texmem mb       Limit the memory used by texture tiles (default: 256)");
             System.out.println("  -buildonly       Do not call render method after loading the scene");
             System.out.println("  -showaa          Display sampling levels per pixel for bucket renderer");
             System.out.println("  -nogi            Disable any global illumination engines in the scene");
@@ -193,6 +204,16 @@ public class SunflowGUI extends javax.swing.JFrame implements UserInterface {
             String bakingName = null;
             boolean bakeViewdep = false;
             String filterType = null;
+            String accelCache = null;
+            String giCache = null;
+            int textureMemory = -1;
+            float adaptiveNoise = 0;
+            float adaptiveTime = 0;
+            float deadline = 0;
+            String checkpoint = null;
+            int coordinatorPort = 0;
+            String coordinatorHost = null;
+            String workerAddress = null;
             boolean runBenchmark = false;
             boolean runRTBenchmark = false;
             String translateFilename = null;
@@ -210,6 +231,43 @@ public class SunflowGUI extends javax.swing.JFrame implements UserInterface {
                 } else if (args[i].equals("-ipr")) {
                     sampler = "ipr";
                     i++;
+                } else if (args[i].equals("-adaptive")) {
+                    if (i > args.length - 3) {
+                        usage(false);
+                    }
+                    sampler = "ipr";
+                    adaptiveNoise = Float.parseFloat(args[i + 1]);
+                    adaptiveTime = Float.parseFloat(args[i + 2]);
+                    i += 3;
+                } else if (args[i].equals("-deadline")) {
+                    if (i > args.length - 2) {
+                        usage(false);
+                    }
+                    deadline = Float.parseFloat(args[i + 1]);
+                    i += 2;
+                } else if (args[i].equals("-checkpoint")) {
+                    if (i > args.length - 2) {
+                        usage(false);
+                    }
+                    checkpoint = args[i + 1];
+                    i += 2;
+                } else if (args[i].equals("-coordinator")) {
+                    if (i > args.length - 2) {
+                        usage(false);
+                    }
+                    sampler = "distributed";
+                    int colon = args[i + 1].lastIndexOf(':');
+                    if (colon > 0) {
+                        coordinatorHost = args[i + 1].substring(0, colon);
+                    }
+                    coordinatorPort = Integer.parseInt(args[i + 1].substring(colon + 1));
+                    i += 2;
+                } else if (args[i].equals("-worker")) {
+                    if (i > args.length - 2) {
+                        usage(false);
+                    }
+                    workerAddress = args[i + 1];
+                    i += 2;
                 } else if (args[i].equals("-threads")) {
                     if (i > args.length - 2) {
                         usage(false);
@@ -234,6 +292,24 @@ public class SunflowGUI extends javax.swing.JFrame implements UserInterface {
                 } else if (args[i].equals("-dumpkd")) {
                     KDTree.setDumpMode(true, "kdtree");
                     i++;
+                } else if (args[i].equals("-accelcache")) {
+                    if (i > args.length - 2) {
+                        usage(false);
+                    }
+                    accelCache = args[i + 1];
+                    i += 2;
+                } else if (args[i].equals("-gicache")) {
+                    if (i > args.length - 2) {
+                        usage(false);
+                    }
+                    giCache = args[i + 1];
+                    i += 2;
+                } else if (args[i].equals("-texmem")) {
+                    if (i > args.length - 2) {
+                        usage(false);
+                    }
+                    textureMemory = Integer.parseInt(args[i + 1]);
+                    i += 2;
                 } else if (args[i].equals("-buildonly")) {
                     noRender = true;
                     i++;
@@ -400,6 +476,15 @@ public class SunflowGUI extends javax.swing.JFrame implements UserInterface {
                 new RealtimeBenchmark(showFrame, threads);
                 return;
             }
+            if (workerAddress != null) {
+                int colon = workerAddress.lastIndexOf(':');
+                if (colon <= 0) {
+                    usage(false);
+                }
+                SunflowAPI.runSystemCheck();
+                new RenderWorker(workerAddress.substring(0, colon), Integer.parseInt(workerAddress.substring(colon + 1)), threads, 60).run();
+                return;
+            }
             if (input == null) {
                 usage(false);
             }
@@ -441,9 +526,28 @@ public class SunflowGUI extends javax.swing.JFrame implements UserInterface {
                 if (bucketOrder != null) {
                     api.parameter("bucket.order", bucketOrder);
                 }
+                if (adaptiveNoise > 0) {
+                    api.parameter("progressive.adaptive", true);
+                    api.parameter("progressive.noise", adaptiveNoise);
+                    api.parameter("progressive.time", adaptiveTime);
+                }
                 api.parameter("aa.display", showAA);
                 api.parameter("threads", threads);
                 api.parameter("threads.lowPriority", lowPriority);
+                if (deadline > 0) {
+                    api.parameter("render.deadline", deadline);
+                }
+                if (checkpoint != null) {
+                    api.parameter("bucket.checkpoint", checkpoint.replace("#", String.format("%04d", frameNumber)));
+                    api.parameter("bucket.checkpoint.scene", input);
+                }
+                if (coordinatorPort > 0) {
+                    api.parameter("distributed.port", coordinatorPort);
+                    if (coordinatorHost != null) {
+                        api.parameter("distributed.bind", coordinatorHost);
+                    }
+                    api.parameter("distributed.scene", input);
+                }
                 if (bakingName != null) {
                     api.parameter("baking.instance", bakingName);
                     api.parameter("baking.viewdep", bakeViewdep);
@@ -463,6 +567,15 @@ public class SunflowGUI extends javax.swing.JFrame implements UserInterface {
                 if (sampler != null) {
                     api.parameter("sampler", sampler);
                 }
+                if (accelCache != null) {
+                    api.parameter("accel.cache", accelCache);
+                }
+                if (giCache != null) {
+                    api.parameter("gi.cache", giCache);
+                }
+                if (textureMemory > 0) {
+                    api.parameter("texture.memory", textureMemory);
+                }
                 api.options(SunflowAPI.DEFAULT_OPTIONS);
                 if (shaderOverride != null) {
                     if (shaderOverride.equals("ambient_occlusion")) {
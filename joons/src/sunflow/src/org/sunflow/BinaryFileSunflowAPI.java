@@ -5,6 +5,7 @@ import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 
 import org.sunflow.core.ParameterList.InterpolationType;
 import org.sunflow.core.parser.Keyword;
@@ -15,7 +16,11 @@ class BinaryFileSunflowAPI extends FileSunflowAPI {
     private DataOutputStream stream;
 
     BinaryFileSunflowAPI(String filename) throws FileNotFoundException {
-        stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
+        this(new FileOutputStream(filename));
+    }
+
+    BinaryFileSunflowAPI(OutputStream output) {
+        stream = new DataOutputStream(new BufferedOutputStream(output));
     }
 
     @Override
@@ -15,6 +15,8 @@ import org.sunflow.core.SceneParser;
 import org.sunflow.core.Shader;
 import org.sunflow.core.Tesselatable;
 import org.sunflow.core.accel.BoundingIntervalHierarchy;
+import org.sunflow.core.accel.BoundingVolumeHierarchy;
+import org.sunflow.core.accel.BoundingVolumeHierarchy4;
 import org.sunflow.core.accel.KDTree;
 import org.sunflow.core.accel.NullAccelerator;
 import org.sunflow.core.accel.UniformGrid;
@@ -75,6 +77,7 @@ import org.sunflow.core.primitive.SphereFlake;
 import org.sunflow.core.primitive.Torus;
 import org.sunflow.core.primitive.TriangleMesh;
 import org.sunflow.core.renderer.BucketRenderer;
+import org.sunflow.core.renderer.DistributedRenderer;
 import org.sunflow.core.renderer.MultipassRenderer;
 import org.sunflow.core.renderer.ProgressiveRenderer;
 import org.sunflow.core.renderer.SimpleRenderer;
@@ -235,6 +238,8 @@ public final class PluginRegistry {
     static {
         // accels
         accelPlugins.registerPlugin("bih", BoundingIntervalHierarchy.class);
+        accelPlugins.registerPlugin("bvh", BoundingVolumeHierarchy.class);
+        accelPlugins.registerPlugin("bvh4", BoundingVolumeHierarchy4.class);
         accelPlugins.registerPlugin("kdtree", KDTree.class);
         accelPlugins.registerPlugin("null", NullAccelerator.class);
         accelPlugins.registerPlugin("uniformgrid", UniformGrid.class);
@@ -289,6 +294,7 @@ public final class PluginRegistry {
         imageSamplerPlugins.registerPlugin("ipr", ProgressiveRenderer.class);
         imageSamplerPlugins.registerPlugin("fast", SimpleRenderer.class);
         imageSamplerPlugins.registerPlugin("multipass", MultipassRenderer.class);
+        imageSamplerPlugins.registerPlugin("distributed", DistributedRenderer.class);
     }
 
     static {
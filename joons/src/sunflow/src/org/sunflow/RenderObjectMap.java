@@ -1,6 +1,9 @@
 package org.sunflow;
 
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Locale;
 
 import org.sunflow.core.Camera;
@@ -122,7 +125,14 @@ final class RenderObjectMap {
         return success;
     }
 
-    final void updateScene(Scene scene) {
+    final void updateScene(Scene scene, int threads) {
+        // geometry may be tesselated while the bounds are computed below
+        for (FastHashMap.Entry<String, RenderObjectHandle> e : renderObjects) {
+            Geometry g = e.getValue().getGeometry();
+            if (g != null) {
+                g.setBuildThreads(threads);
+            }
+        }
         if (rebuildInstanceList) {
             UI.printInfo(Module.API, "Building scene instance list for rendering ...");
             int numInfinite = 0, numInstance = 0;
@@ -170,6 +180,42 @@ final class RenderObjectMap {
             scene.setLightList(lightList.toArray(new LightSource[lightList.size()]));
             rebuildLightList = false;
         }
+        scene.setSceneKey(computeSceneKey());
+    }
+
+    /**
+     * Hashes the parameters of every object which affects lighting, in name
+     * order.
+     *
+     * @return scene key
+     */
+    private byte[] computeSceneKey() {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        ArrayList<String> names = new ArrayList<String>();
+        for (FastHashMap.Entry<String, RenderObjectHandle> e : renderObjects) {
+            RenderObjectType type = e.getValue().type;
+            if (type != RenderObjectType.CAMERA && type != RenderObjectType.OPTIONS) {
+                names.add(e.getKey());
+            }
+        }
+        Collections.sort(names);
+        for (String name : names) {
+            RenderObjectHandle handle = renderObjects.get(name);
+            for (int i = 0; i < name.length(); i++) {
+                digest.update((byte) (name.charAt(i) >> 8));
+                digest.update((byte) name.charAt(i));
+            }
+            digest.update((byte) handle.type.ordinal());
+            if (handle.key != null) {
+                digest.update(handle.key);
+            }
+        }
+        return digest.digest();
     }
 
     final void put(String name, Shader shader) {
@@ -264,6 +310,9 @@ final class RenderObjectMap {
 
         private final RenderObject obj;
         private final RenderObjectType type;
+        // hash of every parameter list applied to the object, in order. the
+        // camera and options are left out as they do not affect lighting
+        private byte[] key;
 
         private RenderObjectHandle(Shader shader) {
             obj = shader;
@@ -306,6 +355,19 @@ final class RenderObjectMap {
         }
 
         private boolean update(ParameterList pl, SunflowAPI api) {
+            if (type != RenderObjectType.CAMERA && type != RenderObjectType.OPTIONS) {
+                MessageDigest digest;
+                try {
+                    digest = MessageDigest.getInstance("SHA-1");
+                } catch (NoSuchAlgorithmException e) {
+                    throw new RuntimeException(e);
+                }
+                if (key != null) {
+                    digest.update(key);
+                }
+                pl.updateDigest(digest);
+                key = digest.digest();
+            }
             return obj.update(pl, api);
         }
 
@@ -0,0 +1,154 @@
+package org.sunflow;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+import org.sunflow.core.display.RemoteDisplay;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+
+/**
+ * Renders buckets for a coordinator running the <code>distributed</code> image
+ * sampler. The worker connects to the coordinator, receives the scene in the
+ * binary scene format and renders the buckets it is given with the bucket
+ * renderer. Once a frame is done the worker connects again to wait for the
+ * next one.
+ * <p>
+ * Files the scene refers to, such as textures, are looked up relative to the
+ * folder of the scene on the coordinator, so they must be reachable at the
+ * same path by every worker.
+ */
+public class RenderWorker {
+
+    private static final long RETRY_MILLIS = 500;
+
+    private final String host;
+    private final int port;
+    private final int threads;
+    private final float timeout;
+
+    /**
+     * Creates a worker for the specified coordinator.
+     *
+     * @param host host name of the coordinator
+     * @param port port the coordinator listens on
+     * @param threads number of threads to render with, 0 to use all cores
+     * @param timeout number of seconds to keep trying to reach the
+     * coordinator between frames
+     */
+    public RenderWorker(String host, int port, int threads, float timeout) {
+        this.host = host;
+        this.port = port;
+        this.threads = threads;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Renders frames until the coordinator could not be reached for the
+     * timeout given at creation.
+     */
+    public void run() {
+        UI.printInfo(Module.API, "Render worker connecting to %s:%d ...", host, port);
+        long lastContact = System.currentTimeMillis();
+        while (true) {
+            Socket socket;
+            try {
+                socket = new Socket(host, port);
+            } catch (IOException e) {
+                if (System.currentTimeMillis() - lastContact > (long) (timeout * 1000)) {
+                    UI.printInfo(Module.API, "No coordinator at %s:%d - stopping", host, port);
+                    return;
+                }
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                continue;
+            }
+            try {
+                renderFrame(socket);
+            } catch (IOException e) {
+                UI.printWarning(Module.API, "Frame from %s:%d was not rendered: %s", host, port, e.getMessage());
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                }
+            }
+            lastContact = System.currentTimeMillis();
+            // let the coordinator finish the frame before asking for another
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void renderFrame(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        output.writeInt(RemoteDisplay.MAGIC);
+        output.writeInt(RemoteDisplay.PROTOCOL_VERSION);
+        output.flush();
+        if (input.readInt() != RemoteDisplay.MAGIC || input.readInt() != RemoteDisplay.PROTOCOL_VERSION) {
+            throw new IOException("not a compatible coordinator");
+        }
+        String sceneFolder = input.readUTF();
+        int imageWidth = input.readInt();
+        int imageHeight = input.readInt();
+        int bucketSize = input.readInt();
+        int sceneLength = input.readInt();
+        if (imageWidth <= 0 || imageHeight <= 0 || bucketSize <= 0 || sceneLength < 0) {
+            throw new IOException(String.format("invalid frame %dx%d, bucket size %d, %d bytes of scene data", imageWidth, imageHeight, bucketSize, sceneLength));
+        }
+        // the binary parser reads from files only
+        File file = File.createTempFile("sunflow-", ".scb");
+        file.deleteOnExit();
+        try {
+            // copied in blocks, so a bad length can't allocate a huge array
+            FileOutputStream stream = new FileOutputStream(file);
+            try {
+                byte[] block = new byte[1 << 16];
+                for (int left = sceneLength; left > 0;) {
+                    int n = input.read(block, 0, Math.min(block.length, left));
+                    if (n < 0) {
+                        throw new EOFException("scene data was cut short");
+                    }
+                    stream.write(block, 0, n);
+                    left -= n;
+                }
+            } finally {
+                stream.close();
+            }
+            UI.printInfo(Module.API, "Received %d bytes of scene data for a %dx%d frame", sceneLength, imageWidth, imageHeight);
+            SunflowAPI api = new SunflowAPI();
+            api.searchpath("include", sceneFolder);
+            api.searchpath("texture", sceneFolder);
+            if (!api.include(file.getAbsolutePath())) {
+                throw new IOException("unable to parse scene data");
+            }
+            api.parameter("sampler", "bucket");
+            api.parameter("render.deadline", 0.0f);
+            api.parameter("threads", threads);
+            api.options(SunflowAPI.DEFAULT_OPTIONS);
+            RemoteDisplay display = new RemoteDisplay(input, output, imageWidth, imageHeight, bucketSize);
+            api.render(SunflowAPI.DEFAULT_OPTIONS, display);
+            if (display.hasFailed()) {
+                throw new IOException("connection to the coordinator was lost");
+            }
+            UI.printInfo(Module.API, "Rendered %d buckets for %s:%d", display.getNumBuckets(), host, port);
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package org.sunflow;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -527,11 +528,11 @@ public class SunflowAPI implements SunflowAPIInterface {
 
     @Override
     public final void render(String optionsName, Display display) {
-        renderObjects.updateScene(scene);
         Options opt = lookupOptions(optionsName);
         if (opt == null) {
             opt = new Options();
         }
+        renderObjects.updateScene(scene, opt.getInt("threads", 0));
         scene.setCamera(lookupCamera(opt.getString("camera", null)));
 
         // shader override
@@ -695,6 +696,61 @@ public class SunflowAPI implements SunflowAPIInterface {
         }
     }
 
+    /**
+     * Translate the specified file into a self-contained binary scene held in
+     * memory. Included files are parsed in place so that the result can be
+     * loaded on another machine. The specified options are appended to the
+     * scene as the default options block.
+     *
+     * @param filename input filename
+     * @param options options to append to the scene, may be <code>null</code>
+     * @return binary scene data, or <code>null</code> upon failure
+     */
+    public static byte[] serialize(String filename, ParameterList options) {
+        if (filename.endsWith(".java")) {
+            UI.printError(Module.API, "Unable to serialize \"%s\" - java scenes cannot be translated", filename);
+            return null;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final SearchPath includes = new SearchPath("include");
+        FileSunflowAPI api = new BinaryFileSunflowAPI(bytes) {
+            @Override
+            public boolean include(String file) {
+                return parseInclude(includes, file, this);
+            }
+        };
+        try {
+            if (!parseInclude(includes, filename, api)) {
+                return null;
+            }
+            if (options != null) {
+                // the parser generates new names for unnamed cameras, the
+                // scene file already selects the right one
+                options.writeTo(api, "camera");
+                api.options(DEFAULT_OPTIONS);
+            }
+        } catch (RuntimeException e) {
+            Logger.getLogger(SunflowAPI.class.getName()).log(Level.SEVERE, null, e);
+            UI.printError(Module.API, "Error occured during translation: %s", e.getMessage());
+            return null;
+        } finally {
+            api.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static boolean parseInclude(SearchPath includes, String filename, SunflowAPIInterface api) {
+        filename = includes.resolvePath(filename);
+        String extension = FileUtils.getExtension(filename);
+        SceneParser parser = PluginRegistry.parserPlugins.createObject(extension);
+        if (parser == null) {
+            UI.printError(Module.API, "Unable to find a suitable parser for: \"%s\" (extension: %s)", filename, extension);
+            return false;
+        }
+        includes.addSearchPath(new File(filename).getAbsoluteFile().getParentFile().getAbsolutePath());
+        return parser.parse(filename, api);
+    }
+
     /**
      * Compile the specified code string via Janino. The code must implement a
      * build method as described above. The build method is not called on the
@@ -17,4 +17,15 @@ public interface AccelerationStructure {
      * @param istate state to store the intersection into
      */
     public void intersect(Ray r, IntersectionState istate);
+
+    /**
+     * Intersect all rays of the specified packet with the geometry in local
+     * space. The rays will be provided in local space. Implementations which
+     * have no packet traversal may simply call
+     * {@link RayPacket#intersectSerial(AccelerationStructure, IntersectionState)}.
+     *
+     * @param packet packet of rays in local space
+     * @param istate scratch state used to record hits into the packet
+     */
+    public void intersect(RayPacket packet, IntersectionState istate);
 }
\ No newline at end of file
@@ -0,0 +1,260 @@
+package org.sunflow.core;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.sunflow.math.BoundingBox;
+import org.sunflow.system.Memory;
+import org.sunflow.system.Timer;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+
+/**
+ * Stores built acceleration structures on disk so that static geometry does
+ * not need to be rebuilt on every render. Entries are keyed by a hash of the
+ * primitive bounds along with the structure's own cache key, and are read
+ * back through memory mapped files.
+ */
+public final class AccelerationStructureCache {
+
+    private static final int MAGIC = 0x53464143; // "SFAC"
+    private static final int VERSION = 1;
+    // small structures are faster to rebuild than to look up
+    private static final int MIN_PRIMITIVES = 1000;
+    private final File directory;
+
+    private AccelerationStructureCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Opens a cache storing its files in the specified directory. The
+     * directory is created if it does not exist yet.
+     *
+     * @param dir cache directory, may be <code>null</code>
+     * @return the cache, or <code>null</code> if caching is disabled
+     */
+    static AccelerationStructureCache open(String dir) {
+        if (dir == null) {
+            return null;
+        }
+        File d = new File(dir);
+        if (!d.isDirectory() && !d.mkdirs()) {
+            UI.printWarning(Module.ACCEL, "Unable to create cache directory \"%s\" - caching disabled", dir);
+            return null;
+        }
+        return new AccelerationStructureCache(d.getAbsoluteFile());
+    }
+
+    /**
+     * Gets the directory cache files are stored in.
+     *
+     * @return cache directory
+     */
+    File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Builds the specified acceleration structure, or loads it from the cache
+     * if an entry exists for the same primitives. Newly built structures are
+     * added to the cache.
+     *
+     * @param accel acceleration structure to build
+     * @param primitives primitives to build the structure for
+     */
+    void build(AccelerationStructure accel, PrimitiveList primitives) {
+        if (!(accel instanceof CacheableAccelerationStructure) || primitives.getNumPrimitives() < MIN_PRIMITIVES) {
+            accel.build(primitives);
+            return;
+        }
+        CacheableAccelerationStructure cacheable = (CacheableAccelerationStructure) accel;
+        Timer t = new Timer();
+        t.start();
+        String key = computeKey(cacheable, primitives);
+        t.end();
+        UI.printDetailed(Module.ACCEL, "Cache key %s (hashing took %s)", key, t);
+        File file = new File(directory, key + ".accel");
+        if (file.exists() && read(cacheable, primitives, file, key)) {
+            return;
+        }
+        accel.build(primitives);
+        write(cacheable, file, key);
+    }
+
+    private static boolean read(CacheableAccelerationStructure accel, PrimitiveList primitives, File file, String key) {
+        Timer t = new Timer();
+        t.start();
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                    UI.printWarning(Module.ACCEL, "Ignoring invalid cache file \"%s\"", file.getName());
+                    return false;
+                }
+                byte[] k = new byte[buffer.getInt()];
+                buffer.get(k);
+                if (!key.equals(new String(k, "UTF-8"))) {
+                    UI.printWarning(Module.ACCEL, "Ignoring mismatched cache file \"%s\"", file.getName());
+                    return false;
+                }
+                accel.read(buffer, primitives);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            UI.printWarning(Module.ACCEL, "Unable to read cache file \"%s\": %s", file.getName(), e.getMessage());
+            return false;
+        } catch (RuntimeException e) {
+            // truncated or corrupted file
+            UI.printWarning(Module.ACCEL, "Unable to read cache file \"%s\": %s", file.getName(), e);
+            return false;
+        }
+        t.end();
+        UI.printInfo(Module.ACCEL, "Loaded acceleration structure from cache (%s) in %s", Memory.bytesToString(file.length()), t);
+        return true;
+    }
+
+    private static void write(CacheableAccelerationStructure accel, File file, String key) {
+        Timer t = new Timer();
+        t.start();
+        // write to a temporary file first so concurrent renders never see
+        // partial entries
+        File temp = new File(file.getParentFile(), file.getName() + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                byte[] k = key.getBytes("UTF-8");
+                out.writeInt(k.length);
+                out.write(k);
+                accel.write(out);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                file.delete();
+                if (!temp.renameTo(file)) {
+                    throw new IOException("unable to rename " + temp.getName());
+                }
+            }
+        } catch (IOException e) {
+            temp.delete();
+            UI.printWarning(Module.ACCEL, "Unable to write cache file \"%s\": %s", file.getName(), e.getMessage());
+            return;
+        }
+        t.end();
+        UI.printDetailed(Module.ACCEL, "Saved acceleration structure to cache (%s) in %s", Memory.bytesToString(file.length()), t);
+    }
+
+    private static String computeKey(CacheableAccelerationStructure accel, PrimitiveList primitives) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        try {
+            digest.update(accel.getCacheKey().getBytes("UTF-8"));
+            digest.update(primitives.getClass().getName().getBytes("UTF-8"));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        int n = primitives.getNumPrimitives();
+        ByteBuffer buffer = ByteBuffer.allocate(6 * 4 * 1024);
+        buffer.putInt(n);
+        BoundingBox bounds = primitives.getWorldBounds(null);
+        buffer.putFloat(bounds.getMinimum().x).putFloat(bounds.getMinimum().y).putFloat(bounds.getMinimum().z);
+        buffer.putFloat(bounds.getMaximum().x).putFloat(bounds.getMaximum().y).putFloat(bounds.getMaximum().z);
+        for (int i = 0; i < n; i++) {
+            if (buffer.remaining() < 6 * 4) {
+                digest.update(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+            for (int j = 0; j < 6; j++) {
+                buffer.putFloat(primitives.getPrimitiveBound(i, j));
+            }
+        }
+        digest.update(buffer.array(), 0, buffer.position());
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b & 0xFF));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Writes an array prefixed by its length.
+     */
+    public static void writeArray(DataOutput out, int[] array) throws IOException {
+        out.writeInt(array.length);
+        for (int i : array) {
+            out.writeInt(i);
+        }
+    }
+
+    /**
+     * Writes an array prefixed by its length.
+     */
+    public static void writeArray(DataOutput out, float[] array) throws IOException {
+        out.writeInt(array.length);
+        for (float f : array) {
+            out.writeFloat(f);
+        }
+    }
+
+    /**
+     * Reads an array written by {@link #writeArray(DataOutput, int[])}.
+     */
+    public static int[] readIntArray(ByteBuffer in) {
+        int[] array = new int[in.getInt()];
+        in.asIntBuffer().get(array);
+        in.position(in.position() + 4 * array.length);
+        return array;
+    }
+
+    /**
+     * Reads an array written by {@link #writeArray(DataOutput, float[])}.
+     */
+    public static float[] readFloatArray(ByteBuffer in) {
+        float[] array = new float[in.getInt()];
+        in.asFloatBuffer().get(array);
+        in.position(in.position() + 4 * array.length);
+        return array;
+    }
+
+    /**
+     * Writes a bounding box as 6 floats.
+     */
+    public static void writeBounds(DataOutput out, BoundingBox bounds) throws IOException {
+        out.writeFloat(bounds.getMinimum().x);
+        out.writeFloat(bounds.getMinimum().y);
+        out.writeFloat(bounds.getMinimum().z);
+        out.writeFloat(bounds.getMaximum().x);
+        out.writeFloat(bounds.getMaximum().y);
+        out.writeFloat(bounds.getMaximum().z);
+    }
+
+    /**
+     * Reads a bounding box written by
+     * {@link #writeBounds(DataOutput, BoundingBox)}.
+     */
+    public static BoundingBox readBounds(ByteBuffer in) {
+        BoundingBox bounds = new BoundingBox(in.getFloat(), in.getFloat(), in.getFloat());
+        bounds.include(in.getFloat(), in.getFloat(), in.getFloat());
+        return bounds;
+    }
+}
@@ -6,7 +6,7 @@ import org.sunflow.system.UI.Module;
 
 class AccelerationStructureFactory {
 
-    static AccelerationStructure create(String name, int n, boolean primitives) {
+    static AccelerationStructure create(String name, int n, boolean primitives, int threads) {
         if (name == null || name.equals("auto")) {
             if (primitives) {
                 if (n > 20000000) {
@@ -20,7 +20,7 @@ class AccelerationStructureFactory {
                 }
             } else {
                 if (n > 2) {
-                    name = "bih";
+                    name = "bvh";
                 } else {
                     name = "null";
                 }
@@ -29,7 +29,10 @@ class AccelerationStructureFactory {
         AccelerationStructure accel = PluginRegistry.accelPlugins.createObject(name);
         if (accel == null) {
             UI.printWarning(Module.ACCEL, "Unrecognized intersection accelerator \"%s\" - using auto", name);
-            return create(null, n, primitives);
+            return create(null, n, primitives, threads);
+        }
+        if (accel instanceof ParallelAccelerationStructure) {
+            ((ParallelAccelerationStructure) accel).setBuildThreads(threads);
         }
         return accel;
     }
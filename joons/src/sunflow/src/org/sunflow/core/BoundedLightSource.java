@@ -0,0 +1,18 @@
+package org.sunflow.core;
+
+import org.sunflow.math.BoundingBox;
+
+/**
+ * A {@link LightSource} which only emits from a finite region of space. When
+ * the light hierarchy is enabled, these lights are only sampled at shading
+ * points they are likely to illuminate.
+ */
+public interface BoundedLightSource extends LightSource {
+
+    /**
+     * Gets the world space bounds of the emitting surface or point.
+     *
+     * @return bounding box of the light
+     */
+    public BoundingBox getBounds();
+}
@@ -0,0 +1,18 @@
+package org.sunflow.core;
+
+/**
+ * Represents an image output device which also decides which buckets get
+ * rendered. The bucket renderer asks it for work instead of walking the whole
+ * bucket sequence, which lets several processes share a single frame.
+ */
+public interface BucketDisplay extends Display {
+
+    /**
+     * Gets the next bucket to render. This is called concurrently by all
+     * rendering threads, after {@link #imageBegin(int, int, int)}.
+     *
+     * @return index of the bucket in the bucket order's sequence, or -1 if
+     * there is nothing left to render
+     */
+    int nextBucket();
+}
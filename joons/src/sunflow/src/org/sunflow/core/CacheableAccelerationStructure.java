@@ -0,0 +1,41 @@
+package org.sunflow.core;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link AccelerationStructure} which can be saved to and restored from
+ * the {@link AccelerationStructureCache}. Implementations must only depend on
+ * the primitive bounds reported by the {@link PrimitiveList}, as those are
+ * what the cache is keyed on.
+ */
+public interface CacheableAccelerationStructure extends AccelerationStructure {
+
+    /**
+     * Gets a string which identifies the type, build parameters and data
+     * layout of this structure. Structures with different keys never share
+     * cache entries.
+     *
+     * @return cache key
+     */
+    public String getCacheKey();
+
+    /**
+     * Writes the built structure.
+     *
+     * @param out stream to write to
+     * @throws IOException if the data could not be written
+     */
+    public void write(DataOutput out) throws IOException;
+
+    /**
+     * Restores a structure written by {@link #write(DataOutput)} for the
+     * specified primitives. This replaces the call to
+     * {@link #build(PrimitiveList)}.
+     *
+     * @param in buffer to read from
+     * @param primitives primitive list the structure was built for
+     */
+    public void read(ByteBuffer in, PrimitiveList primitives);
+}
@@ -0,0 +1,42 @@
+package org.sunflow.core;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link GIEngine} which caches samples that stay valid from one frame to
+ * the next. Samples are kept in the {@link IlluminationCache}, each render
+ * appends the samples it computed to the ones loaded at startup.
+ */
+public interface CacheableGIEngine extends GIEngine {
+
+    /**
+     * Gets a string which identifies the type, settings and sample layout of
+     * this engine. It is only called once
+     * {@link #init(Options, Scene)} has succeeded. Engines with different
+     * keys never share cache entries.
+     *
+     * @return cache key
+     */
+    public String getCacheKey();
+
+    /**
+     * Adds previously saved samples to the engine. This is called after
+     * {@link #init(Options, Scene)}, once for each block of samples written by
+     * {@link #writeSamples(DataOutput)}.
+     *
+     * @param in buffer holding a single block of samples
+     * @return number of samples read
+     */
+    public int readSamples(ByteBuffer in);
+
+    /**
+     * Writes the samples which have not been read or written before.
+     *
+     * @param out stream to write to
+     * @return number of samples written
+     * @throws IOException if the data could not be written
+     */
+    public int writeSamples(DataOutput out) throws IOException;
+}
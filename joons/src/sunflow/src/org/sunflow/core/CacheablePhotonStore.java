@@ -0,0 +1,41 @@
+package org.sunflow.core;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link PhotonStore} whose final state can be saved to and restored from
+ * the {@link IlluminationCache}, so static scenes do not need to trace their
+ * photons again on every frame.
+ */
+public interface CacheablePhotonStore extends PhotonStore {
+
+    /**
+     * Gets a string which identifies the type, settings and data layout of
+     * this photon map. It is only called once
+     * {@link #prepare(Options, org.sunflow.math.BoundingBox)} has read the
+     * options. Maps with different keys never share cache entries.
+     *
+     * @return cache key
+     */
+    public String getCacheKey();
+
+    /**
+     * Writes the photon map as it is after {@link #init()}.
+     *
+     * @param out stream to write to
+     * @throws IOException if the data could not be written
+     */
+    public void write(DataOutput out) throws IOException;
+
+    /**
+     * Restores a photon map written by {@link #write(DataOutput)}. This
+     * replaces storing photons and the call to {@link #init()},
+     * {@link #prepare(Options, org.sunflow.math.BoundingBox)} is still called
+     * first.
+     *
+     * @param in buffer to read from
+     */
+    public void read(ByteBuffer in);
+}
@@ -87,7 +87,7 @@ public class Camera implements RenderObject {
         Ray r = lens.getRay(x, y, imageWidth, imageHeight, lensX, lensY, time);
         if (r != null) {
             // transform from camera space to world space
-            r = r.transform(c2w.sample(time));
+            r = r.transform(c2w.sample(time), r);
             // renormalize to account for scale factors embeded in the transform
             r.normalize();
         }
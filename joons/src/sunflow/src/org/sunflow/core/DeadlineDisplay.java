@@ -0,0 +1,25 @@
+package org.sunflow.core;
+
+/**
+ * Represents an image output device which wants to know which parts of an
+ * image reached full quality when rendering is stopped by the
+ * <code>render.deadline</code> option. Regions which could not be finished in
+ * time are filled from a coarse preview pass instead.
+ */
+public interface DeadlineDisplay extends Display {
+
+    /**
+     * Reports the quality a region of the image was rendered at. This is only
+     * called when a deadline was set, after the last image update and before
+     * {@link #imageEnd()}. Reported regions do not overlap, parts of the image
+     * which are not reported were rendered at full quality.
+     *
+     * @param x x coordinate of the region within the image
+     * @param y y coordinate of the region within the image
+     * @param w width of the region in pixels
+     * @param h height of the region in pixels
+     * @param full <code>true</code> if the region was rendered at full
+     * quality, <code>false</code> if it was filled from the coarse pass
+     */
+    void imageQuality(int x, int y, int w, int h, boolean full);
+}
@@ -4,6 +4,7 @@ import org.sunflow.SunflowAPI;
 import org.sunflow.core.accel.NullAccelerator;
 import org.sunflow.math.BoundingBox;
 import org.sunflow.math.Matrix4;
+import org.sunflow.system.Timer;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
@@ -21,6 +22,10 @@ public class Geometry implements RenderObject {
     private int builtAccel;
     private int builtTess;
     private String acceltype;
+    private boolean refitAccel;
+    private boolean needsRefit;
+    private AccelerationStructureCache accelCache;
+    private int buildThreads;
 
     /**
      * Create a geometry from the specified tesselatable object. The actual
@@ -35,6 +40,8 @@ public class Geometry implements RenderObject {
         builtAccel = 0;
         builtTess = 0;
         acceltype = null;
+        refitAccel = false;
+        needsRefit = false;
     }
 
     /**
@@ -49,24 +56,39 @@ public class Geometry implements RenderObject {
         accel = null;
         builtAccel = 0;
         builtTess = 1; // already tesselated
+        refitAccel = false;
+        needsRefit = false;
     }
 
     @Override
     public boolean update(ParameterList pl, SunflowAPI api) {
         acceltype = pl.getString("accel", acceltype);
+        refitAccel = pl.getBoolean("accel.refit", refitAccel);
         // clear up old tesselation if it exists
         if (tesselatable != null) {
             primitives = null;
             builtTess = 0;
         }
-        // clear acceleration structure so it will be rebuilt
-        accel = null;
-        builtAccel = 0;
         if (tesselatable != null) {
+            // clear acceleration structure so it will be rebuilt
+            accel = null;
+            builtAccel = 0;
             return tesselatable.update(pl, api);
         }
         // update primitives
-        return primitives.update(pl, api);
+        int n = accel == null ? -1 : primitives.getNumPrimitives();
+        boolean updated = primitives.update(pl, api);
+        if (updated && refitAccel && accel instanceof RefittableAccelerationStructure && primitives.getNumPrimitives() == n) {
+            // same number of primitives - the existing structure only needs
+            // its bounds updated
+            needsRefit = true;
+        } else {
+            // clear acceleration structure so it will be rebuilt
+            accel = null;
+            needsRefit = false;
+        }
+        builtAccel = 0;
+        return updated;
     }
 
     int getNumPrimitives() {
@@ -100,6 +122,16 @@ public class Geometry implements RenderObject {
         accel.intersect(r, state);
     }
 
+    void intersect(RayPacket packet, IntersectionState state) {
+        if (builtTess == 0) {
+            tesselate();
+        }
+        if (builtAccel == 0) {
+            build();
+        }
+        accel.intersect(packet, state);
+    }
+
     private synchronized void tesselate() {
         // double check flag
         if (builtTess != 0) {
@@ -107,6 +139,9 @@ public class Geometry implements RenderObject {
         }
         if (tesselatable != null && primitives == null) {
             UI.printInfo(Module.GEOM, "Tesselating geometry ...");
+            if (tesselatable instanceof ParallelTesselatable) {
+                ((ParallelTesselatable) tesselatable).setTesselationThreads(buildThreads);
+            }
             primitives = tesselatable.tesselate();
             if (primitives == null) {
                 UI.printError(Module.GEOM, "Tesselation failed - geometry will be discarded");
@@ -122,13 +157,30 @@ public class Geometry implements RenderObject {
         if (builtAccel != 0) {
             return;
         }
+        if (needsRefit) {
+            needsRefit = false;
+            Timer t = new Timer();
+            t.start();
+            boolean refitted = ((RefittableAccelerationStructure) accel).refit();
+            t.end();
+            if (refitted) {
+                UI.printInfo(Module.GEOM, "Refit acceleration structure for %d primitives in %s", primitives.getNumPrimitives(), t);
+                builtAccel = 1;
+                return;
+            }
+            UI.printInfo(Module.GEOM, "Refit acceleration structure degraded too far - rebuilding");
+        }
         if (primitives != null) {
             int n = primitives.getNumPrimitives();
             if (n >= 1000) {
                 UI.printInfo(Module.GEOM, "Building acceleration structure for %d primitives ...", n);
             }
-            accel = AccelerationStructureFactory.create(acceltype, n, true);
-            accel.build(primitives);
+            accel = AccelerationStructureFactory.create(acceltype, n, true, buildThreads);
+            if (accelCache != null) {
+                accelCache.build(accel, primitives);
+            } else {
+                accel.build(primitives);
+            }
         } else {
             // create an empty accelerator to avoid having to check for null
             // pointers in the intersect method
@@ -137,6 +189,30 @@ public class Geometry implements RenderObject {
         builtAccel = 1;
     }
 
+    /**
+     * Sets how the acceleration structure is built. This is set by the scene
+     * the geometry is rendered in.
+     *
+     * @param cache cache to look up built structures in, or
+     *            <code>null</code> to always build them
+     * @param threads number of threads, 0 to use one per processor
+     */
+    synchronized void setBuildSettings(AccelerationStructureCache cache, int threads) {
+        accelCache = cache;
+        buildThreads = threads;
+    }
+
+    /**
+     * Sets the number of threads used to tesselate and build this geometry.
+     * This is set before the scene bounds are computed, as tesselation may
+     * happen at that point.
+     *
+     * @param threads number of threads, 0 to use one per processor
+     */
+    public synchronized void setBuildThreads(int threads) {
+        buildThreads = threads;
+    }
+
     void prepareShadingState(ShadingState state) {
         primitives.prepareShadingState(state);
     }
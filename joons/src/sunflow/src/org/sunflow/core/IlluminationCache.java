@@ -0,0 +1,397 @@
+package org.sunflow.core;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.sunflow.system.Memory;
+import org.sunflow.system.Timer;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+
+/**
+ * Stores photon maps and irradiance samples on disk so that a sequence of
+ * frames of the same scene, such as a camera flythrough, can share them.
+ * Entries are keyed by a hash of the instance bounds, the parameters of every
+ * shader, modifier, geometry, instance and light source, and the lighting
+ * settings. The camera is left out. Texture and mesh files are identified by
+ * their names, the cache directory should be cleared when their contents are
+ * edited.
+ * <p>
+ * Photon map files are written once. Irradiance sample files are made of
+ * blocks, every render appends a block holding the samples it computed.
+ */
+public final class IlluminationCache {
+
+    private static final int MAGIC = 0x53464943; // "SFIC"
+    private static final int VERSION = 1;
+    private final File directory;
+
+    private IlluminationCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Opens a cache storing its files in the specified directory. The
+     * directory is created if it does not exist yet.
+     *
+     * @param dir cache directory, may be <code>null</code>
+     * @return the cache, or <code>null</code> if caching is disabled
+     */
+    static IlluminationCache open(String dir) {
+        if (dir == null) {
+            return null;
+        }
+        File d = new File(dir);
+        if (!d.isDirectory() && !d.mkdirs()) {
+            UI.printWarning(Module.LIGHT, "Unable to create cache directory \"%s\" - caching disabled", dir);
+            return null;
+        }
+        return new IlluminationCache(d.getAbsoluteFile());
+    }
+
+    /**
+     * Gets the directory cache files are stored in.
+     *
+     * @return cache directory
+     */
+    File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Computes a hash of the parts of the scene which affect lighting.
+     *
+     * @param instances scene instances, including area lights
+     * @param lights scene light sources
+     * @param objectKey hash of the parameters of the scene objects, or
+     *            <code>null</code> if they are not known
+     * @param settings lighting settings which apply to every entry
+     * @return scene key
+     */
+    static String computeSceneKey(InstanceList instances, LightSource[] lights, byte[] objectKey, String settings) {
+        MessageDigest digest = createDigest();
+        ByteBuffer buffer = ByteBuffer.allocate(7 * 4 * 1024);
+        int n = instances.getNumPrimitives();
+        buffer.putInt(n);
+        for (int i = 0; i < n; i++) {
+            if (buffer.remaining() < 7 * 4) {
+                digest.update(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+            buffer.putInt(instances.getNumPrimitives(i));
+            for (int j = 0; j < 6; j++) {
+                buffer.putFloat(instances.getPrimitiveBound(i, j));
+            }
+        }
+        digest.update(buffer.array(), 0, buffer.position());
+        update(digest, settings);
+        for (LightSource l : lights) {
+            update(digest, String.format(";%s-%d-%s", l.getClass().getName(), l.getNumSamples(), Float.toHexString(l.getPower())));
+        }
+        // scenes set up outside of the API only contribute the values above
+        if (objectKey != null) {
+            digest.update(objectKey);
+        }
+        return toHex(digest);
+    }
+
+    /**
+     * Combines a scene key with the key of a single entry.
+     *
+     * @param sceneKey key returned by
+     *            {@link #computeSceneKey(InstanceList, LightSource[], byte[], String)}
+     * @param key entry type and settings
+     * @return file name for the entry
+     */
+    static String computeKey(String sceneKey, String key) {
+        MessageDigest digest = createDigest();
+        update(digest, sceneKey);
+        update(digest, key);
+        return toHex(digest);
+    }
+
+    /**
+     * Restores a photon map from the cache.
+     *
+     * @param map photon map to restore
+     * @param key entry key
+     * @return <code>true</code> if the map was found and read
+     */
+    boolean read(CacheablePhotonStore map, String key) {
+        File file = new File(directory, key + ".photons");
+        if (!file.exists()) {
+            return false;
+        }
+        Timer t = new Timer();
+        t.start();
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                ByteBuffer buffer = readFully(raf);
+                if (!readHeader(buffer, file, key)) {
+                    return false;
+                }
+                map.read(buffer);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            UI.printWarning(Module.LIGHT, "Unable to read cache file \"%s\": %s", file.getName(), e.getMessage());
+            return false;
+        } catch (RuntimeException e) {
+            // truncated or corrupted file
+            UI.printWarning(Module.LIGHT, "Unable to read cache file \"%s\": %s", file.getName(), e);
+            return false;
+        }
+        t.end();
+        UI.printInfo(Module.LIGHT, "Loaded photon map from cache (%s) in %s", Memory.bytesToString(file.length()), t);
+        return true;
+    }
+
+    /**
+     * Saves a photon map to the cache. Existing entries are replaced.
+     *
+     * @param map photon map to save
+     * @param key entry key
+     */
+    void write(CacheablePhotonStore map, String key) {
+        File file = new File(directory, key + ".photons");
+        Timer t = new Timer();
+        t.start();
+        // write to a temporary file first so concurrent renders never see
+        // partial entries
+        File temp = new File(directory, file.getName() + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+            try {
+                writeHeader(out, key);
+                map.write(out);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                file.delete();
+                if (!temp.renameTo(file)) {
+                    throw new IOException("unable to rename " + temp.getName());
+                }
+            }
+        } catch (IOException e) {
+            temp.delete();
+            UI.printWarning(Module.LIGHT, "Unable to write cache file \"%s\": %s", file.getName(), e.getMessage());
+            return;
+        }
+        t.end();
+        UI.printDetailed(Module.LIGHT, "Saved photon map to cache (%s) in %s", Memory.bytesToString(file.length()), t);
+    }
+
+    /**
+     * Adds all saved samples to a gi engine.
+     *
+     * @param engine engine to add samples to
+     * @param key entry key
+     */
+    void read(CacheableGIEngine engine, String key) {
+        File file = new File(directory, key + ".irr");
+        if (!file.exists()) {
+            return;
+        }
+        Timer t = new Timer();
+        t.start();
+        int blocks = 0;
+        int samples = 0;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                ByteBuffer buffer = readFully(raf);
+                if (!readHeader(buffer, file, key)) {
+                    return;
+                }
+                // a block which is still being appended is skipped
+                while (buffer.remaining() >= 4) {
+                    int size = buffer.getInt();
+                    if (size < 0 || size > buffer.remaining()) {
+                        break;
+                    }
+                    ByteBuffer block = buffer.slice();
+                    block.limit(size);
+                    samples += engine.readSamples(block);
+                    buffer.position(buffer.position() + size);
+                    blocks++;
+                }
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            UI.printWarning(Module.LIGHT, "Unable to read cache file \"%s\": %s", file.getName(), e.getMessage());
+            return;
+        } catch (RuntimeException e) {
+            UI.printWarning(Module.LIGHT, "Unable to read cache file \"%s\": %s", file.getName(), e);
+            return;
+        }
+        t.end();
+        UI.printInfo(Module.LIGHT, "Loaded %d samples from cache (%d blocks, %s) in %s", samples, blocks, Memory.bytesToString(file.length()), t);
+    }
+
+    /**
+     * Appends the samples a gi engine computed since the last call to the
+     * cache.
+     *
+     * @param engine engine to save the samples of
+     * @param key entry key
+     */
+    void write(CacheableGIEngine engine, String key) {
+        File file = new File(directory, key + ".irr");
+        Timer t = new Timer();
+        t.start();
+        int samples;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            samples = engine.writeSamples(out);
+            out.close();
+            if (samples == 0) {
+                return;
+            }
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                // renders of other frames may be appending to the same file
+                FileLock lock = raf.getChannel().lock();
+                try {
+                    long end = findEnd(raf, key);
+                    if (end < 0) {
+                        ByteArrayOutputStream header = new ByteArrayOutputStream();
+                        DataOutputStream hout = new DataOutputStream(header);
+                        writeHeader(hout, key);
+                        hout.close();
+                        raf.setLength(0);
+                        raf.write(header.toByteArray());
+                        end = header.size();
+                    }
+                    // drop any block left incomplete by an interrupted write
+                    raf.setLength(end);
+                    raf.seek(end);
+                    raf.writeInt(bytes.size());
+                    raf.write(bytes.toByteArray());
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            UI.printWarning(Module.LIGHT, "Unable to write cache file \"%s\": %s", file.getName(), e.getMessage());
+            return;
+        }
+        t.end();
+        UI.printDetailed(Module.LIGHT, "Appended %d samples to cache (%s) in %s", samples, Memory.bytesToString(file.length()), t);
+    }
+
+    /**
+     * Finds the end of the last complete block of a sample file.
+     *
+     * @return file offset, or -1 if the file has no valid header
+     */
+    private static long findEnd(RandomAccessFile raf, String key) throws IOException {
+        long length = raf.length();
+        byte[] k = key.getBytes("UTF-8");
+        if (length < 12 + k.length) {
+            return -1;
+        }
+        raf.seek(0);
+        if (raf.readInt() != MAGIC || raf.readInt() != VERSION || raf.readInt() != k.length) {
+            return -1;
+        }
+        byte[] fk = new byte[k.length];
+        raf.readFully(fk);
+        if (!key.equals(new String(fk, "UTF-8"))) {
+            return -1;
+        }
+        long end = raf.getFilePointer();
+        while (end + 4 <= length) {
+            raf.seek(end);
+            int size = raf.readInt();
+            if (size < 0 || end + 4 + size > length) {
+                break;
+            }
+            end += 4 + size;
+        }
+        return end;
+    }
+
+    /**
+     * Reads a whole file into a heap buffer. Files are not mapped, as a
+     * mapping would stay alive until it is garbage collected, while the next
+     * frame may already be truncating or appending to the file.
+     */
+    private static ByteBuffer readFully(RandomAccessFile raf) throws IOException {
+        FileChannel channel = raf.getChannel();
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("file is too large");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) < 0) {
+                throw new IOException("unexpected end of file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void writeHeader(DataOutputStream out, String key) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        byte[] k = key.getBytes("UTF-8");
+        out.writeInt(k.length);
+        out.write(k);
+    }
+
+    private static boolean readHeader(ByteBuffer buffer, File file, String key) throws IOException {
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            UI.printWarning(Module.LIGHT, "Ignoring invalid cache file \"%s\"", file.getName());
+            return false;
+        }
+        byte[] k = new byte[buffer.getInt()];
+        buffer.get(k);
+        if (!key.equals(new String(k, "UTF-8"))) {
+            UI.printWarning(Module.LIGHT, "Ignoring mismatched cache file \"%s\"", file.getName());
+            return false;
+        }
+        return true;
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void update(MessageDigest digest, String s) {
+        try {
+            digest.update(s.getBytes("UTF-8"));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String toHex(MessageDigest digest) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b & 0xFF));
+        }
+        return hex.toString();
+    }
+}
@@ -156,13 +156,25 @@ public class Instance implements RenderObject {
     }
 
     void intersect(Ray r, IntersectionState state) {
-        Ray localRay = r.transform(w2o.sample(state.time));
+        Ray localRay = r.transform(w2o.sample(state.time), state.localRay);
         state.current = this;
         geometry.intersect(localRay, state);
         // FIXME: transfer max distance to current ray
         r.setMax(localRay.getMax());
     }
 
+    void intersect(RayPacket packet, IntersectionState state) {
+        if (w2o.numSegments() > 1) {
+            // motion blurred instances need a different transform per ray
+            packet.intersectSerial(this, state);
+            return;
+        }
+        RayPacket localPacket = packet.transform(w2o.getData(0));
+        state.current = this;
+        geometry.intersect(localPacket, state);
+        packet.merge(localPacket);
+    }
+
     /**
      * Prepare the shading state for shader invocation. This also runs the
      * currently attached surface modifier.
@@ -19,6 +19,10 @@ final class InstanceList implements PrimitiveList {
         clearLightSources();
     }
 
+    void setInstances(Instance[] instances) {
+        this.instances = instances;
+    }
+
     void addLightSourceInstances(Instance[] lights) {
         this.lights = lights;
     }
@@ -27,6 +31,23 @@ final class InstanceList implements PrimitiveList {
         lights = new Instance[0];
     }
 
+    /**
+     * Sets how the acceleration structures of the instanced geometry are
+     * built, including area light instances.
+     *
+     * @param cache cache to look up built structures in, may be
+     *            <code>null</code>
+     * @param threads number of threads, 0 to use one per processor
+     */
+    void setBuildSettings(AccelerationStructureCache cache, int threads) {
+        for (Instance i : instances) {
+            i.getGeometry().setBuildSettings(cache, threads);
+        }
+        for (Instance i : lights) {
+            i.getGeometry().setBuildSettings(cache, threads);
+        }
+    }
+
     @Override
     public final float getPrimitiveBound(int primID, int i) {
         if (primID < instances.length) {
@@ -57,6 +78,14 @@ final class InstanceList implements PrimitiveList {
         }
     }
 
+    final void intersectPrimitive(RayPacket packet, int primID, IntersectionState state) {
+        if (primID < instances.length) {
+            instances[primID].intersect(packet, state);
+        } else {
+            lights[primID - instances.length].intersect(packet, state);
+        }
+    }
+
     @Override
     public final int getNumPrimitives() {
         return instances.length + lights.length;
@@ -14,12 +14,20 @@ public final class IntersectionState {
     int id;
     private final StackNode[][] stacks = new StackNode[2][MAX_STACK_SIZE];
     Instance current;
+    // scratch ray used to intersect instances in object space
+    final Ray localRay = new Ray(0, 0, 0, 0, 0, 1);
     long numEyeRays;
     long numShadowRays;
     long numReflectionRays;
     long numGlossyRays;
     long numRefractionRays;
     long numRays;
+    long numAllocatedBytes;
+    long numLightQueries;
+    long numLightsSampled;
+    // scratch arrays used to pick lights from the light hierarchy
+    int[] lightPicks;
+    float[] lightWeights;
 
     /**
      * Traversal stack node, helps with tree-based {@link AccelerationStructure}
@@ -43,6 +51,19 @@ public final class IntersectionState {
         }
     }
 
+    /**
+     * Records heap memory allocated by the thread owning this state, as
+     * measured by {@link org.sunflow.system.Memory#getAllocatedBytes()}. The
+     * total is reported with the other ray tracing statistics.
+     *
+     * @param bytes number of bytes allocated
+     */
+    public final void addAllocatedBytes(long bytes) {
+        if (bytes > 0) {
+            numAllocatedBytes += bytes;
+        }
+    }
+
     /**
      * Returns the time at which the intersection should be calculated. This
      * will be constant for a given ray-tree. This value is guarenteed to be
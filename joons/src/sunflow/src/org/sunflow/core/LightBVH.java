@@ -0,0 +1,238 @@
+package org.sunflow.core;
+
+import org.sunflow.math.BoundingBox;
+import org.sunflow.math.Point3;
+import org.sunflow.math.Vector3;
+
+/**
+ * Bounding volume hierarchy over the bounded light sources of a scene. Rather
+ * than sampling every light at every shading point, a fixed number of lights
+ * is picked by walking down the tree, choosing each child with a probability
+ * proportional to an estimate of its contribution: total power, divided by
+ * the squared distance and bounded by the angle between the cluster and the
+ * surface normal. The samples of the picked lights are divided by the
+ * probability of picking them, so the estimate stays unbiased.
+ */
+final class LightBVH {
+
+    private final LightSource[] lights;
+    private final int samples;
+    // per node: bounds as min x,y,z followed by max x,y,z
+    private final float[] bounds;
+    private final float[] power;
+    // per node: index of the left child (the right child follows it), or the
+    // complement of the light index for leaves
+    private final int[] nodes;
+    private int numNodes;
+
+    /**
+     * Builds a hierarchy over the specified lights.
+     *
+     * @param lights lights to build the tree for, there must be at least one
+     * @param samples number of lights to pick at each shading point
+     */
+    LightBVH(BoundedLightSource[] lights, int samples) {
+        this.lights = lights;
+        this.samples = samples;
+        int n = lights.length;
+        float[] lightBounds = new float[6 * n];
+        float[] lightPower = new float[n];
+        int[] ids = new int[n];
+        for (int i = 0; i < n; i++) {
+            BoundingBox b = lights[i].getBounds();
+            lightBounds[6 * i + 0] = b.getMinimum().x;
+            lightBounds[6 * i + 1] = b.getMinimum().y;
+            lightBounds[6 * i + 2] = b.getMinimum().z;
+            lightBounds[6 * i + 3] = b.getMaximum().x;
+            lightBounds[6 * i + 4] = b.getMaximum().y;
+            lightBounds[6 * i + 5] = b.getMaximum().z;
+            lightPower[i] = Math.max(0, lights[i].getPower());
+            ids[i] = i;
+        }
+        bounds = new float[6 * (2 * n - 1)];
+        power = new float[2 * n - 1];
+        nodes = new int[2 * n - 1];
+        numNodes = 1;
+        build(0, ids, 0, n, lightBounds, lightPower);
+    }
+
+    private void build(int node, int[] ids, int start, int end, float[] lightBounds, float[] lightPower) {
+        float[] cmin = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY};
+        float[] cmax = {Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+        for (int a = 0; a < 3; a++) {
+            bounds[6 * node + a] = Float.POSITIVE_INFINITY;
+            bounds[6 * node + 3 + a] = Float.NEGATIVE_INFINITY;
+        }
+        float p = 0;
+        for (int i = start; i < end; i++) {
+            int l = ids[i];
+            for (int a = 0; a < 3; a++) {
+                bounds[6 * node + a] = Math.min(bounds[6 * node + a], lightBounds[6 * l + a]);
+                bounds[6 * node + 3 + a] = Math.max(bounds[6 * node + 3 + a], lightBounds[6 * l + 3 + a]);
+                float c = centroid(lightBounds, l, a);
+                cmin[a] = Math.min(cmin[a], c);
+                cmax[a] = Math.max(cmax[a], c);
+            }
+            p += lightPower[l];
+        }
+        power[node] = p;
+        if (end - start == 1) {
+            nodes[node] = ~ids[start];
+            return;
+        }
+        // split at the median centroid along the longest axis
+        int axis = 0;
+        for (int a = 1; a < 3; a++) {
+            if (cmax[a] - cmin[a] > cmax[axis] - cmin[axis]) {
+                axis = a;
+            }
+        }
+        int mid = (start + end) >>> 1;
+        select(ids, start, end - 1, mid, lightBounds, axis);
+        int left = numNodes;
+        numNodes += 2;
+        nodes[node] = left;
+        build(left, ids, start, mid, lightBounds, lightPower);
+        build(left + 1, ids, mid, end, lightBounds, lightPower);
+    }
+
+    private static float centroid(float[] lightBounds, int l, int axis) {
+        return 0.5f * (lightBounds[6 * l + axis] + lightBounds[6 * l + 3 + axis]);
+    }
+
+    /**
+     * Partially sorts <code>ids[left..right]</code> so that the element at
+     * <code>k</code> has the centroid it would have if the range was sorted.
+     */
+    private static void select(int[] ids, int left, int right, int k, float[] lightBounds, int axis) {
+        while (right > left) {
+            float v = centroid(lightBounds, ids[(left + right) >>> 1], axis);
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (centroid(lightBounds, ids[i], axis) < v) {
+                    i++;
+                }
+                while (centroid(lightBounds, ids[j], axis) > v) {
+                    j--;
+                }
+                if (i <= j) {
+                    int tmp = ids[i];
+                    ids[i] = ids[j];
+                    ids[j] = tmp;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Estimates the contribution of the lights below a node to a shading
+     * point.
+     */
+    private float importance(int node, Point3 p, Vector3 n) {
+        int b = 6 * node;
+        float ex = 0.5f * (bounds[b + 3] - bounds[b + 0]);
+        float ey = 0.5f * (bounds[b + 4] - bounds[b + 1]);
+        float ez = 0.5f * (bounds[b + 5] - bounds[b + 2]);
+        float dx = bounds[b + 0] + ex - p.x;
+        float dy = bounds[b + 1] + ey - p.y;
+        float dz = bounds[b + 2] + ez - p.z;
+        float r2 = ex * ex + ey * ey + ez * ez;
+        float d2 = dx * dx + dy * dy + dz * dz;
+        float cos = 1;
+        if (d2 > r2) {
+            // cosine of the smallest angle between the normal and the
+            // bounding sphere as seen from the shading point
+            float invD = 1 / (float) Math.sqrt(d2);
+            float cosTheta = (dx * n.x + dy * n.y + dz * n.z) * invD;
+            float sinAlpha2 = r2 / d2;
+            float cosAlpha = (float) Math.sqrt(1 - sinAlpha2);
+            if (cosTheta < cosAlpha) {
+                float sinTheta = (float) Math.sqrt(Math.max(0, 1 - cosTheta * cosTheta));
+                cos = cosTheta * cosAlpha + sinTheta * (float) Math.sqrt(sinAlpha2);
+                if (cos <= 0) {
+                    return 0;
+                }
+            }
+        }
+        return power[node] * cos / Math.max(d2, r2);
+    }
+
+    /**
+     * Picks lights for the specified shading point and adds their weighted
+     * samples to it. Lights picked more than once are only sampled once, with
+     * the combined weight.
+     *
+     * @param state current shading state
+     * @return number of lights which were sampled
+     */
+    int getSamples(ShadingState state) {
+        Point3 p = state.getPoint();
+        Vector3 n = state.getNormal();
+        if (importance(0, p, n) <= 0) {
+            return 0;
+        }
+        IntersectionState istate = state.getIntersectionState();
+        if (istate.lightPicks == null || istate.lightPicks.length < samples) {
+            istate.lightPicks = new int[samples];
+            istate.lightWeights = new float[samples];
+        }
+        int[] picks = istate.lightPicks;
+        float[] weights = istate.lightWeights;
+        int numPicks = 0;
+        picking: for (int i = 0; i < samples; i++) {
+            double u = state.getLightPickRandom(i, samples);
+            float pdf = 1;
+            int node = 0;
+            while (nodes[node] >= 0) {
+                int left = nodes[node];
+                float wl = importance(left, p, n);
+                float wr = importance(left + 1, p, n);
+                if (wl + wr <= 0) {
+                    // all lights of the cluster are below the horizon
+                    continue picking;
+                }
+                float pl = wl / (wl + wr);
+                if (u < pl) {
+                    node = left;
+                    pdf *= pl;
+                    u = u / pl;
+                } else {
+                    node = left + 1;
+                    pdf *= 1 - pl;
+                    u = (u - pl) / (1 - pl);
+                }
+                // guard against round off pushing the remapped value out of
+                // the unit interval
+                u = Math.min(u, 0.99999999);
+            }
+            int light = ~nodes[node];
+            float w = 1 / (samples * pdf);
+            int j = 0;
+            while (j < numPicks && picks[j] != light) {
+                j++;
+            }
+            if (j == numPicks) {
+                picks[j] = light;
+                weights[j] = 0;
+                numPicks++;
+            }
+            weights[j] += w;
+        }
+        for (int i = 0; i < numPicks; i++) {
+            LightSample last = state.getLastSample();
+            lights[picks[i]].getSamples(state);
+            state.scaleSamples(last, weights[i]);
+        }
+        return numPicks;
+    }
+}
@@ -1,6 +1,7 @@
 package org.sunflow.core;
 
 import org.sunflow.image.Color;
+import org.sunflow.math.MathUtils;
 import org.sunflow.math.Vector3;
 
 /**
@@ -13,6 +14,7 @@ public class LightSample {
     // shadow
     private Color ldiff;
     private Color lspec;
+    private float pdf;
     LightSample next; // pointer to next item in a linked list of samples
 
     /**
@@ -21,6 +23,7 @@ public class LightSample {
     public LightSample() {
         ldiff = lspec = null;
         shadowRay = null;
+        pdf = 0;
         next = null;
     }
 
@@ -91,6 +94,39 @@ public class LightSample {
         lspec = s.copy();
     }
 
+    /**
+     * Set the density, with respect to solid angle, of the strategy which
+     * generated this sample, multiplied by the number of samples taken. Shaders
+     * which also trace rays towards the light use it to weight both estimates.
+     * Samples from lights which can't be hit by rays leave it at zero.
+     *
+     * @param pdf sampling density
+     */
+    public void setPdf(float pdf) {
+        this.pdf = pdf;
+    }
+
+    /**
+     * Get the density the sample was generated with.
+     *
+     * @return sampling density, or zero if it is unknown
+     */
+    public float getPdf() {
+        return pdf;
+    }
+
+    /**
+     * Computes the weight of this sample when it is combined with rays traced
+     * by the shader. Samples without a density are not weighted.
+     *
+     * @param pdf density the shader would trace a ray in the sample's
+     *            direction with, multiplied by the number of rays it traces
+     * @return weight of the sample
+     */
+    public float getMisWeight(float pdf) {
+        return this.pdf > 0 ? MathUtils.powerHeuristic(this.pdf, pdf) : 1;
+    }
+
     /**
      * Compute a dot product between the current shadow ray direction and the
      * specified vector.
@@ -1,6 +1,10 @@
 package org.sunflow.core;
 
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.sunflow.PluginRegistry;
+import org.sunflow.core.gi.IrradianceCacheGIEngine;
 import org.sunflow.image.Color;
 import org.sunflow.math.Point3;
 import org.sunflow.math.QMC;
@@ -10,11 +14,17 @@ import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
 class LightServer {
+    // number of photons handed to a photon thread at a time
+    private static final int PHOTON_CHUNK = 512;
     // parent
 
     private Scene scene;
     // lighting
     LightSource[] lights;
+    private byte[] sceneKey;
+    // lights sampled at every shading point when the light hierarchy is used
+    private LightSource[] unboundedLights;
+    private LightBVH lightBVH;
     // shading override
     private Shader shaderOverride;
     private boolean shaderOverridePhotons;
@@ -25,7 +35,10 @@ class LightServer {
     // indirect illumination
     private CausticPhotonMapInterface causticPhotonMap;
     private GIEngine giEngine;
-    private int photonCounter;
+    // illumination cache
+    private IlluminationCache cache;
+    private String cacheKey;
+    private String giCacheKey;
 
     LightServer(Scene scene) {
         this.scene = scene;
@@ -47,6 +60,10 @@ class LightServer {
         this.lights = lights;
     }
 
+    void setSceneKey(byte[] key) {
+        sceneKey = key;
+    }
+
     Scene getScene() {
         return scene;
     }
@@ -65,6 +82,7 @@ class LightServer {
         giEngine = PluginRegistry.giEnginePlugins.createObject(giEngineType);
         String caustics = options.getString("caustics", null);
         causticPhotonMap = PluginRegistry.causticPhotonMapPlugins.createObject(caustics);
+        int lightSamples = options.getInt("lights.bvh.samples", 0);
 
         // validate options
         maxDiffuseDepth = Math.max(0, maxDiffuseDepth);
@@ -78,11 +96,25 @@ class LightServer {
         for (int i = 0; i < lights.length; i++) {
             numLightSamples += lights[i].getNumSamples();
         }
+        buildLightBVH(lightSamples);
+        cache = IlluminationCache.open(options.getString("gi.cache", null));
+        cacheKey = null;
+        giCacheKey = null;
+        if (cache != null) {
+            String settings = String.format("%d-%d-%d-%s-%b", maxDiffuseDepth, maxReflectionDepth, maxRefractionDepth, shaderOverride == null ? null : shaderOverride.getClass().getName(), shaderOverridePhotons);
+            cacheKey = IlluminationCache.computeSceneKey(scene.getInstanceList(), lights, sceneKey, settings);
+            UI.printDetailed(Module.LIGHT, "Illumination cache key %s", cacheKey);
+        }
         // initialize gi engine
         if (giEngine != null) {
             if (!giEngine.init(options, scene)) {
                 return false;
             }
+            if (cacheKey != null && giEngine instanceof CacheableGIEngine) {
+                CacheableGIEngine cacheable = (CacheableGIEngine) giEngine;
+                giCacheKey = IlluminationCache.computeKey(cacheKey, cacheable.getCacheKey());
+                cache.read(cacheable, giCacheKey);
+            }
         }
 
         if (!calculatePhotons(causticPhotonMap, "caustic", 0, options)) {
@@ -92,19 +124,67 @@ class LightServer {
         UI.printInfo(Module.LIGHT, "Light Server stats:");
         UI.printInfo(Module.LIGHT, "  * Light sources found: %d", lights.length);
         UI.printInfo(Module.LIGHT, "  * Light samples:       %d", numLightSamples);
+        if (lightBVH != null) {
+            UI.printInfo(Module.LIGHT, "  * Light BVH:           %d lights, %d per point", lights.length - unboundedLights.length, lightSamples);
+        } else {
+            UI.printInfo(Module.LIGHT, "  * Light BVH:           off");
+        }
         UI.printInfo(Module.LIGHT, "  * Max raytrace depth:");
         UI.printInfo(Module.LIGHT, "      - Diffuse          %d", maxDiffuseDepth);
         UI.printInfo(Module.LIGHT, "      - Reflection       %d", maxReflectionDepth);
         UI.printInfo(Module.LIGHT, "      - Refraction       %d", maxRefractionDepth);
         UI.printInfo(Module.LIGHT, "  * GI engine            %s", giEngineType == null ? "none" : giEngineType);
         UI.printInfo(Module.LIGHT, "  * Caustics:            %s", caustics == null ? "none" : caustics);
+        UI.printInfo(Module.LIGHT, "  * Illumination cache:  %s", cache == null ? "none" : cache.getDirectory());
         UI.printInfo(Module.LIGHT, "  * Shader override:     %b", shaderOverride);
         UI.printInfo(Module.LIGHT, "  * Photon override:     %b", shaderOverridePhotons);
         UI.printInfo(Module.LIGHT, "  * Build time:          %s", t.toString());
         return true;
     }
 
+    /**
+     * Builds the light hierarchy if it is enabled and there are enough
+     * bounded lights for it to pay off.
+     *
+     * @param samples number of lights to pick per shading point, 0 to sample
+     *            all lights
+     */
+    private void buildLightBVH(int samples) {
+        lightBVH = null;
+        unboundedLights = null;
+        if (samples <= 0) {
+            return;
+        }
+        ArrayList<BoundedLightSource> bounded = new ArrayList<BoundedLightSource>();
+        ArrayList<LightSource> unbounded = new ArrayList<LightSource>();
+        for (LightSource l : lights) {
+            if (l instanceof BoundedLightSource) {
+                bounded.add((BoundedLightSource) l);
+            } else {
+                unbounded.add(l);
+            }
+        }
+        if (bounded.size() <= samples) {
+            return;
+        }
+        lightBVH = new LightBVH(bounded.toArray(new BoundedLightSource[bounded.size()]), samples);
+        unboundedLights = unbounded.toArray(new LightSource[unbounded.size()]);
+    }
+
+    /**
+     * Saves the gi engine samples computed during the last render to the
+     * illumination cache.
+     */
+    synchronized void saveCache() {
+        if (giCacheKey != null) {
+            cache.write((CacheableGIEngine) giEngine, giCacheKey);
+        }
+    }
+
     void showStats() {
+        if (giEngine instanceof IrradianceCacheGIEngine) {
+            ((IrradianceCacheGIEngine) giEngine).showStats();
+        }
     }
 
     boolean calculatePhotons(final PhotonStore map, String type, final int seed, Options options) {
@@ -127,29 +207,46 @@ class LightServer {
             UI.printError(Module.LIGHT, "Photon mapping enabled, but no %s photons to emit", type);
             return false;
         }
+        String key = null;
+        if (cacheKey != null && map instanceof CacheablePhotonStore) {
+            key = IlluminationCache.computeKey(cacheKey, String.format("%s-%d-%s", type, seed, ((CacheablePhotonStore) map).getCacheKey()));
+            if (cache.read((CacheablePhotonStore) map, key)) {
+                return true;
+            }
+        }
         UI.taskStart("Tracing " + type + " photons", 0, numEmittedPhotons);
         Thread[] photonThreads = new Thread[scene.getThreads()];
+        final int numPhotons = numEmittedPhotons;
         final float scale = 1.0f / numEmittedPhotons;
-        int delta = numEmittedPhotons / photonThreads.length;
-        photonCounter = 0;
+        // photons are handed out in small chunks so that threads tracing
+        // long paths do not hold up the others. each photon keeps its own
+        // QMC index, so the same photons are traced regardless of which
+        // thread picks them up.
+        final AtomicInteger nextPhoton = new AtomicInteger();
+        final AtomicInteger photonCounter = new AtomicInteger();
         Timer photonTimer = new Timer();
         photonTimer.start();
         for (int i = 0; i < photonThreads.length; i++) {
-            final int threadID = i;
-            final int start = threadID * delta;
-            final int end = (threadID == (photonThreads.length - 1)) ? numEmittedPhotons : (threadID + 1) * delta;
             photonThreads[i] = new Thread(new Runnable() {
+                private final IntersectionState istate = new IntersectionState();
+                private final Point3 pt = new Point3();
+                private final Vector3 dir = new Vector3();
+                private final Ray r = new Ray(0, 0, 0, 0, 0, 1);
+
                 public void run() {
-                    IntersectionState istate = new IntersectionState();
-                    for (int i = start; i < end; i++) {
-                        synchronized (LightServer.this) {
-                            UI.taskUpdate(photonCounter);
-                            photonCounter++;
-                            if (UI.taskCanceled()) {
-                                return;
-                            }
+                    while (true) {
+                        int start = nextPhoton.getAndAdd(PHOTON_CHUNK);
+                        if (start >= numPhotons || UI.taskCanceled()) {
+                            return;
                         }
+                        int end = Math.min(start + PHOTON_CHUNK, numPhotons);
+                        tracePhotons(start, end);
+                        UI.taskUpdate(photonCounter.addAndGet(end - start));
+                    }
+                }
 
+                private void tracePhotons(int start, int end) {
+                    for (int i = start; i < end; i++) {
                         int qmcI = i + seed;
 
                         double rand = QMC.halton(0, qmcI) * histogram[histogram.length - 1];
@@ -166,12 +263,12 @@ class LightServer {
                         double randY1 = QMC.halton(1, qmcI);
                         double randX2 = QMC.halton(2, qmcI);
                         double randY2 = QMC.halton(3, qmcI);
-                        Point3 pt = new Point3();
-                        Vector3 dir = new Vector3();
+                        // photon maps may keep a reference to the power, so
+                        // it can't be shared between photons
                         Color power = new Color();
                         lights[j].getPhoton(randX1, randY1, randX2, randY2, pt, dir, power);
                         power.mul(scale);
-                        Ray r = new Ray(pt, dir);
+                        r.set(pt, dir);
                         scene.trace(r, istate);
                         if (istate.hit()) {
                             shadePhoton(ShadingState.createPhotonState(r, istate, qmcI, map, LightServer.this), power);
@@ -198,6 +295,9 @@ class LightServer {
         UI.taskStop();
         UI.printInfo(Module.LIGHT, "Tracing time for %s photons: %s", type, photonTimer.toString());
         map.init();
+        if (key != null) {
+            cache.write((CacheablePhotonStore) map, key);
+        }
         return true;
     }
 
@@ -262,6 +362,10 @@ class LightServer {
         // set this value once - will stay constant for the entire ray-tree
         istate.time = time;
         scene.trace(r, istate);
+        return shadeRadiance(rx, ry, time, i, d, r, istate, cache);
+    }
+
+    ShadingState shadeRadiance(float rx, float ry, float time, int i, int d, Ray r, IntersectionState istate, ShadingCache cache) {
         if (istate.hit()) {
             ShadingState state = ShadingState.createState(istate, rx, ry, time, r, i, d, this);
             state.getInstance().prepareShadingState(state);
@@ -311,15 +415,19 @@ class LightServer {
         return (shader != null) ? shader.getRadiance(state) : Color.BLACK;
     }
 
-    Color traceGlossy(ShadingState previous, Ray r, int i) {
+    boolean canTraceGlossy(ShadingState previous) {
         // limit path depth and disable caustic paths
-        if (previous.getReflectionDepth() >= maxReflectionDepth || previous.getDiffuseDepth() > 0) {
+        return previous.getReflectionDepth() < maxReflectionDepth && previous.getDiffuseDepth() == 0;
+    }
+
+    Color traceGlossy(ShadingState previous, Ray r, int i, float pdf) {
+        if (!canTraceGlossy(previous)) {
             return Color.BLACK;
         }
         IntersectionState istate = previous.getIntersectionState();
         istate.numGlossyRays++;
         scene.trace(r, istate);
-        return istate.hit() ? shadeHit(ShadingState.createGlossyBounceState(previous, r, i)) : Color.BLACK;
+        return istate.hit() ? shadeHit(ShadingState.createGlossyBounceState(previous, r, i, pdf)) : Color.BLACK;
     }
 
     Color traceReflection(ShadingState previous, Ray r, int i) {
@@ -369,9 +477,19 @@ class LightServer {
     }
 
     void initLightSamples(ShadingState state) {
-        for (LightSource l : lights) {
+        if (lightBVH == null) {
+            for (LightSource l : lights) {
+                l.getSamples(state);
+            }
+            return;
+        }
+        for (LightSource l : unboundedLights) {
             l.getSamples(state);
         }
+        // only counted with the hierarchy, without it every light is sampled
+        IntersectionState istate = state.getIntersectionState();
+        istate.numLightQueries++;
+        istate.numLightsSampled += unboundedLights.length + lightBVH.getSamples(state);
     }
 
     void initCausticSamples(ShadingState state) {
@@ -0,0 +1,16 @@
+package org.sunflow.core;
+
+/**
+ * An {@link AccelerationStructure} which can use several threads to build
+ * itself. The number of threads is set by whoever creates the structure,
+ * before {@link #build(PrimitiveList)} is called.
+ */
+public interface ParallelAccelerationStructure extends AccelerationStructure {
+
+    /**
+     * Sets the number of threads used by the next build.
+     *
+     * @param threads number of threads, 0 to use one per processor
+     */
+    public void setBuildThreads(int threads);
+}
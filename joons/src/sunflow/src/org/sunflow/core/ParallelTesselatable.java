@@ -0,0 +1,16 @@
+package org.sunflow.core;
+
+/**
+ * A {@link Tesselatable} which can use several threads to tesselate itself.
+ * The number of threads is set by the owning {@link Geometry} before
+ * {@link #tesselate()} is called.
+ */
+public interface ParallelTesselatable extends Tesselatable {
+
+    /**
+     * Sets the number of threads used by the next tesselation.
+     *
+     * @param threads number of threads, 0 to use one per processor
+     */
+    public void setTesselationThreads(int threads);
+}
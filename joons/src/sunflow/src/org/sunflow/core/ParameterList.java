@@ -1,7 +1,15 @@
 package org.sunflow.core;
 
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
 
+import org.sunflow.SunflowAPIInterface;
 import org.sunflow.image.Color;
 import org.sunflow.math.Matrix4;
 import org.sunflow.math.MovingMatrix4;
@@ -567,6 +575,125 @@ public class ParameterList {
         }
     }
 
+    /**
+     * Declares every parameter of this list again on the specified API. This
+     * is used to replay a set of options into another scene, for instance when
+     * writing it to a file.
+     *
+     * @param api interface to declare the parameters on
+     * @param excluded names of parameters which should not be declared
+     */
+    public void writeTo(SunflowAPIInterface api, String... excluded) {
+        List<String> skip = Arrays.asList(excluded);
+        for (FastHashMap.Entry<String, Parameter> e : list) {
+            String name = e.getKey();
+            if (skip.contains(name)) {
+                continue;
+            }
+            Parameter p = e.getValue();
+            switch (p.type) {
+                case STRING:
+                    if (p.size() == 1) {
+                        api.parameter(name, p.getStringValue());
+                    } else {
+                        api.parameter(name, p.getStrings());
+                    }
+                    break;
+                case INT:
+                    if (p.size() == 1) {
+                        api.parameter(name, p.getIntValue());
+                    } else {
+                        api.parameter(name, p.getInts());
+                    }
+                    break;
+                case BOOL:
+                    api.parameter(name, p.getBoolValue());
+                    break;
+                case COLOR:
+                    api.parameter(name, "sRGB linear", p.getColor().getRGB());
+                    break;
+                default:
+                    if (p.type == ParameterType.FLOAT && p.interp == InterpolationType.NONE && p.size() == 1) {
+                        api.parameter(name, p.getFloatValue());
+                    } else {
+                        api.parameter(name, p.type.name().toLowerCase(Locale.ENGLISH), p.interp.name().toLowerCase(Locale.ENGLISH), (float[]) p.obj);
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Adds the names, types and values of every parameter of this list to a
+     * digest. Parameters are visited in name order, so two lists holding the
+     * same values always produce the same hash. Parameters are not marked as
+     * used.
+     *
+     * @param digest digest to update
+     * @param excluded names of parameters which should not be hashed
+     */
+    public void updateDigest(MessageDigest digest, String... excluded) {
+        List<String> skip = Arrays.asList(excluded);
+        List<String> names = new ArrayList<String>();
+        for (FastHashMap.Entry<String, Parameter> e : list) {
+            if (!skip.contains(e.getKey())) {
+                names.add(e.getKey());
+            }
+        }
+        Collections.sort(names);
+        // large arrays are hashed in blocks
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        try {
+            for (String name : names) {
+                Parameter p = list.get(name);
+                digest.update(name.getBytes("UTF-8"));
+                digest.update((byte) 0);
+                digest.update((byte) p.type.ordinal());
+                digest.update((byte) p.interp.ordinal());
+                switch (p.type) {
+                    case STRING:
+                        for (String value : p.getStrings()) {
+                            digest.update(value.getBytes("UTF-8"));
+                            digest.update((byte) 0);
+                        }
+                        break;
+                    case INT: {
+                        int[] ints = p.getInts();
+                        for (int i = 0; i < ints.length; i += buffer.capacity() / 4) {
+                            int n = Math.min(ints.length - i, buffer.capacity() / 4);
+                            buffer.clear();
+                            buffer.asIntBuffer().put(ints, i, n);
+                            digest.update(buffer.array(), 0, 4 * n);
+                        }
+                        break;
+                    }
+                    case BOOL:
+                        digest.update((byte) (p.getBoolValue() ? 1 : 0));
+                        break;
+                    case COLOR: {
+                        float[] rgb = p.getColor().getRGB();
+                        buffer.clear();
+                        buffer.asFloatBuffer().put(rgb);
+                        digest.update(buffer.array(), 0, 4 * rgb.length);
+                        break;
+                    }
+                    default: {
+                        float[] floats = (float[]) p.obj;
+                        for (int i = 0; i < floats.length; i += buffer.capacity() / 4) {
+                            int n = Math.min(floats.length - i, buffer.capacity() / 4);
+                            buffer.clear();
+                            buffer.asFloatBuffer().put(floats, i, n);
+                            digest.update(buffer.array(), 0, 4 * n);
+                        }
+                        break;
+                    }
+                }
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public final MovingMatrix4 getMovingMatrix(String name, MovingMatrix4 defaultValue) {
         // step 1: check for a non-moving specification:
         Matrix4 m = getMatrix(name, null);
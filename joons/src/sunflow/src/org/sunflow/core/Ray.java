@@ -94,6 +94,56 @@ public final class Ray {
         tMax = n - EPSILON;
     }
 
+    /**
+     * Resets this ray so it points from the given origin to the given
+     * direction, with infinite length. This is equivalent to
+     * {@link #Ray(Point3, Vector3)} but avoids creating a new object.
+     *
+     * @param o ray origin
+     * @param d ray direction (need not be normalized)
+     * @return this ray
+     */
+    public Ray set(Point3 o, Vector3 d) {
+        ox = o.x;
+        oy = o.y;
+        oz = o.z;
+        dx = d.x;
+        dy = d.y;
+        dz = d.z;
+        float in = 1.0f / (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+        dx *= in;
+        dy *= in;
+        dz *= in;
+        tMin = EPSILON;
+        tMax = Float.POSITIVE_INFINITY;
+        return this;
+    }
+
+    /**
+     * Resets this ray to the segment (a,b). This is equivalent to
+     * {@link #Ray(Point3, Point3)} but avoids creating a new object.
+     *
+     * @param a start point
+     * @param b end point
+     * @return this ray
+     */
+    public Ray set(Point3 a, Point3 b) {
+        ox = a.x;
+        oy = a.y;
+        oz = a.z;
+        dx = b.x - ox;
+        dy = b.y - oy;
+        dz = b.z - oz;
+        tMin = EPSILON;
+        float n = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+        float in = 1.0f / n;
+        dx *= in;
+        dy *= in;
+        dz *= in;
+        tMax = n - EPSILON;
+        return this;
+    }
+
     /**
      * Create a new ray by transforming the supplied one by the given matrix. If
      * the matrix is
@@ -117,6 +167,35 @@ public final class Ray {
         return r;
     }
 
+    /**
+     * Transforms this ray by the given matrix and stores the result in the
+     * destination ray, which may be this ray. If the matrix is
+     * <code>null</code>, the original ray is returned and the destination is
+     * left untouched.
+     *
+     * @param m matrix to transform the ray by
+     * @param dest ray to store the result in
+     * @return the transformed ray
+     */
+    public Ray transform(Matrix4 m, Ray dest) {
+        if (m == null) {
+            return this;
+        }
+        float x = ox, y = oy, z = oz;
+        dest.ox = m.transformPX(x, y, z);
+        dest.oy = m.transformPY(x, y, z);
+        dest.oz = m.transformPZ(x, y, z);
+        x = dx;
+        y = dy;
+        z = dz;
+        dest.dx = m.transformVX(x, y, z);
+        dest.dy = m.transformVY(x, y, z);
+        dest.dz = m.transformVZ(x, y, z);
+        dest.tMin = tMin;
+        dest.tMax = tMax;
+        return dest;
+    }
+
     /**
      * Normalize the direction component of the ray.
      */
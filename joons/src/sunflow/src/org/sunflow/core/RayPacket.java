@@ -0,0 +1,383 @@
+package org.sunflow.core;
+
+import org.sunflow.math.BoundingBox;
+import org.sunflow.math.Matrix4;
+
+/**
+ * A small group of coherent rays which are traced together through an
+ * {@link AccelerationStructure}. Ray origins, inverse directions and
+ * traversal intervals are stored in structure of arrays form so tree nodes can
+ * be tested against every ray of the packet at once. Each ray keeps its own
+ * intersection record, which is swapped in and out of the
+ * {@link IntersectionState} whenever primitives are tested.
+ */
+public final class RayPacket {
+
+    /**
+     * Maximum number of rays in a packet.
+     */
+    public static final int MAX_SIZE = 16;
+    private static final int MAX_STACK_SIZE = 64;
+    private final Ray[] rays;
+    private final float[] time;
+    private int n;
+    private int signs;
+    private boolean coherent;
+    /**
+     * Ray origins, indexed by axis then by ray.
+     */
+    public final float[][] org;
+    /**
+     * Inverse ray directions, indexed by axis then by ray.
+     */
+    public final float[][] invDir;
+    /**
+     * Current traversal interval of each ray. A ray is active as long as
+     * <code>near[i] &lt;= far[i]</code>.
+     */
+    public final float[] near, far;
+    /**
+     * Scratch intervals used by tree traversals to compute the children's
+     * intervals before descending.
+     */
+    public final float[] frontFar, backNear;
+    // traversal stack
+    private final int[] stackNode;
+    private final float[] stackNear, stackFar;
+    private int stackPos;
+    // intersection records
+    private final Instance[] instance;
+    private final int[] id;
+    private final float[] u, v, w;
+    // packet of transformed rays for instanced geometry
+    private RayPacket local;
+    private final int[] parentIndex;
+    private Ray[] localRays;
+
+    public RayPacket() {
+        rays = new Ray[MAX_SIZE];
+        time = new float[MAX_SIZE];
+        org = new float[3][MAX_SIZE];
+        invDir = new float[3][MAX_SIZE];
+        near = new float[MAX_SIZE];
+        far = new float[MAX_SIZE];
+        frontFar = new float[MAX_SIZE];
+        backNear = new float[MAX_SIZE];
+        stackNode = new int[MAX_STACK_SIZE];
+        stackNear = new float[MAX_STACK_SIZE * MAX_SIZE];
+        stackFar = new float[MAX_STACK_SIZE * MAX_SIZE];
+        instance = new Instance[MAX_SIZE];
+        id = new int[MAX_SIZE];
+        u = new float[MAX_SIZE];
+        v = new float[MAX_SIZE];
+        w = new float[MAX_SIZE];
+        parentIndex = new int[MAX_SIZE];
+        reset();
+    }
+
+    /**
+     * Removes all rays from the packet.
+     */
+    public void reset() {
+        for (int i = 0; i < n; i++) {
+            rays[i] = null;
+            instance[i] = null;
+        }
+        n = 0;
+        signs = 0;
+        coherent = true;
+        stackPos = 0;
+    }
+
+    /**
+     * Appends a ray to the packet.
+     *
+     * @param r ray to add
+     * @param t time at which the ray should be intersected
+     * @return index of the ray within the packet
+     */
+    public int add(Ray r, float t) {
+        int i = n++;
+        rays[i] = r;
+        time[i] = t;
+        org[0][i] = r.ox;
+        org[1][i] = r.oy;
+        org[2][i] = r.oz;
+        invDir[0][i] = 1 / r.dx;
+        invDir[1][i] = 1 / r.dy;
+        invDir[2][i] = 1 / r.dz;
+        near[i] = r.getMin();
+        far[i] = r.getMax();
+        instance[i] = null;
+        int s = (Float.floatToRawIntBits(r.dx) >>> 31) | ((Float.floatToRawIntBits(r.dy) >>> 31) << 1) | ((Float.floatToRawIntBits(r.dz) >>> 31) << 2);
+        if (i == 0) {
+            signs = s;
+        } else if (s != signs) {
+            coherent = false;
+        }
+        return i;
+    }
+
+    public int size() {
+        return n;
+    }
+
+    public Ray getRay(int i) {
+        return rays[i];
+    }
+
+    public float getTime(int i) {
+        return time[i];
+    }
+
+    /**
+     * Checks to see if all rays in the packet share the same direction signs,
+     * and can therefore visit tree nodes in the same front to back order.
+     *
+     * @return <code>true</code> if the packet can be traversed as a whole
+     */
+    public boolean isCoherent() {
+        return coherent;
+    }
+
+    /**
+     * Gets the sign bit shared by all ray directions along the specified axis.
+     * Only meaningful for coherent packets.
+     *
+     * @param axis axis index
+     * @return 1 if the rays point towards negative values, 0 otherwise
+     */
+    public int getSignBit(int axis) {
+        return (signs >>> axis) & 1;
+    }
+
+    /**
+     * Checks to see if the specified ray is still being traversed.
+     *
+     * @param i ray index
+     * @return <code>true</code> if the ray's current interval is not empty
+     */
+    public boolean isActive(int i) {
+        return near[i] <= far[i];
+    }
+
+    /**
+     * Clips the interval of every ray against the specified box. This also
+     * resets the traversal stack.
+     *
+     * @param bounds box to clip against
+     * @return <code>true</code> if any ray overlaps the box
+     */
+    public boolean clip(BoundingBox bounds) {
+        stackPos = 0;
+        boolean any = false;
+        for (int i = 0; i < n; i++) {
+            float intervalMin = rays[i].getMin();
+            float intervalMax = rays[i].getMax();
+            for (int axis = 0; axis < 3; axis++) {
+                float inv = invDir[axis][i];
+                float t1 = (bounds.getMinimum().get(axis) - org[axis][i]) * inv;
+                float t2 = (bounds.getMaximum().get(axis) - org[axis][i]) * inv;
+                if (inv > 0) {
+                    if (t1 > intervalMin) {
+                        intervalMin = t1;
+                    }
+                    if (t2 < intervalMax) {
+                        intervalMax = t2;
+                    }
+                } else {
+                    if (t2 > intervalMin) {
+                        intervalMin = t2;
+                    }
+                    if (t1 < intervalMax) {
+                        intervalMax = t1;
+                    }
+                }
+            }
+            near[i] = intervalMin;
+            far[i] = intervalMax;
+            any |= intervalMin <= intervalMax;
+        }
+        return any;
+    }
+
+    /**
+     * Pushes the specified node on the traversal stack along with the
+     * intervals currently held in {@link #backNear} and {@link #far}.
+     *
+     * @param node node index
+     */
+    public void push(int node) {
+        int base = stackPos * MAX_SIZE;
+        stackNode[stackPos] = node;
+        for (int i = 0; i < n; i++) {
+            stackNear[base + i] = backNear[i];
+            stackFar[base + i] = far[i];
+        }
+        stackPos++;
+    }
+
+    /**
+     * Pops the next node which still has active rays from the traversal stack
+     * and restores the ray intervals for it. Rays which have found a hit
+     * closer than the node are deactivated.
+     *
+     * @return node index, or -1 if the stack is empty
+     */
+    public int pop() {
+        while (stackPos > 0) {
+            stackPos--;
+            int base = stackPos * MAX_SIZE;
+            boolean any = false;
+            for (int i = 0; i < n; i++) {
+                float t = rays[i].getMax();
+                near[i] = stackNear[base + i];
+                far[i] = stackFar[base + i] <= t ? stackFar[base + i] : t;
+                any |= near[i] <= far[i];
+            }
+            if (any) {
+                return stackNode[stackPos];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Intersects all active rays of the packet with the specified primitive.
+     * Instance lists are intersected as whole packets, other primitive lists
+     * are handled one ray at a time.
+     *
+     * @param primitives primitive list
+     * @param primID primitive index
+     * @param state intersection state used to record hits
+     */
+    public void intersectPrimitive(PrimitiveList primitives, int primID, IntersectionState state) {
+        if (primitives instanceof InstanceList) {
+            ((InstanceList) primitives).intersectPrimitive(this, primID, state);
+            return;
+        }
+        for (int i = 0; i < n; i++) {
+            if (near[i] <= far[i]) {
+                loadHit(i, state);
+                primitives.intersectPrimitive(rays[i], primID, state);
+                storeHit(i, state);
+            }
+        }
+    }
+
+    /**
+     * Intersects all active rays of the packet with a list of primitives, as
+     * found in the leaves of tree based acceleration structures.
+     *
+     * @param primitives primitive list
+     * @param primIDs array of primitive indices
+     * @param offset offset of the first primitive index in the array
+     * @param count number of primitives to intersect
+     * @param state intersection state used to record hits
+     */
+    public void intersectPrimitives(PrimitiveList primitives, int[] primIDs, int offset, int count, IntersectionState state) {
+        if (primitives instanceof InstanceList) {
+            for (int j = offset; j < offset + count; j++) {
+                ((InstanceList) primitives).intersectPrimitive(this, primIDs[j], state);
+            }
+            return;
+        }
+        for (int i = 0; i < n; i++) {
+            if (near[i] <= far[i]) {
+                loadHit(i, state);
+                for (int j = offset; j < offset + count; j++) {
+                    primitives.intersectPrimitive(rays[i], primIDs[j], state);
+                }
+                storeHit(i, state);
+            }
+        }
+    }
+
+    /**
+     * Intersects all active rays of the packet one at a time, for
+     * acceleration structures or packets which can't be traversed as a
+     * whole.
+     *
+     * @param accel acceleration structure to trace through
+     * @param state intersection state used to record hits
+     */
+    public void intersectSerial(AccelerationStructure accel, IntersectionState state) {
+        for (int i = 0; i < n; i++) {
+            if (near[i] <= far[i]) {
+                loadHit(i, state);
+                accel.intersect(rays[i], state);
+                storeHit(i, state);
+            }
+        }
+    }
+
+    void intersectSerial(Instance inst, IntersectionState state) {
+        for (int i = 0; i < n; i++) {
+            if (near[i] <= far[i]) {
+                loadHit(i, state);
+                state.time = time[i];
+                inst.intersect(rays[i], state);
+                storeHit(i, state);
+            }
+        }
+    }
+
+    /**
+     * Creates the packet of active rays in the local space of an instance.
+     * The returned packet is reused across calls.
+     */
+    RayPacket transform(Matrix4 m) {
+        if (local == null) {
+            local = new RayPacket();
+            localRays = new Ray[MAX_SIZE];
+            for (int i = 0; i < MAX_SIZE; i++) {
+                localRays[i] = new Ray(0, 0, 0, 0, 0, 1);
+            }
+        }
+        local.reset();
+        for (int i = 0; i < n; i++) {
+            if (near[i] <= far[i]) {
+                int k = local.add(rays[i].transform(m, localRays[local.n]), time[i]);
+                local.parentIndex[k] = i;
+                local.instance[k] = instance[i];
+                local.id[k] = id[i];
+                local.u[k] = u[i];
+                local.v[k] = v[i];
+                local.w[k] = w[i];
+            }
+        }
+        return local;
+    }
+
+    /**
+     * Transfers hits and max distances found in a local packet created by
+     * {@link #transform(Matrix4)} back to this packet.
+     */
+    void merge(RayPacket local) {
+        for (int k = 0; k < local.n; k++) {
+            int i = local.parentIndex[k];
+            rays[i].setMax(local.rays[k].getMax());
+            instance[i] = local.instance[k];
+            id[i] = local.id[k];
+            u[i] = local.u[k];
+            v[i] = local.v[k];
+            w[i] = local.w[k];
+        }
+    }
+
+    void loadHit(int i, IntersectionState state) {
+        state.instance = instance[i];
+        state.id = id[i];
+        state.u = u[i];
+        state.v = v[i];
+        state.w = w[i];
+    }
+
+    void storeHit(int i, IntersectionState state) {
+        instance[i] = state.instance;
+        id[i] = state.id;
+        u[i] = state.u;
+        v[i] = state.v;
+        w[i] = state.w;
+    }
+}
@@ -0,0 +1,19 @@
+package org.sunflow.core;
+
+/**
+ * An {@link AccelerationStructure} which can be updated in place after its
+ * primitives have moved, as long as their number stays the same.
+ */
+public interface RefittableAccelerationStructure extends AccelerationStructure {
+
+    /**
+     * Recomputes the bounds stored in the structure from the current
+     * primitive bounds, keeping the existing topology. The structure remains
+     * valid after this call, but may have degraded enough that a full
+     * rebuild would trace faster.
+     *
+     * @return <code>true</code> if the refitted structure is still of
+     * acceptable quality, <code>false</code> if it should be rebuilt
+     */
+    public boolean refit();
+}
@@ -8,6 +8,7 @@ import org.sunflow.math.BoundingBox;
 import org.sunflow.math.MathUtils;
 import org.sunflow.math.Point3;
 import org.sunflow.math.Vector3;
+import org.sunflow.system.Timer;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
@@ -31,12 +32,15 @@ public class Scene {
     private PrimitiveList bakingPrimitives;
     private AccelerationStructure bakingAccel;
     private boolean rebuildAccel;
+    // instance bounds the top-level accel was last built or refit for
+    private float[] intAccelBounds;
     // image size
     private int imageWidth;
     private int imageHeight;
     // global options
     private int threads;
     private boolean lowPriority;
+    private long deadline;
 
     /**
      * Creates an empty scene.
@@ -58,6 +62,7 @@ public class Scene {
         imageHeight = 480;
         threads = 0;
         lowPriority = true;
+        deadline = Long.MAX_VALUE;
 
         rebuildAccel = true;
     }
@@ -80,6 +85,28 @@ public class Scene {
         return lowPriority ? Thread.MIN_PRIORITY : Thread.NORM_PRIORITY;
     }
 
+    /**
+     * Get the time by which the current frame must be finished, as a value of
+     * {@link System#nanoTime()}. Image samplers stop rendering once it has
+     * passed and fill unfinished regions with a coarse approximation.
+     *
+     * @return deadline of the current frame, or {@link Long#MAX_VALUE} if
+     * there is none
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Saves the global illumination samples computed so far to the
+     * illumination cache, if it is enabled. This is done at the end of every
+     * frame, long renders may call it earlier so that an interrupted render
+     * does not lose them.
+     */
+    public void saveIlluminationCache() {
+        lightServer.saveCache();
+    }
+
     /**
      * Sets the current camera (no support for multiple cameras yet).
      *
@@ -100,9 +127,10 @@ public class Scene {
      * @param infinite infinite instances (no bounds)
      */
     public void setInstanceLists(Instance[] instances, Instance[] infinite) {
-        infiniteInstanceList = new InstanceList(infinite);
-        instanceList = new InstanceList(instances);
-        rebuildAccel = true;
+        // the lists are updated in place as the top-level accel refers to
+        // them - it will be refit or rebuilt as needed when rendering
+        infiniteInstanceList.setInstances(infinite);
+        instanceList.setInstances(instances);
     }
 
     /**
@@ -114,6 +142,17 @@ public class Scene {
         lightServer.setLights(lights);
     }
 
+    /**
+     * Sets a hash of the objects making up this scene. It is used to tell
+     * apart cached illumination of different scenes.
+     *
+     * @param key hash of the scene objects, or <code>null</code> if it is not
+     *            known
+     */
+    public void setSceneKey(byte[] key) {
+        lightServer.setSceneKey(key);
+    }
+
     /**
      * Enables shader overiding (set null to disable). The specified shader will
      * be used to shade all surfaces
@@ -182,6 +221,77 @@ public class Scene {
         }
     }
 
+    /**
+     * Checks to see if primary rays can be traced in packets. This is not the
+     * case while baking lightmaps, which generates its own rays.
+     *
+     * @return <code>true</code> if packet tracing of primary rays is possible
+     */
+    public boolean canTracePackets() {
+        return bakingPrimitives == null;
+    }
+
+    /**
+     * Adds the ray seen through a particular pixel to a packet of primary
+     * rays.
+     *
+     * @param packet packet to add the ray to
+     * @param rx pixel x coordinate
+     * @param ry pixel y coordinate
+     * @param lensU DOF sampling variable
+     * @param lensV DOF sampling variable
+     * @param time motion blur sampling variable
+     * @return index of the ray in the packet, or -1 if the camera does not
+     * generate a ray through the specified point
+     */
+    public int addPrimaryRay(RayPacket packet, float rx, float ry, double lensU, double lensV, double time) {
+        float sceneTime = camera.getTime((float) time);
+        Ray r = camera.getRay(rx, ry, imageWidth, imageHeight, lensU, lensV, sceneTime);
+        return r != null ? packet.add(r, sceneTime) : -1;
+    }
+
+    /**
+     * Find the closest hit of all primary rays in a packet.
+     *
+     * @param packet packet of rays created by
+     * {@link #addPrimaryRay(RayPacket, float, float, double, double, double)}
+     * @param istate intersection state for ray tracing
+     */
+    public void tracePrimaryPacket(RayPacket packet, IntersectionState istate) {
+        // stats
+        istate.numEyeRays += packet.size();
+        istate.numRays += packet.size();
+        // reset object
+        istate.instance = null;
+        istate.current = null;
+        for (int i = 0; i < infiniteInstanceList.getNumPrimitives(); i++) {
+            packet.intersectPrimitive(infiniteInstanceList, i, istate);
+        }
+        // reset for next accel structure
+        istate.current = null;
+        intAccel.intersect(packet, istate);
+    }
+
+    /**
+     * Get the radiance seen along a primary ray which has already been traced
+     * by {@link #tracePrimaryPacket(RayPacket, IntersectionState)}.
+     *
+     * @param istate intersection state for ray tracing
+     * @param packet traced packet
+     * @param index index of the ray in the packet
+     * @param rx pixel x coordinate
+     * @param ry pixel y coordinate
+     * @param instance QMC instance seed
+     * @return a shading state for the intersected primitive, or
+     * <code>null</code> if nothing is seen along the ray
+     */
+    public ShadingState getRadiance(IntersectionState istate, RayPacket packet, int index, float rx, float ry, int instance, int dim, ShadingCache cache) {
+        float sceneTime = packet.getTime(index);
+        istate.time = sceneTime;
+        packet.loadHit(index, istate);
+        return lightServer.shadeRadiance(rx, ry, sceneTime, instance, dim, packet.getRay(index), istate, cache);
+    }
+
     /**
      * Get scene world space bounding box.
      *
@@ -258,9 +368,54 @@ public class Scene {
         } else {
             instanceList.clearLightSources();
         }
-        // FIXME: this _could_ be done incrementally to avoid top-level rebuilds
-        // each frame
-        rebuildAccel = true;
+        // the top-level accel is only refit or rebuilt if these instances
+        // changed the bounds of the list, see updateInstanceAccel
+    }
+
+    /**
+     * Brings the top-level acceleration structure up to date with the
+     * instance list. The structure is left untouched if no instance bounds
+     * changed, refit if only some of them moved and rebuilt otherwise.
+     */
+    private void updateInstanceAccel() {
+        Timer t = new Timer();
+        t.start();
+        int n = instanceList.getNumPrimitives();
+        float[] currentBounds = new float[6 * n];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < 6; j++) {
+                currentBounds[6 * i + j] = instanceList.getPrimitiveBound(i, j);
+            }
+        }
+        boolean rebuild = rebuildAccel || intAccel == null || intAccelBounds == null || intAccelBounds.length != currentBounds.length;
+        String update = "rebuild";
+        if (!rebuild) {
+            int numDirty = 0;
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j < 6; j++) {
+                    if (currentBounds[6 * i + j] != intAccelBounds[6 * i + j]) {
+                        numDirty++;
+                        break;
+                    }
+                }
+            }
+            if (numDirty == 0) {
+                update = "unchanged";
+            } else if (intAccel instanceof RefittableAccelerationStructure && ((RefittableAccelerationStructure) intAccel).refit()) {
+                update = String.format("refit (%d of %d instances moved)", numDirty, n);
+            } else {
+                update = String.format("rebuild (%d of %d instances moved)", numDirty, n);
+                rebuild = true;
+            }
+        }
+        if (rebuild) {
+            intAccel = AccelerationStructureFactory.create(acceltype, n, false, getThreads());
+            intAccel.build(instanceList);
+            rebuildAccel = false;
+        }
+        intAccelBounds = currentBounds;
+        t.end();
+        UI.printInfo(Module.SCENE, "  * Instance accel update: %s in %s", update, t);
     }
 
     private void removeAreaLightInstances() {
@@ -277,7 +432,13 @@ public class Scene {
      * be created if <code>null</code>
      */
     public void render(Options options, ImageSampler sampler, Display display) {
+        // the deadline covers the whole frame, including scene preparation
+        float deadlineSeconds = options.getFloat("render.deadline", 0);
+        deadline = deadlineSeconds > 0 ? System.nanoTime() + (long) (deadlineSeconds * 1e9) : Long.MAX_VALUE;
+        threads = options.getInt("threads", 0);
+        lowPriority = options.getBoolean("threads.lowPriority", true);
         stats.reset();
+        TextureCache.resetStats();
         if (display == null) {
             display = new FrameDisplay();
         }
@@ -291,7 +452,7 @@ public class Scene {
             }
             int n = bakingPrimitives.getNumPrimitives();
             UI.printInfo(Module.SCENE, "Building acceleration structure for lightmapping (%d num primitives) ...", n);
-            bakingAccel = AccelerationStructureFactory.create("auto", n, true);
+            bakingAccel = AccelerationStructureFactory.create("auto", n, true, getThreads());
             bakingAccel.build(bakingPrimitives);
         } else {
             bakingPrimitives = null;
@@ -305,8 +466,6 @@ public class Scene {
         }
 
         // read from options
-        threads = options.getInt("threads", 0);
-        lowPriority = options.getBoolean("threads.lowPriority", true);
         imageWidth = options.getInt("resolutionX", 640);
         imageHeight = options.getInt("resolutionY", 480);
         // limit resolution to 16k
@@ -315,6 +474,10 @@ public class Scene {
 
         // prepare lights
         createAreaLightInstances();
+        // geometry is built on demand, with this scene's threads and cache
+        AccelerationStructureCache accelCache = AccelerationStructureCache.open(options.getString("accel.cache", null));
+        instanceList.setBuildSettings(accelCache, getThreads());
+        infiniteInstanceList.setBuildSettings(accelCache, getThreads());
 
         // get acceleration structure info
         // count scene primitives
@@ -332,29 +495,37 @@ public class Scene {
             acceltype = accelName;
         }
         UI.printInfo(Module.SCENE, "  * Instance accel:      %s", acceltype);
-        if (rebuildAccel) {
-            intAccel = AccelerationStructureFactory.create(acceltype, instanceList.getNumPrimitives(), false);
-            intAccel.build(instanceList);
-            rebuildAccel = false;
-        }
+        UI.printInfo(Module.SCENE, "  * Accel cache:         %s", accelCache == null ? "none" : accelCache.getDirectory());
+        updateInstanceAccel();
         UI.printInfo(Module.SCENE, "  * Scene bounds:        %s", getBounds());
         UI.printInfo(Module.SCENE, "  * Scene center:        %s", getBounds().getCenter());
         UI.printInfo(Module.SCENE, "  * Scene diameter:      %.2f", getBounds().getExtents().length());
         UI.printInfo(Module.SCENE, "  * Lightmap bake:       %s", bakingInstance != null ? (bakingViewDependent ? "view" : "ortho") : "off");
+        UI.printInfo(Module.SCENE, "  * Render deadline:     %s", deadlineSeconds > 0 ? Timer.toString(deadlineSeconds) : "none");
         if (sampler == null) {
             return;
         }
-        if (!lightServer.build(options)) {
-            return;
+        // the texture cache is shared, this render adds its budget to it
+        long textureMemory = (long) options.getInt("texture.memory", 256) << 20;
+        TextureCache.addMemoryBudget(textureMemory);
+        try {
+            if (!lightServer.build(options)) {
+                return;
+            }
+            // render
+            UI.printInfo(Module.SCENE, "Rendering ...");
+            stats.setResolution(imageWidth, imageHeight);
+            stats.setNumLights(lightServer.lights.length);
+            sampler.prepare(options, this, imageWidth, imageHeight);
+            sampler.render(display);
+            lightServer.saveCache();
+            // show statistics
+            stats.displayStats();
+            lightServer.showStats();
+            TextureCache.showStats();
+        } finally {
+            TextureCache.removeMemoryBudget(textureMemory);
         }
-        // render
-        UI.printInfo(Module.SCENE, "Rendering ...");
-        stats.setResolution(imageWidth, imageHeight);
-        sampler.prepare(options, this, imageWidth, imageHeight);
-        sampler.render(display);
-        // show statistics
-        stats.displayStats();
-        lightServer.showStats();
         // discard area lights
         removeAreaLightInstances();
         // discard baking tesselation/accel structure
@@ -363,6 +534,10 @@ public class Scene {
         UI.printInfo(Module.SCENE, "Done.");
     }
 
+    InstanceList getInstanceList() {
+        return instanceList;
+    }
+
     /**
      * Create a photon map as prescribed by the given {@link PhotonStore}.
      *
@@ -45,6 +45,7 @@ public final class ShadingState implements Iterable<LightSample> {
     private int refractionDepth;
     private boolean includeLights;
     private boolean includeSpecular;
+    private float glossyPdf;
     private LightSample lightSample;
     private PhotonStore map;
 
@@ -71,10 +72,11 @@ public final class ShadingState implements Iterable<LightSample> {
         return s;
     }
 
-    static ShadingState createGlossyBounceState(ShadingState previous, Ray r, int i) {
+    static ShadingState createGlossyBounceState(ShadingState previous, Ray r, int i, float pdf) {
         ShadingState s = new ShadingState(previous, previous.istate, r, i, 2);
         s.includeLights = false;
         s.includeSpecular = false;
+        s.glossyPdf = pdf;
         s.reflectionDepth++;
         return s;
     }
@@ -132,6 +134,7 @@ public final class ShadingState implements Iterable<LightSample> {
         behind = false;
         cosND = Float.NaN;
         includeLights = includeSpecular = true;
+        glossyPdf = 0;
         qmcD0I = QMC.halton(this.d, this.i);
         qmcD1I = QMC.halton(this.d + 1, this.i);
         result = null;
@@ -383,6 +386,29 @@ public final class ShadingState implements Iterable<LightSample> {
         lightSample = sample;
     }
 
+    /**
+     * Gets the most recently added light sample.
+     *
+     * @return most recent sample, or <code>null</code> if there are none
+     */
+    final LightSample getLastSample() {
+        return lightSample;
+    }
+
+    /**
+     * Scales the radiance of all light samples added after the specified one.
+     *
+     * @param last sample returned by {@link #getLastSample()} before the new
+     *            samples were added
+     * @param s scale factor
+     */
+    final void scaleSamples(LightSample last, float s) {
+        for (LightSample sample = lightSample; sample != last; sample = sample.next) {
+            sample.getDiffuseRadiance().mul(s);
+            sample.getSpecularRadiance().mul(s);
+        }
+    }
+
     /**
      * Get a QMC sample from an infinite sequence.
      *
@@ -422,6 +448,19 @@ public final class ShadingState implements Iterable<LightSample> {
         }
     }
 
+    /**
+     * Get a QMC sample used to pick lights. Secondary rays continue the
+     * dimensions handed out by {@link #getRandom(int, int, int)}, so picks are
+     * drawn from the last dimension instead, which only very deep paths reach.
+     *
+     * @param j sample number (starts from 0)
+     * @param n number of samples
+     * @return pseudo-random value in [0,1)
+     */
+    final double getLightPickRandom(int j, int n) {
+        return QMC.mod1(QMC.halton(QMC.MAX_DIMENSION, i) + (double) j / (double) n);
+    }
+
     /**
      * Checks to see if the shader should include emitted light.
      *
@@ -442,6 +481,19 @@ public final class ShadingState implements Iterable<LightSample> {
         return includeSpecular;
     }
 
+    /**
+     * Get the density the glossy ray which led to this point was traced with,
+     * multiplied by the number of glossy rays. Lights which are not otherwise
+     * included can use it to weight their emission against their own light
+     * samples.
+     *
+     * @return density of the glossy ray, or zero if this is not a glossy
+     *         bounce or the density is unknown
+     */
+    public final float getGlossyPdf() {
+        return glossyPdf;
+    }
+
     /**
      * Get the shader to be used to shade this surface.
      *
@@ -645,7 +697,35 @@ public final class ShadingState implements Iterable<LightSample> {
      * @return color observed along specified ray.
      */
     public final Color traceGlossy(Ray r, int i) {
-        return server.traceGlossy(this, r, i);
+        return server.traceGlossy(this, r, i, 0);
+    }
+
+    /**
+     * Returns the color obtained by recursively tracing the specified ray. The
+     * reflection is assumed to be glossy. Lights hit by the ray contribute
+     * their emission, weighted against their light samples using the specified
+     * density.
+     *
+     * @param r ray to trace
+     * @param i instance number of this sample
+     * @param pdf density, with respect to solid angle, the ray direction was
+     *            sampled with, multiplied by the number of glossy rays
+     * @return color observed along specified ray.
+     */
+    public final Color traceGlossy(Ray r, int i, float pdf) {
+        return server.traceGlossy(this, r, i, pdf);
+    }
+
+    /**
+     * Checks to see if glossy rays traced from this point will be followed.
+     * Shaders use this to know whether light samples need to be weighted
+     * against glossy rays.
+     *
+     * @return <code>true</code> if glossy rays are traced,
+     *         <code>false</code> otherwise
+     */
+    public final boolean canTraceGlossy() {
+        return server.canTraceGlossy(this);
     }
 
     /**
@@ -814,6 +894,8 @@ public final class ShadingState implements Iterable<LightSample> {
         faceforward();
         OrthoNormalBasis onb = getBasis();
         Vector3 w = new Vector3();
+        Ray r = new Ray(p, w);
+        Color c = new Color();
         Color result = Color.black();
         for (int i = 0; i < samples; i++) {
             float xi = (float) getRandom(i, 0, samples);
@@ -827,9 +909,9 @@ public final class ShadingState implements Iterable<LightSample> {
             w.y = sinPhi * sinTheta;
             w.z = cosTheta;
             onb.transform(w);
-            Ray r = new Ray(p, w);
+            r.set(p, w);
             r.setMax(maxDist);
-            result.add(Color.blend(bright, dark, traceShadow(r)));
+            result.add(Color.blend(bright, dark, traceShadow(r), c));
         }
         return result.mul(1.0f / samples);
     }
@@ -847,7 +929,7 @@ public final class ShadingState implements Iterable<LightSample> {
         if (diff.isBlack()) {
             return lr;
         }
-        for (LightSample sample : this) {
+        for (LightSample sample = lightSample; sample != null; sample = sample.next) {
             lr.madd(sample.dot(n), sample.getDiffuseRadiance());
         }
         lr.add(getIrradiance(diff));
@@ -875,19 +957,26 @@ public final class ShadingState implements Iterable<LightSample> {
         refDir.x = (dn * n.x) + r.dx;
         refDir.y = (dn * n.y) + r.dy;
         refDir.z = (dn * n.z) + r.dz;
+        // density of the glossy rays, light samples which can also be reached
+        // by them are weighted against it
+        int numSamples = getDepth() == 0 ? numRays : 1;
+        float pdfNorm = numRays > 0 && canTraceGlossy() ? numSamples * (power + 1) / (2.0f * (float) Math.PI) : 0;
         // direct lighting
-        for (LightSample sample : this) {
+        for (LightSample sample = lightSample; sample != null; sample = sample.next) {
             float cosNL = sample.dot(n);
             float cosLR = sample.dot(refDir);
             if (cosLR > 0) {
-                lr.madd(cosNL * (float) Math.pow(cosLR, power), sample.getSpecularRadiance());
+                float phong = (float) Math.pow(cosLR, power);
+                float weight = sample.getMisWeight(cosNL > 0 ? pdfNorm * phong : 0);
+                lr.madd(weight * cosNL * phong, sample.getSpecularRadiance());
             }
         }
         // indirect lighting
         if (numRays > 0) {
-            int numSamples = getDepth() == 0 ? numRays : 1;
             OrthoNormalBasis onb = OrthoNormalBasis.makeFromW(refDir);
             float mul = (2.0f * (float) Math.PI / (power + 1)) / numSamples;
+            Vector3 w = new Vector3();
+            Ray glossyRay = null;
             for (int i = 0; i < numSamples; i++) {
                 // specular indirect lighting
                 double r1 = getRandom(i, 0, numSamples);
@@ -895,11 +984,14 @@ public final class ShadingState implements Iterable<LightSample> {
                 double u = 2 * Math.PI * r1;
                 double s = (float) Math.pow(r2, 1 / (power + 1));
                 double s1 = (float) Math.sqrt(1 - s * s);
-                Vector3 w = new Vector3((float) (Math.cos(u) * s1), (float) (Math.sin(u) * s1), (float) s);
-                w = onb.transform(w, new Vector3());
+                w.set((float) (Math.cos(u) * s1), (float) (Math.sin(u) * s1), (float) s);
+                onb.transform(w);
                 float wn = Vector3.dot(w, n);
                 if (wn > 0) {
-                    lr.madd(wn * mul, traceGlossy(new Ray(p, w), i));
+                    // the ray is only referenced while the glossy bounce is
+                    // being shaded, so it can be reused for every sample
+                    glossyRay = glossyRay == null ? new Ray(p, w) : glossyRay.set(p, w);
+                    lr.madd(wn * mul, traceGlossy(glossyRay, i, pdfNorm * (float) Math.pow(s, power)));
                 }
             }
         }
@@ -1,5 +1,6 @@
 package org.sunflow.core;
 
+import org.sunflow.system.Memory;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
@@ -12,7 +13,12 @@ public class Statistics {
     private long numGlossyRays;
     private long numRefractionRays;
     private long numRays;
+    private long numAllocatedBytes;
     private long numPixels;
+    // light sampling
+    private long numLightQueries;
+    private long numLightsSampled;
+    private int numLights;
     // shading cache
     private long cacheHits;
     private long cacheMisses;
@@ -30,7 +36,10 @@ public class Statistics {
         numGlossyRays = 0;
         numRefractionRays = 0;
         numRays = 0;
+        numAllocatedBytes = 0;
         numPixels = 0;
+        numLightQueries = 0;
+        numLightsSampled = 0;
         cacheHits = 0;
         cacheMisses = 0;
         cacheSumDepth = 0;
@@ -44,6 +53,9 @@ public class Statistics {
         numGlossyRays += state.numGlossyRays;
         numRefractionRays += state.numRefractionRays;
         numRays += state.numRays;
+        numAllocatedBytes += state.numAllocatedBytes;
+        numLightQueries += state.numLightQueries;
+        numLightsSampled += state.numLightsSampled;
     }
 
     void accumulate(ShadingCache cache) {
@@ -57,6 +69,10 @@ public class Statistics {
         numPixels = w * h;
     }
 
+    void setNumLights(int n) {
+        numLights = n;
+    }
+
     void displayStats() {
         // display raytracing stats
         UI.printInfo(Module.SCENE, "Raytracing stats:");
@@ -68,6 +84,15 @@ public class Statistics {
         printRayTypeStats("refraction", numRefractionRays);
         printRayTypeStats("other", numRays - numEyeRays - numShadowRays - numReflectionRays - numGlossyRays - numRefractionRays);
         printRayTypeStats("total", numRays);
+        if (numAllocatedBytes > 0 && numRays > 0) {
+            UI.printInfo(Module.SCENE, "  * Heap allocated:           %s (%.1f bytes per ray)", Memory.bytesToString(numAllocatedBytes), (double) numAllocatedBytes / (double) numRays);
+        }
+        if (numLightQueries > 0 && numLightsSampled > 0) {
+            double perHit = (double) numLightsSampled / (double) numLightQueries;
+            UI.printInfo(Module.LIGHT, "Light sampling stats:");
+            UI.printInfo(Module.LIGHT, "  * Shading points:      %d", numLightQueries);
+            UI.printInfo(Module.LIGHT, "  * Lights per point:    %.2f of %d (%.1fx fewer)", perHit, numLights, numLights / perHit);
+        }
         if (cacheHits + cacheMisses > 0) {
             UI.printInfo(Module.LIGHT, "Shading cache stats:");
             UI.printInfo(Module.LIGHT, "  * Lookups:             %d", cacheHits + cacheMisses);
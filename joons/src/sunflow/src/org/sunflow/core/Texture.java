@@ -22,8 +22,9 @@ public class Texture {
 
     private String filename;
     private boolean isLinear;
+    private TiledImage image;
     private Bitmap bitmap;
-    private int loaded;
+    private volatile int loaded;
 
     /**
      * Creates a new texture from the specfied file.
@@ -42,29 +43,60 @@ public class Texture {
             return;
         }
         String extension = FileUtils.getExtension(filename);
+        Bitmap decoded = null;
         try {
             UI.printInfo(Module.TEX, "Reading texture bitmap from: \"%s\" ...", filename);
             BitmapReader reader = PluginRegistry.bitmapReaderPlugins.createObject(extension);
             if (reader != null) {
-                bitmap = reader.load(filename, isLinear);
-                if (bitmap.getWidth() == 0 || bitmap.getHeight() == 0) {
-                    bitmap = null;
+                decoded = reader.load(filename, isLinear);
+                if (decoded.getWidth() == 0 || decoded.getHeight() == 0) {
+                    decoded = null;
                 }
             }
-            if (bitmap == null) {
+            if (decoded == null) {
                 UI.printError(Module.TEX, "Bitmap reading failed");
-                bitmap = new BitmapBlack();
             } else {
-                UI.printDetailed(Module.TEX, "Texture bitmap reading complete: %dx%d pixels found", bitmap.getWidth(), bitmap.getHeight());
+                UI.printDetailed(Module.TEX, "Texture bitmap reading complete: %dx%d pixels found", decoded.getWidth(), decoded.getHeight());
             }
         } catch (IOException e) {
             UI.printError(Module.TEX, "%s", e.getMessage());
         } catch (BitmapFormatException e) {
             UI.printError(Module.TEX, "%s format error: %s", extension, e.getMessage());
         }
+        if (decoded == null) {
+            decoded = new BitmapBlack();
+        }
+        // only the tiles are kept, the decoded bitmap is released
+        try {
+            image = TiledImage.create(decoded);
+            TextureCache.addLoaded(this);
+        } catch (IOException e) {
+            UI.printError(Module.TEX, "Unable to convert texture \"%s\" to tiles: %s", filename, e.getMessage());
+            image = null;
+        }
+        bitmap = image == null ? decoded : new TiledBitmap(image);
         loaded = 1;
     }
 
+    /**
+     * Releases the tile file of this texture. The texture is loaded again if
+     * it is accessed afterwards.
+     */
+    synchronized void release() {
+        if (image != null) {
+            image.close();
+            image = null;
+        }
+        bitmap = null;
+        loaded = 0;
+    }
+
+    /**
+     * Gets a bitmap view of the full resolution texture. Pixels are read
+     * through the texture cache.
+     *
+     * @return texture bitmap
+     */
     public Bitmap getBitmap() {
         if (loaded == 0) {
             load();
@@ -83,27 +115,59 @@ public class Texture {
      * @return filtered color at location (x,y)
      */
     public Color getPixel(float x, float y) {
-        Bitmap bitmapc = getBitmap();
+        getBitmap();
+        return getPixel(0, x, y);
+    }
+
+    /**
+     * Gets the color of the texture averaged over a square footprint around
+     * location (x,y). The lookup is performed on the two mip levels closest to
+     * the footprint and blended between them.
+     *
+     * @param x x coordinate into the texture
+     * @param y y coordinate into the texture
+     * @param width width of the footprint, relative to the texture size
+     * @return filtered color at location (x,y)
+     */
+    public Color getPixel(float x, float y, float width) {
+        getBitmap();
+        float texels = width * Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if (image == null || texels <= 1) {
+            return getPixel(0, x, y);
+        }
+        float level = Math.min((float) (Math.log(texels) / Math.log(2)), image.getNumLevels() - 1);
+        int l0 = (int) level;
+        float t = level - l0;
+        Color c = getPixel(l0, x, y);
+        if (t > 0) {
+            c = Color.blend(c, getPixel(l0 + 1, x, y), t);
+        }
+        return c;
+    }
+
+    private Color getPixel(int level, float x, float y) {
+        int w = level == 0 ? bitmap.getWidth() : image.getWidth(level);
+        int h = level == 0 ? bitmap.getHeight() : image.getHeight(level);
         x = MathUtils.frac(x);
         y = MathUtils.frac(y);
-        float dx = x * (bitmapc.getWidth() - 1);
-        float dy = y * (bitmapc.getHeight() - 1);
+        float dx = x * (w - 1);
+        float dy = y * (h - 1);
         int ix0 = (int) dx;
         int iy0 = (int) dy;
-        int ix1 = (ix0 + 1) % bitmapc.getWidth();
-        int iy1 = (iy0 + 1) % bitmapc.getHeight();
+        int ix1 = (ix0 + 1) % w;
+        int iy1 = (iy0 + 1) % h;
         float u = dx - ix0;
         float v = dy - iy0;
         u = u * u * (3.0f - (2.0f * u));
         v = v * v * (3.0f - (2.0f * v));
         float k00 = (1.0f - u) * (1.0f - v);
-        Color c00 = bitmapc.readColor(ix0, iy0);
+        Color c00 = readColor(level, ix0, iy0);
         float k01 = (1.0f - u) * v;
-        Color c01 = bitmapc.readColor(ix0, iy1);
+        Color c01 = readColor(level, ix0, iy1);
         float k10 = u * (1.0f - v);
-        Color c10 = bitmapc.readColor(ix1, iy0);
+        Color c10 = readColor(level, ix1, iy0);
         float k11 = u * v;
-        Color c11 = bitmapc.readColor(ix1, iy1);
+        Color c11 = readColor(level, ix1, iy1);
         Color c = Color.mul(k00, c00);
         c.madd(k01, c01);
         c.madd(k10, c10);
@@ -111,6 +175,10 @@ public class Texture {
         return c;
     }
 
+    private Color readColor(int level, int x, int y) {
+        return level == 0 ? bitmap.readColor(x, y) : image.readColor(level, x, y);
+    }
+
     public Vector3 getNormal(float x, float y, OrthoNormalBasis basis) {
         float[] rgb = getPixel(x, y).getRGB();
         return basis.transform(new Vector3(2 * rgb[0] - 1, 2 * rgb[1] - 1, 2 * rgb[2] - 1)).normalize();
@@ -125,4 +193,36 @@ public class Texture {
         float by = getPixel(x, y + dy).getLuminance();
         return basis.transform(new Vector3(scale * (b0 - bx), scale * (b0 - by), 1)).normalize();
     }
-}
\ No newline at end of file
+
+    /**
+     * Read only view of the full resolution level of a tiled image.
+     */
+    private static final class TiledBitmap extends Bitmap {
+
+        private final TiledImage image;
+
+        TiledBitmap(TiledImage image) {
+            this.image = image;
+        }
+
+        @Override
+        public int getWidth() {
+            return image.getWidth(0);
+        }
+
+        @Override
+        public int getHeight() {
+            return image.getHeight(0);
+        }
+
+        @Override
+        public Color readColor(int x, int y) {
+            return image.readColor(0, x, y);
+        }
+
+        @Override
+        public float readAlpha(int x, int y) {
+            return 1;
+        }
+    }
+}
@@ -1,18 +1,51 @@
 package org.sunflow.core;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
 
+import org.sunflow.system.Memory;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
 /**
  * Maintains a cache of all loaded texture maps. This is usefull if the same
  * texture might be used more than once in your scene.
+ * <p>
+ * Texture maps are converted to tiled mip pyramids on disk when they are first
+ * accessed. Tiles are then read on demand and kept in memory up to a budget,
+ * after which the least recently used tiles are evicted. The cache is shared
+ * by all scenes, each render adds its own budget while it runs.
  */
 public final class TextureCache {
 
     private static HashMap<String, Texture> textures = new HashMap<String, Texture>();
 
+    // tile cache state, guarded by the lock
+    private static final Object lock = new Object();
+    private static final ArrayList<TiledImage.Tile> resident = new ArrayList<TiledImage.Tile>();
+    // textures holding a tile file, including ones flushed from the map but
+    // loaded again through an old reference
+    private static final ArrayList<Texture> loaded = new ArrayList<Texture>();
+    private static final long DEFAULT_BUDGET = 256L << 20;
+    // sum of the budgets of the renders in progress
+    private static long activeBudget = 0;
+    private static int activeRenders = 0;
+    private static long budget = DEFAULT_BUDGET;
+    private static long residentBytes = 0;
+    private static long peakBytes = 0;
+    private static long misses = 0;
+    private static long evictions = 0;
+    // advanced on every miss, tiles record it whenever they are used
+    private static volatile long clock = 0;
+    // hits are counted in a few padded slots to avoid contention between
+    // threads
+    private static final int HIT_STRIPES = 16;
+    private static final AtomicLongArray hits = new AtomicLongArray(8 * HIT_STRIPES);
+
     private TextureCache() {
     }
 
@@ -39,10 +72,180 @@ public final class TextureCache {
 
     /**
      * Flush all textures from the cache, this will cause them to be reloaded
-     * anew the next time they are accessed.
+     * anew the next time they are accessed. The tile files of the textures are
+     * closed and deleted.
      */
     public synchronized static void flush() {
         UI.printInfo(Module.TEX, "Flushing texture cache");
         textures.clear();
+        Texture[] release;
+        synchronized (lock) {
+            for (TiledImage.Tile tile : resident) {
+                tile.image.setTile(tile.index, null);
+            }
+            resident.clear();
+            residentBytes = 0;
+            release = loaded.toArray(new Texture[loaded.size()]);
+            loaded.clear();
+        }
+        for (Texture t : release) {
+            t.release();
+        }
+    }
+
+    /**
+     * Records that a texture created a tile file, so that the file is deleted
+     * on the next flush.
+     *
+     * @param texture texture which was loaded
+     */
+    static void addLoaded(Texture texture) {
+        synchronized (lock) {
+            loaded.add(texture);
+        }
+    }
+
+    /**
+     * Adds the memory budget of a render which is starting. Tiles may use the
+     * sum of the budgets of all renders in progress, or a default budget when
+     * none is running. Tiles are evicted the next time one is loaded if the
+     * budget is exceeded.
+     *
+     * @param bytes memory budget of the render in bytes
+     */
+    static void addMemoryBudget(long bytes) {
+        synchronized (lock) {
+            activeBudget += bytes;
+            activeRenders++;
+            updateBudget();
+        }
+    }
+
+    /**
+     * Removes the memory budget of a render which has finished.
+     *
+     * @param bytes budget passed to {@link #addMemoryBudget(long)}
+     */
+    static void removeMemoryBudget(long bytes) {
+        synchronized (lock) {
+            activeBudget -= bytes;
+            activeRenders--;
+            updateBudget();
+        }
+    }
+
+    private static void updateBudget() {
+        budget = Math.max(activeRenders == 0 ? DEFAULT_BUDGET : activeBudget, TiledImage.TILE_BYTES);
+    }
+
+    /**
+     * Resets the hit, miss and eviction counters.
+     */
+    static void resetStats() {
+        synchronized (lock) {
+            for (int i = 0; i < hits.length(); i++) {
+                hits.set(i, 0);
+            }
+            misses = evictions = 0;
+            peakBytes = residentBytes;
+        }
+    }
+
+    /**
+     * Prints the hit, miss and eviction counters. Nothing is printed if no
+     * texture was accessed.
+     */
+    static void showStats() {
+        synchronized (lock) {
+            long h = 0;
+            for (int i = 0; i < hits.length(); i++) {
+                h += hits.get(i);
+            }
+            if (h + misses == 0) {
+                return;
+            }
+            UI.printInfo(Module.TEX, "Texture cache stats:");
+            UI.printInfo(Module.TEX, "  * Lookups:             %d", h + misses);
+            UI.printInfo(Module.TEX, "  * Hits:                %d (%.2f%%)", h, (100.0 * h) / (h + misses));
+            UI.printInfo(Module.TEX, "  * Misses:              %d (%s read)", misses, Memory.bytesToString(misses * TiledImage.TILE_BYTES));
+            UI.printInfo(Module.TEX, "  * Evictions:           %d", evictions);
+            UI.printInfo(Module.TEX, "  * Peak memory:         %s of %s", Memory.bytesToString(peakBytes), Memory.bytesToString(budget));
+        }
+    }
+
+    /**
+     * Marks a resident tile as used.
+     */
+    static void touch(TiledImage.Tile tile) {
+        long c = clock;
+        if (tile.lastUse != c) {
+            tile.lastUse = c;
+        }
+        int stripe = (int) Thread.currentThread().getId() & (HIT_STRIPES - 1);
+        hits.incrementAndGet(8 * stripe);
+    }
+
+    /**
+     * Loads a tile of an image, evicting the least recently used tiles if the
+     * memory budget is exceeded.
+     *
+     * @param image image the tile belongs to
+     * @param index tile index
+     * @return resident tile
+     */
+    static TiledImage.Tile loadTile(TiledImage image, int index) {
+        synchronized (lock) {
+            // another thread may have loaded the tile in the meantime
+            TiledImage.Tile tile = image.getTile(index);
+            if (tile != null) {
+                touch(tile);
+                return tile;
+            }
+            int[] data;
+            try {
+                data = image.readTile(index);
+            } catch (IOException e) {
+                UI.printError(Module.TEX, "Unable to read texture tile: %s", e.getMessage());
+                data = new int[TiledImage.TILE_SIZE * TiledImage.TILE_SIZE];
+            }
+            misses++;
+            tile = new TiledImage.Tile(image, index, data);
+            tile.lastUse = ++clock;
+            resident.add(tile);
+            residentBytes += TiledImage.TILE_BYTES;
+            if (residentBytes > budget) {
+                evict();
+            }
+            peakBytes = Math.max(peakBytes, residentBytes);
+            image.setTile(index, tile);
+            return tile;
+        }
+    }
+
+    /**
+     * Drops the least recently used tiles until an eighth of the budget is
+     * free, so that evictions happen in batches.
+     */
+    private static void evict() {
+        // tiles keep being used while they are sorted, so sort a snapshot
+        for (TiledImage.Tile tile : resident) {
+            tile.evictKey = tile.lastUse;
+        }
+        Collections.sort(resident, new Comparator<TiledImage.Tile>() {
+            public int compare(TiledImage.Tile a, TiledImage.Tile b) {
+                return a.evictKey < b.evictKey ? -1 : (a.evictKey == b.evictKey ? 0 : 1);
+            }
+        });
+        long target = budget - budget / 8;
+        int n = 0;
+        // the most recent tile is the one being loaded, it is always kept
+        while (residentBytes > target && n < resident.size() - 1) {
+            TiledImage.Tile tile = resident.get(n++);
+            // threads which already hold the tile can keep using its texels
+            tile.image.setTile(tile.index, null);
+            residentBytes -= TiledImage.TILE_BYTES;
+        }
+        resident.subList(0, n).clear();
+        evictions += n;
     }
-}
\ No newline at end of file
+}
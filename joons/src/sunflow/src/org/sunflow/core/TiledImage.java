@@ -0,0 +1,277 @@
+package org.sunflow.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.sunflow.image.Bitmap;
+import org.sunflow.image.Color;
+import org.sunflow.image.formats.BitmapG8;
+import org.sunflow.image.formats.BitmapGA8;
+import org.sunflow.image.formats.BitmapRGB8;
+import org.sunflow.image.formats.BitmapRGBA8;
+import org.sunflow.system.Memory;
+import org.sunflow.system.Timer;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+
+/**
+ * A mip-mapped image stored on disk as square tiles of packed texels. Tiles
+ * are read on demand and kept in memory by the {@link TextureCache}, which
+ * evicts the least recently used ones when its memory budget is exceeded.
+ * Eight bit images are stored exactly, other images use Ward's RGBE encoding.
+ */
+final class TiledImage {
+
+    static final int TILE_LOG = 6;
+    static final int TILE_SIZE = 1 << TILE_LOG;
+    static final int TILE_BYTES = 4 * TILE_SIZE * TILE_SIZE;
+
+    private static final float INV255 = 1.0f / 255;
+    private static final Object CONVERT_LOCK = new Object();
+
+    private final boolean hdr;
+    private final int[] widths;
+    private final int[] heights;
+    private final int[] tilesX;
+    // index of the first tile of each level
+    private final int[] firstTile;
+    private final File file;
+    private final FileChannel channel;
+    private final AtomicReferenceArray<Tile> tiles;
+
+    static final class Tile {
+
+        final TiledImage image;
+        final int index;
+        final int[] data;
+        volatile long lastUse;
+        long evictKey;
+
+        Tile(TiledImage image, int index, int[] data) {
+            this.image = image;
+            this.index = index;
+            this.data = data;
+        }
+    }
+
+    private TiledImage(boolean hdr, int[] widths, int[] heights, File file, FileChannel channel) {
+        this.hdr = hdr;
+        this.widths = widths;
+        this.heights = heights;
+        this.file = file;
+        this.channel = channel;
+        int levels = widths.length;
+        tilesX = new int[levels];
+        firstTile = new int[levels + 1];
+        for (int l = 0; l < levels; l++) {
+            tilesX[l] = (widths[l] + TILE_SIZE - 1) >>> TILE_LOG;
+            int tilesY = (heights[l] + TILE_SIZE - 1) >>> TILE_LOG;
+            firstTile[l + 1] = firstTile[l] + tilesX[l] * tilesY;
+        }
+        tiles = new AtomicReferenceArray<Tile>(firstTile[levels]);
+    }
+
+    /**
+     * Converts a bitmap into a tiled mip pyramid. Only one bitmap is converted
+     * at a time, so that no more than one fully decoded image needs to be in
+     * memory.
+     *
+     * @param bitmap bitmap to convert
+     * @return tiled image
+     * @throws IOException if the tile file could not be written
+     */
+    static TiledImage create(Bitmap bitmap) throws IOException {
+        synchronized (CONVERT_LOCK) {
+            Timer t = new Timer();
+            t.start();
+            boolean hdr = !(bitmap instanceof BitmapRGB8 || bitmap instanceof BitmapRGBA8 || bitmap instanceof BitmapG8 || bitmap instanceof BitmapGA8);
+            int w = bitmap.getWidth();
+            int h = bitmap.getHeight();
+            int levels = 1;
+            while (w > 1 || h > 1) {
+                w = Math.max(1, (w + 1) >>> 1);
+                h = Math.max(1, (h + 1) >>> 1);
+                levels++;
+            }
+            int[] widths = new int[levels];
+            int[] heights = new int[levels];
+            widths[0] = bitmap.getWidth();
+            heights[0] = bitmap.getHeight();
+            for (int l = 1; l < levels; l++) {
+                widths[l] = Math.max(1, (widths[l - 1] + 1) >>> 1);
+                heights[l] = Math.max(1, (heights[l - 1] + 1) >>> 1);
+            }
+            File file = File.createTempFile("sunflow-", ".tiles");
+            // only a fallback, files are deleted when their texture is
+            // flushed from the cache
+            file.deleteOnExit();
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            TiledImage image = new TiledImage(hdr, widths, heights, file, raf.getChannel());
+            try {
+                int[] level = new int[widths[0] * heights[0]];
+                for (int y = 0, i = 0; y < heights[0]; y++) {
+                    for (int x = 0; x < widths[0]; x++, i++) {
+                        level[i] = image.encode(bitmap.readColor(x, y));
+                    }
+                }
+                for (int l = 0; l < levels; l++) {
+                    image.writeLevel(l, level);
+                    if (l + 1 < levels) {
+                        level = image.downsample(l, level);
+                    }
+                }
+            } catch (IOException e) {
+                raf.close();
+                file.delete();
+                throw e;
+            }
+            t.end();
+            UI.printDetailed(Module.TEX, "Converted %dx%d texture into %d mip levels (%s on disk) in %s", widths[0], heights[0], levels, Memory.bytesToString((long) image.getNumTiles() * TILE_BYTES), t);
+            return image;
+        }
+    }
+
+    private int encode(Color c) {
+        return hdr ? c.toRGBE() : c.toRGB();
+    }
+
+    private Color decode(int texel) {
+        if (hdr) {
+            return new Color().setRGBE(texel);
+        }
+        return new Color(((texel >> 16) & 0xFF) * INV255, ((texel >> 8) & 0xFF) * INV255, (texel & 0xFF) * INV255);
+    }
+
+    /**
+     * Box filters a level down to the next one, averaging in linear space.
+     */
+    private int[] downsample(int l, int[] level) {
+        int w = widths[l];
+        int h = heights[l];
+        int nw = widths[l + 1];
+        int nh = heights[l + 1];
+        int[] next = new int[nw * nh];
+        Color c = new Color();
+        for (int y = 0; y < nh; y++) {
+            int y0 = Math.min(2 * y, h - 1);
+            int y1 = Math.min(2 * y + 1, h - 1);
+            for (int x = 0; x < nw; x++) {
+                int x0 = Math.min(2 * x, w - 1);
+                int x1 = Math.min(2 * x + 1, w - 1);
+                c.set(decode(level[x0 + y0 * w]));
+                c.add(decode(level[x1 + y0 * w]));
+                c.add(decode(level[x0 + y1 * w]));
+                c.add(decode(level[x1 + y1 * w]));
+                next[x + y * nw] = encode(c.mul(0.25f));
+            }
+        }
+        return next;
+    }
+
+    private void writeLevel(int l, int[] level) throws IOException {
+        int w = widths[l];
+        int h = heights[l];
+        ByteBuffer buffer = ByteBuffer.allocate(TILE_BYTES);
+        for (int i = firstTile[l]; i < firstTile[l + 1]; i++) {
+            int tx = (i - firstTile[l]) % tilesX[l];
+            int ty = (i - firstTile[l]) / tilesX[l];
+            buffer.clear();
+            for (int y = 0; y < TILE_SIZE; y++) {
+                int sy = Math.min((ty << TILE_LOG) + y, h - 1);
+                for (int x = 0; x < TILE_SIZE; x++) {
+                    int sx = Math.min((tx << TILE_LOG) + x, w - 1);
+                    buffer.putInt(level[sx + sy * w]);
+                }
+            }
+            buffer.flip();
+            long pos = (long) i * TILE_BYTES;
+            while (buffer.hasRemaining()) {
+                pos += channel.write(buffer, pos);
+            }
+        }
+    }
+
+    /**
+     * Reads the texels of a tile from disk.
+     *
+     * @param index tile index
+     * @return tile texels
+     * @throws IOException if the tile could not be read
+     */
+    int[] readTile(int index) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(TILE_BYTES);
+        long pos = (long) index * TILE_BYTES;
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, pos + buffer.position());
+            if (n < 0) {
+                throw new IOException("unexpected end of tile file");
+            }
+        }
+        buffer.flip();
+        int[] data = new int[TILE_SIZE * TILE_SIZE];
+        buffer.asIntBuffer().get(data);
+        return data;
+    }
+
+    /**
+     * Closes the tile file and deletes it. Tiles which are not in memory can
+     * not be read anymore.
+     */
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            UI.printWarning(Module.TEX, "Unable to close texture tile file: %s", e.getMessage());
+        }
+        if (!file.delete()) {
+            UI.printWarning(Module.TEX, "Unable to delete texture tile file \"%s\"", file.getAbsolutePath());
+        }
+    }
+
+    Tile getTile(int index) {
+        return tiles.get(index);
+    }
+
+    void setTile(int index, Tile tile) {
+        tiles.set(index, tile);
+    }
+
+    int getNumTiles() {
+        return firstTile[widths.length];
+    }
+
+    int getNumLevels() {
+        return widths.length;
+    }
+
+    int getWidth(int level) {
+        return widths[level];
+    }
+
+    int getHeight(int level) {
+        return heights[level];
+    }
+
+    /**
+     * Reads a texel, loading its tile if it is not in memory.
+     *
+     * @param level mip level, 0 is the full resolution image
+     * @param x horizontal texel coordinate
+     * @param y vertical texel coordinate
+     * @return texel color
+     */
+    Color readColor(int level, int x, int y) {
+        int index = firstTile[level] + (y >>> TILE_LOG) * tilesX[level] + (x >>> TILE_LOG);
+        Tile tile = tiles.get(index);
+        if (tile == null) {
+            tile = TextureCache.loadTile(this, index);
+        } else {
+            TextureCache.touch(tile);
+        }
+        return decode(tile.data[((y & (TILE_SIZE - 1)) << TILE_LOG) + (x & (TILE_SIZE - 1))]);
+    }
+}
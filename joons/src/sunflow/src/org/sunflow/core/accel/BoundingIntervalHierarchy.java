@@ -1,9 +1,16 @@
 package org.sunflow.core.accel;
 
-import org.sunflow.core.AccelerationStructure;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.sunflow.core.AccelerationStructureCache;
+import org.sunflow.core.CacheableAccelerationStructure;
 import org.sunflow.core.IntersectionState;
 import org.sunflow.core.PrimitiveList;
 import org.sunflow.core.Ray;
+import org.sunflow.core.RayPacket;
+import org.sunflow.core.RefittableAccelerationStructure;
 import org.sunflow.math.BoundingBox;
 import org.sunflow.system.Memory;
 import org.sunflow.system.Timer;
@@ -11,13 +18,17 @@ import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 import org.sunflow.util.IntArray;
 
-public class BoundingIntervalHierarchy implements AccelerationStructure {
+public class BoundingIntervalHierarchy implements CacheableAccelerationStructure, RefittableAccelerationStructure {
 
     private int[] tree;
     private int[] objects;
     private PrimitiveList primitives;
     private BoundingBox bounds;
     private int maxPrims;
+    // SAH cost of the tree right after it was built
+    private float buildCost;
+    // refitted trees whose SAH cost grew by more than this should be rebuilt
+    private static final float MAX_REFIT_DEGRADATION = 1.5f;
 
     public BoundingIntervalHierarchy() {
         maxPrims = 2;
@@ -43,14 +54,139 @@ public class BoundingIntervalHierarchy implements AccelerationStructure {
         t.end();
         UI.printDetailed(Module.ACCEL, "Trimming tree ...");
         tree = tempTree.trim();
+        buildCost = computeCost();
         // display stats
         stats.printStats();
+        UI.printDetailed(Module.ACCEL, "  * SAH cost:       %.2f", buildCost);
         UI.printDetailed(Module.ACCEL, "  * Creation time:  %s", t);
         UI.printDetailed(Module.ACCEL, "  * Usage of init:  %6.2f%%", (double) (100.0 * tree.length) / initialSize);
         UI.printDetailed(Module.ACCEL, "  * Tree memory:    %s", Memory.sizeof(tree));
         UI.printDetailed(Module.ACCEL, "  * Indices memory: %s", Memory.sizeof(objects));
     }
 
+    @Override
+    public String getCacheKey() {
+        return String.format("bih-1-%d", maxPrims);
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        AccelerationStructureCache.writeBounds(out, bounds);
+        AccelerationStructureCache.writeArray(out, tree);
+        AccelerationStructureCache.writeArray(out, objects);
+    }
+
+    @Override
+    public void read(ByteBuffer in, PrimitiveList primitives) {
+        this.primitives = primitives;
+        bounds = AccelerationStructureCache.readBounds(in);
+        tree = AccelerationStructureCache.readIntArray(in);
+        objects = AccelerationStructureCache.readIntArray(in);
+        buildCost = computeCost();
+    }
+
+    @Override
+    public boolean refit() {
+        Timer t = new Timer();
+        t.start();
+        bounds = primitives.getWorldBounds(null);
+        float cost = refitNode(0, new float[6], true) / area(bounds);
+        t.end();
+        UI.printDetailed(Module.ACCEL, "BIH refit in %s - SAH cost %.2f (%.2f after build)", t, cost, buildCost);
+        return cost <= MAX_REFIT_DEGRADATION * buildCost;
+    }
+
+    /**
+     * Computes the SAH cost of the current tree from the actual bounds of the
+     * objects below each node, relative to the area of the root box.
+     */
+    private float computeCost() {
+        float rootArea = area(bounds);
+        return rootArea > 0 ? refitNode(0, new float[6], false) / rootArea : 0;
+    }
+
+    private static float area(BoundingBox b) {
+        float dx = b.getMaximum().x - b.getMinimum().x;
+        float dy = b.getMaximum().y - b.getMinimum().y;
+        float dz = b.getMaximum().z - b.getMinimum().z;
+        return dx * dy + dy * dz + dz * dx;
+    }
+
+    /**
+     * Computes the bounds of the objects below the specified node and
+     * optionally moves the node's clip planes onto them. Missing children of
+     * split nodes are recognized by their infinite clip planes, which are
+     * preserved.
+     *
+     * @param node node index
+     * @param box receives the bounds of the subtree as min/max pairs per axis
+     * @param write <code>true</code> to update the clip planes
+     * @return SAH cost of the subtree, scaled by the area of the root
+     */
+    private float refitNode(int node, float[] box, boolean write) {
+        int tn = tree[node];
+        int type = tn >>> 29;
+        int offset = tn & ~(7 << 29);
+        for (int i = 0; i < 3; i++) {
+            box[2 * i + 0] = Float.POSITIVE_INFINITY;
+            box[2 * i + 1] = Float.NEGATIVE_INFINITY;
+        }
+        if (type == 6) {
+            // leaf
+            int n = tree[node + 1];
+            for (int i = offset; i < offset + n; i++) {
+                for (int j = 0; j < 6; j += 2) {
+                    box[j + 0] = Math.min(box[j + 0], primitives.getPrimitiveBound(objects[i], j + 0));
+                    box[j + 1] = Math.max(box[j + 1], primitives.getPrimitiveBound(objects[i], j + 1));
+                }
+            }
+            return n * boxArea(box);
+        }
+        int axis = type >>> 1;
+        if ((type & 1) != 0) {
+            // bvh2 clip node
+            float cost = refitNode(offset, box, write);
+            if (write) {
+                tree[node + 1] = Float.floatToRawIntBits(box[2 * axis + 0]);
+                tree[node + 2] = Float.floatToRawIntBits(box[2 * axis + 1]);
+            }
+            return cost;
+        }
+        float cost = 0;
+        float[] childBox = new float[6];
+        if (Float.intBitsToFloat(tree[node + 1]) != Float.NEGATIVE_INFINITY) {
+            cost += refitNode(offset, childBox, write);
+            if (write) {
+                tree[node + 1] = Float.floatToRawIntBits(childBox[2 * axis + 1]);
+            }
+            for (int j = 0; j < 6; j += 2) {
+                box[j + 0] = Math.min(box[j + 0], childBox[j + 0]);
+                box[j + 1] = Math.max(box[j + 1], childBox[j + 1]);
+            }
+        }
+        if (Float.intBitsToFloat(tree[node + 2]) != Float.POSITIVE_INFINITY) {
+            cost += refitNode(offset + 3, childBox, write);
+            if (write) {
+                tree[node + 2] = Float.floatToRawIntBits(childBox[2 * axis + 0]);
+            }
+            for (int j = 0; j < 6; j += 2) {
+                box[j + 0] = Math.min(box[j + 0], childBox[j + 0]);
+                box[j + 1] = Math.max(box[j + 1], childBox[j + 1]);
+            }
+        }
+        return cost + boxArea(box);
+    }
+
+    private static float boxArea(float[] box) {
+        float dx = box[1] - box[0];
+        float dy = box[3] - box[2];
+        float dz = box[5] - box[4];
+        if (dx < 0 || dy < 0 || dz < 0) {
+            return 0;
+        }
+        return dx * dy + dy * dz + dz * dx;
+    }
+
     private static class BuildStats {
 
         private int numNodes;
@@ -649,4 +785,89 @@ public class BoundingIntervalHierarchy implements AccelerationStructure {
             } while (true);
         }
     }
-}
\ No newline at end of file
+
+    @Override
+    public void intersect(RayPacket packet, IntersectionState state) {
+        if (!packet.isCoherent()) {
+            // rays disagree on the front to back order of the children
+            packet.intersectSerial(this, state);
+            return;
+        }
+        if (!packet.clip(bounds)) {
+            return;
+        }
+        int n = packet.size();
+        float[] near = packet.near;
+        float[] far = packet.far;
+        float[] frontFar = packet.frontFar;
+        float[] backNear = packet.backNear;
+        // offsets of the front/back planes and children from the sign bits
+        int[] offsetFront = {packet.getSignBit(0), packet.getSignBit(1),
+            packet.getSignBit(2)};
+        int node = 0;
+        while (node >= 0) {
+            int tn = tree[node];
+            int type = tn >>> 29;
+            int offset = tn & ~(7 << 29);
+            if (type == 6) {
+                // leaf - test some objects against all active rays
+                packet.intersectPrimitives(primitives, objects, offset, tree[node + 1], state);
+                node = packet.pop();
+                continue;
+            }
+            int axis = type >>> 1;
+            int front = offsetFront[axis];
+            float[] org = packet.org[axis];
+            float[] invDir = packet.invDir[axis];
+            float pf = Float.intBitsToFloat(tree[node + 1 + front]);
+            float pb = Float.intBitsToFloat(tree[node + 2 - front]);
+            if ((type & 1) != 0) {
+                // bvh2 clip node - shrink the intervals to the slab
+                boolean any = false;
+                for (int i = 0; i < n; i++) {
+                    if (near[i] > far[i]) {
+                        continue;
+                    }
+                    float tf = (pf - org[i]) * invDir[i];
+                    float tb = (pb - org[i]) * invDir[i];
+                    near[i] = (tf >= near[i]) ? tf : near[i];
+                    far[i] = (tb <= far[i]) ? tb : far[i];
+                    any |= near[i] <= far[i];
+                }
+                node = any ? offset : packet.pop();
+                continue;
+            }
+            boolean anyFront = false, anyBack = false;
+            for (int i = 0; i < n; i++) {
+                if (near[i] > far[i]) {
+                    // inactive ray - keep it inactive in both children
+                    backNear[i] = near[i];
+                    frontFar[i] = far[i];
+                    continue;
+                }
+                float tf = (pf - org[i]) * invDir[i];
+                float tb = (pb - org[i]) * invDir[i];
+                frontFar[i] = (tf <= far[i]) ? tf : far[i];
+                backNear[i] = (tb >= near[i]) ? tb : near[i];
+                anyFront |= near[i] <= frontFar[i];
+                anyBack |= backNear[i] <= far[i];
+            }
+            int frontNode = offset + 3 * front;
+            int backNode = offset + 3 * (front ^ 1);
+            if (anyFront && anyBack) {
+                // push back node with the far part of the intervals
+                packet.push(backNode);
+                System.arraycopy(frontFar, 0, far, 0, n);
+                node = frontNode;
+            } else if (anyFront) {
+                System.arraycopy(frontFar, 0, far, 0, n);
+                node = frontNode;
+            } else if (anyBack) {
+                System.arraycopy(backNear, 0, near, 0, n);
+                node = backNode;
+            } else {
+                node = packet.pop();
+            }
+        }
+    }
+}
@@ -0,0 +1,762 @@
+package org.sunflow.core.accel;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.sunflow.core.AccelerationStructureCache;
+import org.sunflow.core.CacheableAccelerationStructure;
+import org.sunflow.core.IntersectionState;
+import org.sunflow.core.PrimitiveList;
+import org.sunflow.core.Ray;
+import org.sunflow.core.RayPacket;
+import org.sunflow.core.RefittableAccelerationStructure;
+import org.sunflow.math.BoundingBox;
+import org.sunflow.system.Memory;
+import org.sunflow.system.Timer;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+import org.sunflow.util.FloatArray;
+import org.sunflow.util.IntArray;
+
+/**
+ * Bounding volume hierarchy built with binned SAH. Nodes are stored depth
+ * first in a pair of flat arrays: the node boxes in a <code>float[]</code>
+ * and the child offsets or primitive ranges in an <code>int[]</code>. In
+ * binary mode the left child of a node always directly follows its parent.
+ * In wide mode every node holds the boxes of up to four children in structure
+ * of arrays form so they can be tested in a single loop.
+ */
+public class BoundingVolumeHierarchy implements CacheableAccelerationStructure, RefittableAccelerationStructure {
+
+    private static final float INTERSECT_COST = 1;
+    private static final float TRAVERSAL_COST = 1;
+    private static final int NUM_BINS = 16;
+    // keeps the traversal stacks within IntersectionState's limits: wide
+    // nodes halve the depth but may leave three children per level on it
+    private static final int MAX_DEPTH = 40;
+    private static final int MAX_LEAF_SIZE = 16;
+    // refitted trees whose SAH cost grew by more than this should be rebuilt
+    private static final float MAX_REFIT_DEGRADATION = 1.5f;
+    private final boolean wide;
+    private int maxPrims;
+    // binary nodes: 6 floats for the box (min xyz, max xyz) and 2 ints:
+    // inner nodes store the right child index and -1 - axis, leaves store the
+    // offset of their objects and their count
+    // wide nodes: 24 floats for the boxes (min xyz, max xyz for each child
+    // in SoA order) and 8 ints: node index and 0 for inner children, offset
+    // and count for leaves, -1 and 0 for empty slots
+    private float[] boxes;
+    private int[] nodes;
+    private int[] objects;
+    private PrimitiveList primitives;
+    private BoundingBox bounds;
+    private float[] rootBox;
+    // SAH cost of the tree right after it was built
+    private float buildCost;
+
+    public BoundingVolumeHierarchy() {
+        this(false);
+    }
+
+    public BoundingVolumeHierarchy(boolean wide) {
+        this.wide = wide;
+        maxPrims = 2;
+    }
+
+    @Override
+    public String getCacheKey() {
+        return String.format("bvh-1-%d-%s", maxPrims, wide ? "wide" : "binary");
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        AccelerationStructureCache.writeBounds(out, bounds);
+        AccelerationStructureCache.writeArray(out, boxes);
+        AccelerationStructureCache.writeArray(out, nodes);
+        AccelerationStructureCache.writeArray(out, objects);
+    }
+
+    @Override
+    public void read(ByteBuffer in, PrimitiveList primitives) {
+        this.primitives = primitives;
+        bounds = AccelerationStructureCache.readBounds(in);
+        rootBox = new float[]{bounds.getMinimum().x, bounds.getMinimum().y, bounds.getMinimum().z, bounds.getMaximum().x, bounds.getMaximum().y, bounds.getMaximum().z};
+        boxes = AccelerationStructureCache.readFloatArray(in);
+        nodes = AccelerationStructureCache.readIntArray(in);
+        objects = AccelerationStructureCache.readIntArray(in);
+        buildCost = computeCost();
+    }
+
+    private static class BuildStats {
+
+        private int numNodes;
+        private int numLeaves;
+        private int sumObjects;
+        private int minObjects;
+        private int maxObjects;
+        private int sumDepth;
+        private int minDepth;
+        private int maxDepth;
+
+        BuildStats() {
+            numNodes = numLeaves = 0;
+            sumObjects = 0;
+            minObjects = Integer.MAX_VALUE;
+            maxObjects = Integer.MIN_VALUE;
+            sumDepth = 0;
+            minDepth = Integer.MAX_VALUE;
+            maxDepth = Integer.MIN_VALUE;
+        }
+
+        void updateInner() {
+            numNodes++;
+        }
+
+        void updateLeaf(int depth, int n) {
+            numLeaves++;
+            minDepth = Math.min(depth, minDepth);
+            maxDepth = Math.max(depth, maxDepth);
+            sumDepth += depth;
+            minObjects = Math.min(n, minObjects);
+            maxObjects = Math.max(n, maxObjects);
+            sumObjects += n;
+        }
+
+        void printStats() {
+            UI.printDetailed(Module.ACCEL, "BVH stats:");
+            UI.printDetailed(Module.ACCEL, "  * Nodes:          %d", numNodes);
+            UI.printDetailed(Module.ACCEL, "  * Leaves:         %d", numLeaves);
+            UI.printDetailed(Module.ACCEL, "  * Objects: min    %d", minObjects);
+            UI.printDetailed(Module.ACCEL, "             avg    %.2f", (float) sumObjects / numLeaves);
+            UI.printDetailed(Module.ACCEL, "             max    %d", maxObjects);
+            UI.printDetailed(Module.ACCEL, "  * Depth:   min    %d", minDepth);
+            UI.printDetailed(Module.ACCEL, "             avg    %.2f", (float) sumDepth / numLeaves);
+            UI.printDetailed(Module.ACCEL, "             max    %d", maxDepth);
+        }
+    }
+
+    @Override
+    public void build(PrimitiveList primitives) {
+        this.primitives = primitives;
+        int n = primitives.getNumPrimitives();
+        UI.printDetailed(Module.ACCEL, "BVH settings");
+        UI.printDetailed(Module.ACCEL, "  * Node width:     %d", wide ? 4 : 2);
+        UI.printDetailed(Module.ACCEL, "  * Max Leaf Size:  %d", MAX_LEAF_SIZE);
+        UI.printDetailed(Module.ACCEL, "  * Max Depth:      %d", MAX_DEPTH);
+        UI.printDetailed(Module.ACCEL, "  * SAH bins:       %d", NUM_BINS);
+        Timer t = new Timer();
+        t.start();
+        bounds = primitives.getWorldBounds(null);
+        rootBox = new float[]{bounds.getMinimum().x, bounds.getMinimum().y, bounds.getMinimum().z, bounds.getMaximum().x, bounds.getMaximum().y, bounds.getMaximum().z};
+        objects = new int[n];
+        // primitive boxes and centroids, stored as in getPrimitiveBound
+        float[] primBoxes = new float[6 * n];
+        float[] centroids = new float[3 * n];
+        for (int i = 0; i < n; i++) {
+            objects[i] = i;
+            for (int j = 0; j < 6; j++) {
+                primBoxes[6 * i + j] = primitives.getPrimitiveBound(i, j);
+            }
+            for (int axis = 0; axis < 3; axis++) {
+                centroids[3 * i + axis] = 0.5f * (primBoxes[6 * i + 2 * axis + 0] + primBoxes[6 * i + 2 * axis + 1]);
+            }
+        }
+        FloatArray tempBoxes = new FloatArray(6 * (2 * n / maxPrims + 1));
+        IntArray tempNodes = new IntArray(2 * (2 * n / maxPrims + 1));
+        BuildStats stats = new BuildStats();
+        if (n > 0) {
+            subdivide(0, n, primBoxes, centroids, tempBoxes, tempNodes, 1, stats);
+        }
+        boxes = tempBoxes.trim();
+        nodes = tempNodes.trim();
+        if (wide && n > 0) {
+            FloatArray wideBoxes = new FloatArray(24 * (nodes.length / 4 + 1));
+            IntArray wideNodes = new IntArray(8 * (nodes.length / 4 + 1));
+            collapse(0, wideBoxes, wideNodes);
+            boxes = wideBoxes.trim();
+            nodes = wideNodes.trim();
+        }
+        buildCost = computeCost();
+        t.end();
+        stats.printStats();
+        UI.printDetailed(Module.ACCEL, "  * SAH cost:       %.2f", buildCost);
+        UI.printDetailed(Module.ACCEL, "  * Creation time:  %s", t);
+        UI.printDetailed(Module.ACCEL, "  * Box memory:     %s", Memory.sizeof(boxes));
+        UI.printDetailed(Module.ACCEL, "  * Node memory:    %s", Memory.sizeof(nodes));
+        UI.printDetailed(Module.ACCEL, "  * Indices memory: %s", Memory.sizeof(objects));
+    }
+
+    @Override
+    public boolean refit() {
+        if (nodes.length == 0) {
+            return true;
+        }
+        Timer t = new Timer();
+        t.start();
+        bounds = primitives.getWorldBounds(null);
+        rootBox = new float[]{bounds.getMinimum().x, bounds.getMinimum().y, bounds.getMinimum().z, bounds.getMaximum().x, bounds.getMaximum().y, bounds.getMaximum().z};
+        float[] box = new float[6];
+        // children are always stored after their parents, so a reverse
+        // sweep visits them first
+        if (wide) {
+            for (int node = nodes.length / 8 - 1; node >= 0; node--) {
+                for (int c = 0; c < 4; c++) {
+                    int ref = nodes[8 * node + 2 * c + 0];
+                    int count = nodes[8 * node + 2 * c + 1];
+                    if (ref == -1) {
+                        continue;
+                    }
+                    resetBox(box, 0);
+                    if (count > 0) {
+                        includePrimitives(box, ref, count);
+                    } else {
+                        for (int k = 0; k < 4; k++) {
+                            for (int axis = 0; axis < 3; axis++) {
+                                box[axis] = Math.min(box[axis], boxes[24 * ref + 4 * axis + k]);
+                                box[axis + 3] = Math.max(box[axis + 3], boxes[24 * ref + 12 + 4 * axis + k]);
+                            }
+                        }
+                    }
+                    for (int axis = 0; axis < 3; axis++) {
+                        boxes[24 * node + 4 * axis + c] = box[axis];
+                        boxes[24 * node + 12 + 4 * axis + c] = box[axis + 3];
+                    }
+                }
+            }
+        } else {
+            for (int node = nodes.length / 2 - 1; node >= 0; node--) {
+                int count = nodes[2 * node + 1];
+                resetBox(box, 0);
+                if (count >= 0) {
+                    includePrimitives(box, nodes[2 * node], count);
+                } else {
+                    growBox(box, boxes, 6 * (node + 1));
+                    growBox(box, boxes, 6 * nodes[2 * node]);
+                }
+                System.arraycopy(box, 0, boxes, 6 * node, 6);
+            }
+        }
+        float cost = computeCost();
+        t.end();
+        UI.printDetailed(Module.ACCEL, "BVH refit in %s - SAH cost %.2f (%.2f after build)", t, cost, buildCost);
+        return cost <= MAX_REFIT_DEGRADATION * buildCost;
+    }
+
+    private void includePrimitives(float[] box, int offset, int count) {
+        for (int i = offset; i < offset + count; i++) {
+            for (int axis = 0; axis < 3; axis++) {
+                box[axis] = Math.min(box[axis], primitives.getPrimitiveBound(objects[i], 2 * axis + 0));
+                box[axis + 3] = Math.max(box[axis + 3], primitives.getPrimitiveBound(objects[i], 2 * axis + 1));
+            }
+        }
+    }
+
+    /**
+     * Computes the SAH cost of the current tree, relative to the area of the
+     * root box. This is used to measure how much refitting degraded the tree.
+     */
+    private float computeCost() {
+        float rootArea = area(rootBox, 0, 3);
+        if (nodes.length == 0 || rootArea <= 0) {
+            return 0;
+        }
+        float cost = 0;
+        if (wide) {
+            float[] box = new float[6];
+            cost += TRAVERSAL_COST * rootArea;
+            for (int slot = 0; slot < nodes.length; slot += 2) {
+                if (nodes[slot] == -1) {
+                    continue;
+                }
+                int node = slot / 8;
+                int c = (slot % 8) / 2;
+                for (int axis = 0; axis < 3; axis++) {
+                    box[axis] = boxes[24 * node + 4 * axis + c];
+                    box[axis + 3] = boxes[24 * node + 12 + 4 * axis + c];
+                }
+                int count = nodes[slot + 1];
+                cost += area(box, 0, 3) * (count > 0 ? INTERSECT_COST * count : TRAVERSAL_COST);
+            }
+        } else {
+            for (int node = 0; node < nodes.length / 2; node++) {
+                int count = nodes[2 * node + 1];
+                cost += area(boxes, 6 * node, 3) * (count >= 0 ? INTERSECT_COST * count : TRAVERSAL_COST);
+            }
+        }
+        return cost / rootArea;
+    }
+
+    private void subdivide(int left, int right, float[] primBoxes, float[] centroids, FloatArray tempBoxes, IntArray tempNodes, int depth, BuildStats stats) {
+        // compute node box and centroid bounds
+        float[] nodeBox = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+        float[] centroidBox = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+        for (int i = left; i < right; i++) {
+            int obj = objects[i];
+            for (int axis = 0; axis < 3; axis++) {
+                nodeBox[axis] = Math.min(nodeBox[axis], primBoxes[6 * obj + 2 * axis + 0]);
+                nodeBox[axis + 3] = Math.max(nodeBox[axis + 3], primBoxes[6 * obj + 2 * axis + 1]);
+                float c = centroids[3 * obj + axis];
+                centroidBox[axis] = Math.min(centroidBox[axis], c);
+                centroidBox[axis + 3] = Math.max(centroidBox[axis + 3], c);
+            }
+        }
+        int node = tempNodes.getSize() / 2;
+        for (int i = 0; i < 6; i++) {
+            tempBoxes.add(nodeBox[i]);
+        }
+        tempNodes.add(0);
+        tempNodes.add(0);
+        int n = right - left;
+        int bestAxis = -1;
+        int bestBin = 0;
+        if (n > maxPrims && depth < MAX_DEPTH) {
+            // bin centroids and evaluate the SAH at every bin boundary
+            float bestCost = INTERSECT_COST * n;
+            boolean forceSplit = n > MAX_LEAF_SIZE;
+            if (forceSplit) {
+                bestCost = Float.POSITIVE_INFINITY;
+            }
+            float nodeArea = area(nodeBox, 0, 3);
+            int[] binCount = new int[3 * NUM_BINS];
+            float[] binBox = new float[18 * NUM_BINS];
+            float[] rightArea = new float[NUM_BINS];
+            float[] acc = new float[6];
+            float[] scale = new float[3];
+            for (int axis = 0; axis < 3; axis++) {
+                float w = centroidBox[axis + 3] - centroidBox[axis];
+                scale[axis] = w > 0 ? NUM_BINS / w : 0;
+            }
+            for (int b = 0; b < 3 * NUM_BINS; b++) {
+                resetBox(binBox, 6 * b);
+            }
+            // bin all three axes in a single pass over the objects
+            for (int i = left; i < right; i++) {
+                int obj = objects[i];
+                for (int axis = 0; axis < 3; axis++) {
+                    int b = axis * NUM_BINS + bin(centroids[3 * obj + axis], centroidBox[axis], scale[axis]);
+                    binCount[b]++;
+                    for (int k = 0; k < 3; k++) {
+                        binBox[6 * b + k] = Math.min(binBox[6 * b + k], primBoxes[6 * obj + 2 * k + 0]);
+                        binBox[6 * b + k + 3] = Math.max(binBox[6 * b + k + 3], primBoxes[6 * obj + 2 * k + 1]);
+                    }
+                }
+            }
+            for (int axis = 0; axis < 3; axis++) {
+                if (scale[axis] == 0) {
+                    continue;
+                }
+                int base = axis * NUM_BINS;
+                // sweep from the right to get the area of every right side
+                resetBox(acc, 0);
+                for (int b = NUM_BINS - 1; b > 0; b--) {
+                    growBox(acc, binBox, 6 * (base + b));
+                    rightArea[b] = area(acc, 0, 3);
+                }
+                // sweep from the left and evaluate the costs
+                resetBox(acc, 0);
+                int numLeft = 0;
+                for (int b = 1; b < NUM_BINS; b++) {
+                    growBox(acc, binBox, 6 * (base + b - 1));
+                    numLeft += binCount[base + b - 1];
+                    int numRight = n - numLeft;
+                    if (numLeft == 0 || numRight == 0) {
+                        continue;
+                    }
+                    float cost = TRAVERSAL_COST + INTERSECT_COST * (area(acc, 0, 3) * numLeft + rightArea[b] * numRight) / nodeArea;
+                    if (cost < bestCost) {
+                        bestCost = cost;
+                        bestAxis = axis;
+                        bestBin = b;
+                    }
+                }
+            }
+        }
+        if (bestAxis == -1 && n > MAX_LEAF_SIZE && depth < MAX_DEPTH) {
+            // all centroids are equal, split the list in two halves
+            int mid = (left + right) >>> 1;
+            buildChildren(node, -1, left, mid, right, primBoxes, centroids, tempBoxes, tempNodes, depth, stats);
+            return;
+        }
+        if (bestAxis == -1) {
+            // create leaf
+            tempNodes.set(2 * node + 0, left);
+            tempNodes.set(2 * node + 1, n);
+            stats.updateLeaf(depth, n);
+            return;
+        }
+        // partition objects around the chosen bin boundary
+        float cmin = centroidBox[bestAxis];
+        float scale = NUM_BINS / (centroidBox[bestAxis + 3] - cmin);
+        int i = left, j = right - 1;
+        while (i <= j) {
+            if (bin(centroids[3 * objects[i] + bestAxis], cmin, scale) < bestBin) {
+                i++;
+            } else {
+                int tmp = objects[i];
+                objects[i] = objects[j];
+                objects[j] = tmp;
+                j--;
+            }
+        }
+        buildChildren(node, bestAxis, left, i, right, primBoxes, centroids, tempBoxes, tempNodes, depth, stats);
+    }
+
+    private void buildChildren(int node, int axis, int left, int mid, int right, float[] primBoxes, float[] centroids, FloatArray tempBoxes, IntArray tempNodes, int depth, BuildStats stats) {
+        stats.updateInner();
+        // left child is stored right after its parent
+        subdivide(left, mid, primBoxes, centroids, tempBoxes, tempNodes, depth + 1, stats);
+        tempNodes.set(2 * node + 0, tempNodes.getSize() / 2);
+        tempNodes.set(2 * node + 1, -1 - Math.max(axis, 0));
+        subdivide(mid, right, primBoxes, centroids, tempBoxes, tempNodes, depth + 1, stats);
+    }
+
+    private static int bin(float c, float cmin, float scale) {
+        int b = (int) ((c - cmin) * scale);
+        return b < 0 ? 0 : (b >= NUM_BINS ? NUM_BINS - 1 : b);
+    }
+
+    private static void resetBox(float[] box, int offset) {
+        for (int k = 0; k < 3; k++) {
+            box[offset + k] = Float.POSITIVE_INFINITY;
+            box[offset + k + 3] = Float.NEGATIVE_INFINITY;
+        }
+    }
+
+    private static void growBox(float[] box, float[] other, int offset) {
+        for (int k = 0; k < 3; k++) {
+            box[k] = Math.min(box[k], other[offset + k]);
+            box[k + 3] = Math.max(box[k + 3], other[offset + k + 3]);
+        }
+    }
+
+    // half surface area of a box stored as min xyz at offset, max xyz at
+    // offset + stride
+    private static float area(float[] box, int offset, int stride) {
+        float dx = box[offset + stride] - box[offset];
+        float dy = box[offset + stride + 1] - box[offset + 1];
+        float dz = box[offset + stride + 2] - box[offset + 2];
+        if (dx < 0 || dy < 0 || dz < 0) {
+            return 0;
+        }
+        return dx * dy + dy * dz + dz * dx;
+    }
+
+    /**
+     * Creates a wide node from the binary node at the specified index by
+     * pulling up the grandchildren of both of its children. This halves the
+     * depth of every path, which keeps the traversal stack bounded.
+     *
+     * @return index of the new wide node
+     */
+    private int collapse(int binaryNode, FloatArray wideBoxes, IntArray wideNodes) {
+        int[] children = new int[4];
+        int numChildren = 0;
+        if (nodes[2 * binaryNode + 1] >= 0) {
+            // the root is a leaf
+            children[numChildren++] = binaryNode;
+        } else {
+            int[] pair = {binaryNode + 1, nodes[2 * binaryNode]};
+            for (int child : pair) {
+                if (nodes[2 * child + 1] >= 0) {
+                    children[numChildren++] = child;
+                } else {
+                    children[numChildren++] = child + 1;
+                    children[numChildren++] = nodes[2 * child];
+                }
+            }
+        }
+        int node = wideNodes.getSize() / 8;
+        for (int i = 0; i < 24; i++) {
+            wideBoxes.add(0);
+        }
+        for (int i = 0; i < 8; i++) {
+            wideNodes.add(0);
+        }
+        for (int c = 0; c < 4; c++) {
+            for (int k = 0; k < 3; k++) {
+                wideBoxes.set(24 * node + 4 * k + c, c < numChildren ? boxes[6 * children[c] + k] : Float.POSITIVE_INFINITY);
+                wideBoxes.set(24 * node + 12 + 4 * k + c, c < numChildren ? boxes[6 * children[c] + k + 3] : Float.NEGATIVE_INFINITY);
+            }
+        }
+        for (int c = 0; c < 4; c++) {
+            if (c >= numChildren) {
+                wideNodes.set(8 * node + 2 * c + 0, -1);
+                wideNodes.set(8 * node + 2 * c + 1, 0);
+            } else if (nodes[2 * children[c] + 1] >= 0) {
+                wideNodes.set(8 * node + 2 * c + 0, nodes[2 * children[c] + 0]);
+                wideNodes.set(8 * node + 2 * c + 1, nodes[2 * children[c] + 1]);
+            } else {
+                wideNodes.set(8 * node + 2 * c + 0, collapse(children[c], wideBoxes, wideNodes));
+                wideNodes.set(8 * node + 2 * c + 1, 0);
+            }
+        }
+        return node;
+    }
+
+    @Override
+    public void intersect(Ray r, IntersectionState state) {
+        if (nodes.length == 0) {
+            return;
+        }
+        if (wide) {
+            intersectWide(r, state);
+            return;
+        }
+        float orgX = r.ox, orgY = r.oy, orgZ = r.oz;
+        float invDirX = 1 / r.dx, invDirY = 1 / r.dy, invDirZ = 1 / r.dz;
+        float intervalMin = r.getMin();
+        if (intersectBox(boxes, 0, 3, orgX, orgY, orgZ, invDirX, invDirY, invDirZ, intervalMin, r.getMax()) == Float.POSITIVE_INFINITY) {
+            return;
+        }
+        // offsets of the entry and exit planes from the direction sign bits
+        int nearX = (Float.floatToRawIntBits(r.dx) >>> 31) * 3;
+        int nearY = (Float.floatToRawIntBits(r.dy) >>> 31) * 3 + 1;
+        int nearZ = (Float.floatToRawIntBits(r.dz) >>> 31) * 3 + 2;
+        int farX = 3 - nearX;
+        int farY = 5 - nearY;
+        int farZ = 7 - nearZ;
+        IntersectionState.StackNode[] stack = state.getStack();
+        int stackPos = 0;
+        int node = 0;
+        while (true) {
+            int count = nodes[2 * node + 1];
+            if (count >= 0) {
+                // leaf - test some objects
+                int offset = nodes[2 * node];
+                for (int i = offset; i < offset + count; i++) {
+                    primitives.intersectPrimitive(r, objects[i], state);
+                }
+            } else {
+                float intervalMax = r.getMax();
+                int left = node + 1;
+                int right = nodes[2 * node];
+                // clip the ray against both children
+                int b = 6 * left;
+                float t;
+                float tl = intervalMin, tlMax = intervalMax;
+                t = (boxes[b + nearX] - orgX) * invDirX;
+                tl = t > tl ? t : tl;
+                t = (boxes[b + nearY] - orgY) * invDirY;
+                tl = t > tl ? t : tl;
+                t = (boxes[b + nearZ] - orgZ) * invDirZ;
+                tl = t > tl ? t : tl;
+                t = (boxes[b + farX] - orgX) * invDirX;
+                tlMax = t < tlMax ? t : tlMax;
+                t = (boxes[b + farY] - orgY) * invDirY;
+                tlMax = t < tlMax ? t : tlMax;
+                t = (boxes[b + farZ] - orgZ) * invDirZ;
+                tlMax = t < tlMax ? t : tlMax;
+                b = 6 * right;
+                float tr = intervalMin, trMax = intervalMax;
+                t = (boxes[b + nearX] - orgX) * invDirX;
+                tr = t > tr ? t : tr;
+                t = (boxes[b + nearY] - orgY) * invDirY;
+                tr = t > tr ? t : tr;
+                t = (boxes[b + nearZ] - orgZ) * invDirZ;
+                tr = t > tr ? t : tr;
+                t = (boxes[b + farX] - orgX) * invDirX;
+                trMax = t < trMax ? t : trMax;
+                t = (boxes[b + farY] - orgY) * invDirY;
+                trMax = t < trMax ? t : trMax;
+                t = (boxes[b + farZ] - orgZ) * invDirZ;
+                trMax = t < trMax ? t : trMax;
+                boolean hitLeft = tl <= tlMax;
+                boolean hitRight = tr <= trMax;
+                if (hitLeft && hitRight) {
+                    // visit the closest child first
+                    if (tr < tl) {
+                        node = right;
+                        right = left;
+                        tr = tl;
+                    } else {
+                        node = left;
+                    }
+                    stack[stackPos].node = right;
+                    stack[stackPos].near = tr;
+                    stackPos++;
+                    continue;
+                } else if (hitLeft) {
+                    node = left;
+                    continue;
+                } else if (hitRight) {
+                    node = right;
+                    continue;
+                }
+            }
+            // pop nodes which might still contain a closer hit
+            node = -1;
+            while (stackPos > 0) {
+                stackPos--;
+                if (stack[stackPos].near <= r.getMax()) {
+                    node = stack[stackPos].node;
+                    break;
+                }
+            }
+            if (node == -1) {
+                return;
+            }
+        }
+    }
+
+    private void intersectWide(Ray r, IntersectionState state) {
+        float orgX = r.ox, orgY = r.oy, orgZ = r.oz;
+        float invDirX = 1 / r.dx, invDirY = 1 / r.dy, invDirZ = 1 / r.dz;
+        float intervalMin = r.getMin();
+        if (intersectBox(rootBox, 0, 3, orgX, orgY, orgZ, invDirX, invDirY, invDirZ, intervalMin, r.getMax()) == Float.POSITIVE_INFINITY) {
+            return;
+        }
+        IntersectionState.StackNode[] stack = state.getStack();
+        // the stack stores inner nodes as their index and leaves as
+        // -1 - the slot they were found in
+        int stackPos = 0;
+        stack[stackPos].node = 0;
+        stack[stackPos].near = intervalMin;
+        stackPos++;
+        while (stackPos > 0) {
+            stackPos--;
+            if (stack[stackPos].near > r.getMax()) {
+                continue;
+            }
+            int ref = stack[stackPos].node;
+            if (ref < 0) {
+                // leaf - test some objects
+                int slot = -1 - ref;
+                int offset = nodes[slot];
+                int count = nodes[slot + 1];
+                for (int i = offset; i < offset + count; i++) {
+                    primitives.intersectPrimitive(r, objects[i], state);
+                }
+                continue;
+            }
+            // push all children which are hit, sorted so the closest one is
+            // popped next
+            int first = stackPos;
+            float intervalMax = r.getMax();
+            for (int c = 0; c < 4; c++) {
+                float t = intersectBox(boxes, 24 * ref + c, 12, 4, orgX, orgY, orgZ, invDirX, invDirY, invDirZ, intervalMin, intervalMax);
+                if (t == Float.POSITIVE_INFINITY) {
+                    continue;
+                }
+                int slot = 8 * ref + 2 * c;
+                int child = nodes[slot + 1] == 0 ? nodes[slot] : -1 - slot;
+                int k = stackPos++;
+                while (k > first && stack[k - 1].near < t) {
+                    stack[k].node = stack[k - 1].node;
+                    stack[k].near = stack[k - 1].near;
+                    k--;
+                }
+                stack[k].node = child;
+                stack[k].near = t;
+            }
+        }
+    }
+
+    private static float intersectBox(float[] box, int offset, int stride, float orgX, float orgY, float orgZ, float invDirX, float invDirY, float invDirZ, float intervalMin, float intervalMax) {
+        return intersectBox(box, offset, stride, 1, orgX, orgY, orgZ, invDirX, invDirY, invDirZ, intervalMin, intervalMax);
+    }
+
+    /**
+     * Clips the ray interval against a box stored as min xyz, max xyz.
+     * Components of one corner are <code>step</code> floats apart and the two
+     * corners are <code>stride</code> floats apart.
+     *
+     * @return distance at which the ray enters the box, or
+     * <code>Float.POSITIVE_INFINITY</code> if it is missed
+     */
+    private static float intersectBox(float[] box, int offset, int stride, int step, float orgX, float orgY, float orgZ, float invDirX, float invDirY, float invDirZ, float intervalMin, float intervalMax) {
+        float t1, t2;
+        t1 = (box[offset] - orgX) * invDirX;
+        t2 = (box[offset + stride] - orgX) * invDirX;
+        if (invDirX > 0) {
+            intervalMin = t1 > intervalMin ? t1 : intervalMin;
+            intervalMax = t2 < intervalMax ? t2 : intervalMax;
+        } else {
+            intervalMin = t2 > intervalMin ? t2 : intervalMin;
+            intervalMax = t1 < intervalMax ? t1 : intervalMax;
+        }
+        if (intervalMin > intervalMax) {
+            return Float.POSITIVE_INFINITY;
+        }
+        t1 = (box[offset + step] - orgY) * invDirY;
+        t2 = (box[offset + stride + step] - orgY) * invDirY;
+        if (invDirY > 0) {
+            intervalMin = t1 > intervalMin ? t1 : intervalMin;
+            intervalMax = t2 < intervalMax ? t2 : intervalMax;
+        } else {
+            intervalMin = t2 > intervalMin ? t2 : intervalMin;
+            intervalMax = t1 < intervalMax ? t1 : intervalMax;
+        }
+        if (intervalMin > intervalMax) {
+            return Float.POSITIVE_INFINITY;
+        }
+        t1 = (box[offset + 2 * step] - orgZ) * invDirZ;
+        t2 = (box[offset + stride + 2 * step] - orgZ) * invDirZ;
+        if (invDirZ > 0) {
+            intervalMin = t1 > intervalMin ? t1 : intervalMin;
+            intervalMax = t2 < intervalMax ? t2 : intervalMax;
+        } else {
+            intervalMin = t2 > intervalMin ? t2 : intervalMin;
+            intervalMax = t1 < intervalMax ? t1 : intervalMax;
+        }
+        if (intervalMin > intervalMax) {
+            return Float.POSITIVE_INFINITY;
+        }
+        return intervalMin;
+    }
+
+    @Override
+    public void intersect(RayPacket packet, IntersectionState state) {
+        if (wide || !packet.isCoherent()) {
+            // wide nodes are only traversed one ray at a time
+            packet.intersectSerial(this, state);
+            return;
+        }
+        if (nodes.length == 0 || !packet.clip(bounds)) {
+            return;
+        }
+        int n = packet.size();
+        float[] near = packet.near;
+        float[] far = packet.far;
+        // node boxes overlap, so rays keep the interval of the root box and
+        // pop() can restore it unchanged
+        System.arraycopy(near, 0, packet.backNear, 0, n);
+        int node = 0;
+        while (node >= 0) {
+            int count = nodes[2 * node + 1];
+            if (count >= 0) {
+                // leaf - test some objects against all active rays
+                packet.intersectPrimitives(primitives, objects, nodes[2 * node], count, state);
+                node = packet.pop();
+                continue;
+            }
+            int first = node + 1;
+            int second = nodes[2 * node];
+            if (packet.getSignBit(-1 - count) != 0) {
+                first = second;
+                second = node + 1;
+            }
+            boolean hitFirst = false, hitSecond = false;
+            for (int i = 0; i < n; i++) {
+                if (near[i] > far[i]) {
+                    continue;
+                }
+                float intervalMax = Math.min(far[i], packet.getRay(i).getMax());
+                float ox = packet.org[0][i], oy = packet.org[1][i], oz = packet.org[2][i];
+                float ix = packet.invDir[0][i], iy = packet.invDir[1][i], iz = packet.invDir[2][i];
+                hitFirst |= intersectBox(boxes, 6 * first, 3, ox, oy, oz, ix, iy, iz, near[i], intervalMax) != Float.POSITIVE_INFINITY;
+                hitSecond |= intersectBox(boxes, 6 * second, 3, ox, oy, oz, ix, iy, iz, near[i], intervalMax) != Float.POSITIVE_INFINITY;
+            }
+            if (hitFirst) {
+                if (hitSecond) {
+                    packet.push(second);
+                }
+                node = first;
+            } else if (hitSecond) {
+                node = second;
+            } else {
+                node = packet.pop();
+            }
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package org.sunflow.core.accel;
+
+/**
+ * {@link BoundingVolumeHierarchy} with 4-wide nodes.
+ */
+public class BoundingVolumeHierarchy4 extends BoundingVolumeHierarchy {
+
+    public BoundingVolumeHierarchy4() {
+        super(true);
+    }
+}
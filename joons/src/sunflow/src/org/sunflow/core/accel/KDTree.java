@@ -1,14 +1,23 @@
 package org.sunflow.core.accel;
 
+import java.io.DataOutput;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.sunflow.core.AccelerationStructure;
+import org.sunflow.core.AccelerationStructureCache;
+import org.sunflow.core.CacheableAccelerationStructure;
 import org.sunflow.core.IntersectionState;
+import org.sunflow.core.ParallelAccelerationStructure;
 import org.sunflow.core.PrimitiveList;
 import org.sunflow.core.Ray;
+import org.sunflow.core.RayPacket;
 import org.sunflow.image.Color;
 import org.sunflow.math.BoundingBox;
 import org.sunflow.math.Point3;
@@ -18,7 +27,7 @@ import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 import org.sunflow.util.IntArray;
 
-public class KDTree implements AccelerationStructure {
+public class KDTree implements CacheableAccelerationStructure, ParallelAccelerationStructure {
 
     private int[] tree;
     private int[] primitives;
@@ -29,8 +38,15 @@ public class KDTree implements AccelerationStructure {
     private static final float TRAVERSAL_COST = 1;
     private static final float EMPTY_BONUS = 0.2f;
     private static final int MAX_DEPTH = 64;
+    // nodes with at least this many objects are split using binned SAH
+    private static final int BINNED_MIN_OBJECTS = 4096;
+    private static final int NUM_BINS = 32;
+    // nodes with at least this many objects build their children in parallel
+    private static final int PARALLEL_MIN_OBJECTS = 8192;
+    private ForkJoinPool buildPool;
     private static boolean dump = false;
     private static String dumpPrefix = "kdtree";
+    private int buildThreads = 0;
 
     public KDTree() {
         this(0);
@@ -56,6 +72,11 @@ public class KDTree implements AccelerationStructure {
         private int numLeaves3;
         private int numLeaves4;
         private int numLeaves4p;
+        private int numBinned;
+        private int numSubtrees;
+        private long binnedNanos;
+        private long exactNanos;
+        private long mergeNanos;
 
         BuildStats() {
             numNodes = numLeaves = 0;
@@ -71,10 +92,40 @@ public class KDTree implements AccelerationStructure {
             numLeaves3 = 0;
             numLeaves4 = 0;
             numLeaves4p = 0;
+            numBinned = numSubtrees = 0;
+            binnedNanos = exactNanos = mergeNanos = 0;
         }
 
-        void updateInner() {
+        void updateInner(boolean binned, long nanos) {
             numNodes++;
+            if (binned) {
+                numBinned++;
+                binnedNanos += nanos;
+            } else {
+                exactNanos += nanos;
+            }
+        }
+
+        void add(BuildStats s) {
+            numNodes += s.numNodes;
+            numLeaves += s.numLeaves;
+            sumObjects += s.sumObjects;
+            minObjects = Math.min(s.minObjects, minObjects);
+            maxObjects = Math.max(s.maxObjects, maxObjects);
+            sumDepth += s.sumDepth;
+            minDepth = Math.min(s.minDepth, minDepth);
+            maxDepth = Math.max(s.maxDepth, maxDepth);
+            numLeaves0 += s.numLeaves0;
+            numLeaves1 += s.numLeaves1;
+            numLeaves2 += s.numLeaves2;
+            numLeaves3 += s.numLeaves3;
+            numLeaves4 += s.numLeaves4;
+            numLeaves4p += s.numLeaves4p;
+            numBinned += s.numBinned;
+            numSubtrees += s.numSubtrees + 1;
+            binnedNanos += s.binnedNanos;
+            exactNanos += s.exactNanos;
+            mergeNanos += s.mergeNanos;
         }
 
         void updateLeaf(int depth, int n) {
@@ -124,6 +175,8 @@ public class KDTree implements AccelerationStructure {
             UI.printDetailed(Module.ACCEL, "               N=3  %3d%%", 100 * numLeaves3 / numLeaves);
             UI.printDetailed(Module.ACCEL, "               N=4  %3d%%", 100 * numLeaves4 / numLeaves);
             UI.printDetailed(Module.ACCEL, "               N>4  %3d%%", 100 * numLeaves4p / numLeaves);
+            UI.printDetailed(Module.ACCEL, "  * Binned nodes:   %d", numBinned);
+            UI.printDetailed(Module.ACCEL, "  * Subtrees:       %d", numSubtrees);
         }
     }
 
@@ -132,6 +185,11 @@ public class KDTree implements AccelerationStructure {
         KDTree.dumpPrefix = prefix;
     }
 
+    @Override
+    public void setBuildThreads(int threads) {
+        buildThreads = threads;
+    }
+
     @Override
     public void build(PrimitiveList primitives) {
         UI.printDetailed(Module.ACCEL, "KDTree settings");
@@ -141,6 +199,8 @@ public class KDTree implements AccelerationStructure {
         UI.printDetailed(Module.ACCEL, "  * Intersect cost: %.2f", INTERSECT_COST);
         UI.printDetailed(Module.ACCEL, "  * Empty bonus:    %.2f", EMPTY_BONUS);
         UI.printDetailed(Module.ACCEL, "  * Dump leaves:    %s", dump ? "enabled" : "disabled");
+        int threads = buildThreads <= 0 ? Runtime.getRuntime().availableProcessors() : buildThreads;
+        UI.printDetailed(Module.ACCEL, "  * Build threads:  %d", threads);
         Timer total = new Timer();
         total.start();
         primitiveList = primitives;
@@ -179,8 +239,33 @@ public class KDTree implements AccelerationStructure {
         radix12(task.splits, task.n);
         sorting.end();
         // build the actual tree
-        BuildStats stats = new BuildStats();
-        buildTree(bounds.getMinimum().x, bounds.getMaximum().x, bounds.getMinimum().y, bounds.getMaximum().y, bounds.getMinimum().z, bounds.getMaximum().z, task, 1, tempTree, 0, tempList, stats);
+        final BuildStats stats = new BuildStats();
+        final float[] box = {bounds.getMinimum().x, bounds.getMaximum().x, bounds.getMinimum().y, bounds.getMaximum().y, bounds.getMinimum().z, bounds.getMaximum().z};
+        if (threads > 1 && nPrim >= 2 * PARALLEL_MIN_OBJECTS) {
+            buildPool = new ForkJoinPool(threads, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                @Override
+                public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                    return new BuildThread(pool);
+                }
+            }, null, false);
+            final BuildTask rootTask = task;
+            final IntArray rootTree = tempTree;
+            final IntArray rootList = tempList;
+            task = null;
+            buildPool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    byte[] lrtable = ((BuildThread) Thread.currentThread()).getLeftRightTable(primitiveList.getNumPrimitives());
+                    buildTree(box[0], box[1], box[2], box[3], box[4], box[5], rootTask, 1, rootTree, 0, rootList, stats, lrtable);
+                }
+            });
+            buildPool.shutdown();
+            buildPool = null;
+        } else {
+            // 2 bits per object
+            byte[] lrtable = new byte[(nPrim + 3) / 4];
+            buildTree(box[0], box[1], box[2], box[3], box[4], box[5], task, 1, tempTree, 0, tempList, stats, lrtable);
+        }
         t.end();
         // write out final arrays
         // free some memory
@@ -197,6 +282,9 @@ public class KDTree implements AccelerationStructure {
         UI.printDetailed(Module.ACCEL, "  * Prepare time:   %s", prepare);
         UI.printDetailed(Module.ACCEL, "  * Sorting time:   %s", sorting);
         UI.printDetailed(Module.ACCEL, "  * Tree creation:  %s", t);
+        UI.printDetailed(Module.ACCEL, "  * Binned SAH:     %s", Timer.toString(stats.binnedNanos));
+        UI.printDetailed(Module.ACCEL, "  * Exact SAH:      %s", Timer.toString(stats.exactNanos));
+        UI.printDetailed(Module.ACCEL, "  * Subtree merge:  %s", Timer.toString(stats.mergeNanos));
         UI.printDetailed(Module.ACCEL, "  * Build time:     %s", total);
         if (dump) {
             try {
@@ -232,6 +320,26 @@ public class KDTree implements AccelerationStructure {
         }
     }
 
+    @Override
+    public String getCacheKey() {
+        return String.format("kdtree-1-%d", maxPrims);
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        AccelerationStructureCache.writeBounds(out, bounds);
+        AccelerationStructureCache.writeArray(out, tree);
+        AccelerationStructureCache.writeArray(out, primitives);
+    }
+
+    @Override
+    public void read(ByteBuffer in, PrimitiveList primitives) {
+        primitiveList = primitives;
+        bounds = AccelerationStructureCache.readBounds(in);
+        tree = AccelerationStructureCache.readIntArray(in);
+        this.primitives = AccelerationStructureCache.readIntArray(in);
+    }
+
     private int dumpObj(int offset, int vertOffset, int maxN, BoundingBox bounds, FileWriter file, FileWriter mtlFile) throws IOException {
         if (offset == 0) {
             file.write(String.format("mtllib %s.mtl\n", dumpPrefix));
@@ -413,27 +521,160 @@ public class KDTree implements AccelerationStructure {
         long[] splits;
         int numObjects;
         int n;
-        byte[] leftRightTable;
 
         BuildTask(int numObjects) {
             splits = new long[6 * numObjects];
             this.numObjects = numObjects;
             n = 0;
-            // 2 bits per object
-            leftRightTable = new byte[(numObjects + 3) / 4];
         }
+    }
 
-        BuildTask(int numObjects, BuildTask parent) {
-            splits = new long[6 * numObjects];
-            this.numObjects = numObjects;
-            n = 0;
-            leftRightTable = parent.leftRightTable;
+    /**
+     * Builds a subtree on its own tree and object arrays so it can run in
+     * parallel with its sibling. The result is appended to the parent's
+     * arrays once both children are done.
+     */
+    private final class SubtreeTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final float[] box;
+        private final int depth;
+        private BuildTask task;
+        private IntArray tempTree;
+        private IntArray tempList;
+        private BuildStats stats;
+
+        SubtreeTask(float[] box, BuildTask task, int depth) {
+            this.box = box;
+            this.task = task;
+            this.depth = depth;
+        }
+
+        @Override
+        protected void compute() {
+            tempTree = new IntArray();
+            tempTree.add(0);
+            tempTree.add(0);
+            tempList = new IntArray();
+            stats = new BuildStats();
+            byte[] lrtable = ((BuildThread) Thread.currentThread()).getLeftRightTable(primitiveList.getNumPrimitives());
+            buildTree(box[0], box[1], box[2], box[3], box[4], box[5], task, depth, tempTree, 0, tempList, stats, lrtable);
+            task = null;
+        }
+
+        void appendTo(IntArray dstTree, int offset, IntArray dstList, BuildStats dstStats) {
+            long t0 = System.nanoTime();
+            // nodes below the root move to the end of the destination tree
+            int nodeBase = dstTree.getSize() - 2;
+            int listBase = dstList.getSize();
+            for (int i = 0; i < tempTree.getSize(); i += 2) {
+                int tn = tempTree.get(i);
+                int type = tn & (3 << 30);
+                int ptr = tn & ~(3 << 30);
+                tn = type | (ptr + (type == (3 << 30) ? listBase : nodeBase));
+                if (i == 0) {
+                    dstTree.set(offset + 0, tn);
+                    dstTree.set(offset + 1, tempTree.get(i + 1));
+                } else {
+                    dstTree.add(tn);
+                    dstTree.add(tempTree.get(i + 1));
+                }
+            }
+            for (int i = 0; i < tempList.getSize(); i++) {
+                dstList.add(tempList.get(i));
+            }
+            tempTree = tempList = null;
+            stats.mergeNanos += System.nanoTime() - t0;
+            dstStats.add(stats);
+        }
+    }
+
+    /**
+     * Worker thread for parallel builds. Each thread owns the table used to
+     * classify objects to the left/right of a split.
+     */
+    private static final class BuildThread extends ForkJoinWorkerThread {
+
+        private byte[] leftRightTable;
+
+        BuildThread(ForkJoinPool pool) {
+            super(pool);
+        }
+
+        byte[] getLeftRightTable(int numObjects) {
+            if (leftRightTable == null) {
+                // 2 bits per object
+                leftRightTable = new byte[(numObjects + 3) / 4];
+            }
+            return leftRightTable;
+        }
+    }
+
+    // find the best split with binned SAH - returns the split axis or -1 if
+    // no split is better than creating a leaf
+    private static int findBinnedSplit(BuildTask task, float[] nodeMin, float[] nodeMax, byte[] lrtable, float[] bestSplit) {
+        int[] binStart = new int[3 * NUM_BINS];
+        int[] binEnd = new int[3 * NUM_BINS];
+        float[] scale = new float[3];
+        for (int axis = 0; axis < 3; axis++) {
+            float w = nodeMax[axis] - nodeMin[axis];
+            scale[axis] = w > 0 ? NUM_BINS / w : 0;
+        }
+        long[] splits = task.splits;
+        for (int i = 0; i < task.n; i++) {
+            long ptr = splits[i];
+            int obj = unpackObject(ptr);
+            lrtable[obj >>> 2] = 0;
+            int axis = unpackAxis(ptr);
+            int b = (int) ((unpackSplit(ptr) - nodeMin[axis]) * scale[axis]);
+            b = axis * NUM_BINS + (b < 0 ? 0 : (b >= NUM_BINS ? NUM_BINS - 1 : b));
+            long type = unpackSplitType(ptr);
+            if (type != CLOSED) {
+                binStart[b]++;
+            }
+            if (type != OPENED) {
+                binEnd[b]++;
+            }
+        }
+        float dx = nodeMax[0] - nodeMin[0];
+        float dy = nodeMax[1] - nodeMin[1];
+        float dz = nodeMax[2] - nodeMin[2];
+        float area = (dx * dy + dy * dz + dz * dx);
+        float ISECT_COST = INTERSECT_COST / area;
+        float[] dp = {dy * dz, dz * dx, dx * dy};
+        float[] ds = {dy + dz, dz + dx, dx + dy};
+        float bestCost = INTERSECT_COST * task.numObjects;
+        int bestAxis = -1;
+        for (int axis = 0; axis < 3; axis++) {
+            if (scale[axis] == 0) {
+                continue;
+            }
+            float w = nodeMax[axis] - nodeMin[axis];
+            int numLeft = 0;
+            int numRight = task.numObjects;
+            for (int k = 1; k < NUM_BINS; k++) {
+                numLeft += binStart[axis * NUM_BINS + k - 1];
+                numRight -= binEnd[axis * NUM_BINS + k - 1];
+                float dl = k * w / NUM_BINS;
+                float dr = w - dl;
+                float lp = dp[axis] + dl * ds[axis];
+                float rp = dp[axis] + dr * ds[axis];
+                float eb = (numLeft == 0 || numRight == 0) ? EMPTY_BONUS : 0;
+                float cost = TRAVERSAL_COST + ISECT_COST * (1 - eb) * (lp * numLeft + rp * numRight);
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestAxis = axis;
+                    bestSplit[0] = nodeMin[axis] + dl;
+                }
+            }
         }
+        return bestAxis;
     }
 
-    private void buildTree(float minx, float maxx, float miny, float maxy, float minz, float maxz, BuildTask task, int depth, IntArray tempTree, int offset, IntArray tempList, BuildStats stats) {
+    private void buildTree(float minx, float maxx, float miny, float maxy, float minz, float maxz, BuildTask task, int depth, IntArray tempTree, int offset, IntArray tempList, BuildStats stats, byte[] lrtable) {
         // get node bounding box extents
         if (task.numObjects > maxPrims && depth < MAX_DEPTH) {
+            long t0 = System.nanoTime();
             float dx = maxx - minx;
             float dy = maxy - miny;
             float dz = maxz - minz;
@@ -445,131 +686,162 @@ public class KDTree implements AccelerationStructure {
             float bestSplit = 0;
             boolean bestPlanarLeft = false;
             int bnl = 0, bnr = 0;
-            // inverse area of the bounding box (factor of 2 ommitted)
-            float area = (dx * dy + dy * dz + dz * dx);
-            float ISECT_COST = INTERSECT_COST / area;
-            // setup counts for each axis
-            int[] nl = {0, 0, 0};
-            int[] nr = {task.numObjects, task.numObjects, task.numObjects};
-            // setup bounds for each axis
-            float[] dp = {dy * dz, dz * dx, dx * dy};
-            float[] ds = {dy + dz, dz + dx, dx + dy};
             float[] nodeMin = {minx, miny, minz};
             float[] nodeMax = {maxx, maxy, maxz};
-            // search for best cost
             int nSplits = task.n;
             long[] splits = task.splits;
-            byte[] lrtable = task.leftRightTable;
-            for (int i = 0; i < nSplits;) {
-                // extract current split
-                long ptr = splits[i];
-                float split = unpackSplit(ptr);
-                int axis = unpackAxis(ptr);
-                // mark current position
-                int currentOffset = i;
-                // count number of primitives start/stopping/lying on the
-                // current plane
-                int pClosed = 0, pPlanar = 0, pOpened = 0;
-                long ptrMasked = ptr & (~TYPE_MASK & 0xFFFFFFFFF0000000L);
-                long ptrClosed = ptrMasked | CLOSED;
-                long ptrPlanar = ptrMasked | PLANAR;
-                long ptrOpened = ptrMasked | OPENED;
-                while (i < nSplits && (splits[i] & 0xFFFFFFFFF0000000L) == ptrClosed) {
-                    int obj = unpackObject(splits[i]);
-                    lrtable[obj >>> 2] = 0;
-                    pClosed++;
-                    i++;
-                }
-                while (i < nSplits && (splits[i] & 0xFFFFFFFFF0000000L) == ptrPlanar) {
-                    int obj = unpackObject(splits[i]);
-                    lrtable[obj >>> 2] = 0;
-                    pPlanar++;
-                    i++;
-                }
-                while (i < nSplits && (splits[i] & 0xFFFFFFFFF0000000L) == ptrOpened) {
-                    int obj = unpackObject(splits[i]);
-                    lrtable[obj >>> 2] = 0;
-                    pOpened++;
-                    i++;
-                }
-                // now we have summed all contributions from this plane
-                nr[axis] -= pPlanar + pClosed;
-                // compute cost
-                if (split >= nodeMin[axis] && split <= nodeMax[axis]) {
-                    // left and right surface area (factor of 2 ommitted)
-                    float dl = split - nodeMin[axis];
-                    float dr = nodeMax[axis] - split;
-                    float lp = dp[axis] + dl * ds[axis];
-                    float rp = dp[axis] + dr * ds[axis];
-                    // planar prims go to smallest cell always
-                    boolean planarLeft = dl < dr;
-                    int numLeft = nl[axis] + (planarLeft ? pPlanar : 0);
-                    int numRight = nr[axis] + (planarLeft ? 0 : pPlanar);
-                    float eb = ((numLeft == 0 && dl > 0) || (numRight == 0 && dr > 0)) ? EMPTY_BONUS : 0;
-                    float cost = TRAVERSAL_COST + ISECT_COST * (1 - eb) * (lp * numLeft + rp * numRight);
-                    if (cost < bestCost) {
-                        bestCost = cost;
-                        bestAxis = axis;
-                        bestSplit = split;
-                        bestOffsetStart = currentOffset;
-                        bestOffsetEnd = i;
-                        bnl = numLeft;
-                        bnr = numRight;
-                        bestPlanarLeft = planarLeft;
+            boolean binned = false;
+            if (task.numObjects >= BINNED_MIN_OBJECTS) {
+                // binned search on large nodes
+                float[] split = new float[1];
+                bestAxis = findBinnedSplit(task, nodeMin, nodeMax, lrtable, split);
+                bestSplit = split[0];
+                binned = bestAxis != -1;
+            }
+            if (!binned) {
+                // inverse area of the bounding box (factor of 2 ommitted)
+                float area = (dx * dy + dy * dz + dz * dx);
+                float ISECT_COST = INTERSECT_COST / area;
+                // setup counts for each axis
+                int[] nl = {0, 0, 0};
+                int[] nr = {task.numObjects, task.numObjects, task.numObjects};
+                // setup bounds for each axis
+                float[] dp = {dy * dz, dz * dx, dx * dy};
+                float[] ds = {dy + dz, dz + dx, dx + dy};
+                // search for best cost
+                for (int i = 0; i < nSplits;) {
+                    // extract current split
+                    long ptr = splits[i];
+                    float split = unpackSplit(ptr);
+                    int axis = unpackAxis(ptr);
+                    // mark current position
+                    int currentOffset = i;
+                    // count number of primitives start/stopping/lying on the
+                    // current plane
+                    int pClosed = 0, pPlanar = 0, pOpened = 0;
+                    long ptrMasked = ptr & (~TYPE_MASK & 0xFFFFFFFFF0000000L);
+                    long ptrClosed = ptrMasked | CLOSED;
+                    long ptrPlanar = ptrMasked | PLANAR;
+                    long ptrOpened = ptrMasked | OPENED;
+                    while (i < nSplits && (splits[i] & 0xFFFFFFFFF0000000L) == ptrClosed) {
+                        int obj = unpackObject(splits[i]);
+                        lrtable[obj >>> 2] = 0;
+                        pClosed++;
+                        i++;
                     }
+                    while (i < nSplits && (splits[i] & 0xFFFFFFFFF0000000L) == ptrPlanar) {
+                        int obj = unpackObject(splits[i]);
+                        lrtable[obj >>> 2] = 0;
+                        pPlanar++;
+                        i++;
+                    }
+                    while (i < nSplits && (splits[i] & 0xFFFFFFFFF0000000L) == ptrOpened) {
+                        int obj = unpackObject(splits[i]);
+                        lrtable[obj >>> 2] = 0;
+                        pOpened++;
+                        i++;
+                    }
+                    // now we have summed all contributions from this plane
+                    nr[axis] -= pPlanar + pClosed;
+                    // compute cost
+                    if (split >= nodeMin[axis] && split <= nodeMax[axis]) {
+                        // left and right surface area (factor of 2 ommitted)
+                        float dl = split - nodeMin[axis];
+                        float dr = nodeMax[axis] - split;
+                        float lp = dp[axis] + dl * ds[axis];
+                        float rp = dp[axis] + dr * ds[axis];
+                        // planar prims go to smallest cell always
+                        boolean planarLeft = dl < dr;
+                        int numLeft = nl[axis] + (planarLeft ? pPlanar : 0);
+                        int numRight = nr[axis] + (planarLeft ? 0 : pPlanar);
+                        float eb = ((numLeft == 0 && dl > 0) || (numRight == 0 && dr > 0)) ? EMPTY_BONUS : 0;
+                        float cost = TRAVERSAL_COST + ISECT_COST * (1 - eb) * (lp * numLeft + rp * numRight);
+                        if (cost < bestCost) {
+                            bestCost = cost;
+                            bestAxis = axis;
+                            bestSplit = split;
+                            bestOffsetStart = currentOffset;
+                            bestOffsetEnd = i;
+                            bnl = numLeft;
+                            bnr = numRight;
+                            bestPlanarLeft = planarLeft;
+                        }
+                    }
+                    // move objects left
+                    nl[axis] += pOpened + pPlanar;
                 }
-                // move objects left
-                nl[axis] += pOpened + pPlanar;
-            }
-            // debug check for correctness of the scan
-            for (int axis = 0; axis < 3; axis++) {
-                int numLeft = nl[axis];
-                int numRight = nr[axis];
-                if (numLeft != task.numObjects || numRight != 0) {
-                    UI.printError(Module.ACCEL, "Didn't scan full range of objects @depth=%d. Left overs for axis %d: [L: %d] [R: %d]", depth, axis, numLeft, numRight);
+                // debug check for correctness of the scan
+                for (int axis = 0; axis < 3; axis++) {
+                    int numLeft = nl[axis];
+                    int numRight = nr[axis];
+                    if (numLeft != task.numObjects || numRight != 0) {
+                        UI.printError(Module.ACCEL, "Didn't scan full range of objects @depth=%d. Left overs for axis %d: [L: %d] [R: %d]", depth, axis, numLeft, numRight);
+                    }
                 }
             }
             // found best split?
             if (bestAxis != -1) {
-                // allocate space for child nodes
-                BuildTask taskL = new BuildTask(bnl, task);
-                BuildTask taskR = new BuildTask(bnr, task);
                 int lk = 0, rk = 0;
-                for (int i = 0; i < bestOffsetStart; i++) {
-                    long ptr = splits[i];
-                    if (unpackAxis(ptr) == bestAxis) {
-                        if (unpackSplitType(ptr) != CLOSED) {
-                            int obj = unpackObject(ptr);
-                            lrtable[obj >>> 2] |= 1 << ((obj & 3) << 1);
-                            lk++;
+                if (binned) {
+                    // classify objects against the split value
+                    for (int i = 0; i < nSplits; i++) {
+                        long ptr = splits[i];
+                        if (unpackAxis(ptr) != bestAxis) {
+                            continue;
                         }
-                    }
-                }
-                for (int i = bestOffsetStart; i < bestOffsetEnd; i++) {
-                    long ptr = splits[i];
-                    assert unpackAxis(ptr) == bestAxis;
-                    if (unpackSplitType(ptr) == PLANAR) {
-                        if (bestPlanarLeft) {
-                            int obj = unpackObject(ptr);
+                        int obj = unpackObject(ptr);
+                        float split = unpackSplit(ptr);
+                        long type = unpackSplitType(ptr);
+                        if ((type == OPENED && split < bestSplit) || (type == PLANAR && split <= bestSplit)) {
                             lrtable[obj >>> 2] |= 1 << ((obj & 3) << 1);
                             lk++;
-                        } else {
-                            int obj = unpackObject(ptr);
+                        } else if ((type == CLOSED || type == PLANAR) && split > bestSplit) {
                             lrtable[obj >>> 2] |= 2 << ((obj & 3) << 1);
                             rk++;
                         }
                     }
-                }
-                for (int i = bestOffsetEnd; i < nSplits; i++) {
-                    long ptr = splits[i];
-                    if (unpackAxis(ptr) == bestAxis) {
-                        if (unpackSplitType(ptr) != OPENED) {
-                            int obj = unpackObject(ptr);
-                            lrtable[obj >>> 2] |= 2 << ((obj & 3) << 1);
-                            rk++;
+                    bnl = lk;
+                    bnr = rk;
+                } else {
+                    for (int i = 0; i < bestOffsetStart; i++) {
+                        long ptr = splits[i];
+                        if (unpackAxis(ptr) == bestAxis) {
+                            if (unpackSplitType(ptr) != CLOSED) {
+                                int obj = unpackObject(ptr);
+                                lrtable[obj >>> 2] |= 1 << ((obj & 3) << 1);
+                                lk++;
+                            }
+                        }
+                    }
+                    for (int i = bestOffsetStart; i < bestOffsetEnd; i++) {
+                        long ptr = splits[i];
+                        assert unpackAxis(ptr) == bestAxis;
+                        if (unpackSplitType(ptr) == PLANAR) {
+                            if (bestPlanarLeft) {
+                                int obj = unpackObject(ptr);
+                                lrtable[obj >>> 2] |= 1 << ((obj & 3) << 1);
+                                lk++;
+                            } else {
+                                int obj = unpackObject(ptr);
+                                lrtable[obj >>> 2] |= 2 << ((obj & 3) << 1);
+                                rk++;
+                            }
+                        }
+                    }
+                    for (int i = bestOffsetEnd; i < nSplits; i++) {
+                        long ptr = splits[i];
+                        if (unpackAxis(ptr) == bestAxis) {
+                            if (unpackSplitType(ptr) != OPENED) {
+                                int obj = unpackObject(ptr);
+                                lrtable[obj >>> 2] |= 2 << ((obj & 3) << 1);
+                                rk++;
+                            }
                         }
                     }
                 }
+                // allocate space for child nodes
+                BuildTask taskL = new BuildTask(bnl);
+                BuildTask taskR = new BuildTask(bnr);
                 // output new splits while maintaining order
                 long[] splitsL = taskL.splits;
                 long[] splitsR = taskR.splits;
@@ -602,30 +874,28 @@ public class KDTree implements AccelerationStructure {
                 // create current node
                 tempTree.set(offset + 0, (bestAxis << 30) | nextOffset);
                 tempTree.set(offset + 1, Float.floatToRawIntBits(bestSplit));
-                // recurse for child nodes - free object arrays after each step
-                stats.updateInner();
-                switch (bestAxis) {
-                    case 0:
-                        buildTree(minx, bestSplit, miny, maxy, minz, maxz, taskL, depth + 1, tempTree, nextOffset, tempList, stats);
-                        taskL = null;
-                        buildTree(bestSplit, maxx, miny, maxy, minz, maxz, taskR, depth + 1, tempTree, nextOffset + 2, tempList, stats);
-                        taskR = null;
-                        return;
-                    case 1:
-                        buildTree(minx, maxx, miny, bestSplit, minz, maxz, taskL, depth + 1, tempTree, nextOffset, tempList, stats);
-                        taskL = null;
-                        buildTree(minx, maxx, bestSplit, maxy, minz, maxz, taskR, depth + 1, tempTree, nextOffset + 2, tempList, stats);
-                        taskR = null;
-                        return;
-                    case 2:
-                        buildTree(minx, maxx, miny, maxy, minz, bestSplit, taskL, depth + 1, tempTree, nextOffset, tempList, stats);
-                        taskL = null;
-                        buildTree(minx, maxx, miny, maxy, bestSplit, maxz, taskR, depth + 1, tempTree, nextOffset + 2, tempList, stats);
-                        taskR = null;
-                        return;
-                    default:
-                        assert false;
+                // compute child boxes
+                float[] boxL = {minx, maxx, miny, maxy, minz, maxz};
+                float[] boxR = {minx, maxx, miny, maxy, minz, maxz};
+                boxL[2 * bestAxis + 1] = bestSplit;
+                boxR[2 * bestAxis + 0] = bestSplit;
+                stats.updateInner(binned, System.nanoTime() - t0);
+                if (buildPool != null && ForkJoinTask.getPool() == buildPool && bnl + bnr >= PARALLEL_MIN_OBJECTS) {
+                    // build both subtrees in parallel
+                    SubtreeTask left = new SubtreeTask(boxL, taskL, depth + 1);
+                    SubtreeTask right = new SubtreeTask(boxR, taskR, depth + 1);
+                    taskL = taskR = null;
+                    ForkJoinTask.invokeAll(left, right);
+                    left.appendTo(tempTree, nextOffset, tempList, stats);
+                    right.appendTo(tempTree, nextOffset + 2, tempList, stats);
+                    return;
                 }
+                // recurse for child nodes - free object arrays after each step
+                buildTree(boxL[0], boxL[1], boxL[2], boxL[3], boxL[4], boxL[5], taskL, depth + 1, tempTree, nextOffset, tempList, stats, lrtable);
+                taskL = null;
+                buildTree(boxR[0], boxR[1], boxR[2], boxR[3], boxR[4], boxR[5], taskR, depth + 1, tempTree, nextOffset + 2, tempList, stats, lrtable);
+                taskR = null;
+                return;
             }
         }
         // create leaf node
@@ -830,4 +1100,69 @@ public class KDTree implements AccelerationStructure {
             } // switch
         } // traversal loop
     }
-}
\ No newline at end of file
+
+    @Override
+    public void intersect(RayPacket packet, IntersectionState state) {
+        if (!packet.isCoherent()) {
+            // rays disagree on the front to back order of the children
+            packet.intersectSerial(this, state);
+            return;
+        }
+        if (!packet.clip(bounds)) {
+            return;
+        }
+        int n = packet.size();
+        float[] near = packet.near;
+        float[] far = packet.far;
+        float[] frontFar = packet.frontFar;
+        float[] backNear = packet.backNear;
+        // child offsets from the direction sign bits
+        int[] offsetFront = {packet.getSignBit(0) << 1, packet.getSignBit(1) << 1,
+            packet.getSignBit(2) << 1};
+        int node = 0;
+        while (node >= 0) {
+            int tn = tree[node];
+            int axis = tn >>> 30;
+            int offset = tn & ~(3 << 30);
+            if (axis == 3) {
+                // leaf - test some objects against all active rays
+                packet.intersectPrimitives(primitiveList, primitives, offset, tree[node + 1], state);
+                node = packet.pop();
+                continue;
+            }
+            float split = Float.intBitsToFloat(tree[node + 1]);
+            float[] org = packet.org[axis];
+            float[] invDir = packet.invDir[axis];
+            boolean front = false, back = false;
+            for (int i = 0; i < n; i++) {
+                if (near[i] > far[i]) {
+                    // inactive ray - keep it inactive in both children
+                    backNear[i] = near[i];
+                    frontFar[i] = far[i];
+                    continue;
+                }
+                float d = (split - org[i]) * invDir[i];
+                frontFar[i] = (d <= far[i]) ? d : far[i];
+                backNear[i] = (d >= near[i]) ? d : near[i];
+                front |= near[i] <= frontFar[i];
+                back |= backNear[i] <= far[i];
+            }
+            int frontNode = offset + offsetFront[axis];
+            int backNode = offset + (offsetFront[axis] ^ 2);
+            if (front && back) {
+                // push back node with the far part of the intervals
+                packet.push(backNode);
+                System.arraycopy(frontFar, 0, far, 0, n);
+                node = frontNode;
+            } else if (front) {
+                System.arraycopy(frontFar, 0, far, 0, n);
+                node = frontNode;
+            } else if (back) {
+                System.arraycopy(backNear, 0, near, 0, n);
+                node = backNode;
+            } else {
+                node = packet.pop();
+            }
+        }
+    }
+}
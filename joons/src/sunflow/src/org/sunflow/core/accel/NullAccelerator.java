@@ -4,6 +4,7 @@ import org.sunflow.core.AccelerationStructure;
 import org.sunflow.core.IntersectionState;
 import org.sunflow.core.PrimitiveList;
 import org.sunflow.core.Ray;
+import org.sunflow.core.RayPacket;
 
 public class NullAccelerator implements AccelerationStructure {
 
@@ -20,9 +21,17 @@ public class NullAccelerator implements AccelerationStructure {
         n = primitives.getNumPrimitives();
     }
 
+    @Override
     public void intersect(Ray r, IntersectionState state) {
         for (int i = 0; i < n; i++) {
             primitives.intersectPrimitive(r, i, state);
         }
     }
+
+    @Override
+    public void intersect(RayPacket packet, IntersectionState state) {
+        for (int i = 0; i < n; i++) {
+            packet.intersectPrimitive(primitives, i, state);
+        }
+    }
 }
\ No newline at end of file
@@ -4,6 +4,7 @@ import org.sunflow.core.AccelerationStructure;
 import org.sunflow.core.IntersectionState;
 import org.sunflow.core.PrimitiveList;
 import org.sunflow.core.Ray;
+import org.sunflow.core.RayPacket;
 import org.sunflow.math.BoundingBox;
 import org.sunflow.math.MathUtils;
 import org.sunflow.math.Vector3;
@@ -326,4 +327,9 @@ public final class UniformGrid implements AccelerationStructure {
         i[1] = MathUtils.clamp((int) ((y - bounds.getMinimum().y) * invVoxelwy), 0, ny - 1);
         i[2] = MathUtils.clamp((int) ((z - bounds.getMinimum().z) * invVoxelwz), 0, nz - 1);
     }
-}
\ No newline at end of file
+
+    @Override
+    public void intersect(RayPacket packet, IntersectionState state) {
+        packet.intersectSerial(this, state);
+    }
+}
@@ -8,11 +8,11 @@ import java.awt.event.KeyEvent;
 import javax.swing.JFrame;
 
 import org.sunflow.SunflowAPI;
-import org.sunflow.core.Display;
+import org.sunflow.core.DeadlineDisplay;
 import org.sunflow.image.Color;
 import org.sunflow.system.ImagePanel;
 
-public class FrameDisplay implements Display {
+public class FrameDisplay implements DeadlineDisplay {
 
     private String filename;
     private RenderFrame frame;
@@ -65,6 +65,11 @@ public class FrameDisplay implements Display {
         frame.imagePanel.imageFill(x, y, w, h, c, alpha);
     }
 
+    @Override
+    public void imageQuality(int x, int y, int w, int h, boolean full) {
+        frame.imagePanel.imageQuality(x, y, w, h, full);
+    }
+
     @Override
     public void imageEnd() {
         frame.imagePanel.imageEnd();
@@ -0,0 +1,206 @@
+package org.sunflow.core.display;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.sunflow.core.BucketDisplay;
+import org.sunflow.image.Color;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+
+/**
+ * Sends rendered buckets to a coordinator process over a socket, and asks it
+ * which buckets to render next. This is the worker side of the distributed
+ * image sampler. The connection is set up by the worker, which receives the
+ * image size and bucket size along with the scene.
+ * <p>
+ * After the handshake, all messages start with a single byte:
+ * <ul>
+ * <li><code>'b'</code> asks for the next bucket, the coordinator answers with
+ * its index in the bucket sequence, -1 once the frame is done or -2 if all
+ * remaining buckets are in progress elsewhere</li>
+ * <li><code>'p'</code> x, y, w, h and a thread id announce a bucket</li>
+ * <li><code>'u'</code> x, y, w, h are followed by w * h pixels of red, green,
+ * blue and alpha floats</li>
+ * <li><code>'e'</code> ends the frame</li>
+ * </ul>
+ * All values are sent in network byte order.
+ */
+public class RemoteDisplay implements BucketDisplay {
+
+    public static final int MAGIC = 0x53464452;
+    public static final int PROTOCOL_VERSION = 1;
+    public static final int NEXT_BUCKET = 'b';
+    public static final int PREPARE = 'p';
+    public static final int UPDATE = 'u';
+    public static final int END = 'e';
+    public static final int DONE = -1;
+    public static final int WAIT = -2;
+    private static final long WAIT_MILLIS = 50;
+
+    private final DataInputStream input;
+    private final DataOutputStream output;
+    private final int width;
+    private final int height;
+    private final int bucketSize;
+    private boolean failed;
+    private int buckets;
+
+    /**
+     * Creates a display on an open connection to a coordinator.
+     *
+     * @param input stream to read replies from
+     * @param output stream to send the image to
+     * @param w width the coordinator expects
+     * @param h height the coordinator expects
+     * @param bucketSize bucket size the coordinator expects
+     */
+    public RemoteDisplay(DataInputStream input, DataOutputStream output, int w, int h, int bucketSize) {
+        this.input = input;
+        this.output = output;
+        width = w;
+        height = h;
+        this.bucketSize = bucketSize;
+        failed = false;
+        buckets = 0;
+    }
+
+    /**
+     * Checks if the connection to the coordinator was lost or the frame did
+     * not match what the coordinator expected.
+     *
+     * @return <code>true</code> if the frame could not be delivered
+     */
+    public synchronized boolean hasFailed() {
+        return failed;
+    }
+
+    /**
+     * Gets the number of buckets which were handed out to this worker.
+     *
+     * @return number of buckets received from the coordinator
+     */
+    public synchronized int getNumBuckets() {
+        return buckets;
+    }
+
+    @Override
+    public synchronized void imageBegin(int w, int h, int bucketSize) {
+        if (w != width || h != height || bucketSize != this.bucketSize) {
+            UI.printError(Module.DISP, "Image layout %dx%d (buckets of %d) does not match the coordinator's %dx%d (buckets of %d)", w, h, bucketSize, width, height, this.bucketSize);
+            failed = true;
+        }
+    }
+
+    @Override
+    public int nextBucket() {
+        int bucket;
+        // buckets held by other workers may still be handed back to us, so
+        // keep asking until the frame is done
+        while ((bucket = requestBucket()) == WAIT) {
+            try {
+                Thread.sleep(WAIT_MILLIS);
+            } catch (InterruptedException e) {
+                return DONE;
+            }
+        }
+        return bucket;
+    }
+
+    private synchronized int requestBucket() {
+        if (failed) {
+            return DONE;
+        }
+        try {
+            output.writeByte(NEXT_BUCKET);
+            output.flush();
+            int bucket = input.readInt();
+            int numBuckets = ((width + bucketSize - 1) / bucketSize) * ((height + bucketSize - 1) / bucketSize);
+            if (bucket >= numBuckets) {
+                throw new IOException(String.format("invalid bucket index %d", bucket));
+            }
+            if (bucket >= 0) {
+                buckets++;
+            }
+            return bucket < 0 && bucket != WAIT ? DONE : bucket;
+        } catch (IOException e) {
+            fail(e);
+            return DONE;
+        }
+    }
+
+    @Override
+    public synchronized void imagePrepare(int x, int y, int w, int h, int id) {
+        if (failed) {
+            return;
+        }
+        try {
+            output.writeByte(PREPARE);
+            output.writeInt(x);
+            output.writeInt(y);
+            output.writeInt(w);
+            output.writeInt(h);
+            output.writeInt(id);
+            output.flush();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public void imageUpdate(int x, int y, int w, int h, Color[] data, float[] alpha) {
+        // pack the pixels outside of the lock
+        ByteBuffer buffer = ByteBuffer.allocate(17 + 16 * w * h);
+        buffer.put((byte) UPDATE);
+        buffer.putInt(x).putInt(y).putInt(w).putInt(h);
+        for (int i = 0; i < w * h; i++) {
+            float[] rgb = data[i].getRGB();
+            buffer.putFloat(rgb[0]).putFloat(rgb[1]).putFloat(rgb[2]).putFloat(alpha[i]);
+        }
+        send(buffer.array());
+    }
+
+    @Override
+    public void imageFill(int x, int y, int w, int h, Color c, float alpha) {
+        ByteBuffer buffer = ByteBuffer.allocate(17 + 16 * w * h);
+        buffer.put((byte) UPDATE);
+        buffer.putInt(x).putInt(y).putInt(w).putInt(h);
+        float[] rgb = c.getRGB();
+        for (int i = 0; i < w * h; i++) {
+            buffer.putFloat(rgb[0]).putFloat(rgb[1]).putFloat(rgb[2]).putFloat(alpha);
+        }
+        send(buffer.array());
+    }
+
+    @Override
+    public synchronized void imageEnd() {
+        if (failed) {
+            return;
+        }
+        try {
+            output.writeByte(END);
+            output.flush();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private synchronized void send(byte[] message) {
+        if (failed) {
+            return;
+        }
+        try {
+            output.write(message);
+            output.flush();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(IOException e) {
+        UI.printWarning(Module.DISP, "Lost connection to the coordinator: %s", e.getMessage());
+        failed = true;
+    }
+}
@@ -86,14 +86,16 @@ public class InstantGI implements GIEngine {
         Point3 p = state.getPoint();
         Vector3 n = state.getNormal();
         int set = (int) (state.getRandom(0, 1, 1) * numSets);
+        Ray shadowRay = null;
+        Color power = new Color();
         for (PointLight vpl : virtualLights[set]) {
-            Ray r = new Ray(p, vpl.p);
-            float dotNlD = -(r.dx * vpl.n.x + r.dy * vpl.n.y + r.dz * vpl.n.z);
-            float dotND = r.dx * n.x + r.dy * n.y + r.dz * n.z;
+            shadowRay = shadowRay == null ? new Ray(p, vpl.p) : shadowRay.set(p, vpl.p);
+            float dotNlD = -(shadowRay.dx * vpl.n.x + shadowRay.dy * vpl.n.y + shadowRay.dz * vpl.n.z);
+            float dotND = shadowRay.dx * n.x + shadowRay.dy * n.y + shadowRay.dz * n.z;
             if (dotNlD > 0 && dotND > 0) {
-                float r2 = r.getMax() * r.getMax();
-                Color opacity = state.traceShadow(r);
-                Color power = Color.blend(vpl.power, Color.BLACK, opacity);
+                float r2 = shadowRay.getMax() * shadowRay.getMax();
+                Color opacity = state.traceShadow(shadowRay);
+                Color.blend(vpl.power, Color.BLACK, opacity, power);
                 float g = (dotND * dotNlD) / r2;
                 irr.madd(0.25f * Math.min(g, b), power);
             }
@@ -1,9 +1,16 @@
 package org.sunflow.core.gi;
 
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.sunflow.PluginRegistry;
-import org.sunflow.core.GIEngine;
+import org.sunflow.core.CacheableGIEngine;
+import org.sunflow.core.CacheablePhotonStore;
 import org.sunflow.core.GlobalPhotonMapInterface;
 import org.sunflow.core.Options;
 import org.sunflow.core.Ray;
@@ -17,16 +24,23 @@ import org.sunflow.math.Vector3;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
-public class IrradianceCacheGIEngine implements GIEngine {
+public class IrradianceCacheGIEngine implements CacheableGIEngine {
 
+    // number of samples per node block
+    private static final int BLOCK_SIZE = 16;
+    // bytes per sample in cache files
+    private static final int SAMPLE_BYTES = 10 * 4;
     private int samples;
     private float tolerance;
     private float invTolerance;
     private float minSpacing;
     private float maxSpacing;
     private Node root;
-    private ReentrantReadWriteLock rwl;
     private GlobalPhotonMapInterface globalPhotonMap;
+    private final AtomicLong numLookups = new AtomicLong();
+    private final AtomicLong numHits = new AtomicLong();
+    private final AtomicLong numInserts = new AtomicLong();
+    private final AtomicLong numRetries = new AtomicLong();
 
     @Override
     public boolean init(Options options, Scene scene) {
@@ -37,7 +51,10 @@ public class IrradianceCacheGIEngine implements GIEngine {
         minSpacing = options.getFloat("gi.irr-cache.min_spacing", 0.05f);
         maxSpacing = options.getFloat("gi.irr-cache.max_spacing", 5.00f);
         root = null;
-        rwl = new ReentrantReadWriteLock();
+        numLookups.set(0);
+        numHits.set(0);
+        numInserts.set(0);
+        numRetries.set(0);
         globalPhotonMap = PluginRegistry.globalPhotonMapPlugins.createObject(options.getString("gi.irr-cache.gmap", null));
         // check settings
         samples = Math.max(0, samples);
@@ -96,13 +113,7 @@ public class IrradianceCacheGIEngine implements GIEngine {
             ShadingState temp = state.traceFinalGather(r, 0);
             return temp != null ? getGlobalRadiance(temp).copy().mul((float) Math.PI) : Color.BLACK;
         }
-        rwl.readLock().lock();
-        Color irr;
-        try {
-            irr = getIrradiance(state.getPoint(), state.getNormal());
-        } finally {
-            rwl.readLock().unlock();
-        }
+        Color irr = getIrradiance(state.getPoint(), state.getNormal());
         if (irr == null) {
             // compute new sample
             irr = Color.black();
@@ -133,41 +144,131 @@ public class IrradianceCacheGIEngine implements GIEngine {
             }
             irr.mul((float) Math.PI / samples);
             invR = samples / invR;
-            rwl.writeLock().lock();
-            try {
-                insert(state.getPoint(), state.getNormal(), invR, irr);
-            } finally {
-                rwl.writeLock().unlock();
-            }
+            insert(state.getPoint(), state.getNormal(), invR, irr);
         }
         return irr;
     }
 
+    @Override
+    public String getCacheKey() {
+        String gmap = "none";
+        if (globalPhotonMap instanceof CacheablePhotonStore) {
+            gmap = ((CacheablePhotonStore) globalPhotonMap).getCacheKey();
+        } else if (globalPhotonMap != null) {
+            gmap = globalPhotonMap.getClass().getName();
+        }
+        return String.format("irr-cache-1-%d-%s-%s-%s-%s", samples, Float.toHexString(tolerance), Float.toHexString(minSpacing), Float.toHexString(maxSpacing), gmap);
+    }
+
+    @Override
+    public int readSamples(ByteBuffer in) {
+        if (tolerance <= 0) {
+            return 0;
+        }
+        int n = in.remaining() / SAMPLE_BYTES;
+        for (int i = 0; i < n; i++) {
+            Sample s = new Sample();
+            s.pix = in.getFloat();
+            s.piy = in.getFloat();
+            s.piz = in.getFloat();
+            s.nix = in.getFloat();
+            s.niy = in.getFloat();
+            s.niz = in.getFloat();
+            s.invR0 = in.getFloat();
+            s.irr = new Color(in.getFloat(), in.getFloat(), in.getFloat());
+            s.saved = true;
+            insert(s, 1.0f / s.invR0);
+        }
+        return n;
+    }
+
+    @Override
+    public int writeSamples(DataOutput out) throws IOException {
+        return root == null ? 0 : writeSamples(root, out);
+    }
+
+    private int writeSamples(Node node, DataOutput out) throws IOException {
+        int n = 0;
+        for (SampleBlock b = node.blocks.get(); b != null; b = b.next) {
+            for (int i = Math.min(b.reserved.get(), BLOCK_SIZE) - 1; i >= 0; i--) {
+                Sample s = b.samples.get(i);
+                if (s == null || s.saved) {
+                    continue;
+                }
+                out.writeFloat(s.pix);
+                out.writeFloat(s.piy);
+                out.writeFloat(s.piz);
+                out.writeFloat(s.nix);
+                out.writeFloat(s.niy);
+                out.writeFloat(s.niz);
+                out.writeFloat(s.invR0);
+                float[] rgb = s.irr.getRGB();
+                out.writeFloat(rgb[0]);
+                out.writeFloat(rgb[1]);
+                out.writeFloat(rgb[2]);
+                s.saved = true;
+                n++;
+            }
+        }
+        for (int i = 0; i < 8; i++) {
+            Node child = node.children.get(i);
+            if (child != null) {
+                n += writeSamples(child, out);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Prints cache usage counters. Retries count the inserts which lost a
+     * race to publish a node or sample block and had to try again.
+     */
+    public void showStats() {
+        long lookups = numLookups.get();
+        if (lookups == 0) {
+            return;
+        }
+        UI.printInfo(Module.LIGHT, "Irradiance cache stats:");
+        UI.printInfo(Module.LIGHT, "  * Lookups:      %d", lookups);
+        UI.printInfo(Module.LIGHT, "  * Hits:         %d (%.2f%%)", numHits.get(), 100.0 * numHits.get() / lookups);
+        UI.printInfo(Module.LIGHT, "  * Inserts:      %d", numInserts.get());
+        UI.printInfo(Module.LIGHT, "  * Retries:      %d", numRetries.get());
+    }
+
     private void insert(Point3 p, Vector3 n, float r0, Color irr) {
         if (tolerance <= 0) {
             return;
         }
-        Node node = root;
         r0 = MathUtils.clamp(r0 * tolerance, minSpacing, maxSpacing) * invTolerance;
-        if (root.isInside(p)) {
+        insert(new Sample(p, n, r0, irr), r0);
+        numInserts.incrementAndGet();
+    }
+
+    private void insert(Sample s, float r0) {
+        Node node = root;
+        if (root.isInside(s)) {
             while (node.sideLength >= (4.0 * r0 * tolerance)) {
                 int k = 0;
-                k |= (p.x > node.center.x) ? 1 : 0;
-                k |= (p.y > node.center.y) ? 2 : 0;
-                k |= (p.z > node.center.z) ? 4 : 0;
-                if (node.children[k] == null) {
+                k |= (s.pix > node.center.x) ? 1 : 0;
+                k |= (s.piy > node.center.y) ? 2 : 0;
+                k |= (s.piz > node.center.z) ? 4 : 0;
+                Node child = node.children.get(k);
+                if (child == null) {
                     Point3 c = new Point3(node.center);
                     c.x += ((k & 1) == 0) ? -node.quadSideLength : node.quadSideLength;
                     c.y += ((k & 2) == 0) ? -node.quadSideLength : node.quadSideLength;
                     c.z += ((k & 4) == 0) ? -node.quadSideLength : node.quadSideLength;
-                    node.children[k] = new Node(c, node.halfSideLength);
+                    child = new Node(c, node.halfSideLength);
+                    if (!node.children.compareAndSet(k, null, child)) {
+                        // another thread created this child first
+                        numRetries.incrementAndGet();
+                        child = node.children.get(k);
+                    }
                 }
-                node = node.children[k];
+                node = child;
             }
         }
-        Sample s = new Sample(p, n, r0, irr);
-        s.next = node.first;
-        node.first = s;
+        node.add(s);
     }
 
     private Color getIrradiance(Point3 p, Vector3 n) {
@@ -176,69 +277,133 @@ public class IrradianceCacheGIEngine implements GIEngine {
         }
         Sample x = new Sample(p, n);
         float w = root.find(x);
-        return (x.irr == null) ? null : x.irr.mul(1.0f / w);
+        numLookups.incrementAndGet();
+        if (x.irr == null) {
+            return null;
+        }
+        numHits.incrementAndGet();
+        return x.irr.mul(1.0f / w);
     }
 
+    /**
+     * Octree node. Children are published with a CAS and samples are
+     * appended to fixed size blocks, so lookups never block and concurrent
+     * inserts only contend on the node they write to.
+     */
     private final class Node {
 
-        Node[] children;
-        Sample first;
+        final AtomicReferenceArray<Node> children;
+        final AtomicReference<SampleBlock> blocks;
         Point3 center;
         float sideLength;
         float halfSideLength;
         float quadSideLength;
 
         Node(Point3 center, float sideLength) {
-            children = new Node[8];
-            for (int i = 0; i < 8; i++) {
-                children[i] = null;
-            }
+            children = new AtomicReferenceArray<Node>(8);
+            blocks = new AtomicReference<SampleBlock>();
             this.center = new Point3(center);
             this.sideLength = sideLength;
             halfSideLength = 0.5f * sideLength;
             quadSideLength = 0.5f * halfSideLength;
-            first = null;
         }
 
-        final boolean isInside(Point3 p) {
-            return (Math.abs(p.x - center.x) < halfSideLength) && (Math.abs(p.y - center.y) < halfSideLength) && (Math.abs(p.z - center.z) < halfSideLength);
+        final void add(Sample s) {
+            while (true) {
+                SampleBlock b = blocks.get();
+                if (b != null) {
+                    int i = b.reserved.getAndIncrement();
+                    if (i < BLOCK_SIZE) {
+                        b.samples.set(i, s);
+                        return;
+                    }
+                }
+                // the block is full, start a new one holding the sample
+                SampleBlock nb = new SampleBlock(b, s);
+                if (blocks.compareAndSet(b, nb)) {
+                    return;
+                }
+                numRetries.incrementAndGet();
+            }
+        }
+
+        final boolean isInside(Sample s) {
+            return (Math.abs(s.pix - center.x) < halfSideLength) && (Math.abs(s.piy - center.y) < halfSideLength) && (Math.abs(s.piz - center.z) < halfSideLength);
+        }
+
+        /**
+         * Adds the weighted irradiance of a cached sample to the lookup
+         * sample.
+         *
+         * @return weight of the cached sample, 0 if it is not usable
+         */
+        private float contribute(Sample x, Sample s) {
+            float c2 = 1.0f - (x.nix * s.nix + x.niy * s.niy + x.niz * s.niz);
+            float d2 = (x.pix - s.pix) * (x.pix - s.pix) + (x.piy - s.piy) * (x.piy - s.piy) + (x.piz - s.piz) * (x.piz - s.piz);
+            if (c2 > tolerance * tolerance || d2 > maxSpacing * maxSpacing) {
+                return 0;
+            }
+            float invWi = (float) (Math.sqrt(d2) * s.invR0 + Math.sqrt(Math.max(c2, 0)));
+            if (invWi < tolerance || d2 < minSpacing * minSpacing) {
+                float wi = Math.min(1e10f, 1.0f / invWi);
+                if (x.irr != null) {
+                    x.irr.madd(wi, s.irr);
+                } else {
+                    x.irr = s.irr.copy().mul(wi);
+                }
+                return wi;
+            }
+            return 0;
         }
 
         final float find(Sample x) {
             float weight = 0;
-            for (Sample s = first; s != null; s = s.next) {
-                float c2 = 1.0f - (x.nix * s.nix + x.niy * s.niy + x.niz * s.niz);
-                float d2 = (x.pix - s.pix) * (x.pix - s.pix) + (x.piy - s.piy) * (x.piy - s.piy) + (x.piz - s.piz) * (x.piz - s.piz);
-                if (c2 > tolerance * tolerance || d2 > maxSpacing * maxSpacing) {
-                    continue;
-                }
-                float invWi = (float) (Math.sqrt(d2) * s.invR0 + Math.sqrt(Math.max(c2, 0)));
-                if (invWi < tolerance || d2 < minSpacing * minSpacing) {
-                    float wi = Math.min(1e10f, 1.0f / invWi);
-                    if (x.irr != null) {
-                        x.irr.madd(wi, s.irr);
-                    } else {
-                        x.irr = s.irr.copy().mul(wi);
+            for (SampleBlock b = blocks.get(); b != null; b = b.next) {
+                // newest samples first, a reserved slot may not be filled in
+                // yet in which case it is skipped
+                for (int i = Math.min(b.reserved.get(), BLOCK_SIZE) - 1; i >= 0; i--) {
+                    Sample s = b.samples.get(i);
+                    if (s == null) {
+                        continue;
                     }
-                    weight += wi;
+                    weight += contribute(x, s);
                 }
             }
             for (int i = 0; i < 8; i++) {
-                if ((children[i] != null) && (Math.abs(children[i].center.x - x.pix) <= halfSideLength) && (Math.abs(children[i].center.y - x.piy) <= halfSideLength) && (Math.abs(children[i].center.z - x.piz) <= halfSideLength)) {
-                    weight += children[i].find(x);
+                Node child = children.get(i);
+                if ((child != null) && (Math.abs(child.center.x - x.pix) <= halfSideLength) && (Math.abs(child.center.y - x.piy) <= halfSideLength) && (Math.abs(child.center.z - x.piz) <= halfSideLength)) {
+                    weight += child.find(x);
                 }
             }
             return weight;
         }
     }
 
+    private static final class SampleBlock {
+
+        final AtomicReferenceArray<Sample> samples;
+        final AtomicInteger reserved;
+        final SampleBlock next;
+
+        SampleBlock(SampleBlock next, Sample first) {
+            samples = new AtomicReferenceArray<Sample>(BLOCK_SIZE);
+            samples.set(0, first);
+            reserved = new AtomicInteger(1);
+            this.next = next;
+        }
+    }
+
     private static final class Sample {
 
         float pix, piy, piz;
         float nix, niy, niz;
         float invR0;
         Color irr;
-        Sample next;
+        // true once the sample is in the illumination cache
+        boolean saved;
+
+        Sample() {
+        }
 
         Sample(Point3 p, Vector3 n) {
             pix = p.x;
@@ -249,7 +414,6 @@ public class IrradianceCacheGIEngine implements GIEngine {
             niy = ni.y;
             niz = ni.z;
             irr = null;
-            next = null;
         }
 
         Sample(Point3 p, Vector3 n, float r0, Color irr) {
@@ -262,7 +426,6 @@ public class IrradianceCacheGIEngine implements GIEngine {
             niz = ni.z;
             invR0 = 1.0f / r0;
             this.irr = irr;
-            next = null;
         }
     }
 }
\ No newline at end of file
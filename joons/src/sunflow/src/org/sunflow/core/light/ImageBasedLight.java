@@ -15,6 +15,7 @@ import org.sunflow.core.TextureCache;
 import org.sunflow.image.Bitmap;
 import org.sunflow.image.Color;
 import org.sunflow.math.BoundingBox;
+import org.sunflow.math.MathUtils;
 import org.sunflow.math.Matrix4;
 import org.sunflow.math.OrthoNormalBasis;
 import org.sunflow.math.Point3;
@@ -28,12 +29,23 @@ public class ImageBasedLight implements PrimitiveList, LightSource, Shader {
     private int numSamples;
     private int numLowSamples;
     private float jacobian;
-    private float[] colHistogram;
-    private float[][] imageHistogram;
+    // piecewise constant distribution over the pixels of the map, sampled
+    // with alias tables: one over the columns and one per column over its
+    // rows
+    private int width;
+    private int height;
+    private float[] pixelPdf;
+    private float[] colProb;
+    private int[] colAlias;
+    private float[] colPdf;
+    private float[] rowProb;
+    private int[] rowAlias;
     private Vector3[] samples;
     private Vector3[] lowSamples;
     private Color[] colors;
     private Color[] lowColors;
+    private float[] pdfs;
+    private float[] lowPdfs;
 
     public ImageBasedLight() {
         texture = null;
@@ -68,85 +80,192 @@ public class ImageBasedLight implements PrimitiveList, LightSource, Shader {
             return false;
         }
 
-        // rebuild histograms if this is a new texture
+        // rebuild the distribution if this is a new texture
         if (filename != null) {
-            imageHistogram = new float[b.getWidth()][b.getHeight()];
-            colHistogram = new float[b.getWidth()];
-            float du = 1.0f / b.getWidth();
-            float dv = 1.0f / b.getHeight();
-            for (int x = 0; x < b.getWidth(); x++) {
-                for (int y = 0; y < b.getHeight(); y++) {
+            width = b.getWidth();
+            height = b.getHeight();
+            pixelPdf = new float[width * height];
+            colPdf = new float[width];
+            float du = 1.0f / width;
+            float dv = 1.0f / height;
+            float total = 0;
+            for (int x = 0; x < width; x++) {
+                for (int y = 0; y < height; y++) {
                     float u = (x + 0.5f) * du;
                     float v = (y + 0.5f) * dv;
                     Color c = texture.getPixel(u, v);
-                    imageHistogram[x][y] = c.getLuminance() * (float) Math.sin(Math.PI * v);
-                    if (y > 0) {
-                        imageHistogram[x][y] += imageHistogram[x][y - 1];
-                    }
+                    pixelPdf[x * height + y] = c.getLuminance() * (float) Math.sin(Math.PI * v);
+                    colPdf[x] += pixelPdf[x * height + y];
                 }
-                colHistogram[x] = imageHistogram[x][b.getHeight() - 1];
-                if (x > 0) {
-                    colHistogram[x] += colHistogram[x - 1];
+                total += colPdf[x];
+            }
+            rowProb = new float[width * height];
+            rowAlias = new int[width * height];
+            for (int x = 0; x < width; x++) {
+                buildAliasTable(pixelPdf, x * height, height, rowProb, rowAlias);
+            }
+            colProb = new float[width];
+            colAlias = new int[width];
+            buildAliasTable(colPdf, 0, width, colProb, colAlias);
+            // turn the weights into probabilities
+            if (total > 0) {
+                for (int i = 0; i < pixelPdf.length; i++) {
+                    pixelPdf[i] /= total;
                 }
-                for (int y = 0; y < b.getHeight(); y++) {
-                    imageHistogram[x][y] /= imageHistogram[x][b.getHeight() - 1];
+                for (int x = 0; x < width; x++) {
+                    colPdf[x] /= total;
                 }
             }
-            for (int x = 0; x < b.getWidth(); x++) {
-                colHistogram[x] /= colHistogram[b.getWidth() - 1];
-            }
-            jacobian = (float) (2 * Math.PI * Math.PI) / (b.getWidth() * b.getHeight());
+            jacobian = (float) (2 * Math.PI * Math.PI) / (width * height);
         }
         // take fixed samples
         if (pl.getBoolean("fixed", samples != null)) {
             // high density samples
             samples = new Vector3[numSamples];
             colors = new Color[numSamples];
-            generateFixedSamples(samples, colors);
+            pdfs = new float[numSamples];
+            generateFixedSamples(samples, colors, pdfs);
             // low density samples
             lowSamples = new Vector3[numLowSamples];
             lowColors = new Color[numLowSamples];
-            generateFixedSamples(lowSamples, lowColors);
+            lowPdfs = new float[numLowSamples];
+            generateFixedSamples(lowSamples, lowColors, lowPdfs);
         } else {
             // turn off
             samples = lowSamples = null;
             colors = lowColors = null;
+            pdfs = lowPdfs = null;
         }
         return true;
     }
 
-    private void generateFixedSamples(Vector3[] samples, Color[] colors) {
-        for (int i = 0; i < samples.length; i++) {
-            double randX = (double) i / (double) samples.length;
-            double randY = QMC.halton(0, i);
-            int x = 0;
-            while (randX >= colHistogram[x] && x < colHistogram.length - 1) {
-                x++;
+    /**
+     * Builds an alias table for the specified weights, so that a bin can be
+     * picked in constant time. Bin <code>i</code> is kept with probability
+     * <code>prob[i]</code> and replaced by <code>alias[i]</code> otherwise.
+     * Bins with all zero weights are picked uniformly.
+     */
+    private static void buildAliasTable(float[] weights, int offset, int n, float[] prob, int[] alias) {
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += weights[offset + i];
+        }
+        // bins are split into those below and above the average weight,
+        // every small bin is then topped up with part of a large one
+        double[] scaled = new double[n];
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int numSmall = 0;
+        int numLarge = 0;
+        for (int i = 0; i < n; i++) {
+            scaled[i] = sum > 0 ? weights[offset + i] * n / sum : 1;
+            if (scaled[i] < 1) {
+                small[numSmall++] = i;
+            } else {
+                large[numLarge++] = i;
             }
-            float[] rowHistogram = imageHistogram[x];
-            int y = 0;
-            while (randY >= rowHistogram[y] && y < rowHistogram.length - 1) {
-                y++;
+        }
+        while (numSmall > 0 && numLarge > 0) {
+            int s = small[--numSmall];
+            int l = large[--numLarge];
+            prob[offset + s] = (float) scaled[s];
+            alias[offset + s] = l;
+            scaled[l] -= 1 - scaled[s];
+            if (scaled[l] < 1) {
+                small[numSmall++] = l;
+            } else {
+                large[numLarge++] = l;
             }
-            // sample from (x, y)
-            float u = (float) ((x == 0) ? (randX / colHistogram[0]) : ((randX - colHistogram[x - 1]) / (colHistogram[x] - colHistogram[x - 1])));
-            float v = (float) ((y == 0) ? (randY / rowHistogram[0]) : ((randY - rowHistogram[y - 1]) / (rowHistogram[y] - rowHistogram[y - 1])));
+        }
+        // whatever is left over only differs from the average by round off
+        while (numLarge > 0) {
+            int l = large[--numLarge];
+            prob[offset + l] = 1;
+            alias[offset + l] = l;
+        }
+        while (numSmall > 0) {
+            int s = small[--numSmall];
+            prob[offset + s] = 1;
+            alias[offset + s] = s;
+        }
+    }
 
-            float px = ((x == 0) ? colHistogram[0] : (colHistogram[x] - colHistogram[x - 1]));
-            float py = ((y == 0) ? rowHistogram[0] : (rowHistogram[y] - rowHistogram[y - 1]));
+    /**
+     * Picks a bin from an alias table. The position of the random number
+     * within the picked bin is stored in <code>frac[0]</code> so it can be
+     * reused as a uniform random number.
+     */
+    private static int sampleAliasTable(double rand, int offset, int n, float[] prob, int[] alias, double[] frac) {
+        double x = rand * n;
+        int i = Math.min((int) x, n - 1);
+        double f = Math.min(x - i, 1);
+        float p = prob[offset + i];
+        if (f < p) {
+            frac[0] = f / p;
+            return i;
+        }
+        frac[0] = (f - p) / (1 - p);
+        return alias[offset + i];
+    }
 
-            float su = (x + u) / colHistogram.length;
-            float sv = (y + v) / rowHistogram.length;
+    /**
+     * Picks a direction on the map.
+     *
+     * @param randX random number picking the column
+     * @param randY random number picking the row
+     * @param dir receives the direction, in world space
+     * @param uv receives the texture coordinates of the direction
+     * @return density of the direction with respect to solid angle, zero if
+     *         the map is black
+     */
+    private float sample(double randX, double randY, Vector3 dir, float[] uv) {
+        double[] frac = new double[1];
+        int x = sampleAliasTable(randX, 0, width, colProb, colAlias, frac);
+        float su = (float) ((x + frac[0]) / width);
+        int y = sampleAliasTable(randY, x * height, height, rowProb, rowAlias, frac);
+        float sv = (float) ((y + frac[0]) / height);
+        uv[0] = su;
+        uv[1] = sv;
+        dir.set(getDirection(su, sv));
+        basis.transform(dir);
+        float sin = (float) Math.sin(sv * Math.PI);
+        return sin > 0 ? pixelPdf[x * height + y] / (sin * jacobian) : 0;
+    }
 
-            float invP = (float) Math.sin(sv * Math.PI) * jacobian / (numSamples * px * py);
-            samples[i] = getDirection(su, sv);
-            basis.transform(samples[i]);
-            colors[i] = texture.getPixel(su, sv).mul(invP);
+    /**
+     * Computes the density, with respect to solid angle, with which the
+     * specified direction is sampled.
+     *
+     * @param dir direction, in world space
+     * @return sampling density
+     */
+    public float getPdf(Vector3 dir) {
+        Vector3 d = basis.untransform(dir, new Vector3());
+        float u = getU(d);
+        float v = getV(d);
+        float sin = (float) Math.sin(v * Math.PI);
+        if (sin <= 0) {
+            return 0;
+        }
+        int x = MathUtils.clamp((int) (u * width), 0, width - 1);
+        int y = MathUtils.clamp((int) (v * height), 0, height - 1);
+        return pixelPdf[x * height + y] / (sin * jacobian);
+    }
+
+    private void generateFixedSamples(Vector3[] samples, Color[] colors, float[] pdfs) {
+        float[] uv = new float[2];
+        for (int i = 0; i < samples.length; i++) {
+            double randX = (double) i / (double) samples.length;
+            double randY = QMC.halton(0, i);
+            samples[i] = new Vector3();
+            float pdf = samples.length * sample(randX, randY, samples[i], uv);
+            colors[i] = pdf > 0 ? texture.getPixel(uv[0], uv[1]).mul(1 / pdf) : Color.black();
+            pdfs[i] = pdf;
         }
     }
 
     public void prepareShadingState(ShadingState state) {
-        if (state.includeLights()) {
+        if (state.includeLights() || state.getGlossyPdf() > 0) {
             state.setShader(this);
         }
     }
@@ -180,67 +299,46 @@ public class ImageBasedLight implements PrimitiveList, LightSource, Shader {
     public void getSamples(ShadingState state) {
         if (samples == null) {
             int n = state.getDiffuseDepth() > 0 ? 1 : numSamples;
+            float[] uv = new float[2];
             for (int i = 0; i < n; i++) {
                 // random offset on unit square, we use the infinite version of
                 // getRandom because the light sampling is adaptive
                 double randX = state.getRandom(i, 0, n);
                 double randY = state.getRandom(i, 1, n);
-                int x = 0;
-                while (randX >= colHistogram[x] && x < colHistogram.length - 1) {
-                    x++;
-                }
-                float[] rowHistogram = imageHistogram[x];
-                int y = 0;
-                while (randY >= rowHistogram[y] && y < rowHistogram.length - 1) {
-                    y++;
-                }
-                // sample from (x, y)
-                float u = (float) ((x == 0) ? (randX / colHistogram[0]) : ((randX - colHistogram[x - 1]) / (colHistogram[x] - colHistogram[x - 1])));
-                float v = (float) ((y == 0) ? (randY / rowHistogram[0]) : ((randY - rowHistogram[y - 1]) / (rowHistogram[y] - rowHistogram[y - 1])));
-
-                float px = ((x == 0) ? colHistogram[0] : (colHistogram[x] - colHistogram[x - 1]));
-                float py = ((y == 0) ? rowHistogram[0] : (rowHistogram[y] - rowHistogram[y - 1]));
-
-                float su = (x + u) / colHistogram.length;
-                float sv = (y + v) / rowHistogram.length;
-                float invP = (float) Math.sin(sv * Math.PI) * jacobian / (n * px * py);
-                Vector3 dir = getDirection(su, sv);
-                basis.transform(dir);
-                if (Vector3.dot(dir, state.getGeoNormal()) > 0) {
+                Vector3 dir = new Vector3();
+                float pdf = n * sample(randX, randY, dir, uv);
+                if (pdf > 0 && Vector3.dot(dir, state.getGeoNormal()) > 0) {
                     LightSample dest = new LightSample();
                     dest.setShadowRay(new Ray(state.getPoint(), dir));
                     dest.getShadowRay().setMax(Float.MAX_VALUE);
-                    Color radiance = texture.getPixel(su, sv);
+                    Color radiance = texture.getPixel(uv[0], uv[1]);
                     dest.setRadiance(radiance, radiance);
-                    dest.getDiffuseRadiance().mul(invP);
-                    dest.getSpecularRadiance().mul(invP);
+                    dest.getDiffuseRadiance().mul(1 / pdf);
+                    dest.getSpecularRadiance().mul(1 / pdf);
+                    dest.setPdf(pdf);
                     dest.traceShadow(state);
                     state.addSample(dest);
                 }
             }
         } else {
             if (state.getDiffuseDepth() > 0) {
-                for (int i = 0; i < numLowSamples; i++) {
-                    if (Vector3.dot(lowSamples[i], state.getGeoNormal()) > 0 && Vector3.dot(lowSamples[i], state.getNormal()) > 0) {
-                        LightSample dest = new LightSample();
-                        dest.setShadowRay(new Ray(state.getPoint(), lowSamples[i]));
-                        dest.getShadowRay().setMax(Float.MAX_VALUE);
-                        dest.setRadiance(lowColors[i], lowColors[i]);
-                        dest.traceShadow(state);
-                        state.addSample(dest);
-                    }
-                }
+                addFixedSamples(state, lowSamples, lowColors, lowPdfs);
             } else {
-                for (int i = 0; i < numSamples; i++) {
-                    if (Vector3.dot(samples[i], state.getGeoNormal()) > 0 && Vector3.dot(samples[i], state.getNormal()) > 0) {
-                        LightSample dest = new LightSample();
-                        dest.setShadowRay(new Ray(state.getPoint(), samples[i]));
-                        dest.getShadowRay().setMax(Float.MAX_VALUE);
-                        dest.setRadiance(colors[i], colors[i]);
-                        dest.traceShadow(state);
-                        state.addSample(dest);
-                    }
-                }
+                addFixedSamples(state, samples, colors, pdfs);
+            }
+        }
+    }
+
+    private void addFixedSamples(ShadingState state, Vector3[] samples, Color[] colors, float[] pdfs) {
+        for (int i = 0; i < samples.length; i++) {
+            if (Vector3.dot(samples[i], state.getGeoNormal()) > 0 && Vector3.dot(samples[i], state.getNormal()) > 0) {
+                LightSample dest = new LightSample();
+                dest.setShadowRay(new Ray(state.getPoint(), samples[i]));
+                dest.getShadowRay().setMax(Float.MAX_VALUE);
+                dest.setRadiance(colors[i], colors[i]);
+                dest.setPdf(pdfs[i]);
+                dest.traceShadow(state);
+                state.addSample(dest);
             }
         }
     }
@@ -249,19 +347,36 @@ public class ImageBasedLight implements PrimitiveList, LightSource, Shader {
     }
 
     public Color getRadiance(ShadingState state) {
-        // lookup texture based on ray direction
-        return state.includeLights() ? getColor(basis.untransform(state.getRay().getDirection(), new Vector3())) : Color.BLACK;
+        if (state.includeLights()) {
+            // lookup texture based on ray direction
+            return getColor(basis.untransform(state.getRay().getDirection(), new Vector3()));
+        }
+        float glossyPdf = state.getGlossyPdf();
+        if (glossyPdf > 0) {
+            // glossy ray, weighted against the light samples of the surface
+            // it was traced from
+            Vector3 dir = state.getRay().getDirection();
+            // glossy rays are never traced after a diffuse bounce, so the
+            // full number of light samples was taken
+            float lightPdf = numSamples * getPdf(dir);
+            return getColor(basis.untransform(dir, new Vector3())).mul(MathUtils.powerHeuristic(glossyPdf, lightPdf));
+        }
+        return Color.BLACK;
     }
 
     private Color getColor(Vector3 dir) {
-        float u, v;
         // assume lon/lat format
-        double phi = 0, theta = 0;
-        phi = Math.acos(dir.y);
-        theta = Math.atan2(dir.z, dir.x);
-        u = (float) (0.5 - 0.5 * theta / Math.PI);
-        v = (float) (phi / Math.PI);
-        return texture.getPixel(u, v);
+        return texture.getPixel(getU(dir), getV(dir));
+    }
+
+    private static float getU(Vector3 dir) {
+        double theta = Math.atan2(dir.z, dir.x);
+        return (float) (0.5 - 0.5 * theta / Math.PI);
+    }
+
+    private static float getV(Vector3 dir) {
+        double phi = Math.acos(MathUtils.clamp(dir.y, -1.0f, 1.0f));
+        return (float) (phi / Math.PI);
     }
 
     private Vector3 getDirection(float u, float v) {
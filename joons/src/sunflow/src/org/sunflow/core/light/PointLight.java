@@ -1,17 +1,18 @@
 package org.sunflow.core.light;
 
 import org.sunflow.SunflowAPI;
+import org.sunflow.core.BoundedLightSource;
 import org.sunflow.core.Instance;
 import org.sunflow.core.LightSample;
-import org.sunflow.core.LightSource;
 import org.sunflow.core.ParameterList;
 import org.sunflow.core.Ray;
 import org.sunflow.core.ShadingState;
 import org.sunflow.image.Color;
+import org.sunflow.math.BoundingBox;
 import org.sunflow.math.Point3;
 import org.sunflow.math.Vector3;
 
-public class PointLight implements LightSource {
+public class PointLight implements BoundedLightSource {
 
     private Point3 lightPoint;
     private Color power;
@@ -63,4 +64,8 @@ public class PointLight implements LightSource {
     public Instance createInstance() {
         return null;
     }
+
+    public BoundingBox getBounds() {
+        return new BoundingBox(lightPoint);
+    }
 }
\ No newline at end of file
@@ -1,22 +1,23 @@
 package org.sunflow.core.light;
 
 import org.sunflow.SunflowAPI;
+import org.sunflow.core.BoundedLightSource;
 import org.sunflow.core.Instance;
 import org.sunflow.core.LightSample;
-import org.sunflow.core.LightSource;
 import org.sunflow.core.ParameterList;
 import org.sunflow.core.Ray;
 import org.sunflow.core.Shader;
 import org.sunflow.core.ShadingState;
 import org.sunflow.core.primitive.Sphere;
 import org.sunflow.image.Color;
+import org.sunflow.math.BoundingBox;
 import org.sunflow.math.Matrix4;
 import org.sunflow.math.OrthoNormalBasis;
 import org.sunflow.math.Point3;
 import org.sunflow.math.Solvers;
 import org.sunflow.math.Vector3;
 
-public class SphereLight implements LightSource, Shader {
+public class SphereLight implements BoundedLightSource, Shader {
 
     private Color radiance;
     private int numSamples;
@@ -156,4 +157,11 @@ public class SphereLight implements LightSource, Shader {
     public Instance createInstance() {
         return Instance.createTemporary(new Sphere(), Matrix4.translation(center.x, center.y, center.z).multiply(Matrix4.scale(radius)), this);
     }
+
+    public BoundingBox getBounds() {
+        BoundingBox bounds = new BoundingBox(center);
+        bounds.include(center.x - radius, center.y - radius, center.z - radius);
+        bounds.include(center.x + radius, center.y + radius, center.z + radius);
+        return bounds;
+    }
 }
\ No newline at end of file
@@ -1,21 +1,22 @@
 package org.sunflow.core.light;
 
 import org.sunflow.SunflowAPI;
+import org.sunflow.core.BoundedLightSource;
 import org.sunflow.core.Instance;
 import org.sunflow.core.LightSample;
-import org.sunflow.core.LightSource;
 import org.sunflow.core.ParameterList;
 import org.sunflow.core.Ray;
 import org.sunflow.core.Shader;
 import org.sunflow.core.ShadingState;
 import org.sunflow.core.primitive.TriangleMesh;
 import org.sunflow.image.Color;
+import org.sunflow.math.BoundingBox;
 import org.sunflow.math.MathUtils;
 import org.sunflow.math.OrthoNormalBasis;
 import org.sunflow.math.Point3;
 import org.sunflow.math.Vector3;
 
-public class TriangleMeshLight extends TriangleMesh implements Shader, LightSource {
+public class TriangleMeshLight extends TriangleMesh implements Shader, BoundedLightSource {
 
     private Color radiance;
     private int numSamples;
@@ -37,10 +38,12 @@ public class TriangleMeshLight extends TriangleMesh implements Shader, LightSour
             areas = new float[getNumPrimitives()];
             ngs = new Vector3[getNumPrimitives()];
             totalArea = 0;
-            for (int tri3 = 0, i = 0; tri3 < triangles.length; tri3 += 3, i++) {
-                int a = triangles[tri3 + 0];
-                int b = triangles[tri3 + 1];
-                int c = triangles[tri3 + 2];
+            // go through the accessors, the heap arrays are released when
+            // the mesh uses compact storage
+            for (int tri3 = 0, i = 0; i < areas.length; tri3 += 3, i++) {
+                int a = getIndex(tri3 + 0);
+                int b = getIndex(tri3 + 1);
+                int c = getIndex(tri3 + 2);
                 Point3 v0p = getPoint(a);
                 Point3 v1p = getPoint(b);
                 Point3 v2p = getPoint(c);
@@ -56,23 +59,26 @@ public class TriangleMeshLight extends TriangleMesh implements Shader, LightSour
     }
 
     private final boolean intersectTriangleKensler(int tri3, Ray r) {
-        int a = 3 * triangles[tri3 + 0];
-        int b = 3 * triangles[tri3 + 1];
-        int c = 3 * triangles[tri3 + 2];
-        float edge0x = points[b + 0] - points[a + 0];
-        float edge0y = points[b + 1] - points[a + 1];
-        float edge0z = points[b + 2] - points[a + 2];
-        float edge1x = points[a + 0] - points[c + 0];
-        float edge1y = points[a + 1] - points[c + 1];
-        float edge1z = points[a + 2] - points[c + 2];
+        int a = 3 * getIndex(tri3 + 0);
+        int b = 3 * getIndex(tri3 + 1);
+        int c = 3 * getIndex(tri3 + 2);
+        float ax = getCoord(a + 0);
+        float ay = getCoord(a + 1);
+        float az = getCoord(a + 2);
+        float edge0x = getCoord(b + 0) - ax;
+        float edge0y = getCoord(b + 1) - ay;
+        float edge0z = getCoord(b + 2) - az;
+        float edge1x = ax - getCoord(c + 0);
+        float edge1y = ay - getCoord(c + 1);
+        float edge1z = az - getCoord(c + 2);
         float nx = edge0y * edge1z - edge0z * edge1y;
         float ny = edge0z * edge1x - edge0x * edge1z;
         float nz = edge0x * edge1y - edge0y * edge1x;
         float v = r.dot(nx, ny, nz);
         float iv = 1 / v;
-        float edge2x = points[a + 0] - r.ox;
-        float edge2y = points[a + 1] - r.oy;
-        float edge2z = points[a + 2] - r.oz;
+        float edge2x = ax - r.ox;
+        float edge2y = ay - r.oy;
+        float edge2z = az - r.oz;
         float va = nx * edge2x + ny * edge2y + nz * edge2z;
         float t = iv * va;
         if (t <= 0) {
@@ -137,12 +143,12 @@ public class TriangleMeshLight extends TriangleMesh implements Shader, LightSour
         float v = (float) (1 - s);
         float w = 1 - u - v;
         int tri3 = j * 3;
-        int index0 = 3 * triangles[tri3 + 0];
-        int index1 = 3 * triangles[tri3 + 1];
-        int index2 = 3 * triangles[tri3 + 2];
-        p.x = w * points[index0 + 0] + u * points[index1 + 0] + v * points[index2 + 0];
-        p.y = w * points[index0 + 1] + u * points[index1 + 1] + v * points[index2 + 1];
-        p.z = w * points[index0 + 2] + u * points[index1 + 2] + v * points[index2 + 2];
+        int index0 = 3 * getIndex(tri3 + 0);
+        int index1 = 3 * getIndex(tri3 + 1);
+        int index2 = 3 * getIndex(tri3 + 2);
+        p.x = w * getCoord(index0 + 0) + u * getCoord(index1 + 0) + v * getCoord(index2 + 0);
+        p.y = w * getCoord(index0 + 1) + u * getCoord(index1 + 1) + v * getCoord(index2 + 1);
+        p.z = w * getCoord(index0 + 2) + u * getCoord(index1 + 2) + v * getCoord(index2 + 2);
         p.x += 0.001f * ngs[j].x;
         p.y += 0.001f * ngs[j].y;
         p.z += 0.001f * ngs[j].z;
@@ -163,15 +169,30 @@ public class TriangleMeshLight extends TriangleMesh implements Shader, LightSour
         }
         Vector3 n = state.getNormal();
         Point3 p = state.getPoint();
-        for (int tri3 = 0, i = 0; tri3 < triangles.length; tri3 += 3, i++) {
+        // temporaries shared by all triangles
+        Point3 vp = new Point3();
+        Vector3 p0 = new Vector3();
+        Vector3 p1 = new Vector3();
+        Vector3 p2 = new Vector3();
+        Vector3 h = new Vector3();
+        Vector3 n0 = new Vector3();
+        Vector3 n1 = new Vector3();
+        Vector3 n2 = new Vector3();
+        Vector3 nd = new Vector3();
+        Vector3 result = new Vector3();
+        Ray shadowRay = null;
+        for (int tri3 = 0, i = 0; i < areas.length; tri3 += 3, i++) {
             // vector towards each vertex of the light source
-            Vector3 p0 = Point3.sub(getPoint(triangles[tri3 + 0]), p, new Vector3());
+            getPoint(i, 0, vp);
+            Point3.sub(vp, p, p0);
             // cull triangle if it is facing the wrong way
             if (Vector3.dot(p0, ngs[i]) >= 0) {
                 continue;
             }
-            Vector3 p1 = Point3.sub(getPoint(triangles[tri3 + 1]), p, new Vector3());
-            Vector3 p2 = Point3.sub(getPoint(triangles[tri3 + 2]), p, new Vector3());
+            getPoint(i, 1, vp);
+            Point3.sub(vp, p, p1);
+            getPoint(i, 2, vp);
+            Point3.sub(vp, p, p2);
             // if all three vertices are below the hemisphere, stop
             if (Vector3.dot(p0, n) <= 0 && Vector3.dot(p1, n) <= 0 && Vector3.dot(p2, n) <= 0) {
                 continue;
@@ -180,7 +201,6 @@ public class TriangleMeshLight extends TriangleMesh implements Shader, LightSour
             p1.normalize();
             p2.normalize();
             float dot = Vector3.dot(p2, p0);
-            Vector3 h = new Vector3();
             h.x = p2.x - dot * p0.x;
             h.y = p2.y - dot * p0.y;
             h.z = p2.z - dot * p0.z;
@@ -190,21 +210,21 @@ public class TriangleMeshLight extends TriangleMesh implements Shader, LightSour
             } else {
                 continue;
             }
-            Vector3 n0 = Vector3.cross(p0, p1, new Vector3());
+            Vector3.cross(p0, p1, n0);
             float len0 = n0.length();
             if (len0 > 1e-6f) {
                 n0.div(len0);
             } else {
                 continue;
             }
-            Vector3 n1 = Vector3.cross(p1, p2, new Vector3());
+            Vector3.cross(p1, p2, n1);
             float len1 = n1.length();
             if (len1 > 1e-6f) {
                 n1.div(len1);
             } else {
                 continue;
             }
-            Vector3 n2 = Vector3.cross(p2, p0, new Vector3());
+            Vector3.cross(p2, p0, n2);
             float len2 = n2.length();
             if (len2 > 1e-6f) {
                 n2.div(len2);
@@ -257,13 +277,11 @@ public class TriangleMeshLight extends TriangleMesh implements Shader, LightSour
                 if (z1 < 0.0f) {
                     z1 = 0.0f;
                 }
-                Vector3 nd = new Vector3();
                 nd.x = ncx - dot * p1.x;
                 nd.y = ncy - dot * p1.y;
                 nd.z = ncz - dot * p1.z;
                 nd.normalize();
                 float sqrtz1 = (float) Math.sqrt(z1);
-                Vector3 result = new Vector3();
                 result.x = z * p1.x + sqrtz1 * nd.x;
                 result.y = z * p1.y + sqrtz1 * nd.y;
                 result.z = z * p1.z + sqrtz1 * nd.z;
@@ -272,12 +290,15 @@ public class TriangleMeshLight extends TriangleMesh implements Shader, LightSour
                 // the right direction
                 if (Vector3.dot(result, n) > 0 && Vector3.dot(result, state.getGeoNormal()) > 0 && Vector3.dot(result, ngs[i]) < 0) {
                     // compute intersection with triangle (if any)
-                    Ray shadowRay = new Ray(state.getPoint(), result);
+                    // rays which miss the triangle are recycled for the
+                    // next sample
+                    shadowRay = shadowRay == null ? new Ray(state.getPoint(), result) : shadowRay.set(state.getPoint(), result);
                     if (!intersectTriangleKensler(tri3, shadowRay)) {
                         continue;
                     }
                     LightSample dest = new LightSample();
                     dest.setShadowRay(shadowRay);
+                    shadowRay = null;
                     // prepare sample
                     dest.setRadiance(c, c);
                     dest.traceShadow(state);
@@ -286,4 +307,8 @@ public class TriangleMeshLight extends TriangleMesh implements Shader, LightSour
             }
         }
     }
+
+    public BoundingBox getBounds() {
+        return getWorldBounds(null);
+    }
 }
\ No newline at end of file
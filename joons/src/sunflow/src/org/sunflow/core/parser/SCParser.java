@@ -892,6 +892,9 @@ public class SCParser implements SceneParser {
             if (p.peekNextToken("face_shaders")) {
                 api.parameter("faceshaders", parseIntArray(nt));
             }
+            if (p.peekNextToken("storage")) {
+                api.parameter("storage", p.getNextToken());
+            }
             api.geometry(name, TRIANGLE_MESH);
         } else if (type.equals("hair")) {
             UI.printInfo(Module.API, "Reading hair curves: %s ... ", name);
@@ -990,6 +993,9 @@ public class SCParser implements SceneParser {
             if (p.peekNextToken("smooth_normals")) {
                 api.parameter("smooth_normals", p.getNextBoolean());
             }
+            if (p.peekNextToken("storage")) {
+                api.parameter("storage", p.getNextToken());
+            }
             api.geometry(name, "file_mesh");
         } else if (type.equals("bezier-mesh")) {
             UI.printInfo(Module.API, "Reading bezier mesh: %s ... ", name);
@@ -1236,6 +1242,9 @@ public class SCParser implements SceneParser {
             p.checkNextToken(TRIANGLES);
             int nt = p.getNextInt();
             api.parameter(TRIANGLES, parseIntArray(nt * 3));
+            if (p.peekNextToken("storage")) {
+                api.parameter("storage", p.getNextToken());
+            }
             api.light(name, TRIANGLE_MESH);
         } else if (p.peekNextToken("sunsky")) {
             p.checkNextToken("up");
@@ -1,7 +1,11 @@
 package org.sunflow.core.photonmap;
 
-import java.util.ArrayList;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
 
+import org.sunflow.core.CacheablePhotonStore;
 import org.sunflow.core.CausticPhotonMapInterface;
 import org.sunflow.core.LightSample;
 import org.sunflow.core.Options;
@@ -15,20 +19,20 @@ import org.sunflow.system.Timer;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
-public final class CausticPhotonMap implements CausticPhotonMapInterface {
+public final class CausticPhotonMap implements CausticPhotonMapInterface, CacheablePhotonStore {
 
-    private ArrayList<Photon> photonList;
-    private Photon[] photons;
+    private PhotonBuffer.PerThread photonBuffers;
+    private PhotonBuffer photons;
     private int storedPhotons;
     private int halfStoredPhotons;
     private int log2n;
     private int gatherNum;
     private float gatherRadius;
-    private BoundingBox bounds;
     private float filterValue;
     private float maxPower;
     private float maxRadius;
     private int numEmit;
+    private int threads;
 
     @Override
     public void prepare(Options options, BoundingBox sceneBounds) {
@@ -37,12 +41,14 @@ public final class CausticPhotonMap implements CausticPhotonMapInterface {
         gatherNum = options.getInt("caustics.gather", 50);
         gatherRadius = options.getFloat("caustics.radius", 0.5f);
         filterValue = options.getFloat("caustics.filter", 1.1f);
+        threads = options.getInt("threads", 0);
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
         // init
-        bounds = new BoundingBox();
         maxPower = 0;
         maxRadius = 0;
-        photonList = new ArrayList<Photon>();
-        photonList.add(null);
+        photonBuffers = new PhotonBuffer.PerThread(false);
         photons = null;
         storedPhotons = halfStoredPhotons = 0;
     }
@@ -55,7 +61,7 @@ public final class CausticPhotonMap implements CausticPhotonMapInterface {
         int cameFrom;
         while (true) {
             while (i < halfStoredPhotons) {
-                float dist1d = photons[i].getDist1(np.px, np.py, np.pz);
+                float dist1d = photons.getDist1(i, np.px, np.py, np.pz);
                 dist1d2[level] = dist1d * dist1d;
                 i += i;
                 if (dist1d > 0.0f) {
@@ -63,7 +69,7 @@ public final class CausticPhotonMap implements CausticPhotonMapInterface {
                 }
                 chosen[level++] = i;
             }
-            np.checkAddNearest(photons[i]);
+            np.checkAddNearest(photons, i);
             do {
                 cameFrom = i;
                 i >>= 1;
@@ -72,139 +78,35 @@ public final class CausticPhotonMap implements CausticPhotonMapInterface {
                     return;
                 }
             } while ((dist1d2[level] >= np.dist2[0]) || (cameFrom != chosen[level]));
-            np.checkAddNearest(photons[i]);
+            np.checkAddNearest(photons, i);
             i = chosen[level++] ^ 1;
         }
     }
 
     private void balance() {
+        photons = photonBuffers.merge();
+        photonBuffers = null;
+        storedPhotons = photons.size;
+        maxPower = photons.maxPower;
         if (storedPhotons == 0) {
             return;
         }
-        photons = photonList.toArray(new Photon[photonList.size()]);
-        photonList = null;
-        Photon[] temp = new Photon[storedPhotons + 1];
-        balanceSegment(temp, 1, 1, storedPhotons);
-        photons = temp;
-        halfStoredPhotons = storedPhotons / 2;
-        log2n = (int) Math.ceil(Math.log(storedPhotons) / Math.log(2.0));
-    }
-
-    private void balanceSegment(Photon[] temp, int index, int start, int end) {
-        int median = 1;
-        while ((4 * median) <= (end - start + 1)) {
-            median += median;
-        }
-        if ((3 * median) <= (end - start + 1)) {
-            median += median;
-            median += (start - 1);
+        if (threads > 1) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            photons.balance(pool);
+            pool.shutdown();
         } else {
-            median = end - median + 1;
-        }
-        int axis = Photon.SPLIT_Z;
-        Vector3 extents = bounds.getExtents();
-        if ((extents.x > extents.y) && (extents.x > extents.z)) {
-            axis = Photon.SPLIT_X;
-        } else if (extents.y > extents.z) {
-            axis = Photon.SPLIT_Y;
-        }
-        int left = start;
-        int right = end;
-        while (right > left) {
-            double v = photons[right].getCoord(axis);
-            int i = left - 1;
-            int j = right;
-            while (true) {
-                while (photons[++i].getCoord(axis) < v) {
-                }
-                while ((photons[--j].getCoord(axis) > v) && (j > left)) {
-                }
-                if (i >= j) {
-                    break;
-                }
-                swap(i, j);
-            }
-            swap(i, right);
-            if (i >= median) {
-                right = i - 1;
-            }
-            if (i <= median) {
-                left = i + 1;
-            }
+            photons.balance(null);
         }
-        temp[index] = photons[median];
-        temp[index].setSplitAxis(axis);
-        if (median > start) {
-            if (start < (median - 1)) {
-                float tmp;
-                switch (axis) {
-                    case Photon.SPLIT_X:
-                        tmp = bounds.getMaximum().x;
-                        bounds.getMaximum().x = temp[index].x;
-                        balanceSegment(temp, 2 * index, start, median - 1);
-                        bounds.getMaximum().x = tmp;
-                        break;
-                    case Photon.SPLIT_Y:
-                        tmp = bounds.getMaximum().y;
-                        bounds.getMaximum().y = temp[index].y;
-                        balanceSegment(temp, 2 * index, start, median - 1);
-                        bounds.getMaximum().y = tmp;
-                        break;
-                    default:
-                        tmp = bounds.getMaximum().z;
-                        bounds.getMaximum().z = temp[index].z;
-                        balanceSegment(temp, 2 * index, start, median - 1);
-                        bounds.getMaximum().z = tmp;
-                }
-            } else {
-                temp[2 * index] = photons[start];
-            }
-        }
-        if (median < end) {
-            if ((median + 1) < end) {
-                float tmp;
-                switch (axis) {
-                    case Photon.SPLIT_X:
-                        tmp = bounds.getMinimum().x;
-                        bounds.getMinimum().x = temp[index].x;
-                        balanceSegment(temp, (2 * index) + 1, median + 1, end);
-                        bounds.getMinimum().x = tmp;
-                        break;
-                    case Photon.SPLIT_Y:
-                        tmp = bounds.getMinimum().y;
-                        bounds.getMinimum().y = temp[index].y;
-                        balanceSegment(temp, (2 * index) + 1, median + 1, end);
-                        bounds.getMinimum().y = tmp;
-                        break;
-                    default:
-                        tmp = bounds.getMinimum().z;
-                        bounds.getMinimum().z = temp[index].z;
-                        balanceSegment(temp, (2 * index) + 1, median + 1, end);
-                        bounds.getMinimum().z = tmp;
-                }
-            } else {
-                temp[(2 * index) + 1] = photons[end];
-            }
-        }
-    }
-
-    private void swap(int i, int j) {
-        Photon tmp = photons[i];
-        photons[i] = photons[j];
-        photons[j] = tmp;
+        halfStoredPhotons = storedPhotons / 2;
+        log2n = (int) Math.ceil(Math.log(storedPhotons) / Math.log(2.0));
     }
 
     @Override
     public void store(ShadingState state, Vector3 dir, Color power, Color diffuse) {
         if (((state.getDiffuseDepth() == 0) && (state.getReflectionDepth() > 0 || state.getRefractionDepth() > 0))) {
             // this is a caustic photon
-            Photon p = new Photon(state.getPoint(), dir, power);
-            synchronized (this) {
-                storedPhotons++;
-                photonList.add(p);
-                bounds.include(new Point3(p.x, p.y, p.z));
-                maxPower = Math.max(maxPower, power.getMax());
-            }
+            photonBuffers.get().add(state.getPoint(), null, dir, power, null);
         }
     }
 
@@ -215,18 +117,47 @@ public final class CausticPhotonMap implements CausticPhotonMapInterface {
         t.start();
         balance();
         t.end();
+        setupEstimate();
+        UI.printInfo(Module.LIGHT, "  * Balancing time:   %s", t.toString());
+    }
+
+    private void setupEstimate() {
         UI.printInfo(Module.LIGHT, "Caustic photon map:");
         UI.printInfo(Module.LIGHT, "  * Photons stored:   %d", storedPhotons);
         UI.printInfo(Module.LIGHT, "  * Photons/estimate: %d", gatherNum);
         maxRadius = 1.4f * (float) Math.sqrt(maxPower * gatherNum);
         UI.printInfo(Module.LIGHT, "  * Estimate radius:  %.3f", gatherRadius);
         UI.printInfo(Module.LIGHT, "  * Maximum radius:   %.3f", maxRadius);
-        UI.printInfo(Module.LIGHT, "  * Balancing time:   %s", t.toString());
         if (gatherRadius > maxRadius) {
             gatherRadius = maxRadius;
         }
     }
 
+    @Override
+    public String getCacheKey() {
+        // the gather settings are only used for lookups, so maps traced with
+        // the same number of photons can be shared
+        return String.format("caustic-1-%d", numEmit);
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        photons.write(out);
+    }
+
+    @Override
+    public void read(ByteBuffer in) {
+        photons = PhotonBuffer.read(in, false);
+        photonBuffers = null;
+        storedPhotons = photons.size;
+        maxPower = photons.maxPower;
+        if (storedPhotons > 0) {
+            halfStoredPhotons = storedPhotons / 2;
+            log2n = (int) Math.ceil(Math.log(storedPhotons) / Math.log(2.0));
+        }
+        setupEstimate();
+    }
+
     @Override
     public void getSamples(ShadingState state) {
         if (storedPhotons == 0) {
@@ -245,17 +176,17 @@ public final class CausticPhotonMap implements CausticPhotonMapInterface {
         float f2r2 = 1.0f / (filterValue * filterValue * np.dist2[0]);
         float fInv = 1.0f / (1.0f - 2.0f / (3.0f * filterValue));
         for (int i = 1; i <= np.found; i++) {
-            Photon phot = np.index[i];
-            Vector3.decode(phot.dir, pdir);
+            int phot = np.index[i];
+            Vector3.decode(photons.dirs[phot], pdir);
             float cos = -Vector3.dot(pdir, state.getNormal());
             if (cos > 0.001) {
-                ppos.set(phot.x, phot.y, phot.z);
+                ppos.set(photons.positions[3 * phot + 0], photons.positions[3 * phot + 1], photons.positions[3 * phot + 2]);
                 Point3.sub(ppos, state.getPoint(), pvec);
                 float pcos = Vector3.dot(pvec, state.getNormal());
                 if ((pcos < maxNDist) && (pcos > -maxNDist)) {
                     LightSample sample = new LightSample();
                     sample.setShadowRay(new Ray(state.getPoint(), pdir.negate()));
-                    sample.setRadiance(new Color().setRGBE(np.index[i].power).mul(invArea / cos), Color.BLACK);
+                    sample.setRadiance(new Color().setRGBE(photons.powers[phot]).mul(invArea / cos), Color.BLACK);
                     sample.getDiffuseRadiance().mul((1.0f - (float) Math.sqrt(np.dist2[i] * f2r2)) * fInv);
                     state.addSample(sample);
                 }
@@ -270,7 +201,7 @@ public final class CausticPhotonMap implements CausticPhotonMapInterface {
         private int max;
         private boolean gotHeap;
         protected float[] dist2;
-        protected Photon[] index;
+        protected int[] index;
 
         NearestPhotons(Point3 p, int n, float maxDist2) {
             max = n;
@@ -280,7 +211,7 @@ public final class CausticPhotonMap implements CausticPhotonMapInterface {
             py = p.y;
             pz = p.z;
             dist2 = new float[n + 1];
-            index = new Photon[n + 1];
+            index = new int[n + 1];
             dist2[0] = maxDist2;
         }
 
@@ -293,8 +224,8 @@ public final class CausticPhotonMap implements CausticPhotonMapInterface {
             dist2[0] = maxDist2;
         }
 
-        void checkAddNearest(Photon p) {
-            float fdist2 = p.getDist2(px, py, pz);
+        void checkAddNearest(PhotonBuffer photons, int p) {
+            float fdist2 = photons.getDist2(p, px, py, pz);
             if (fdist2 < dist2[0]) {
                 if (found < max) {
                     found++;
@@ -305,7 +236,7 @@ public final class CausticPhotonMap implements CausticPhotonMapInterface {
                     int parent;
                     if (!gotHeap) {
                         float dst2;
-                        Photon phot;
+                        int phot;
                         int halfFound = found >> 1;
                         for (int k = halfFound; k >= 1; k--) {
                             parent = k;
@@ -350,63 +281,6 @@ public final class CausticPhotonMap implements CausticPhotonMapInterface {
         }
     }
 
-    private static class Photon {
-
-        float x;
-        float y;
-        float z;
-        short dir;
-        int power;
-        int flags;
-        static final int SPLIT_X = 0;
-        static final int SPLIT_Y = 1;
-        static final int SPLIT_Z = 2;
-        static final int SPLIT_MASK = 3;
-
-        Photon(Point3 p, Vector3 dir, Color power) {
-            x = p.x;
-            y = p.y;
-            z = p.z;
-            this.dir = dir.encode();
-            this.power = power.toRGBE();
-            flags = SPLIT_X;
-        }
-
-        void setSplitAxis(int axis) {
-            flags &= ~SPLIT_MASK;
-            flags |= axis;
-        }
-
-        float getCoord(int axis) {
-            switch (axis) {
-                case SPLIT_X:
-                    return x;
-                case SPLIT_Y:
-                    return y;
-                default:
-                    return z;
-            }
-        }
-
-        float getDist1(float px, float py, float pz) {
-            switch (flags & SPLIT_MASK) {
-                case SPLIT_X:
-                    return px - x;
-                case SPLIT_Y:
-                    return py - y;
-                default:
-                    return pz - z;
-            }
-        }
-
-        float getDist2(float px, float py, float pz) {
-            float dx = x - px;
-            float dy = y - py;
-            float dz = z - pz;
-            return (dx * dx) + (dy * dy) + (dz * dz);
-        }
-    }
-
     @Override
     public boolean allowDiffuseBounced() {
         return false;
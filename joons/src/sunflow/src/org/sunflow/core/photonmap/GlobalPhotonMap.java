@@ -1,7 +1,13 @@
 package org.sunflow.core.photonmap;
 
-import java.util.ArrayList;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.sunflow.core.CacheablePhotonStore;
 import org.sunflow.core.GlobalPhotonMapInterface;
 import org.sunflow.core.Options;
 import org.sunflow.core.ShadingState;
@@ -13,23 +19,26 @@ import org.sunflow.system.Timer;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
-public final class GlobalPhotonMap implements GlobalPhotonMapInterface {
+public final class GlobalPhotonMap implements GlobalPhotonMapInterface, CacheablePhotonStore {
 
-    private ArrayList<Photon> photonList;
-    private Photon[] photons;
+    // number of photons per radiance precomputation task
+    private static final int RADIANCE_GRAIN = 4096;
+    private PhotonBuffer.PerThread photonBuffers;
+    private PhotonBuffer photons;
     private int storedPhotons;
     private int halfStoredPhotons;
     private int log2n;
     private int numGather;
     private float gatherRadius;
-    private BoundingBox bounds;
     private boolean hasRadiance;
     private float maxPower;
     private float maxRadius;
     private int numEmit;
+    private int threads;
+    private ForkJoinPool pool;
+    private String cacheKey;
 
     public GlobalPhotonMap() {
-        bounds = new BoundingBox();
         hasRadiance = false;
         maxPower = 0;
         maxRadius = 0;
@@ -41,22 +50,23 @@ public final class GlobalPhotonMap implements GlobalPhotonMapInterface {
         numEmit = options.getInt("gi.irr-cache.gmap.emit", 100000);
         numGather = options.getInt("gi.irr-cache.gmap.gather", 50);
         gatherRadius = options.getFloat("gi.irr-cache.gmap.radius", 0.5f);
+        threads = options.getInt("threads", 0);
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        // the precomputed radiance depends on the gather settings
+        cacheKey = String.format("global-1-%d-%d-%s", numEmit, numGather, Float.toHexString(gatherRadius));
         // init
-        photonList = new ArrayList<Photon>();
-        photonList.add(null);
+        photonBuffers = new PhotonBuffer.PerThread(true);
         photons = null;
         storedPhotons = halfStoredPhotons = 0;
+        hasRadiance = false;
+        maxPower = 0;
     }
 
     @Override
     public void store(ShadingState state, Vector3 dir, Color power, Color diffuse) {
-        Photon p = new Photon(state.getPoint(), state.getNormal(), dir, power, diffuse);
-        synchronized (this) {
-            storedPhotons++;
-            photonList.add(p);
-            bounds.include(new Point3(p.x, p.y, p.z));
-            maxPower = Math.max(maxPower, power.getMax());
-        }
+        photonBuffers.get().add(state.getPoint(), state.getNormal(), dir, power, diffuse);
     }
 
     private void locatePhotons(NearestPhotons np) {
@@ -67,7 +77,7 @@ public final class GlobalPhotonMap implements GlobalPhotonMapInterface {
         int cameFrom;
         while (true) {
             while (i < halfStoredPhotons) {
-                float dist1d = photons[i].getDist1(np.px, np.py, np.pz);
+                float dist1d = photons.getDist1(i, np.px, np.py, np.pz);
                 dist1d2[level] = dist1d * dist1d;
                 i += i;
                 if (dist1d > 0.0f) {
@@ -75,7 +85,7 @@ public final class GlobalPhotonMap implements GlobalPhotonMapInterface {
                 }
                 chosen[level++] = i;
             }
-            np.checkAddNearest(photons[i]);
+            np.checkAddNearest(photons, i);
             do {
                 cameFrom = i;
                 i >>= 1;
@@ -84,193 +94,29 @@ public final class GlobalPhotonMap implements GlobalPhotonMapInterface {
                     return;
                 }
             } while ((dist1d2[level] >= np.dist2[0]) || (cameFrom != chosen[level]));
-            np.checkAddNearest(photons[i]);
+            np.checkAddNearest(photons, i);
             i = chosen[level++] ^ 1;
         }
     }
 
     private void balance() {
+        photons = photonBuffers.merge();
+        photonBuffers = null;
+        storedPhotons = photons.size;
+        maxPower = photons.maxPower;
         if (storedPhotons == 0) {
             return;
         }
-        photons = photonList.toArray(new Photon[photonList.size()]);
-        photonList = null;
-        Photon[] temp = new Photon[storedPhotons + 1];
-        balanceSegment(temp, 1, 1, storedPhotons);
-        photons = temp;
+        photons.balance(pool);
         halfStoredPhotons = storedPhotons / 2;
         log2n = (int) Math.ceil(Math.log(storedPhotons) / Math.log(2.0));
     }
 
-    private void balanceSegment(Photon[] temp, int index, int start, int end) {
-        int median = 1;
-        while ((4 * median) <= (end - start + 1)) {
-            median += median;
-        }
-        if ((3 * median) <= (end - start + 1)) {
-            median += median;
-            median += (start - 1);
-        } else {
-            median = end - median + 1;
-        }
-        int axis = Photon.SPLIT_Z;
-        Vector3 extents = bounds.getExtents();
-        if ((extents.x > extents.y) && (extents.x > extents.z)) {
-            axis = Photon.SPLIT_X;
-        } else if (extents.y > extents.z) {
-            axis = Photon.SPLIT_Y;
-        }
-        int left = start;
-        int right = end;
-        while (right > left) {
-            double v = photons[right].getCoord(axis);
-            int i = left - 1;
-            int j = right;
-            while (true) {
-                while (photons[++i].getCoord(axis) < v) {
-                }
-                while ((photons[--j].getCoord(axis) > v) && (j > left)) {
-                }
-                if (i >= j) {
-                    break;
-                }
-                swap(i, j);
-            }
-            swap(i, right);
-            if (i >= median) {
-                right = i - 1;
-            }
-            if (i <= median) {
-                left = i + 1;
-            }
-        }
-        temp[index] = photons[median];
-        temp[index].setSplitAxis(axis);
-        if (median > start) {
-            if (start < (median - 1)) {
-                float tmp;
-                switch (axis) {
-                    case Photon.SPLIT_X:
-                        tmp = bounds.getMaximum().x;
-                        bounds.getMaximum().x = temp[index].x;
-                        balanceSegment(temp, 2 * index, start, median - 1);
-                        bounds.getMaximum().x = tmp;
-                        break;
-                    case Photon.SPLIT_Y:
-                        tmp = bounds.getMaximum().y;
-                        bounds.getMaximum().y = temp[index].y;
-                        balanceSegment(temp, 2 * index, start, median - 1);
-                        bounds.getMaximum().y = tmp;
-                        break;
-                    default:
-                        tmp = bounds.getMaximum().z;
-                        bounds.getMaximum().z = temp[index].z;
-                        balanceSegment(temp, 2 * index, start, median - 1);
-                        bounds.getMaximum().z = tmp;
-                }
-            } else {
-                temp[2 * index] = photons[start];
-            }
-        }
-        if (median < end) {
-            if ((median + 1) < end) {
-                float tmp;
-                switch (axis) {
-                    case Photon.SPLIT_X:
-                        tmp = bounds.getMinimum().x;
-                        bounds.getMinimum().x = temp[index].x;
-                        balanceSegment(temp, (2 * index) + 1, median + 1, end);
-                        bounds.getMinimum().x = tmp;
-                        break;
-                    case Photon.SPLIT_Y:
-                        tmp = bounds.getMinimum().y;
-                        bounds.getMinimum().y = temp[index].y;
-                        balanceSegment(temp, (2 * index) + 1, median + 1, end);
-                        bounds.getMinimum().y = tmp;
-                        break;
-                    default:
-                        tmp = bounds.getMinimum().z;
-                        bounds.getMinimum().z = temp[index].z;
-                        balanceSegment(temp, (2 * index) + 1, median + 1, end);
-                        bounds.getMinimum().z = tmp;
-                }
-            } else {
-                temp[(2 * index) + 1] = photons[end];
-            }
-        }
-    }
-
-    private void swap(int i, int j) {
-        Photon tmp = photons[i];
-        photons[i] = photons[j];
-        photons[j] = tmp;
-    }
-
-    static class Photon {
-
-        float x;
-        float y;
-        float z;
-        short dir;
-        short normal;
-        int data;
-        int power;
-        int flags;
-        static final int SPLIT_X = 0;
-        static final int SPLIT_Y = 1;
-        static final int SPLIT_Z = 2;
-        static final int SPLIT_MASK = 3;
-
-        Photon(Point3 p, Vector3 n, Vector3 dir, Color power, Color diffuse) {
-            x = p.x;
-            y = p.y;
-            z = p.z;
-            this.dir = dir.encode();
-            this.power = power.toRGBE();
-            flags = 0;
-            normal = n.encode();
-            data = diffuse.toRGB();
-        }
-
-        void setSplitAxis(int axis) {
-            flags &= ~SPLIT_MASK;
-            flags |= axis;
-        }
-
-        float getCoord(int axis) {
-            switch (axis) {
-                case SPLIT_X:
-                    return x;
-                case SPLIT_Y:
-                    return y;
-                default:
-                    return z;
-            }
-        }
-
-        float getDist1(float px, float py, float pz) {
-            switch (flags & SPLIT_MASK) {
-                case SPLIT_X:
-                    return px - x;
-                case SPLIT_Y:
-                    return py - y;
-                default:
-                    return pz - z;
-            }
-        }
-
-        float getDist2(float px, float py, float pz) {
-            float dx = x - px;
-            float dy = y - py;
-            float dz = z - pz;
-            return (dx * dx) + (dy * dy) + (dz * dz);
-        }
-    }
-
     @Override
     public void init() {
         UI.printInfo(Module.LIGHT, "Balancing global photon map ...");
         UI.taskStart("Balancing global photon map", 0, 1);
+        pool = threads > 1 ? new ForkJoinPool(threads) : null;
         Timer t = new Timer();
         t.start();
         balance();
@@ -282,6 +128,7 @@ public final class GlobalPhotonMap implements GlobalPhotonMapInterface {
         UI.printInfo(Module.LIGHT, "  * Estimate radius:  %.3f", gatherRadius);
         maxRadius = 1.4f * (float) Math.sqrt(maxPower * numGather);
         UI.printInfo(Module.LIGHT, "  * Maximum radius:   %.3f", maxRadius);
+        UI.printInfo(Module.LIGHT, "  * Threads:          %d", threads);
         UI.printInfo(Module.LIGHT, "  * Balancing time:   %s", t.toString());
         if (gatherRadius > maxRadius) {
             gatherRadius = maxRadius;
@@ -289,6 +136,10 @@ public final class GlobalPhotonMap implements GlobalPhotonMapInterface {
         t.start();
         precomputeRadiance();
         t.end();
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
         UI.printInfo(Module.LIGHT, "  * Precompute time:  %s", t.toString());
         UI.printInfo(Module.LIGHT, "  * Radiance photons: %d", storedPhotons);
         UI.printInfo(Module.LIGHT, "  * Search radius:    %.3f", gatherRadius);
@@ -301,6 +152,30 @@ public final class GlobalPhotonMap implements GlobalPhotonMapInterface {
         // precompute the radiance for all photons that are neither
         // leaves nor parents of leaves in the tree.
         int quadStoredPhotons = halfStoredPhotons / 2;
+        UI.taskStart("Precomputing radiance", 1, quadStoredPhotons);
+        if (pool != null && quadStoredPhotons > RADIANCE_GRAIN) {
+            // each photon only writes its own radiance, so ranges of the
+            // tree can be processed independently
+            pool.invoke(new RadianceTask(1, quadStoredPhotons, new AtomicInteger()));
+        } else {
+            precomputeRadiance(1, quadStoredPhotons, null);
+        }
+        UI.taskStop();
+
+        // resize photon map to only include irradiance photons
+        numGather /= 4;
+        maxRadius = 1.4f * (float) Math.sqrt(maxPower * numGather);
+        if (gatherRadius > maxRadius) {
+            gatherRadius = maxRadius;
+        }
+        storedPhotons = quadStoredPhotons;
+        halfStoredPhotons = storedPhotons / 2;
+        log2n = (int) Math.ceil(Math.log(storedPhotons) / Math.log(2.0));
+        photons.truncate(quadStoredPhotons);
+        hasRadiance = true;
+    }
+
+    private void precomputeRadiance(int first, int last, AtomicInteger done) {
         Point3 p = new Point3();
         Vector3 n = new Vector3();
         Point3 ppos = new Point3();
@@ -310,55 +185,108 @@ public final class GlobalPhotonMap implements GlobalPhotonMapInterface {
         Color pow = new Color();
         float maxDist2 = gatherRadius * gatherRadius;
         NearestPhotons np = new NearestPhotons(p, numGather, maxDist2);
-        Photon[] temp = new Photon[quadStoredPhotons + 1];
-        UI.taskStart("Precomputing radiance", 1, quadStoredPhotons);
-        for (int i = 1; i <= quadStoredPhotons; i++) {
-            UI.taskUpdate(i);
-            Photon curr = photons[i];
-            p.set(curr.x, curr.y, curr.z);
-            Vector3.decode(curr.normal, n);
+        for (int i = first; i <= last; i++) {
+            if (done == null) {
+                UI.taskUpdate(i);
+            }
+            p.set(photons.positions[3 * i + 0], photons.positions[3 * i + 1], photons.positions[3 * i + 2]);
+            Vector3.decode(photons.normals[i], n);
             irr.set(Color.BLACK);
             np.reset(p, maxDist2);
             locatePhotons(np);
             if (np.found < 8) {
-                curr.data = 0;
-                temp[i] = curr;
+                photons.data[i] = 0;
                 continue;
             }
             float invArea = 1.0f / ((float) Math.PI * np.dist2[0]);
             float maxNDist = np.dist2[0] * 0.05f;
             for (int j = 1; j <= np.found; j++) {
-                Photon phot = np.index[j];
-                Vector3.decode(phot.dir, pdir);
+                int phot = np.index[j];
+                Vector3.decode(photons.dirs[phot], pdir);
                 float cos = -Vector3.dot(pdir, n);
                 if (cos > 0.01f) {
-                    ppos.set(phot.x, phot.y, phot.z);
+                    ppos.set(photons.positions[3 * phot + 0], photons.positions[3 * phot + 1], photons.positions[3 * phot + 2]);
                     Point3.sub(ppos, p, pvec);
                     float pcos = Vector3.dot(pvec, n);
                     if ((pcos < maxNDist) && (pcos > -maxNDist)) {
-                        irr.add(pow.setRGBE(phot.power));
+                        irr.add(pow.setRGBE(photons.powers[phot]));
                     }
                 }
             }
             irr.mul(invArea);
             // compute radiance
-            irr.mul(new Color(curr.data)).mul(1.0f / (float) Math.PI);
-            curr.data = irr.toRGBE();
-            temp[i] = curr;
+            irr.mul(pow.setRGB(photons.data[i])).mul(1.0f / (float) Math.PI);
+            photons.data[i] = irr.toRGBE();
         }
-        UI.taskStop();
+        if (done != null) {
+            UI.taskUpdate(done.addAndGet(last - first + 1));
+        }
+    }
 
-        // resize photon map to only include irradiance photons
-        numGather /= 4;
-        maxRadius = 1.4f * (float) Math.sqrt(maxPower * numGather);
-        if (gatherRadius > maxRadius) {
-            gatherRadius = maxRadius;
+    private final class RadianceTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final int first;
+        private final int last;
+        private final AtomicInteger done;
+
+        RadianceTask(int first, int last, AtomicInteger done) {
+            this.first = first;
+            this.last = last;
+            this.done = done;
         }
-        storedPhotons = quadStoredPhotons;
+
+        @Override
+        protected void compute() {
+            if (last - first < RADIANCE_GRAIN) {
+                precomputeRadiance(first, last, done);
+            } else {
+                int mid = (first + last) >>> 1;
+                invokeAll(new RadianceTask(first, mid, done), new RadianceTask(mid + 1, last, done));
+            }
+        }
+    }
+
+    @Override
+    public String getCacheKey() {
+        return cacheKey;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeBoolean(hasRadiance);
+        out.writeInt(numGather);
+        out.writeFloat(gatherRadius);
+        out.writeFloat(maxPower);
+        out.writeFloat(maxRadius);
+        photons.write(out);
+    }
+
+    @Override
+    public void read(ByteBuffer in) {
+        // only update the map once everything was read, a truncated file
+        // leaves it ready for tracing
+        boolean radiance = in.get() != 0;
+        int gather = in.getInt();
+        float radius = in.getFloat();
+        float power = in.getFloat();
+        float maxR = in.getFloat();
+        photons = PhotonBuffer.read(in, true);
+        photonBuffers = null;
+        hasRadiance = radiance;
+        numGather = gather;
+        gatherRadius = radius;
+        maxPower = power;
+        maxRadius = maxR;
+        storedPhotons = photons.size;
         halfStoredPhotons = storedPhotons / 2;
-        log2n = (int) Math.ceil(Math.log(storedPhotons) / Math.log(2.0));
-        photons = temp;
-        hasRadiance = true;
+        if (storedPhotons > 0) {
+            log2n = (int) Math.ceil(Math.log(storedPhotons) / Math.log(2.0));
+        }
+        UI.printInfo(Module.LIGHT, "Global photon map:");
+        UI.printInfo(Module.LIGHT, "  * Radiance photons: %d", storedPhotons);
+        UI.printInfo(Module.LIGHT, "  * Photons/estimate: %d", numGather);
+        UI.printInfo(Module.LIGHT, "  * Search radius:    %.3f", gatherRadius);
     }
 
     @Override
@@ -374,14 +302,13 @@ public final class GlobalPhotonMap implements GlobalPhotonMapInterface {
         int cameFrom;
         float dist2;
         float maxDist2 = gatherRadius * gatherRadius;
-        Photon nearest = null;
-        Photon curr;
+        int nearest = 0;
         Vector3 photN = new Vector3();
         float[] dist1d2 = new float[log2n];
         int[] chosen = new int[log2n];
         while (true) {
             while (i < halfStoredPhotons) {
-                float dist1d = photons[i].getDist1(px, py, pz);
+                float dist1d = photons.getDist1(i, px, py, pz);
                 dist1d2[level] = dist1d * dist1d;
                 i += i;
                 if (dist1d > 0) {
@@ -389,13 +316,12 @@ public final class GlobalPhotonMap implements GlobalPhotonMapInterface {
                 }
                 chosen[level++] = i;
             }
-            curr = photons[i];
-            dist2 = curr.getDist2(px, py, pz);
+            dist2 = photons.getDist2(i, px, py, pz);
             if (dist2 < maxDist2) {
-                Vector3.decode(curr.normal, photN);
+                Vector3.decode(photons.normals[i], photN);
                 float currentDotN = Vector3.dot(photN, n);
                 if (currentDotN > 0.9f) {
-                    nearest = curr;
+                    nearest = i;
                     maxDist2 = dist2;
                 }
             }
@@ -404,16 +330,15 @@ public final class GlobalPhotonMap implements GlobalPhotonMapInterface {
                 i >>= 1;
                 level--;
                 if (i == 0) {
-                    return (nearest == null) ? Color.BLACK : new Color().setRGBE(nearest.data);
+                    return (nearest == 0) ? Color.BLACK : new Color().setRGBE(photons.data[nearest]);
                 }
             } while ((dist1d2[level] >= maxDist2) || (cameFrom != chosen[level]));
-            curr = photons[i];
-            dist2 = curr.getDist2(px, py, pz);
+            dist2 = photons.getDist2(i, px, py, pz);
             if (dist2 < maxDist2) {
-                Vector3.decode(curr.normal, photN);
+                Vector3.decode(photons.normals[i], photN);
                 float currentDotN = Vector3.dot(photN, n);
                 if (currentDotN > 0.9f) {
-                    nearest = curr;
+                    nearest = i;
                     maxDist2 = dist2;
                 }
             }
@@ -428,7 +353,7 @@ public final class GlobalPhotonMap implements GlobalPhotonMapInterface {
         private int max;
         private boolean gotHeap;
         protected float[] dist2;
-        protected Photon[] index;
+        protected int[] index;
 
         NearestPhotons(Point3 p, int n, float maxDist2) {
             max = n;
@@ -438,7 +363,7 @@ public final class GlobalPhotonMap implements GlobalPhotonMapInterface {
             py = p.y;
             pz = p.z;
             dist2 = new float[n + 1];
-            index = new Photon[n + 1];
+            index = new int[n + 1];
             dist2[0] = maxDist2;
         }
 
@@ -451,8 +376,8 @@ public final class GlobalPhotonMap implements GlobalPhotonMapInterface {
             dist2[0] = maxDist2;
         }
 
-        void checkAddNearest(Photon p) {
-            float fdist2 = p.getDist2(px, py, pz);
+        void checkAddNearest(PhotonBuffer photons, int p) {
+            float fdist2 = photons.getDist2(p, px, py, pz);
             if (fdist2 < dist2[0]) {
                 if (found < max) {
                     found++;
@@ -463,7 +388,7 @@ public final class GlobalPhotonMap implements GlobalPhotonMapInterface {
                     int parent;
                     if (!gotHeap) {
                         float dst2;
-                        Photon phot;
+                        int phot;
                         int halfFound = found >> 1;
                         for (int k = halfFound; k >= 1; k--) {
                             parent = k;
@@ -1,6 +1,7 @@
 package org.sunflow.core.photonmap;
 
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import org.sunflow.core.GlobalPhotonMapInterface;
 import org.sunflow.core.Options;
@@ -13,6 +14,16 @@ import org.sunflow.math.Vector3;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
+/**
+ * Photon map which accumulates photons into the cells of a hashed grid. Cells
+ * are split further by surface orientation into photon groups. Once all
+ * photons are stored, the groups are packed into flat arrays: an open
+ * addressing table maps each cell to the contiguous range of its groups.
+ * Radiance lookups then run concurrently without locks. The radiance of each
+ * group is computed once and published through an atomic flag. Lookups which
+ * find no matching group append one to the spare room of the arrays and link
+ * it into its cell with a CAS.
+ */
 public class GridPhotonMap implements GlobalPhotonMapInterface {
 
     private int numGather;
@@ -20,12 +31,31 @@ public class GridPhotonMap implements GlobalPhotonMapInterface {
     private int numStoredPhotons;
     private int nx, ny, nz;
     private BoundingBox bounds;
+    private float minX, minY, minZ;
+    private float extX, extY, extZ;
+    // photon groups being stored, before the map is initialized
     private PhotonGroup[] cellHash;
     private int hashSize;
     private int hashPrime;
-    private ReentrantReadWriteLock rwl;
+    // packed cells: the id of each slot, the first and number of its stored
+    // groups and the last group added to it by lookups
+    private AtomicIntegerArray cellIds;
+    private int[] cellGroups;
+    private AtomicIntegerArray cellAdded;
+    private AtomicInteger usedSlots;
+    private int cellMask;
+    // packed groups: normal, flux and diffuse color
+    private float[] groups;
+    private int[] groupCounts;
+    private int[] groupNext;
+    private int numGroups;
+    private AtomicInteger numAdded;
+    // radiance of each group, valid once its flag is set
+    private float[] radiance;
+    private AtomicIntegerArray radianceDone;
     private int numEmit;
     private static final float NORMAL_THRESHOLD = (float) Math.cos(10.0 * Math.PI / 180.0);
+    private static final int GROUP_SIZE = 9;
     private static final int[] PRIMES = {11, 19, 37, 109, 163, 251, 367, 557,
         823, 1237, 1861, 2777, 4177, 6247, 9371, 21089, 31627, 47431,
         71143, 106721, 160073, 240101, 360163, 540217, 810343, 1215497,
@@ -34,7 +64,6 @@ public class GridPhotonMap implements GlobalPhotonMapInterface {
     public GridPhotonMap() {
         numStoredPhotons = 0;
         hashSize = 0; // number of unique IDs in the hash
-        rwl = new ReentrantReadWriteLock();
         numEmit = 100000;
     }
 
@@ -48,6 +77,12 @@ public class GridPhotonMap implements GlobalPhotonMapInterface {
         bounds = new BoundingBox(sceneBounds);
         bounds.enlargeUlps();
         Vector3 w = bounds.getExtents();
+        minX = bounds.getMinimum().x;
+        minY = bounds.getMinimum().y;
+        minZ = bounds.getMinimum().z;
+        extX = w.x;
+        extY = w.y;
+        extZ = w.z;
         nx = (int) Math.max(((w.x / gatherRadius) + 0.5f), 1);
         ny = (int) Math.max(((w.y / gatherRadius) + 0.5f), 1);
         nz = (int) Math.max(((w.z / gatherRadius) + 0.5f), 1);
@@ -79,14 +114,11 @@ public class GridPhotonMap implements GlobalPhotonMapInterface {
         if (!bounds.contains(pt)) {
             return;
         }
-        Vector3 ext = bounds.getExtents();
-        int ix = (int) (((pt.x - bounds.getMinimum().x) * nx) / ext.x);
-        int iy = (int) (((pt.y - bounds.getMinimum().y) * ny) / ext.y);
-        int iz = (int) (((pt.z - bounds.getMinimum().z) * nz) / ext.z);
-        ix = MathUtils.clamp(ix, 0, nx - 1);
-        iy = MathUtils.clamp(iy, 0, ny - 1);
-        iz = MathUtils.clamp(iz, 0, nz - 1);
+        int ix = MathUtils.clamp((int) (((pt.x - minX) * nx) / extX), 0, nx - 1);
+        int iy = MathUtils.clamp((int) (((pt.y - minY) * ny) / extY), 0, ny - 1);
+        int iz = MathUtils.clamp((int) (((pt.z - minZ) * nz) / extZ), 0, nz - 1);
         int id = ix + iy * nx + iz * nx * ny;
+        Vector3 n = state.getNormal();
         synchronized (this) {
             int hid = id % cellHash.length;
             PhotonGroup g = cellHash[hid];
@@ -95,7 +127,7 @@ public class GridPhotonMap implements GlobalPhotonMapInterface {
             while (g != null) {
                 if (g.id == id) {
                     hasID = true;
-                    if (Vector3.dot(state.getNormal(), g.normal) > NORMAL_THRESHOLD) {
+                    if (g.matches(n)) {
                         break;
                     }
                 }
@@ -103,7 +135,7 @@ public class GridPhotonMap implements GlobalPhotonMapInterface {
                 g = g.next;
             }
             if (g == null) {
-                g = new PhotonGroup(id, state.getNormal());
+                g = new PhotonGroup(id, n);
                 if (last == null) {
                     cellHash[hid] = g;
                 } else {
@@ -129,14 +161,73 @@ public class GridPhotonMap implements GlobalPhotonMapInterface {
         UI.printInfo(Module.LIGHT, "Initializing photon grid ...");
         UI.printInfo(Module.LIGHT, "  * Photon hits:      %d", numStoredPhotons);
         UI.printInfo(Module.LIGHT, "  * Final hash size:  %d", cellHash.length);
-        int cells = 0;
-        for (int i = 0; i < cellHash.length; i++) {
-            for (PhotonGroup g = cellHash[i]; g != null; g = g.next) {
-                g.diffuse.mul(1.0f / g.count);
-                cells++;
+        numGroups = 0;
+        for (PhotonGroup head : cellHash) {
+            for (PhotonGroup g = head; g != null; g = g.next) {
+                numGroups++;
             }
         }
-        UI.printInfo(Module.LIGHT, "  * Num photon cells: %d", cells);
+        // leave room for the cells and groups added by lookups
+        int tableSize = 2;
+        while (tableSize < 4 * hashSize) {
+            tableSize <<= 1;
+        }
+        cellMask = tableSize - 1;
+        cellIds = new AtomicIntegerArray(tableSize);
+        cellGroups = new int[2 * tableSize];
+        cellAdded = new AtomicIntegerArray(tableSize);
+        for (int i = 0; i < tableSize; i++) {
+            cellIds.set(i, -1);
+            cellAdded.set(i, -1);
+        }
+        usedSlots = new AtomicInteger(hashSize);
+        // count the groups of each cell
+        for (PhotonGroup head : cellHash) {
+            for (PhotonGroup g = head; g != null; g = g.next) {
+                int slot = findSlot(g.id);
+                cellIds.set(slot, g.id);
+                cellGroups[2 * slot + 1]++;
+            }
+        }
+        int first = 0;
+        for (int i = 0; i < tableSize; i++) {
+            cellGroups[2 * i] = first;
+            first += cellGroups[2 * i + 1];
+            cellGroups[2 * i + 1] = 0;
+        }
+        // copy the groups of each cell next to each other, in chain order
+        int capacity = 2 * numGroups + 1024;
+        groups = new float[GROUP_SIZE * capacity];
+        groupCounts = new int[capacity];
+        groupNext = new int[capacity];
+        radiance = new float[3 * capacity];
+        radianceDone = new AtomicIntegerArray(capacity);
+        numAdded = new AtomicInteger(numGroups);
+        for (PhotonGroup head : cellHash) {
+            for (PhotonGroup g = head; g != null; g = g.next) {
+                int slot = findSlot(g.id);
+                int i = cellGroups[2 * slot] + cellGroups[2 * slot + 1]++;
+                float[] flux = g.flux.getRGB();
+                float[] diffuse = g.diffuse.mul(1.0f / g.count).getRGB();
+                setGroup(i, g.nx, g.ny, g.nz, flux[0], flux[1], flux[2], diffuse[0], diffuse[1], diffuse[2]);
+                groupCounts[i] = g.count;
+            }
+        }
+        cellHash = null;
+        UI.printInfo(Module.LIGHT, "  * Num photon cells: %d", numGroups);
+    }
+
+    private void setGroup(int i, float nx, float ny, float nz, float fr, float fg, float fb, float dr, float dg, float db) {
+        int o = GROUP_SIZE * i;
+        groups[o + 0] = nx;
+        groups[o + 1] = ny;
+        groups[o + 2] = nz;
+        groups[o + 3] = fr;
+        groups[o + 4] = fg;
+        groups[o + 5] = fb;
+        groups[o + 6] = dr;
+        groups[o + 7] = dg;
+        groups[o + 8] = db;
     }
 
     public void precomputeRadiance(boolean includeDirect, boolean includeCaustics) {
@@ -170,52 +261,55 @@ public class GridPhotonMap implements GlobalPhotonMapInterface {
         cellHash = temp;
     }
 
+    /**
+     * Finds the slot of the cell table which holds, or would hold, the
+     * specified cell.
+     */
+    private int findSlot(int id) {
+        int h = id * 0x9E3779B9;
+        for (int i = (h ^ (h >>> 16)) & cellMask;; i = (i + 1) & cellMask) {
+            int slotId = cellIds.get(i);
+            if (slotId == id || slotId == -1) {
+                return i;
+            }
+        }
+    }
+
     @Override
-    public synchronized Color getRadiance(Point3 p, Vector3 n) {
+    public Color getRadiance(Point3 p, Vector3 n) {
         if (!bounds.contains(p)) {
             return Color.BLACK;
         }
-        Vector3 ext = bounds.getExtents();
-        int ix = (int) (((p.x - bounds.getMinimum().x) * nx) / ext.x);
-        int iy = (int) (((p.y - bounds.getMinimum().y) * ny) / ext.y);
-        int iz = (int) (((p.z - bounds.getMinimum().z) * nz) / ext.z);
-        ix = MathUtils.clamp(ix, 0, nx - 1);
-        iy = MathUtils.clamp(iy, 0, ny - 1);
-        iz = MathUtils.clamp(iz, 0, nz - 1);
+        int ix = MathUtils.clamp((int) (((p.x - minX) * nx) / extX), 0, nx - 1);
+        int iy = MathUtils.clamp((int) (((p.y - minY) * ny) / extY), 0, ny - 1);
+        int iz = MathUtils.clamp((int) (((p.z - minZ) * nz) / extZ), 0, nz - 1);
         int id = ix + iy * nx + iz * nx * ny;
-        rwl.readLock().lock();
-        PhotonGroup center = null;
-        for (PhotonGroup g = get(ix, iy, iz); g != null; g = g.next) {
-            if (g.id == id && Vector3.dot(n, g.normal) > NORMAL_THRESHOLD) {
-                if (g.radiance == null) {
-                    center = g;
-                    break;
-                }
-                Color r = g.radiance.copy();
-                rwl.readLock().unlock();
-                return r;
-            }
+        int center = find(ix, iy, iz, n);
+        if (center >= 0 && radianceDone.get(center) != 0) {
+            return new Color(radiance[3 * center], radiance[3 * center + 1], radiance[3 * center + 2]);
         }
         int vol = 1;
         while (true) {
             int numPhotons = 0;
             int ndiff = 0;
-            Color irr = Color.black();
-            Color diff = (center == null) ? Color.black() : null;
+            float irrR = 0, irrG = 0, irrB = 0;
+            float diffR = 0, diffG = 0, diffB = 0;
             for (int z = iz - (vol - 1); z <= iz + (vol - 1); z++) {
                 for (int y = iy - (vol - 1); y <= iy + (vol - 1); y++) {
                     for (int x = ix - (vol - 1); x <= ix + (vol - 1); x++) {
-                        int vid = x + y * nx + z * nx * ny;
-                        for (PhotonGroup g = get(x, y, z); g != null; g = g.next) {
-                            if (g.id == vid && Vector3.dot(n, g.normal) > NORMAL_THRESHOLD) {
-                                numPhotons += g.count;
-                                irr.add(g.flux);
-                                if (diff != null) {
-                                    diff.add(g.diffuse);
-                                    ndiff++;
-                                }
-                                break; // only one valid group can be found,
-                                // skip the others
+                        // only one valid group can be found, skip the others
+                        int g = find(x, y, z, n);
+                        if (g >= 0) {
+                            int o = GROUP_SIZE * g;
+                            numPhotons += groupCounts[g];
+                            irrR += groups[o + 3];
+                            irrG += groups[o + 4];
+                            irrB += groups[o + 5];
+                            if (center < 0) {
+                                diffR += groups[o + 6];
+                                diffG += groups[o + 7];
+                                diffB += groups[o + 8];
+                                ndiff++;
                             }
                         }
                     }
@@ -224,67 +318,172 @@ public class GridPhotonMap implements GlobalPhotonMapInterface {
             if (numPhotons >= numGather || vol >= 3) {
                 // we have found enough photons
                 // cache irradiance and return
-                float area = (2 * vol - 1) / 3.0f * ((ext.x / nx) + (ext.y / ny) + (ext.z / nz));
+                float area = (2 * vol - 1) / 3.0f * ((extX / nx) + (extY / ny) + (extZ / nz));
                 area *= area;
                 area *= Math.PI;
-                irr.mul(1.0f / area);
-                // upgrade lock manually
-                rwl.readLock().unlock();
-                rwl.writeLock().lock();
-                try {
-                    if (center == null) {
-                        if (ndiff > 0) {
-                            diff.mul(1.0f / ndiff);
-                        }
-                        center = new PhotonGroup(id, n);
-                        center.diffuse.set(diff);
-                        center.next = cellHash[id % cellHash.length];
-                        cellHash[id % cellHash.length] = center;
+                float scale = 1.0f / area;
+                irrR *= scale;
+                irrG *= scale;
+                irrB *= scale;
+                if (center < 0) {
+                    if (ndiff > 0) {
+                        diffR *= 1.0f / ndiff;
+                        diffG *= 1.0f / ndiff;
+                        diffB *= 1.0f / ndiff;
+                    }
+                    center = insert(id, n, diffR, diffG, diffB);
+                    if (center < 0) {
+                        // out of room, the value is not cached
+                        return new Color(irrR * diffR, irrG * diffG, irrB * diffB);
+                    }
+                    if (radianceDone.get(center) != 0) {
+                        // another lookup added a matching group first
+                        return new Color(radiance[3 * center], radiance[3 * center + 1], radiance[3 * center + 2]);
                     }
-                    irr.mul(center.diffuse);
-                    center.radiance = irr.copy();
-                } finally {
-                    rwl.writeLock().unlock();
                 }
-                return irr;
+                // concurrent lookups compute and store the same value
+                int o = GROUP_SIZE * center;
+                float r = irrR * groups[o + 6];
+                float g = irrG * groups[o + 7];
+                float b = irrB * groups[o + 8];
+                radiance[3 * center] = r;
+                radiance[3 * center + 1] = g;
+                radiance[3 * center + 2] = b;
+                radianceDone.set(center, 1);
+                return new Color(r, g, b);
             }
             vol++;
         }
     }
 
-    private PhotonGroup get(int x, int y, int z) {
-        // returns the list associated with the specified location
+    /**
+     * Finds the first group of a cell which matches the normal. Stored groups
+     * are checked before the ones added by lookups.
+     *
+     * @return group index, or -1 if there is none
+     */
+    private int find(int x, int y, int z, Vector3 n) {
         if (x < 0 || x >= nx) {
-            return null;
+            return -1;
         }
         if (y < 0 || y >= ny) {
-            return null;
+            return -1;
         }
         if (z < 0 || z >= nz) {
-            return null;
+            return -1;
+        }
+        int slot = findSlot(x + y * nx + z * nx * ny);
+        if (cellIds.get(slot) == -1) {
+            return -1;
+        }
+        for (int i = cellGroups[2 * slot], end = i + cellGroups[2 * slot + 1]; i < end; i++) {
+            if (matches(i, n)) {
+                return i;
+            }
+        }
+        return findAdded(cellAdded.get(slot), -1, n);
+    }
+
+    /**
+     * Follows the groups added to a cell by lookups, from <code>i</code> up
+     * to <code>end</code>.
+     */
+    private int findAdded(int i, int end, Vector3 n) {
+        for (; i != end; i = groupNext[i]) {
+            if (matches(i, n)) {
+                return i;
+            }
         }
-        return cellHash[(x + y * nx + z * nx * ny) % cellHash.length];
+        return -1;
     }
 
-    private class PhotonGroup {
+    private boolean matches(int i, Vector3 n) {
+        int o = GROUP_SIZE * i;
+        return (n.x * groups[o] + n.y * groups[o + 1] + n.z * groups[o + 2]) > NORMAL_THRESHOLD;
+    }
 
-        int id;
+    /**
+     * Adds a group without photons for a lookup location. If another thread
+     * adds a matching group first, that group is returned instead.
+     *
+     * @return group index, or -1 if the arrays are full
+     */
+    private int insert(int id, Vector3 n, float dr, float dg, float db) {
+        if (numAdded.get() >= groupCounts.length) {
+            return -1;
+        }
+        int slot = claimSlot(id);
+        if (slot < 0) {
+            return -1;
+        }
+        int i = numAdded.getAndIncrement();
+        if (i >= groupCounts.length) {
+            return -1;
+        }
+        setGroup(i, n.x, n.y, n.z, 0, 0, 0, dr, dg, db);
+        int head = cellAdded.get(slot);
+        while (true) {
+            groupNext[i] = head;
+            if (cellAdded.compareAndSet(slot, head, i)) {
+                return i;
+            }
+            // only look at the groups added since the last attempt
+            int newHead = cellAdded.get(slot);
+            int other = findAdded(newHead, head, n);
+            if (other >= 0) {
+                return other;
+            }
+            head = newHead;
+        }
+    }
+
+    /**
+     * Gets the slot of a cell, taking a free one if the cell has none yet.
+     *
+     * @return slot index, or -1 if the table is full
+     */
+    private int claimSlot(int id) {
+        while (true) {
+            int slot = findSlot(id);
+            if (cellIds.get(slot) == id) {
+                return slot;
+            }
+            // keep free slots around so that probing always ends
+            if (usedSlots.incrementAndGet() > cellIds.length() * 3 / 4) {
+                usedSlots.decrementAndGet();
+                return -1;
+            }
+            if (cellIds.compareAndSet(slot, -1, id)) {
+                return slot;
+            }
+            // another cell took the slot, probe again
+            usedSlots.decrementAndGet();
+        }
+    }
+
+    private static final class PhotonGroup {
+
+        final int id;
+        final float nx, ny, nz;
         int count;
-        Vector3 normal;
-        Color flux;
-        Color radiance;
-        Color diffuse;
+        final Color flux;
+        final Color diffuse;
         PhotonGroup next;
 
         PhotonGroup(int id, Vector3 n) {
-            normal = new Vector3(n);
+            this.id = id;
+            nx = n.x;
+            ny = n.y;
+            nz = n.z;
+            count = 0;
             flux = Color.black();
             diffuse = Color.black();
-            radiance = null;
-            count = 0;
-            this.id = id;
             next = null;
         }
+
+        final boolean matches(Vector3 n) {
+            return (n.x * nx + n.y * ny + n.z * nz) > NORMAL_THRESHOLD;
+        }
     }
 
     @Override
@@ -0,0 +1,446 @@
+package org.sunflow.core.photonmap;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import org.sunflow.image.Color;
+import org.sunflow.math.BoundingBox;
+import org.sunflow.math.Point3;
+import org.sunflow.math.Vector3;
+
+/**
+ * Photon storage in primitive array form. Positions, encoded directions and
+ * normals and RGBE powers are kept in parallel arrays, indexed from 1 so the
+ * balanced kd-tree can use implicit heap addressing. During tracing each
+ * photon thread appends to its own buffer without locking, the buffers are
+ * merged once all photons have been stored.
+ */
+final class PhotonBuffer {
+
+    static final int SPLIT_X = 0;
+    static final int SPLIT_Y = 1;
+    static final int SPLIT_Z = 2;
+    private static final int INITIAL_CAPACITY = 1024;
+    // segments smaller than this are balanced by the current thread
+    private static final int PARALLEL_MIN_PHOTONS = 1 << 15;
+    private final boolean shadingData;
+    int size;
+    float[] positions;
+    short[] dirs;
+    short[] normals;
+    int[] powers;
+    int[] data;
+    byte[] axes;
+    final BoundingBox bounds;
+    float maxPower;
+
+    /**
+     * Creates an empty buffer.
+     *
+     * @param shadingData <code>true</code> to also store the surface normal
+     *            and diffuse color of each photon
+     */
+    PhotonBuffer(boolean shadingData) {
+        this(shadingData, INITIAL_CAPACITY);
+    }
+
+    private PhotonBuffer(boolean shadingData, int capacity) {
+        this.shadingData = shadingData;
+        size = 0;
+        positions = new float[3 * (capacity + 1)];
+        dirs = new short[capacity + 1];
+        powers = new int[capacity + 1];
+        if (shadingData) {
+            normals = new short[capacity + 1];
+            data = new int[capacity + 1];
+        }
+        bounds = new BoundingBox();
+        maxPower = 0;
+    }
+
+    /**
+     * Appends a photon to the buffer. This is not thread safe, each thread
+     * should use its own buffer.
+     *
+     * @param p photon position
+     * @param n surface normal, ignored without shading data
+     * @param dir photon direction
+     * @param power photon power
+     * @param diffuse surface diffuse color, ignored without shading data
+     */
+    void add(Point3 p, Vector3 n, Vector3 dir, Color power, Color diffuse) {
+        int i = ++size;
+        if (i == dirs.length) {
+            grow();
+        }
+        positions[3 * i + 0] = p.x;
+        positions[3 * i + 1] = p.y;
+        positions[3 * i + 2] = p.z;
+        dirs[i] = dir.encode();
+        powers[i] = power.toRGBE();
+        if (shadingData) {
+            normals[i] = n.encode();
+            data[i] = diffuse.toRGB();
+        }
+        bounds.include(p.x, p.y, p.z);
+        maxPower = Math.max(maxPower, power.getMax());
+    }
+
+    private void grow() {
+        int capacity = 2 * dirs.length;
+        positions = copyOf(positions, 3 * capacity);
+        dirs = copyOf(dirs, capacity);
+        powers = copyOf(powers, capacity);
+        if (shadingData) {
+            normals = copyOf(normals, capacity);
+            data = copyOf(data, capacity);
+        }
+    }
+
+    private static float[] copyOf(float[] a, int n) {
+        float[] b = new float[n];
+        System.arraycopy(a, 0, b, 0, Math.min(a.length, n));
+        return b;
+    }
+
+    private static short[] copyOf(short[] a, int n) {
+        short[] b = new short[n];
+        System.arraycopy(a, 0, b, 0, Math.min(a.length, n));
+        return b;
+    }
+
+    private static int[] copyOf(int[] a, int n) {
+        int[] b = new int[n];
+        System.arraycopy(a, 0, b, 0, Math.min(a.length, n));
+        return b;
+    }
+
+    /**
+     * Drops all photons past the specified count.
+     *
+     * @param n number of photons to keep
+     */
+    void truncate(int n) {
+        size = n;
+        positions = copyOf(positions, 3 * (n + 1));
+        dirs = copyOf(dirs, n + 1);
+        powers = copyOf(powers, n + 1);
+        if (shadingData) {
+            normals = copyOf(normals, n + 1);
+            data = copyOf(data, n + 1);
+        }
+        if (axes != null) {
+            axes = copyOf(axes, n + 1);
+        }
+    }
+
+    private static byte[] copyOf(byte[] a, int n) {
+        byte[] b = new byte[n];
+        System.arraycopy(a, 0, b, 0, Math.min(a.length, n));
+        return b;
+    }
+
+    final float getDist1(int i, float px, float py, float pz) {
+        switch (axes[i]) {
+            case SPLIT_X:
+                return px - positions[3 * i + 0];
+            case SPLIT_Y:
+                return py - positions[3 * i + 1];
+            default:
+                return pz - positions[3 * i + 2];
+        }
+    }
+
+    final float getDist2(int i, float px, float py, float pz) {
+        float dx = positions[3 * i + 0] - px;
+        float dy = positions[3 * i + 1] - py;
+        float dz = positions[3 * i + 2] - pz;
+        return (dx * dx) + (dy * dy) + (dz * dz);
+    }
+
+    /**
+     * Reorders the photons into a left balanced kd-tree. Photon
+     * <code>i</code> has children <code>2 * i</code> and
+     * <code>2 * i + 1</code> and splits space along <code>axes[i]</code>.
+     * Large subtrees are balanced in parallel when a pool is given, the
+     * resulting tree is the same either way.
+     *
+     * @param pool thread pool to balance subtrees in, or <code>null</code>
+     *            to balance on the current thread
+     */
+    void balance(ForkJoinPool pool) {
+        if (size == 0) {
+            return;
+        }
+        final int[] ids = new int[size + 1];
+        for (int i = 1; i <= size; i++) {
+            ids[i] = i;
+        }
+        final int[] tree = new int[size + 1];
+        final byte[] treeAxes = new byte[size + 1];
+        final float[] box = {bounds.getMinimum().x, bounds.getMinimum().y, bounds.getMinimum().z, bounds.getMaximum().x, bounds.getMaximum().y, bounds.getMaximum().z};
+        if (pool != null && size >= 2 * PARALLEL_MIN_PHOTONS) {
+            pool.invoke(new BalanceTask(ids, tree, treeAxes, 1, 1, size, box));
+        } else {
+            balanceSegment(ids, tree, treeAxes, 1, 1, size, box);
+        }
+        // gather the photon data in tree order
+        float[] p = new float[3 * (size + 1)];
+        short[] d = new short[size + 1];
+        int[] pw = new int[size + 1];
+        short[] n = shadingData ? new short[size + 1] : null;
+        int[] c = shadingData ? new int[size + 1] : null;
+        for (int i = 1; i <= size; i++) {
+            int id = tree[i];
+            p[3 * i + 0] = positions[3 * id + 0];
+            p[3 * i + 1] = positions[3 * id + 1];
+            p[3 * i + 2] = positions[3 * id + 2];
+            d[i] = dirs[id];
+            pw[i] = powers[id];
+            if (shadingData) {
+                n[i] = normals[id];
+                c[i] = data[id];
+            }
+        }
+        positions = p;
+        dirs = d;
+        powers = pw;
+        normals = n;
+        data = c;
+        axes = treeAxes;
+    }
+
+    /**
+     * Balances the photons <code>ids[start..end]</code> into the subtree
+     * rooted at <code>index</code>. The box holds the bounds of the segment as
+     * min x,y,z followed by max x,y,z. It is modified during recursion but
+     * restored on return.
+     */
+    private void balanceSegment(int[] ids, int[] tree, byte[] treeAxes, int index, int start, int end, float[] box) {
+        int median = 1;
+        while ((4 * median) <= (end - start + 1)) {
+            median += median;
+        }
+        if ((3 * median) <= (end - start + 1)) {
+            median += median;
+            median += (start - 1);
+        } else {
+            median = end - median + 1;
+        }
+        int axis = SPLIT_Z;
+        float ex = box[3] - box[0];
+        float ey = box[4] - box[1];
+        float ez = box[5] - box[2];
+        if ((ex > ey) && (ex > ez)) {
+            axis = SPLIT_X;
+        } else if (ey > ez) {
+            axis = SPLIT_Y;
+        }
+        int left = start;
+        int right = end;
+        while (right > left) {
+            double v = positions[3 * ids[right] + axis];
+            int i = left - 1;
+            int j = right;
+            while (true) {
+                while (positions[3 * ids[++i] + axis] < v) {
+                }
+                while ((positions[3 * ids[--j] + axis] > v) && (j > left)) {
+                }
+                if (i >= j) {
+                    break;
+                }
+                swap(ids, i, j);
+            }
+            swap(ids, i, right);
+            if (i >= median) {
+                right = i - 1;
+            }
+            if (i <= median) {
+                left = i + 1;
+            }
+        }
+        tree[index] = ids[median];
+        treeAxes[index] = (byte) axis;
+        float split = positions[3 * ids[median] + axis];
+        if (end - start >= PARALLEL_MIN_PHOTONS && ForkJoinTask.inForkJoinPool()) {
+            // both halves are large, balance them concurrently
+            float[] lbox = box.clone();
+            float[] rbox = box.clone();
+            lbox[3 + axis] = split;
+            rbox[axis] = split;
+            ForkJoinTask.invokeAll(new BalanceTask(ids, tree, treeAxes, 2 * index, start, median - 1, lbox), new BalanceTask(ids, tree, treeAxes, (2 * index) + 1, median + 1, end, rbox));
+            return;
+        }
+        if (median > start) {
+            if (start < (median - 1)) {
+                float tmp = box[3 + axis];
+                box[3 + axis] = split;
+                balanceSegment(ids, tree, treeAxes, 2 * index, start, median - 1, box);
+                box[3 + axis] = tmp;
+            } else {
+                tree[2 * index] = ids[start];
+            }
+        }
+        if (median < end) {
+            if ((median + 1) < end) {
+                float tmp = box[axis];
+                box[axis] = split;
+                balanceSegment(ids, tree, treeAxes, (2 * index) + 1, median + 1, end, box);
+                box[axis] = tmp;
+            } else {
+                tree[(2 * index) + 1] = ids[end];
+            }
+        }
+    }
+
+    private final class BalanceTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final int[] ids;
+        private final int[] tree;
+        private final byte[] treeAxes;
+        private final int index;
+        private final int start;
+        private final int end;
+        private final float[] box;
+
+        BalanceTask(int[] ids, int[] tree, byte[] treeAxes, int index, int start, int end, float[] box) {
+            this.ids = ids;
+            this.tree = tree;
+            this.treeAxes = treeAxes;
+            this.index = index;
+            this.start = start;
+            this.end = end;
+            this.box = box;
+        }
+
+        @Override
+        protected void compute() {
+            balanceSegment(ids, tree, treeAxes, index, start, end, box);
+        }
+    }
+
+    /**
+     * Writes the photons and split axes of a balanced buffer.
+     *
+     * @param out stream to write to
+     * @throws IOException if the data could not be written
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeInt(size);
+        out.writeFloat(maxPower);
+        for (int i = 1; i <= size; i++) {
+            out.writeFloat(positions[3 * i + 0]);
+            out.writeFloat(positions[3 * i + 1]);
+            out.writeFloat(positions[3 * i + 2]);
+            out.writeShort(dirs[i]);
+            out.writeInt(powers[i]);
+            out.writeByte(axes == null ? 0 : axes[i]);
+            if (shadingData) {
+                out.writeShort(normals[i]);
+                out.writeInt(data[i]);
+            }
+        }
+    }
+
+    /**
+     * Reads a buffer written by {@link #write(DataOutput)}.
+     *
+     * @param in buffer to read from
+     * @param shadingData <code>true</code> if the buffer was written with
+     *            shading data
+     * @return a new buffer
+     */
+    static PhotonBuffer read(ByteBuffer in, boolean shadingData) {
+        int n = in.getInt();
+        PhotonBuffer b = new PhotonBuffer(shadingData, n);
+        b.size = n;
+        b.maxPower = in.getFloat();
+        b.axes = new byte[n + 1];
+        for (int i = 1; i <= n; i++) {
+            float x = in.getFloat();
+            float y = in.getFloat();
+            float z = in.getFloat();
+            b.positions[3 * i + 0] = x;
+            b.positions[3 * i + 1] = y;
+            b.positions[3 * i + 2] = z;
+            b.dirs[i] = in.getShort();
+            b.powers[i] = in.getInt();
+            b.axes[i] = in.get();
+            if (shadingData) {
+                b.normals[i] = in.getShort();
+                b.data[i] = in.getInt();
+            }
+            b.bounds.include(x, y, z);
+        }
+        return b;
+    }
+
+    private static void swap(int[] ids, int i, int j) {
+        int tmp = ids[i];
+        ids[i] = ids[j];
+        ids[j] = tmp;
+    }
+
+    /**
+     * Hands out one buffer per photon thread and keeps track of them so they
+     * can be merged. Only the first photon stored by a thread takes a lock.
+     */
+    static final class PerThread extends ThreadLocal<PhotonBuffer> {
+
+        private final boolean shadingData;
+        private final ArrayList<PhotonBuffer> buffers;
+
+        PerThread(boolean shadingData) {
+            this.shadingData = shadingData;
+            buffers = new ArrayList<PhotonBuffer>();
+        }
+
+        @Override
+        protected PhotonBuffer initialValue() {
+            PhotonBuffer b = new PhotonBuffer(shadingData);
+            synchronized (buffers) {
+                buffers.add(b);
+            }
+            return b;
+        }
+
+        /**
+         * Concatenates the buffers of all threads. This must only be called
+         * once all photon threads are done.
+         *
+         * @return a single buffer holding all stored photons
+         */
+        PhotonBuffer merge() {
+            synchronized (buffers) {
+                int n = 0;
+                for (PhotonBuffer b : buffers) {
+                    n += b.size;
+                }
+                PhotonBuffer m = new PhotonBuffer(shadingData, n);
+                for (PhotonBuffer b : buffers) {
+                    System.arraycopy(b.positions, 3, m.positions, 3 * (m.size + 1), 3 * b.size);
+                    System.arraycopy(b.dirs, 1, m.dirs, m.size + 1, b.size);
+                    System.arraycopy(b.powers, 1, m.powers, m.size + 1, b.size);
+                    if (shadingData) {
+                        System.arraycopy(b.normals, 1, m.normals, m.size + 1, b.size);
+                        System.arraycopy(b.data, 1, m.data, m.size + 1, b.size);
+                    }
+                    m.size += b.size;
+                    if (b.size > 0) {
+                        m.bounds.include(b.bounds);
+                    }
+                    m.maxPower = Math.max(m.maxPower, b.maxPower);
+                }
+                buffers.clear();
+                return m;
+            }
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package org.sunflow.core.primitive;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import org.sunflow.core.IntersectionState;
+import org.sunflow.core.Ray;
+import org.sunflow.math.Vector3;
+import org.sunflow.system.Memory;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+
+/**
+ * Off-heap storage for the data of a {@link TriangleMesh}. Vertices, triangle
+ * indices and precomputed intersection records are kept in contiguous native
+ * order buffers which are either allocated directly or mapped from a
+ * temporary file. Shading normals are quantized to 32 bit octahedral codes.
+ * None of this memory is scanned by the garbage collector, which keeps very
+ * large meshes from causing long pauses.
+ */
+final class CompactTriangleStorage {
+
+    private static final int POINT_SIZE = 12;
+    private static final int TRIANGLE_SIZE = 12;
+    private static final int RECORD_SIZE = 40;
+    private static final int NORMAL_SIZE = 4;
+    private final int numVertices;
+    private final int numTriangles;
+    private final boolean mapped;
+    private final ByteBuffer points;
+    private final ByteBuffer triangles;
+    private final ByteBuffer records;
+    private ByteBuffer normals;
+    private boolean faceVaryingNormals;
+
+    private CompactTriangleStorage(int numVertices, int numTriangles, boolean mapped) throws IOException {
+        this.numVertices = numVertices;
+        this.numTriangles = numTriangles;
+        this.mapped = mapped;
+        points = allocate((long) numVertices * POINT_SIZE, mapped);
+        triangles = allocate((long) numTriangles * TRIANGLE_SIZE, mapped);
+        records = allocate((long) numTriangles * RECORD_SIZE, mapped);
+        normals = null;
+        faceVaryingNormals = false;
+    }
+
+    /**
+     * Creates off-heap copies of the specified mesh arrays. Intersection
+     * records must be filled in afterwards with
+     * {@link #setRecord(int, int, float, float, float, float, float, float, float, float, float)}.
+     *
+     * @param points vertex positions
+     * @param triangles triangle vertex indices
+     * @param mapped map the buffers from a temporary file instead of
+     *            allocating them directly
+     * @return a new storage object, or <code>null</code> if the buffers could
+     *         not be created
+     */
+    static CompactTriangleStorage create(float[] points, int[] triangles, boolean mapped) {
+        try {
+            CompactTriangleStorage s = new CompactTriangleStorage(points.length / 3, triangles.length / 3, mapped);
+            for (int i = 0, n = 3 * s.numVertices; i < n; i++) {
+                s.points.putFloat(i << 2, points[i]);
+            }
+            for (int i = 0, n = 3 * s.numTriangles; i < n; i++) {
+                s.triangles.putInt(i << 2, triangles[i]);
+            }
+            return s;
+        } catch (IOException e) {
+            UI.printError(Module.GEOM, "TRI - Unable to create compact storage: %s", e.getMessage());
+        } catch (IllegalArgumentException e) {
+            UI.printError(Module.GEOM, "TRI - Unable to create compact storage: %s", e.getMessage());
+        } catch (OutOfMemoryError e) {
+            UI.printError(Module.GEOM, "TRI - Unable to create compact storage: out of direct memory");
+        }
+        return null;
+    }
+
+    private static ByteBuffer allocate(long size, boolean mapped) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format("buffer too large (%s)", Memory.bytesToString(size)));
+        }
+        if (!mapped) {
+            return ByteBuffer.allocateDirect((int) size).order(ByteOrder.nativeOrder());
+        }
+        File file = File.createTempFile("sunflow", ".mesh");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(size);
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size).order(ByteOrder.nativeOrder());
+        } finally {
+            raf.close();
+            // the mapping stays valid after the file is unlinked on most
+            // platforms, otherwise clean up on exit
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Stores quantized shading normals.
+     *
+     * @param data normal vectors, either one per vertex or three per triangle
+     * @param faceVarying <code>true</code> if there are three normals per
+     *            triangle
+     * @return <code>true</code> if the normals were stored
+     */
+    boolean setNormals(float[] data, boolean faceVarying) {
+        int n = data.length / 3;
+        try {
+            normals = allocate((long) n * NORMAL_SIZE, mapped);
+        } catch (IOException e) {
+            UI.printWarning(Module.GEOM, "TRI - Unable to store compact normals: %s", e.getMessage());
+            return false;
+        } catch (OutOfMemoryError e) {
+            UI.printWarning(Module.GEOM, "TRI - Unable to store compact normals: out of direct memory");
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            normals.putInt(i << 2, encodeNormal(data[3 * i + 0], data[3 * i + 1], data[3 * i + 2]));
+        }
+        faceVaryingNormals = faceVarying;
+        return true;
+    }
+
+    void setRecord(int tri, int k, float nu, float nv, float nd, float bnu, float bnv, float bnd, float cnu, float cnv, float cnd) {
+        int o = tri * RECORD_SIZE;
+        records.putInt(o, k);
+        records.putFloat(o + 4, nu);
+        records.putFloat(o + 8, nv);
+        records.putFloat(o + 12, nd);
+        records.putFloat(o + 16, bnu);
+        records.putFloat(o + 20, bnv);
+        records.putFloat(o + 24, bnd);
+        records.putFloat(o + 28, cnu);
+        records.putFloat(o + 32, cnv);
+        records.putFloat(o + 36, cnd);
+    }
+
+    int getNumVertices() {
+        return numVertices;
+    }
+
+    int getNumTriangles() {
+        return numTriangles;
+    }
+
+    boolean hasNormals() {
+        return normals != null;
+    }
+
+    boolean hasFaceVaryingNormals() {
+        return faceVaryingNormals;
+    }
+
+    float[] getNormals() {
+        Vector3 n = new Vector3();
+        float[] data = new float[3 * (normals.capacity() / NORMAL_SIZE)];
+        for (int i = 0; i < data.length; i += 3) {
+            decodeNormal(normals.getInt(i / 3 << 2), n);
+            data[i + 0] = n.x;
+            data[i + 1] = n.y;
+            data[i + 2] = n.z;
+        }
+        return data;
+    }
+
+    long getSize() {
+        return points.capacity() + triangles.capacity() + records.capacity() + (normals == null ? 0 : normals.capacity());
+    }
+
+    /**
+     * Gets the vertex index stored at the specified position of the triangle
+     * index array.
+     */
+    int getIndex(int i) {
+        return triangles.getInt(i << 2);
+    }
+
+    /**
+     * Gets the vertex coordinate stored at the specified position of the
+     * point array.
+     */
+    float getCoord(int i) {
+        return points.getFloat(i << 2);
+    }
+
+    float[] getPoints() {
+        float[] p = new float[3 * numVertices];
+        for (int i = 0; i < p.length; i++) {
+            p[i] = points.getFloat(i << 2);
+        }
+        return p;
+    }
+
+    int[] getTriangles() {
+        int[] t = new int[3 * numTriangles];
+        for (int i = 0; i < t.length; i++) {
+            t[i] = triangles.getInt(i << 2);
+        }
+        return t;
+    }
+
+    /**
+     * Interpolates the shading normal of a triangle at the specified
+     * barycentric coordinates. The result is in object space and is not
+     * normalized.
+     */
+    void getNormal(int tri, float w, float u, float v, Vector3 n) {
+        int i0, i1, i2;
+        if (faceVaryingNormals) {
+            i0 = 3 * tri;
+            i1 = i0 + 1;
+            i2 = i0 + 2;
+        } else {
+            i0 = getIndex(3 * tri + 0);
+            i1 = getIndex(3 * tri + 1);
+            i2 = getIndex(3 * tri + 2);
+        }
+        int c0 = normals.getInt(i0 << 2);
+        int c1 = normals.getInt(i1 << 2);
+        int c2 = normals.getInt(i2 << 2);
+        decodeNormal(c0, n);
+        float x = w * n.x, y = w * n.y, z = w * n.z;
+        decodeNormal(c1, n);
+        x += u * n.x;
+        y += u * n.y;
+        z += u * n.z;
+        decodeNormal(c2, n);
+        n.x = x + v * n.x;
+        n.y = y + v * n.y;
+        n.z = z + v * n.z;
+    }
+
+    /**
+     * Intersects a ray with the precomputed record of a triangle. This matches
+     * the projection method used by the heap based triangle records.
+     */
+    void intersect(Ray r, int primID, IntersectionState state) {
+        int o = primID * RECORD_SIZE;
+        float nu = records.getFloat(o + 4);
+        float nv = records.getFloat(o + 8);
+        float nd = records.getFloat(o + 12);
+        float det, t, hu, hv;
+        switch (records.getInt(o)) {
+            case 0: {
+                det = 1.0f / (r.dx + nu * r.dy + nv * r.dz);
+                t = (nd - r.ox - nu * r.oy - nv * r.oz) * det;
+                if (!r.isInside(t)) {
+                    return;
+                }
+                hu = r.oy + t * r.dy;
+                hv = r.oz + t * r.dz;
+                break;
+            }
+            case 1: {
+                det = 1.0f / (r.dy + nu * r.dz + nv * r.dx);
+                t = (nd - r.oy - nu * r.oz - nv * r.ox) * det;
+                if (!r.isInside(t)) {
+                    return;
+                }
+                hu = r.oz + t * r.dz;
+                hv = r.ox + t * r.dx;
+                break;
+            }
+            default: {
+                det = 1.0f / (r.dz + nu * r.dx + nv * r.dy);
+                t = (nd - r.oz - nu * r.ox - nv * r.oy) * det;
+                if (!r.isInside(t)) {
+                    return;
+                }
+                hu = r.ox + t * r.dx;
+                hv = r.oy + t * r.dy;
+                break;
+            }
+        }
+        float u = hu * records.getFloat(o + 16) + hv * records.getFloat(o + 20) + records.getFloat(o + 24);
+        if (u < 0.0f) {
+            return;
+        }
+        float v = hu * records.getFloat(o + 28) + hv * records.getFloat(o + 32) + records.getFloat(o + 36);
+        if (v < 0.0f) {
+            return;
+        }
+        if (u + v > 1.0f) {
+            return;
+        }
+        r.setMax(t);
+        state.setIntersection(primID, u, v);
+    }
+
+    /**
+     * Encodes a direction as two signed 16 bit values using an octahedral
+     * projection.
+     */
+    private static int encodeNormal(float x, float y, float z) {
+        float s = Math.abs(x) + Math.abs(y) + Math.abs(z);
+        if (s == 0) {
+            return 0;
+        }
+        float px = x / s;
+        float py = y / s;
+        if (z < 0) {
+            float ox = (1 - Math.abs(py)) * (px >= 0 ? 1 : -1);
+            float oy = (1 - Math.abs(px)) * (py >= 0 ? 1 : -1);
+            px = ox;
+            py = oy;
+        }
+        int qx = Math.round(px * 32767);
+        int qy = Math.round(py * 32767);
+        return (qx << 16) | (qy & 0xFFFF);
+    }
+
+    private static void decodeNormal(int code, Vector3 n) {
+        float px = (code >> 16) / 32767.0f;
+        float py = (short) code / 32767.0f;
+        float pz = 1 - Math.abs(px) - Math.abs(py);
+        if (pz < 0) {
+            float ox = (1 - Math.abs(py)) * (px >= 0 ? 1 : -1);
+            float oy = (1 - Math.abs(px)) * (py >= 0 ? 1 : -1);
+            px = ox;
+            py = oy;
+        }
+        float len = (float) Math.sqrt(px * px + py * py + pz * pz);
+        n.x = px / len;
+        n.y = py / len;
+        n.z = pz / len;
+    }
+}
@@ -21,6 +21,7 @@ import org.sunflow.math.Matrix4;
 import org.sunflow.math.OrthoNormalBasis;
 import org.sunflow.math.Point3;
 import org.sunflow.math.Vector3;
+import org.sunflow.system.Memory;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
@@ -33,6 +34,8 @@ public class TriangleMesh implements PrimitiveList {
     private FloatParameter normals;
     private FloatParameter uvs;
     private byte[] faceShaders;
+    private String storage;
+    private CompactTriangleStorage compact;
 
     public static void setSmallTriangles(boolean smallTriangles) {
         if (smallTriangles) {
@@ -48,18 +51,20 @@ public class TriangleMesh implements PrimitiveList {
         points = null;
         normals = uvs = new FloatParameter();
         faceShaders = null;
+        storage = "heap";
+        compact = null;
     }
 
     public void writeObj(String filename) {
         try {
             FileWriter file = new FileWriter(filename);
             file.write(String.format("o object\n"));
-            for (int i = 0; i < points.length; i += 3) {
-                file.write(String.format("v %g %g %g\n", points[i], points[i + 1], points[i + 2]));
+            for (int i = 0, n = 3 * getNumVertices(); i < n; i += 3) {
+                file.write(String.format("v %g %g %g\n", getCoord(i), getCoord(i + 1), getCoord(i + 2)));
             }
             file.write("s off\n");
-            for (int i = 0; i < triangles.length; i += 3) {
-                file.write(String.format("f %d %d %d\n", triangles[i] + 1, triangles[i + 1] + 1, triangles[i + 2] + 1));
+            for (int i = 0, n = 3 * getNumPrimitives(); i < n; i += 3) {
+                file.write(String.format("f %d %d %d\n", getIndex(i) + 1, getIndex(i + 1) + 1, getIndex(i + 2) + 1));
             }
             file.close();
         } catch (IOException e) {
@@ -70,6 +75,30 @@ public class TriangleMesh implements PrimitiveList {
     @Override
     public boolean update(ParameterList pl, SunflowAPI api) {
         boolean updatedTopology = false;
+        {
+            String storageu = pl.getString("storage", storage);
+            if (!storageu.equals("heap") && !storageu.equals("direct") && !storageu.equals("mapped")) {
+                UI.printWarning(Module.GEOM, "Unrecognized mesh storage type \"%s\" - using heap storage", storageu);
+                storageu = "heap";
+            }
+            if (!storageu.equals(storage)) {
+                storage = storageu;
+                updatedTopology = points != null || compact != null;
+            }
+        }
+        if (compact != null) {
+            // move the mesh data back onto the heap so it can be updated,
+            // it will be compacted again by init()
+            points = compact.getPoints();
+            triangles = compact.getTriangles();
+            if (compact.hasNormals()) {
+                ParameterList npl = new ParameterList();
+                npl.addVectors("normals", compact.hasFaceVaryingNormals() ? InterpolationType.FACEVARYING : InterpolationType.VERTEX, compact.getNormals());
+                normals = npl.getVectorArray("normals");
+            }
+            compact = null;
+            updatedTopology = true;
+        }
         {
             int[] trianglesu = pl.getIntArray("triangles");
             if (trianglesu != null) {
@@ -131,30 +160,31 @@ public class TriangleMesh implements PrimitiveList {
     @Override
     public float getPrimitiveBound(int primID, int i) {
         int tri = 3 * primID;
-        int a = 3 * triangles[tri + 0];
-        int b = 3 * triangles[tri + 1];
-        int c = 3 * triangles[tri + 2];
+        int a = 3 * getIndex(tri + 0);
+        int b = 3 * getIndex(tri + 1);
+        int c = 3 * getIndex(tri + 2);
         int axis = i >>> 1;
         if ((i & 1) == 0) {
-            return MathUtils.min(points[a + axis], points[b + axis], points[c + axis]);
+            return MathUtils.min(getCoord(a + axis), getCoord(b + axis), getCoord(c + axis));
         } else {
-            return MathUtils.max(points[a + axis], points[b + axis], points[c + axis]);
+            return MathUtils.max(getCoord(a + axis), getCoord(b + axis), getCoord(c + axis));
         }
     }
 
     @Override
     public BoundingBox getWorldBounds(Matrix4 o2w) {
         BoundingBox bounds = new BoundingBox();
+        int n = 3 * getNumVertices();
         if (o2w == null) {
-            for (int i = 0; i < points.length; i += 3) {
-                bounds.include(points[i], points[i + 1], points[i + 2]);
+            for (int i = 0; i < n; i += 3) {
+                bounds.include(getCoord(i), getCoord(i + 1), getCoord(i + 2));
             }
         } else {
             // transform vertices first
-            for (int i = 0; i < points.length; i += 3) {
-                float x = points[i];
-                float y = points[i + 1];
-                float z = points[i + 2];
+            for (int i = 0; i < n; i += 3) {
+                float x = getCoord(i);
+                float y = getCoord(i + 1);
+                float z = getCoord(i + 2);
                 float wx = o2w.transformPX(x, y, z);
                 float wy = o2w.transformPY(x, y, z);
                 float wz = o2w.transformPZ(x, y, z);
@@ -218,12 +248,28 @@ public class TriangleMesh implements PrimitiveList {
             triaccel[primID].intersect(r, primID, state);
             return;
         }
+        if (compact != null) {
+            compact.intersect(r, primID, state);
+            return;
+        }
         intersectTriangleKensler(r, primID, state);
     }
 
     @Override
     public int getNumPrimitives() {
-        return triangles.length / 3;
+        return compact != null ? compact.getNumTriangles() : triangles.length / 3;
+    }
+
+    private int getNumVertices() {
+        return compact != null ? compact.getNumVertices() : points.length / 3;
+    }
+
+    protected final int getIndex(int i) {
+        return compact != null ? compact.getIndex(i) : triangles[i];
+    }
+
+    protected final float getCoord(int i) {
+        return compact != null ? compact.getCoord(i) : points[i];
     }
 
     @Override
@@ -236,9 +282,9 @@ public class TriangleMesh implements PrimitiveList {
         float w = 1 - u - v;
         state.getRay().getPoint(state.getPoint());
         int tri = 3 * primID;
-        int index0 = triangles[tri + 0];
-        int index1 = triangles[tri + 1];
-        int index2 = triangles[tri + 2];
+        int index0 = getIndex(tri + 0);
+        int index1 = getIndex(tri + 1);
+        int index2 = getIndex(tri + 2);
         Point3 v0p = getPoint(index0);
         Point3 v1p = getPoint(index1);
         Point3 v2p = getPoint(index2);
@@ -246,33 +292,39 @@ public class TriangleMesh implements PrimitiveList {
         ng = state.transformNormalObjectToWorld(ng);
         ng.normalize();
         state.getGeoNormal().set(ng);
-        switch (normals.interp) {
-            case NONE:
-            case FACE: {
-                state.getNormal().set(ng);
-                break;
-            }
-            case VERTEX: {
-                int i30 = 3 * index0;
-                int i31 = 3 * index1;
-                int i32 = 3 * index2;
-                float[] normalsu = this.normals.data;
-                state.getNormal().x = w * normalsu[i30 + 0] + u * normalsu[i31 + 0] + v * normalsu[i32 + 0];
-                state.getNormal().y = w * normalsu[i30 + 1] + u * normalsu[i31 + 1] + v * normalsu[i32 + 1];
-                state.getNormal().z = w * normalsu[i30 + 2] + u * normalsu[i31 + 2] + v * normalsu[i32 + 2];
-                state.getNormal().set(state.transformNormalObjectToWorld(state.getNormal()));
-                state.getNormal().normalize();
-                break;
-            }
-            case FACEVARYING: {
-                int idx = 3 * tri;
-                float[] normalsu = this.normals.data;
-                state.getNormal().x = w * normalsu[idx + 0] + u * normalsu[idx + 3] + v * normalsu[idx + 6];
-                state.getNormal().y = w * normalsu[idx + 1] + u * normalsu[idx + 4] + v * normalsu[idx + 7];
-                state.getNormal().z = w * normalsu[idx + 2] + u * normalsu[idx + 5] + v * normalsu[idx + 8];
-                state.getNormal().set(state.transformNormalObjectToWorld(state.getNormal()));
-                state.getNormal().normalize();
-                break;
+        if (compact != null && compact.hasNormals()) {
+            compact.getNormal(primID, w, u, v, state.getNormal());
+            state.getNormal().set(state.transformNormalObjectToWorld(state.getNormal()));
+            state.getNormal().normalize();
+        } else {
+            switch (normals.interp) {
+                case NONE:
+                case FACE: {
+                    state.getNormal().set(ng);
+                    break;
+                }
+                case VERTEX: {
+                    int i30 = 3 * index0;
+                    int i31 = 3 * index1;
+                    int i32 = 3 * index2;
+                    float[] normalsu = this.normals.data;
+                    state.getNormal().x = w * normalsu[i30 + 0] + u * normalsu[i31 + 0] + v * normalsu[i32 + 0];
+                    state.getNormal().y = w * normalsu[i30 + 1] + u * normalsu[i31 + 1] + v * normalsu[i32 + 1];
+                    state.getNormal().z = w * normalsu[i30 + 2] + u * normalsu[i31 + 2] + v * normalsu[i32 + 2];
+                    state.getNormal().set(state.transformNormalObjectToWorld(state.getNormal()));
+                    state.getNormal().normalize();
+                    break;
+                }
+                case FACEVARYING: {
+                    int idx = 3 * tri;
+                    float[] normalsu = this.normals.data;
+                    state.getNormal().x = w * normalsu[idx + 0] + u * normalsu[idx + 3] + v * normalsu[idx + 6];
+                    state.getNormal().y = w * normalsu[idx + 1] + u * normalsu[idx + 4] + v * normalsu[idx + 7];
+                    state.getNormal().z = w * normalsu[idx + 2] + u * normalsu[idx + 5] + v * normalsu[idx + 8];
+                    state.getNormal().set(state.transformNormalObjectToWorld(state.getNormal()));
+                    state.getNormal().normalize();
+                    break;
+                }
             }
         }
         float uv00 = 0, uv01 = 0, uv10 = 0, uv11 = 0, uv20 = 0, uv21 = 0;
@@ -345,7 +397,28 @@ public class TriangleMesh implements PrimitiveList {
 
     public void init() {
         triaccel = null;
+        compact = null;
         int nt = getNumPrimitives();
+        if (!storage.equals("heap")) {
+            CompactTriangleStorage s = CompactTriangleStorage.create(points, triangles, storage.equals("mapped"));
+            if (s != null) {
+                // precomputed triangle records are always used since they
+                // live outside of the heap
+                for (int i = 0; i < nt; i++) {
+                    new WaldTriangle(this, i).store(s, i);
+                }
+                if ((normals.interp == InterpolationType.VERTEX || normals.interp == InterpolationType.FACEVARYING) && s.setNormals(normals.data, normals.interp == InterpolationType.FACEVARYING)) {
+                    normals = new FloatParameter();
+                }
+                UI.printInfo(Module.GEOM, "TRI - Compact %s storage: %d triangles, %d vertices, %s", storage, nt, s.getNumVertices(), Memory.bytesToString(s.getSize()));
+                // release the heap copies
+                compact = s;
+                points = null;
+                triangles = null;
+                return;
+            }
+            UI.printWarning(Module.GEOM, "TRI - Falling back to heap storage");
+        }
         if (!smallTriangles) {
             // too many triangles? -- don't generate triaccel to save memory
             if (nt > 2000000) {
@@ -361,12 +434,12 @@ public class TriangleMesh implements PrimitiveList {
 
     protected Point3 getPoint(int i) {
         i *= 3;
-        return new Point3(points[i], points[i + 1], points[i + 2]);
+        return new Point3(getCoord(i), getCoord(i + 1), getCoord(i + 2));
     }
 
     public void getPoint(int tri, int i, Point3 p) {
-        int index = 3 * triangles[3 * tri + i];
-        p.set(points[index], points[index + 1], points[index + 2]);
+        int index = 3 * getIndex(3 * tri + i);
+        p.set(getCoord(index), getCoord(index + 1), getCoord(index + 2));
     }
 
     private static final class WaldTriangle {
@@ -442,6 +515,10 @@ public class TriangleMesh implements PrimitiveList {
             cnd = (cx * ay - cy * ax) / det;
         }
 
+        void store(CompactTriangleStorage s, int tri) {
+            s.setRecord(tri, k, nu, nv, nd, bnu, bnv, bnd, cnu, cnv, cnd);
+        }
+
         void intersect(Ray r, int primID, IntersectionState state) {
             switch (k) {
                 case 0: {
@@ -553,9 +630,9 @@ public class TriangleMesh implements PrimitiveList {
                 }
                 case VERTEX: {
                     int tri = 3 * primID;
-                    int index0 = triangles[tri + 0];
-                    int index1 = triangles[tri + 1];
-                    int index2 = triangles[tri + 2];
+                    int index0 = getIndex(tri + 0);
+                    int index1 = getIndex(tri + 1);
+                    int index2 = getIndex(tri + 2);
                     int i20 = 2 * index0;
                     int i21 = 2 * index1;
                     int i22 = 2 * index2;
@@ -623,9 +700,9 @@ public class TriangleMesh implements PrimitiveList {
                     return;
                 case VERTEX: {
                     int tri = 3 * primID;
-                    int index0 = triangles[tri + 0];
-                    int index1 = triangles[tri + 1];
-                    int index2 = triangles[tri + 2];
+                    int index0 = getIndex(tri + 0);
+                    int index1 = getIndex(tri + 1);
+                    int index2 = getIndex(tri + 2);
                     int i20 = 2 * index0;
                     int i21 = 2 * index1;
                     int i22 = 2 * index2;
@@ -713,9 +790,9 @@ public class TriangleMesh implements PrimitiveList {
             float w = 1 - u - v;
             // state.getRay().getPoint(state.getPoint());
             int tri = 3 * primID;
-            int index0 = triangles[tri + 0];
-            int index1 = triangles[tri + 1];
-            int index2 = triangles[tri + 2];
+            int index0 = getIndex(tri + 0);
+            int index1 = getIndex(tri + 1);
+            int index2 = getIndex(tri + 2);
             Point3 v0p = getPoint(index0);
             Point3 v1p = getPoint(index1);
             Point3 v2p = getPoint(index2);
@@ -733,37 +810,45 @@ public class TriangleMesh implements PrimitiveList {
             }
             ng.normalize();
             state.getGeoNormal().set(ng);
-            switch (normals.interp) {
-                case NONE:
-                case FACE: {
-                    state.getNormal().set(ng);
-                    break;
+            if (compact != null && compact.hasNormals()) {
+                compact.getNormal(primID, w, u, v, state.getNormal());
+                if (parent != null) {
+                    state.getNormal().set(state.transformNormalObjectToWorld(state.getNormal()));
                 }
-                case VERTEX: {
-                    int i30 = 3 * index0;
-                    int i31 = 3 * index1;
-                    int i32 = 3 * index2;
-                    float[] normals = TriangleMesh.this.normals.data;
-                    state.getNormal().x = w * normals[i30 + 0] + u * normals[i31 + 0] + v * normals[i32 + 0];
-                    state.getNormal().y = w * normals[i30 + 1] + u * normals[i31 + 1] + v * normals[i32 + 1];
-                    state.getNormal().z = w * normals[i30 + 2] + u * normals[i31 + 2] + v * normals[i32 + 2];
-                    if (parent != null) {
-                        state.getNormal().set(state.transformNormalObjectToWorld(state.getNormal()));
+                state.getNormal().normalize();
+            } else {
+                switch (normals.interp) {
+                    case NONE:
+                    case FACE: {
+                        state.getNormal().set(ng);
+                        break;
                     }
-                    state.getNormal().normalize();
-                    break;
-                }
-                case FACEVARYING: {
-                    int idx = 3 * tri;
-                    float[] normals = TriangleMesh.this.normals.data;
-                    state.getNormal().x = w * normals[idx + 0] + u * normals[idx + 3] + v * normals[idx + 6];
-                    state.getNormal().y = w * normals[idx + 1] + u * normals[idx + 4] + v * normals[idx + 7];
-                    state.getNormal().z = w * normals[idx + 2] + u * normals[idx + 5] + v * normals[idx + 8];
-                    if (parent != null) {
-                        state.getNormal().set(state.transformNormalObjectToWorld(state.getNormal()));
+                    case VERTEX: {
+                        int i30 = 3 * index0;
+                        int i31 = 3 * index1;
+                        int i32 = 3 * index2;
+                        float[] normals = TriangleMesh.this.normals.data;
+                        state.getNormal().x = w * normals[i30 + 0] + u * normals[i31 + 0] + v * normals[i32 + 0];
+                        state.getNormal().y = w * normals[i30 + 1] + u * normals[i31 + 1] + v * normals[i32 + 1];
+                        state.getNormal().z = w * normals[i30 + 2] + u * normals[i31 + 2] + v * normals[i32 + 2];
+                        if (parent != null) {
+                            state.getNormal().set(state.transformNormalObjectToWorld(state.getNormal()));
+                        }
+                        state.getNormal().normalize();
+                        break;
+                    }
+                    case FACEVARYING: {
+                        int idx = 3 * tri;
+                        float[] normals = TriangleMesh.this.normals.data;
+                        state.getNormal().x = w * normals[idx + 0] + u * normals[idx + 3] + v * normals[idx + 6];
+                        state.getNormal().y = w * normals[idx + 1] + u * normals[idx + 4] + v * normals[idx + 7];
+                        state.getNormal().z = w * normals[idx + 2] + u * normals[idx + 5] + v * normals[idx + 8];
+                        if (parent != null) {
+                            state.getNormal().set(state.transformNormalObjectToWorld(state.getNormal()));
+                        }
+                        state.getNormal().normalize();
+                        break;
                     }
-                    state.getNormal().normalize();
-                    break;
                 }
             }
             float uv00 = 0, uv01 = 0, uv10 = 0, uv11 = 0, uv20 = 0, uv21 = 0;
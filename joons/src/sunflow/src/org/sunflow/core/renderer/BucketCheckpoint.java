@@ -0,0 +1,332 @@
+package org.sunflow.core.renderer;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.sunflow.core.Display;
+import org.sunflow.core.Scene;
+import org.sunflow.image.Color;
+import org.sunflow.system.Memory;
+import org.sunflow.system.Timer;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+
+/**
+ * Append-only file holding the pixels of finished buckets, so that a long
+ * render which was interrupted can be resumed. The header holds a key
+ * describing the scene and sampler settings, followed by one record per
+ * bucket: its position and size, then red, green, blue and alpha floats for
+ * every pixel. Buckets which were split while rendering are only written
+ * once all of their parts are done, so every record covers a whole bucket. A
+ * record left incomplete by a crash is dropped when the file is opened again.
+ */
+final class BucketCheckpoint {
+
+    private static final int MAGIC = 0x53464350; // "SFCP"
+    private static final int VERSION = 1;
+    // how often the illumination cache is saved while rendering
+    private static final long CACHE_SAVE_NANOS = 60000000000L;
+
+    private final File file;
+    private final Scene scene;
+    private final int imageWidth;
+    private final int imageHeight;
+    private final int bucketSize;
+    private final int numBucketsX;
+    private final boolean[] restored;
+    private final AtomicLong finishedPixels;
+    private final AtomicLong lastCacheSave;
+    // guarded by this
+    private FileChannel channel;
+    private final HashMap<Integer, PartialBucket> partialBuckets;
+
+    private static final class PartialBucket {
+
+        final float[] data;
+        int pixels;
+
+        PartialBucket(int n) {
+            data = new float[4 * n];
+            pixels = 0;
+        }
+    }
+
+    private BucketCheckpoint(File file, Scene scene, int w, int h, int bucketSize, boolean[] restored, long restoredPixels) {
+        this.file = file;
+        this.scene = scene;
+        imageWidth = w;
+        imageHeight = h;
+        this.bucketSize = bucketSize;
+        numBucketsX = (w + bucketSize - 1) / bucketSize;
+        this.restored = restored;
+        finishedPixels = new AtomicLong(restoredPixels);
+        lastCacheSave = new AtomicLong(System.nanoTime());
+        partialBuckets = new HashMap<Integer, PartialBucket>();
+    }
+
+    /**
+     * Opens a checkpoint file, creating it if it does not exist. The buckets
+     * it holds are sent to the display. A checkpoint which was written with a
+     * different key is started over. Any other existing file is left alone.
+     *
+     * @param filename name of the checkpoint file
+     * @param key description of the scene and settings which affect pixels
+     * @param scene scene being rendered
+     * @param display display to send restored buckets to
+     * @param w image width
+     * @param h image height
+     * @param bucketSize bucket size
+     * @return checkpoint, or <code>null</code> if the file could not be opened
+     *         or is not a checkpoint
+     */
+    static BucketCheckpoint open(String filename, String key, Scene scene, Display display, int w, int h, int bucketSize) {
+        File file = new File(filename);
+        int numBucketsX = (w + bucketSize - 1) / bucketSize;
+        int numBucketsY = (h + bucketSize - 1) / bucketSize;
+        boolean[] restored = new boolean[numBucketsX * numBucketsY];
+        int numRestored = 0;
+        long restoredPixels = 0;
+        long end = -1;
+        if (file.exists() && file.length() > 0) {
+            Timer t = new Timer();
+            t.start();
+            boolean isCheckpoint = false;
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+                try {
+                    // never overwrite a file which is not a checkpoint, the
+                    // name may have been mistyped
+                    if (file.length() < 4 || in.readInt() != MAGIC) {
+                        UI.printError(Module.BCKT, "File \"%s\" is not a checkpoint - refusing to overwrite it", filename);
+                        return null;
+                    }
+                    isCheckpoint = true;
+                    if (in.readInt() == VERSION && in.readUTF().equals(key)) {
+                        end = header(key).length;
+                        byte[] pixels = new byte[0];
+                        while (true) {
+                            int x, y, bw, bh;
+                            try {
+                                x = in.readInt();
+                                y = in.readInt();
+                                bw = in.readInt();
+                                bh = in.readInt();
+                            } catch (EOFException e) {
+                                break;
+                            }
+                            if (x < 0 || y < 0 || x % bucketSize != 0 || y % bucketSize != 0 || x >= w || y >= h || bw != Math.min(bucketSize, w - x) || bh != Math.min(bucketSize, h - y)) {
+                                UI.printWarning(Module.BCKT, "Checkpoint holds an invalid bucket (%d, %d) %dx%d - ignoring the rest of the file", x, y, bw, bh);
+                                break;
+                            }
+                            if (pixels.length < 16 * bw * bh) {
+                                pixels = new byte[16 * bw * bh];
+                            }
+                            try {
+                                in.readFully(pixels, 0, 16 * bw * bh);
+                            } catch (EOFException e) {
+                                // the last bucket was not written completely
+                                break;
+                            }
+                            int cell = x / bucketSize + (y / bucketSize) * numBucketsX;
+                            if (!restored[cell]) {
+                                restored[cell] = true;
+                                numRestored++;
+                                restoredPixels += bw * bh;
+                                ByteBuffer buffer = ByteBuffer.wrap(pixels);
+                                Color[] data = new Color[bw * bh];
+                                float[] alpha = new float[bw * bh];
+                                for (int i = 0; i < bw * bh; i++) {
+                                    data[i] = new Color(buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+                                    alpha[i] = buffer.getFloat();
+                                }
+                                display.imageUpdate(x, y, bw, bh, data, alpha);
+                            }
+                            end += 16 + 16 * bw * bh;
+                        }
+                    } else {
+                        UI.printWarning(Module.BCKT, "Checkpoint \"%s\" was written for a different scene or settings - starting over", filename);
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                if (!isCheckpoint) {
+                    UI.printError(Module.BCKT, "Unable to read checkpoint \"%s\": %s", filename, e.getMessage());
+                    return null;
+                }
+                UI.printWarning(Module.BCKT, "Unable to read checkpoint \"%s\": %s - starting over", filename, e.getMessage());
+                end = -1;
+                numRestored = 0;
+                restoredPixels = 0;
+                restored = new boolean[restored.length];
+            }
+            t.end();
+            if (numRestored > 0) {
+                UI.printInfo(Module.BCKT, "Restored %d of %d buckets from checkpoint \"%s\" in %s", numRestored, restored.length, filename, t);
+            }
+        }
+        BucketCheckpoint checkpoint = new BucketCheckpoint(file, scene, w, h, bucketSize, restored, restoredPixels);
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            FileChannel channel = raf.getChannel();
+            if (end < 0) {
+                ByteBuffer header = ByteBuffer.wrap(header(key));
+                channel.truncate(0);
+                while (header.hasRemaining()) {
+                    channel.write(header, header.position());
+                }
+                end = header.limit();
+            }
+            // drop any bucket left incomplete by an interrupted write
+            channel.truncate(end);
+            channel.position(end);
+            checkpoint.channel = channel;
+        } catch (IOException e) {
+            UI.printError(Module.BCKT, "Unable to open checkpoint \"%s\": %s", filename, e.getMessage());
+            return null;
+        }
+        return checkpoint;
+    }
+
+    private static byte[] header(String key) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(key);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Checks if a bucket was restored from the file.
+     *
+     * @param bx horizontal bucket coordinate
+     * @param by vertical bucket coordinate
+     * @return <code>true</code> if the bucket does not need to be rendered
+     */
+    boolean isRestored(int bx, int by) {
+        return restored[bx + by * numBucketsX];
+    }
+
+    /**
+     * Records the pixels of a finished region. Regions smaller than their
+     * bucket are kept in memory until the whole bucket is done.
+     */
+    void write(int x0, int y0, int w, int h, Color[] rgb, float[] alpha) {
+        int bx = x0 / bucketSize;
+        int by = y0 / bucketSize;
+        int bucketX = bx * bucketSize;
+        int bucketY = by * bucketSize;
+        int bw = Math.min(bucketSize, imageWidth - bucketX);
+        int bh = Math.min(bucketSize, imageHeight - bucketY);
+        ByteBuffer record;
+        if (w == bw && h == bh) {
+            record = ByteBuffer.allocate(16 + 16 * w * h);
+            record.putInt(x0).putInt(y0).putInt(w).putInt(h);
+            for (int i = 0; i < w * h; i++) {
+                float[] c = rgb[i].getRGB();
+                record.putFloat(c[0]).putFloat(c[1]).putFloat(c[2]).putFloat(alpha[i]);
+            }
+        } else {
+            float[] data;
+            synchronized (this) {
+                Integer cell = bx + by * numBucketsX;
+                PartialBucket partial = partialBuckets.get(cell);
+                if (partial == null) {
+                    partial = new PartialBucket(bw * bh);
+                    partialBuckets.put(cell, partial);
+                }
+                for (int y = 0, i = 0; y < h; y++) {
+                    for (int x = 0; x < w; x++, i++) {
+                        int j = 4 * ((x0 - bucketX + x) + (y0 - bucketY + y) * bw);
+                        float[] c = rgb[i].getRGB();
+                        partial.data[j + 0] = c[0];
+                        partial.data[j + 1] = c[1];
+                        partial.data[j + 2] = c[2];
+                        partial.data[j + 3] = alpha[i];
+                    }
+                }
+                partial.pixels += w * h;
+                if (partial.pixels < bw * bh) {
+                    return;
+                }
+                partialBuckets.remove(cell);
+                data = partial.data;
+            }
+            record = ByteBuffer.allocate(16 + 16 * bw * bh);
+            record.putInt(bucketX).putInt(bucketY).putInt(bw).putInt(bh);
+            for (float f : data) {
+                record.putFloat(f);
+            }
+        }
+        record.flip();
+        synchronized (this) {
+            if (channel == null) {
+                return;
+            }
+            try {
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+            } catch (IOException e) {
+                UI.printError(Module.BCKT, "Unable to write checkpoint \"%s\": %s - checkpointing disabled", file.getName(), e.getMessage());
+                closeChannel();
+                return;
+            }
+        }
+        finishedPixels.addAndGet(bw * bh);
+        // irradiance samples are only saved at the end of a frame, save them
+        // every now and then so that a resumed render does not lose them
+        long last = lastCacheSave.get();
+        long now = System.nanoTime();
+        if (now - last > CACHE_SAVE_NANOS && lastCacheSave.compareAndSet(last, now)) {
+            scene.saveIlluminationCache();
+        }
+    }
+
+    /**
+     * Closes the file. It is deleted if the whole image was rendered, and
+     * kept so that rendering can be resumed otherwise.
+     */
+    void close() {
+        long size;
+        synchronized (this) {
+            if (channel == null) {
+                return;
+            }
+            try {
+                size = channel.size();
+            } catch (IOException e) {
+                size = 0;
+            }
+            closeChannel();
+        }
+        if (finishedPixels.get() == (long) imageWidth * imageHeight) {
+            if (file.delete()) {
+                UI.printInfo(Module.BCKT, "Frame is complete - removed checkpoint \"%s\"", file.getName());
+            }
+        } else {
+            UI.printInfo(Module.BCKT, "Saved checkpoint \"%s\" (%s) - render again with the same scene and options to resume", file.getName(), Memory.bytesToString(size));
+        }
+    }
+
+    private void closeChannel() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+        channel = null;
+    }
+}
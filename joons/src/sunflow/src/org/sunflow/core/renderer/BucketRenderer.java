@@ -1,6 +1,20 @@
 package org.sunflow.core.renderer;
 
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
 import org.sunflow.PluginRegistry;
+import org.sunflow.SunflowAPI;
+import org.sunflow.core.BucketDisplay;
 import org.sunflow.core.BucketOrder;
 import org.sunflow.core.Display;
 import org.sunflow.core.Filter;
@@ -8,6 +22,7 @@ import org.sunflow.core.ImageSampler;
 import org.sunflow.core.Instance;
 import org.sunflow.core.IntersectionState;
 import org.sunflow.core.Options;
+import org.sunflow.core.RayPacket;
 import org.sunflow.core.Scene;
 import org.sunflow.core.Shader;
 import org.sunflow.core.ShadingState;
@@ -17,6 +32,7 @@ import org.sunflow.image.Color;
 import org.sunflow.image.formats.GenericBitmap;
 import org.sunflow.math.MathUtils;
 import org.sunflow.math.QMC;
+import org.sunflow.system.Memory;
 import org.sunflow.system.Timer;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
@@ -32,9 +48,29 @@ public class BucketRenderer implements ImageSampler {
     private String bucketOrderName;
     private BucketOrder bucketOrder;
     private int bucketSize;
-    private int bucketCounter;
+    private int numBucketsX;
+    private final AtomicInteger bucketCounter;
     private int[] bucketCoords;
     private boolean dumpBuckets;
+    // scheduling
+    private static final int MIN_SPLIT_SIZE = 8;
+    private String schedulerName;
+    private ConcurrentLinkedQueue<BucketWorkerStats> workerStats;
+    // deadline
+    private long deadline;
+    private CoarseImage coarseImage;
+    // buckets which were rendered or restored, indexed by their position
+    private AtomicIntegerArray finishedBuckets;
+    private String checkpointName;
+    private String checkpointSceneKey;
+    private BucketCheckpoint checkpoint;
+    // options which only change how or how long the image is rendered, a
+    // checkpoint may be resumed with different values
+    private static final String[] CHECKPOINT_IGNORED_OPTIONS = { "threads",
+            "threads.lowPriority", "render.deadline", "bucket.checkpoint",
+            "bucket.checkpoint.scene", "bucket.scheduler", "bucket.order",
+            "accel.cache", "gi.cache", "texture.memory", "distributed.port",
+            "distributed.bind", "distributed.scene" };
     // anti-aliasing
     private int minAADepth;
     private int maxAADepth;
@@ -42,6 +78,9 @@ public class BucketRenderer implements ImageSampler {
     private float contrastThreshold;
     private boolean jitter;
     private boolean displayAA;
+    // experimental - without SIMD the packet loops are not faster than
+    // tracing single rays, the option is kept for testing only
+    private boolean packets;
     // derived quantities
     private double invSuperSampling;
     private int subPixelSize;
@@ -51,6 +90,7 @@ public class BucketRenderer implements ImageSampler {
     private int sigmaLength;
     private float thresh;
     private boolean useJitter;
+    private boolean usePackets;
     // filtering
     private String filterName;
     private Filter filter;
@@ -60,10 +100,13 @@ public class BucketRenderer implements ImageSampler {
     public BucketRenderer() {
         bucketSize = 32;
         bucketOrderName = "hilbert";
+        bucketCounter = new AtomicInteger();
+        schedulerName = "forkjoin";
         displayAA = false;
         contrastThreshold = 0.1f;
         filterName = "box";
         jitter = false; // off by default
+        packets = false; // off by default
         dumpBuckets = false; // for debugging only - not user settable
     }
 
@@ -75,19 +118,28 @@ public class BucketRenderer implements ImageSampler {
         // fetch options
         bucketSize = options.getInt("bucket.size", bucketSize);
         bucketOrderName = options.getString("bucket.order", bucketOrderName);
+        schedulerName = options.getString("bucket.scheduler", schedulerName);
         minAADepth = options.getInt("aa.min", minAADepth);
         maxAADepth = options.getInt("aa.max", maxAADepth);
         superSampling = options.getInt("aa.samples", superSampling);
         displayAA = options.getBoolean("aa.display", displayAA);
         jitter = options.getBoolean("aa.jitter", jitter);
         contrastThreshold = options.getFloat("aa.contrast", contrastThreshold);
+        packets = options.getBoolean("bucket.packets", packets);
+        checkpointName = options.getString("bucket.checkpoint", null);
+        checkpointSceneKey = checkpointName == null ? null : computeSceneKey(options.getString("bucket.checkpoint.scene", null), options);
+        deadline = scene.getDeadline();
 
         // limit bucket size and compute number of buckets in each direction
         bucketSize = MathUtils.clamp(bucketSize, 16, 512);
-        int numBucketsX = (imageWidth + bucketSize - 1) / bucketSize;
+        numBucketsX = (imageWidth + bucketSize - 1) / bucketSize;
         int numBucketsY = (imageHeight + bucketSize - 1) / bucketSize;
         bucketOrder = BucketOrderFactory.create(bucketOrderName);
         bucketCoords = bucketOrder.getBucketSequence(numBucketsX, numBucketsY);
+        if (!schedulerName.equals("forkjoin") && !schedulerName.equals("threads")) {
+            UI.printWarning(Module.BCKT, "Unrecognized bucket scheduler: \"%s\" - defaulting to forkjoin", schedulerName);
+            schedulerName = "forkjoin";
+        }
         // validate AA options
         minAADepth = MathUtils.clamp(minAADepth, -4, 5);
         maxAADepth = MathUtils.clamp(maxAADepth, minAADepth, 5);
@@ -102,6 +154,8 @@ public class BucketRenderer implements ImageSampler {
             maxStepSize = minAADepth > 0 ? 1 << minAADepth : subPixelSize << (-minAADepth);
         }
         useJitter = jitter && maxAADepth > 0;
+        // packets are only traced for single sample primary rays
+        usePackets = packets && superSampling == 1 && scene.canTracePackets();
         // compute anti-aliasing contrast thresholds
         contrastThreshold = MathUtils.clamp(contrastThreshold, 0, 1);
         thresh = contrastThreshold * (float) Math.pow(2.0f, minAADepth);
@@ -124,6 +178,7 @@ public class BucketRenderer implements ImageSampler {
         UI.printInfo(Module.BCKT, "  * Resolution:         %dx%d", imageWidth, imageHeight);
         UI.printInfo(Module.BCKT, "  * Bucket size:        %d", bucketSize);
         UI.printInfo(Module.BCKT, "  * Number of buckets:  %dx%d", numBucketsX, numBucketsY);
+        UI.printInfo(Module.BCKT, "  * Bucket scheduler:   %s", schedulerName);
         if (minAADepth != maxAADepth) {
             UI.printInfo(Module.BCKT, "  * Anti-aliasing:      %s -> %s (adaptive)", aaDepthToString(minAADepth), aaDepthToString(maxAADepth));
         } else {
@@ -132,8 +187,10 @@ public class BucketRenderer implements ImageSampler {
         UI.printInfo(Module.BCKT, "  * Rays per sample:    %d", superSampling);
         UI.printInfo(Module.BCKT, "  * Subpixel jitter:    %s", useJitter ? "on" : (jitter ? "auto-off" : "off"));
         UI.printInfo(Module.BCKT, "  * Contrast threshold: %.2f", contrastThreshold);
+        UI.printInfo(Module.BCKT, "  * Packet tracing:     %s", usePackets ? "on (experimental)" : (packets ? "auto-off" : "off"));
         UI.printInfo(Module.BCKT, "  * Filter type:        %s", filterName);
         UI.printInfo(Module.BCKT, "  * Filter size:        %.2f pixels", filter.getSize());
+        UI.printInfo(Module.BCKT, "  * Checkpoint:         %s", checkpointName == null ? "none" : checkpointName);
         return true;
     }
 
@@ -146,11 +203,135 @@ public class BucketRenderer implements ImageSampler {
         this.display = display;
         display.imageBegin(imageWidth, imageHeight, bucketSize);
         // set members variables
-        bucketCounter = 0;
+        bucketCounter.set(0);
+        workerStats = new ConcurrentLinkedQueue<BucketWorkerStats>();
         // start task
         UI.taskStart("Rendering", 0, bucketCoords.length);
         Timer timer = new Timer();
         timer.start();
+        if (deadline != Long.MAX_VALUE) {
+            coarseImage = new CoarseImage(scene, Module.BCKT, imageWidth, imageHeight);
+            coarseImage.render();
+            finishedBuckets = new AtomicIntegerArray(bucketCoords.length / 2);
+        }
+        if (checkpointName != null) {
+            openCheckpoint();
+        }
+        if (schedulerName.equals("threads") || display instanceof BucketDisplay) {
+            renderThreads();
+        } else {
+            renderForkJoin();
+        }
+        UI.taskStop();
+        if (checkpoint != null) {
+            checkpoint.close();
+            checkpoint = null;
+        }
+        if (coarseImage != null) {
+            fillUnfinishedBuckets();
+            coarseImage = null;
+            finishedBuckets = null;
+        }
+        timer.end();
+        UI.printInfo(Module.BCKT, "Render time: %s", timer.toString());
+        printSchedulerStats(timer.nanos());
+        display.imageEnd();
+    }
+
+    /**
+     * Opens the checkpoint file and shows the buckets it holds. Restored
+     * buckets are skipped by the rendering threads.
+     */
+    private void openCheckpoint() {
+        if (display instanceof BucketDisplay) {
+            UI.printWarning(Module.BCKT, "Buckets are handed out by the display - ignoring checkpoint \"%s\"", checkpointName);
+            return;
+        }
+        // anything which changes the pixels of a bucket must be part of the
+        // key, the scene and the remaining options are covered by their hash
+        String key = String.format("%dx%d;%d;%d;%d;%d;%s;%b;%b;%s;%s", imageWidth, imageHeight, bucketSize, minAADepth, maxAADepth, superSampling, Float.toHexString(contrastThreshold), useJitter, displayAA, filterName, checkpointSceneKey);
+        checkpoint = BucketCheckpoint.open(checkpointName, key, scene, display, imageWidth, imageHeight, bucketSize);
+        if (checkpoint != null && finishedBuckets != null) {
+            for (int i = 0; i < bucketCoords.length; i += 2) {
+                if (isRestored(i)) {
+                    finishedBuckets.set(bucketCoords[i + 0] + bucketCoords[i + 1] * numBucketsX, 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Hashes the translated scene file together with the options, so that a
+     * checkpoint is only resumed for the scene it was written for.
+     *
+     * @param filename scene file, may be <code>null</code>
+     * @param options render options
+     * @return hex encoded hash, or the scene bounds if the scene file could
+     *         not be translated
+     */
+    private String computeSceneKey(String filename, Options options) {
+        byte[] data = filename == null || filename.endsWith(".java") ? null : SunflowAPI.serialize(filename, null);
+        if (data == null) {
+            UI.printWarning(Module.BCKT, "Unable to hash the scene file - checkpoint \"%s\" only detects changes to the scene bounds", checkpointName);
+            return scene.getBounds().toString();
+        }
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        digest.update(data);
+        options.updateDigest(digest, CHECKPOINT_IGNORED_OPTIONS);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b & 0xFF));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Checks if a bucket was restored from the checkpoint.
+     *
+     * @param bucket offset of the bucket in the bucket sequence
+     */
+    private boolean isRestored(int bucket) {
+        return checkpoint != null && checkpoint.isRestored(bucketCoords[bucket + 0], bucketCoords[bucket + 1]);
+    }
+
+    private boolean pastDeadline() {
+        return System.nanoTime() > deadline;
+    }
+
+    /**
+     * Fills the buckets which were not finished before the deadline from the
+     * coarse image, and reports the quality of every bucket to the display.
+     * Buckets are always finished as a whole, even when their sampling was
+     * split between threads.
+     */
+    private void fillUnfinishedBuckets() {
+        long fullPixels = 0;
+        for (int i = 0; i < bucketCoords.length; i += 2) {
+            int x0 = bucketCoords[i + 0] * bucketSize;
+            int y0 = bucketCoords[i + 1] * bucketSize;
+            int bw = Math.min(bucketSize, imageWidth - x0);
+            int bh = Math.min(bucketSize, imageHeight - y0);
+            if (finishedBuckets.get(bucketCoords[i + 0] + bucketCoords[i + 1] * numBucketsX) != 0) {
+                fullPixels += bw * bh;
+                CoarseImage.report(display, x0, y0, bw, bh, true);
+            } else {
+                coarseImage.fill(display, x0, y0, bw, bh);
+                CoarseImage.report(display, x0, y0, bw, bh, false);
+            }
+        }
+        CoarseImage.printSummary(Module.BCKT, fullPixels, (long) imageWidth * imageHeight);
+    }
+
+    /**
+     * Renders buckets with a fixed set of threads which each pull the next
+     * bucket from the shared bucket sequence.
+     */
+    private void renderThreads() {
         BucketThread[] renderThreads = new BucketThread[scene.getThreads()];
         for (int i = 0; i < renderThreads.length; i++) {
             renderThreads[i] = new BucketThread(i);
@@ -166,54 +347,289 @@ public class BucketRenderer implements ImageSampler {
                 renderThreads[i].updateStats();
             }
         }
-        UI.taskStop();
-        timer.end();
-        UI.printInfo(Module.BCKT, "Render time: %s", timer.toString());
-        display.imageEnd();
     }
 
-    private class BucketThread extends Thread {
+    /**
+     * Gets the offset of the next bucket in the bucket sequence. Displays which
+     * hand out buckets themselves are asked for them, otherwise the sequence
+     * is walked in order.
+     */
+    private int nextBucket() {
+        if (display instanceof BucketDisplay) {
+            int index = ((BucketDisplay) display).nextBucket();
+            return index < 0 ? bucketCoords.length : 2 * index;
+        }
+        return bucketCounter.getAndAdd(2);
+    }
 
-        private final int threadID;
-        private final IntersectionState istate;
+    /**
+     * Renders buckets on a work-stealing pool. The bucket sequence is split
+     * recursively so idle workers steal large ranges first. Once the queues
+     * run dry, the sampling of the buckets still in progress is split into
+     * stripes to keep every worker busy until the end of the frame. Buckets
+     * are still displayed whole and in the order of the bucket sequence.
+     */
+    private void renderForkJoin() {
+        final AtomicInteger workerCounter = new AtomicInteger();
+        ForkJoinPool pool = new ForkJoinPool(scene.getThreads(), new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                return new BucketWorker(pool, workerCounter.getAndIncrement());
+            }
+        }, null, false);
+        try {
+            pool.invoke(new BucketRangeTask(0, bucketCoords.length / 2));
+        } finally {
+            pool.shutdown();
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                UI.printError(Module.BCKT, "Interrupted while waiting for bucket workers to finish");
+            }
+        }
+        for (BucketWorkerStats stats : workerStats) {
+            scene.accumulateStats(stats.istate);
+        }
+    }
 
-        BucketThread(int threadID) {
+    private void printSchedulerStats(long wallNanos) {
+        if (workerStats.isEmpty() || wallNanos <= 0) {
+            return;
+        }
+        long totalBusy = 0;
+        int totalSplits = 0;
+        UI.printInfo(Module.BCKT, "Bucket scheduler stats:");
+        for (BucketWorkerStats stats : workerStats) {
+            long idle = Math.max(0, wallNanos - stats.busyNanos);
+            UI.printDetailed(Module.BCKT, "  * Thread %-3d %5d buckets  busy %-10s idle %-10s (%.1f%% busy)", stats.threadID, stats.buckets, Timer.toString(stats.busyNanos), Timer.toString(idle), 100.0 * stats.busyNanos / wallNanos);
+            totalBusy += stats.busyNanos;
+            totalSplits += stats.splits;
+        }
+        UI.printInfo(Module.BCKT, "  * Worker threads:     %d", workerStats.size());
+        UI.printInfo(Module.BCKT, "  * Bucket splits:      %d", totalSplits);
+        UI.printInfo(Module.BCKT, "  * Thread efficiency:  %.1f%%", 100.0 * totalBusy / ((double) wallNanos * workerStats.size()));
+    }
+
+    /**
+     * Per-thread scheduling statistics and tracing state.
+     */
+    private final class BucketWorkerStats {
+
+        final int threadID;
+        final IntersectionState istate;
+        final RayPacket packet;
+        long busyNanos;
+        int buckets;
+        int splits;
+        // stripes of a bucket may be run by the worker which owns the bucket
+        // while it waits for them, only the outermost task is timed
+        private int depth;
+        private long t0;
+        private long a0;
+
+        BucketWorkerStats(int threadID) {
             this.threadID = threadID;
             istate = new IntersectionState();
+            packet = usePackets ? new RayPacket() : null;
+        }
+
+        void begin() {
+            if (depth++ == 0) {
+                t0 = System.nanoTime();
+                a0 = Memory.getAllocatedBytes();
+            }
+        }
+
+        void end() {
+            if (--depth == 0) {
+                istate.addAllocatedBytes(Memory.getAllocatedBytes() - a0);
+                busyNanos += System.nanoTime() - t0;
+            }
+        }
+    }
+
+    private class BucketThread extends Thread {
+
+        private final BucketWorkerStats stats;
+
+        BucketThread(int threadID) {
+            stats = new BucketWorkerStats(threadID);
+            workerStats.add(stats);
         }
 
         @Override
         public void run() {
             while (true) {
-                int bx, by;
-                synchronized (BucketRenderer.this) {
-                    if (bucketCounter >= bucketCoords.length) {
-                        return;
-                    }
-                    UI.taskUpdate(bucketCounter);
-                    bx = bucketCoords[bucketCounter + 0];
-                    by = bucketCoords[bucketCounter + 1];
-                    bucketCounter += 2;
+                int bucket = nextBucket();
+                if (bucket >= bucketCoords.length) {
+                    return;
                 }
-                renderBucket(display, bx, by, threadID, istate);
-                if (UI.taskCanceled()) {
+                UI.taskUpdate(bucket);
+                if (isRestored(bucket)) {
+                    continue;
+                }
+                int x0 = bucketCoords[bucket + 0] * bucketSize;
+                int y0 = bucketCoords[bucket + 1] * bucketSize;
+                stats.begin();
+                renderBucket(display, x0, y0, Math.min(bucketSize, imageWidth - x0), Math.min(bucketSize, imageHeight - y0), stats.threadID, stats.istate, stats.packet);
+                stats.end();
+                stats.buckets++;
+                if (UI.taskCanceled() || pastDeadline()) {
                     return;
                 }
             }
         }
 
         void updateStats() {
-            scene.accumulateStats(istate);
+            scene.accumulateStats(stats.istate);
+        }
+    }
+
+    private final class BucketWorker extends ForkJoinWorkerThread {
+
+        private final BucketWorkerStats stats;
+
+        BucketWorker(ForkJoinPool pool, int threadID) {
+            super(pool);
+            setPriority(scene.getThreadPriority());
+            stats = new BucketWorkerStats(threadID);
+            workerStats.add(stats);
         }
     }
 
-    private void renderBucket(Display display, int bx, int by, int threadID, IntersectionState istate) {
-        // pixel sized extents
-        int x0 = bx * bucketSize;
-        int y0 = by * bucketSize;
-        int bw = Math.min(bucketSize, imageWidth - x0);
-        int bh = Math.min(bucketSize, imageHeight - y0);
+    /**
+     * Range of the bucket sequence, split in halves until a single bucket
+     * remains. Leaves claim buckets from the shared counter rather than
+     * rendering their own offset, so buckets are started in sequence order
+     * whichever worker runs them.
+     */
+    private final class BucketRangeTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final int lo, hi;
+
+        BucketRangeTask(int lo, int hi) {
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new BucketRangeTask(lo, mid), new BucketRangeTask(mid, hi));
+                return;
+            }
+            int bucket = bucketCounter.getAndAdd(2);
+            UI.taskUpdate(bucket);
+            if (UI.taskCanceled() || pastDeadline() || isRestored(bucket)) {
+                return;
+            }
+            BucketWorkerStats stats = ((BucketWorker) Thread.currentThread()).stats;
+            int x0 = bucketCoords[bucket + 0] * bucketSize;
+            int y0 = bucketCoords[bucket + 1] * bucketSize;
+            stats.begin();
+            renderBucket(display, x0, y0, Math.min(bucketSize, imageWidth - x0), Math.min(bucketSize, imageHeight - y0), stats.threadID, stats.istate, stats.packet);
+            stats.end();
+            stats.buckets++;
+        }
+    }
+
+    /**
+     * Columns of coarse sampling cells of a bucket, refined by whichever
+     * worker steals the task.
+     */
+    private final class StripeTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final ImageSample[] samples;
+        private final int sbw, sbh;
+        private final int c0, c1;
+        private final int sharedX;
+        boolean finished;
+
+        StripeTask(ImageSample[] samples, int sbw, int sbh, int c0, int c1, int sharedX) {
+            this.samples = samples;
+            this.sbw = sbw;
+            this.sbh = sbh;
+            this.c0 = c0;
+            this.c1 = c1;
+            this.sharedX = sharedX;
+            finished = false;
+        }
+
+        @Override
+        protected void compute() {
+            BucketWorkerStats stats = ((BucketWorker) Thread.currentThread()).stats;
+            stats.begin();
+            for (int c = c0; c < c1; c++) {
+                if (pastDeadline()) {
+                    break;
+                }
+                refineColumn(samples, sbw, sbh, c, sharedX, stats.istate);
+            }
+            stats.end();
+            finished = !pastDeadline();
+        }
+    }
 
+    /**
+     * Checks if the current bucket should share its remaining work with idle
+     * workers. This is the case once every bucket has been started and no
+     * other task is left to steal.
+     */
+    private boolean shouldSplit() {
+        return ForkJoinTask.inForkJoinPool() && bucketCounter.get() >= bucketCoords.length && ForkJoinTask.getSurplusQueuedTaskCount() <= 0;
+    }
+
+    /**
+     * Refines the columns of cells <code>[c0, c1)</code> of a bucket in
+     * parallel stripes. Neighbouring stripes share the samples on their
+     * common edge, so even stripes are refined first and odd stripes after
+     * them. Which cells get refined does not depend on the order, as refined
+     * corners are always sampled. Samples on a shared edge which no stripe
+     * sampled keep the interpolation of the left stripe, as they would when
+     * the columns are refined in sequence.
+     *
+     * @return <code>false</code> if the deadline was reached
+     */
+    private boolean refineStripes(ImageSample[] samples, int sbw, int sbh, int c0, int c1) {
+        int minColumns = Math.max(1, MIN_SPLIT_SIZE * subPixelSize / maxStepSize);
+        int n = Math.min((c1 - c0) / minColumns, 2 * ForkJoinTask.getPool().getParallelism());
+        ((BucketWorker) Thread.currentThread()).stats.splits++;
+        ArrayList<StripeTask> even = new ArrayList<StripeTask>();
+        ArrayList<StripeTask> odd = new ArrayList<StripeTask>();
+        for (int i = 0; i < n; i++) {
+            int s0 = c0 + (int) ((long) (c1 - c0) * i / n);
+            int s1 = c0 + (int) ((long) (c1 - c0) * (i + 1) / n);
+            if (i % 2 == 0) {
+                even.add(new StripeTask(samples, sbw, sbh, s0, s1, -1));
+            } else {
+                odd.add(new StripeTask(samples, sbw, sbh, s0, s1, s1 * maxStepSize));
+            }
+        }
+        ForkJoinTask.invokeAll(even);
+        ForkJoinTask.invokeAll(odd);
+        for (StripeTask t : even) {
+            if (!t.finished) {
+                return false;
+            }
+        }
+        for (StripeTask t : odd) {
+            if (!t.finished) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void refineColumn(ImageSample[] samples, int sbw, int sbh, int column, int sharedX, IntersectionState istate) {
+        int x = column * maxStepSize;
+        for (int y = 0; y < sbh - 1; y += maxStepSize) {
+            refineSamples(samples, sbw, x, y, maxStepSize, thresh, sharedX, istate);
+        }
+    }
+
+    private void renderBucket(Display display, int x0, int y0, int bw, int bh, int threadID, IntersectionState istate, RayPacket packet) {
         // prepare bucket
         display.imagePrepare(x0, y0, bw, bh, threadID);
 
@@ -253,20 +669,49 @@ public class BucketRenderer implements ImageSampler {
                 samples[index] = new ImageSample(rx, ry, i);
             }
         }
-        for (int x = 0; x < sbw - 1; x += maxStepSize) {
-            for (int y = 0; y < sbh - 1; y += maxStepSize) {
-                refineSamples(samples, sbw, x, y, maxStepSize, thresh, istate);
+        if (packet != null) {
+            // trace the coarsest sampling grid row by row in packets
+            ImageSample[] batch = new ImageSample[RayPacket.MAX_SIZE];
+            for (int y = 0; y < sbh; y += maxStepSize) {
+                int n = 0;
+                for (int x = 0; x < sbw; x += maxStepSize) {
+                    batch[n++] = samples[x + y * sbw];
+                    if (n == batch.length) {
+                        computeSubPixels(batch, n, istate, packet);
+                        n = 0;
+                    }
+                }
+                if (n > 0) {
+                    computeSubPixels(batch, n, istate, packet);
+                }
             }
         }
+        int columns = (sbw - 1 + maxStepSize - 1) / maxStepSize;
+        int minColumns = Math.max(1, MIN_SPLIT_SIZE * subPixelSize / maxStepSize);
+        for (int c = 0; c < columns; c++) {
+            if (pastDeadline()) {
+                // the bucket will be filled from the coarse image instead
+                return;
+            }
+            if (columns - c >= 2 * minColumns && shouldSplit()) {
+                // the tail of the frame has been reached - expose more
+                // parallelism to workers which would otherwise sit idle
+                if (!refineStripes(samples, sbw, sbh, c, columns)) {
+                    return;
+                }
+                break;
+            }
+            refineColumn(samples, sbw, sbh, c, -1, istate);
+        }
         if (dumpBuckets) {
-            UI.printInfo(Module.BCKT, "Dumping bucket [%d, %d] to file ...", bx, by);
+            UI.printInfo(Module.BCKT, "Dumping bucket [%d, %d] to file ...", x0, y0);
             GenericBitmap bitmap = new GenericBitmap(sbw, sbh);
             for (int y = sbh - 1, index = 0; y >= 0; y--) {
                 for (int x = 0; x < sbw; x++, index++) {
                     bitmap.writePixel(x, y, samples[index].c, samples[index].alpha);
                 }
             }
-            bitmap.save(String.format("bucket_%04d_%04d.png", bx, by));
+            bitmap.save(String.format("bucket_%05d_%05d.png", x0, y0));
         }
         if (displayAA) {
             // color coded image of what is visible
@@ -322,6 +767,12 @@ public class BucketRenderer implements ImageSampler {
         }
         // update pixels
         display.imageUpdate(x0, y0, bw, bh, bucketRGB, bucketAlpha);
+        if (checkpoint != null) {
+            checkpoint.write(x0, y0, bw, bh, bucketRGB, bucketAlpha);
+        }
+        if (finishedBuckets != null) {
+            finishedBuckets.set(x0 / bucketSize + (y0 / bucketSize) * numBucketsX, 1);
+        }
     }
 
     private void computeSubPixel(ImageSample sample, IntersectionState istate) {
@@ -346,7 +797,25 @@ public class BucketRenderer implements ImageSampler {
         }
     }
 
-    private void refineSamples(ImageSample[] samples, int sbw, int x, int y, int stepSize, float thresh, IntersectionState istate) {
+    private void computeSubPixels(ImageSample[] batch, int n, IntersectionState istate, RayPacket packet) {
+        int[] index = new int[n];
+        packet.reset();
+        for (int k = 0; k < n; k++) {
+            ImageSample sample = batch[k];
+            double q0 = QMC.halton(1, sample.i);
+            double q1 = QMC.halton(2, sample.i);
+            double q2 = QMC.halton(3, sample.i);
+            index[k] = scene.addPrimaryRay(packet, sample.rx, sample.ry, q1, q2, q0);
+        }
+        scene.tracePrimaryPacket(packet, istate);
+        for (int k = 0; k < n; k++) {
+            ImageSample sample = batch[k];
+            sample.set(index[k] < 0 ? null : scene.getRadiance(istate, packet, index[k], sample.rx, sample.ry, sample.i, 4, null));
+        }
+        packet.reset();
+    }
+
+    private void refineSamples(ImageSample[] samples, int sbw, int x, int y, int stepSize, float thresh, int sharedX, IntersectionState istate) {
         int dx = stepSize;
         int dy = stepSize * sbw;
         int i00 = x + y * sbw;
@@ -370,20 +839,22 @@ public class BucketRenderer implements ImageSampler {
             if (s00.isDifferent(s01, thresh) || s00.isDifferent(s10, thresh) || s00.isDifferent(s11, thresh) || s01.isDifferent(s11, thresh) || s10.isDifferent(s11, thresh) || s01.isDifferent(s10, thresh)) {
                 stepSize >>= 1;
                 thresh *= 2;
-                refineSamples(samples, sbw, x, y, stepSize, thresh, istate);
-                refineSamples(samples, sbw, x + stepSize, y, stepSize, thresh, istate);
-                refineSamples(samples, sbw, x, y + stepSize, stepSize, thresh, istate);
-                refineSamples(samples, sbw, x + stepSize, y + stepSize, stepSize, thresh, istate);
+                refineSamples(samples, sbw, x, y, stepSize, thresh, sharedX, istate);
+                refineSamples(samples, sbw, x + stepSize, y, stepSize, thresh, sharedX, istate);
+                refineSamples(samples, sbw, x, y + stepSize, stepSize, thresh, sharedX, istate);
+                refineSamples(samples, sbw, x + stepSize, y + stepSize, stepSize, thresh, sharedX, istate);
                 return;
             }
         }
 
-        // interpolate remaining samples
+        // interpolate remaining samples, samples on the shared edge of a
+        // stripe may already hold the interpolation of the stripe to the right
         float ds = 1.0f / stepSize;
         for (int i = 0; i <= stepSize; i++) {
             for (int j = 0; j <= stepSize; j++) {
-                if (!samples[x + i + (y + j) * sbw].processed()) {
-                    ImageSample.bilerp(samples[x + i + (y + j) * sbw], s00, s01, s10, s11, i * ds, j * ds);
+                ImageSample s = samples[x + i + (y + j) * sbw];
+                if (!s.processed() || (x + i == sharedX && !s.sampled())) {
+                    ImageSample.bilerp(s, s00, s01, s10, s11, i * ds, j * ds);
                 }
             }
         }
@@ -430,7 +901,9 @@ public class BucketRenderer implements ImageSampler {
 
         final void add(ShadingState state) {
             if (n == 0) {
+                // drop any interpolated value
                 c = Color.black();
+                alpha = 0;
             }
             if (state != null) {
                 c.add(state.getResult());
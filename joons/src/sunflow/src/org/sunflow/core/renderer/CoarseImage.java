@@ -0,0 +1,181 @@
+package org.sunflow.core.renderer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.sunflow.core.DeadlineDisplay;
+import org.sunflow.core.Display;
+import org.sunflow.core.IntersectionState;
+import org.sunflow.core.Scene;
+import org.sunflow.core.ShadingState;
+import org.sunflow.image.Color;
+import org.sunflow.math.QMC;
+import org.sunflow.system.Timer;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+
+/**
+ * Low resolution copy of the image, traced with a single sample per block of
+ * pixels. Image samplers render it ahead of the full quality pass when a
+ * render deadline is set, so that regions which are not finished in time can
+ * be filled with an approximation rather than left black.
+ */
+final class CoarseImage {
+
+    private static final int BLOCK_SIZE = 8;
+
+    private final Scene scene;
+    private final Module module;
+    private final int imageWidth;
+    private final int imageHeight;
+    private final int blocksX;
+    private final int blocksY;
+    // color and alpha of each block
+    private final float[] blocks;
+    private final AtomicInteger rowCounter;
+
+    CoarseImage(Scene scene, Module module, int w, int h) {
+        this.scene = scene;
+        this.module = module;
+        imageWidth = w;
+        imageHeight = h;
+        blocksX = (w + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        blocksY = (h + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        blocks = new float[4 * blocksX * blocksY];
+        rowCounter = new AtomicInteger();
+    }
+
+    /**
+     * Traces the coarse image. Blocks which are not reached before the
+     * deadline stay black.
+     */
+    void render() {
+        Timer t = new Timer();
+        t.start();
+        rowCounter.set(0);
+        CoarseThread[] threads = new CoarseThread[scene.getThreads()];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new CoarseThread();
+            threads[i].setPriority(scene.getThreadPriority());
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            try {
+                threads[i].join();
+            } catch (InterruptedException e) {
+                UI.printError(module, "Coarse pass thread %d of %d was interrupted", i + 1, threads.length);
+            } finally {
+                threads[i].updateStats();
+            }
+        }
+        t.end();
+        UI.printDetailed(module, "Traced %dx%d coarse image in %s", blocksX, blocksY, t);
+    }
+
+    private class CoarseThread extends Thread {
+
+        private final IntersectionState istate = new IntersectionState();
+
+        @Override
+        public void run() {
+            int by;
+            while ((by = rowCounter.getAndIncrement()) < blocksY) {
+                if (UI.taskCanceled() || System.nanoTime() > scene.getDeadline()) {
+                    return;
+                }
+                int y = Math.min(by * BLOCK_SIZE + BLOCK_SIZE / 2, imageHeight - 1);
+                for (int bx = 0; bx < blocksX; bx++) {
+                    int x = Math.min(bx * BLOCK_SIZE + BLOCK_SIZE / 2, imageWidth - 1);
+                    int instance = ((x & ((1 << QMC.MAX_SIGMA_ORDER) - 1)) << QMC.MAX_SIGMA_ORDER) + QMC.sigma(y & ((1 << QMC.MAX_SIGMA_ORDER) - 1), QMC.MAX_SIGMA_ORDER);
+                    double time = QMC.halton(1, instance);
+                    double lensU = QMC.halton(2, instance);
+                    double lensV = QMC.halton(3, instance);
+                    ShadingState state = scene.getRadiance(istate, x, imageHeight - 1 - y, lensU, lensV, time, instance, 4, null);
+                    if (state != null) {
+                        float[] rgb = state.getResult().getRGB();
+                        int b = 4 * (bx + by * blocksX);
+                        blocks[b + 0] = rgb[0];
+                        blocks[b + 1] = rgb[1];
+                        blocks[b + 2] = rgb[2];
+                        blocks[b + 3] = 1;
+                    }
+                }
+            }
+        }
+
+        void updateStats() {
+            scene.accumulateStats(istate);
+        }
+    }
+
+    /**
+     * Sends the coarse approximation of a region to the display, interpolating
+     * between the block centers.
+     */
+    void fill(Display display, int x0, int y0, int w, int h) {
+        Color[] rgb = new Color[w * h];
+        float[] alpha = new float[w * h];
+        for (int y = 0, i = 0; y < h; y++) {
+            for (int x = 0; x < w; x++, i++) {
+                rgb[i] = new Color();
+                alpha[i] = lookup(x0 + x, y0 + y, rgb[i]);
+            }
+        }
+        display.imageUpdate(x0, y0, w, h, rgb, alpha);
+    }
+
+    /**
+     * Looks up the coarse value of a single pixel.
+     *
+     * @param x horizontal pixel coordinate
+     * @param y vertical pixel coordinate
+     * @param c receives the color of the pixel
+     * @return alpha of the pixel
+     */
+    float lookup(int x, int y, Color c) {
+        float fx = Math.max(0, Math.min((x + 0.5f) / BLOCK_SIZE - 0.5f, blocksX - 1));
+        float fy = Math.max(0, Math.min((y + 0.5f) / BLOCK_SIZE - 0.5f, blocksY - 1));
+        int bx0 = (int) fx;
+        int by0 = (int) fy;
+        int bx1 = Math.min(bx0 + 1, blocksX - 1);
+        int by1 = Math.min(by0 + 1, blocksY - 1);
+        float dx = fx - bx0;
+        float dy = fy - by0;
+        int b00 = 4 * (bx0 + by0 * blocksX);
+        int b10 = 4 * (bx1 + by0 * blocksX);
+        int b01 = 4 * (bx0 + by1 * blocksX);
+        int b11 = 4 * (bx1 + by1 * blocksX);
+        float k00 = (1 - dx) * (1 - dy);
+        float k10 = dx * (1 - dy);
+        float k01 = (1 - dx) * dy;
+        float k11 = dx * dy;
+        float r = k00 * blocks[b00 + 0] + k10 * blocks[b10 + 0] + k01 * blocks[b01 + 0] + k11 * blocks[b11 + 0];
+        float g = k00 * blocks[b00 + 1] + k10 * blocks[b10 + 1] + k01 * blocks[b01 + 1] + k11 * blocks[b11 + 1];
+        float b = k00 * blocks[b00 + 2] + k10 * blocks[b10 + 2] + k01 * blocks[b01 + 2] + k11 * blocks[b11 + 2];
+        c.set(r, g, b);
+        return k00 * blocks[b00 + 3] + k10 * blocks[b10 + 3] + k01 * blocks[b01 + 3] + k11 * blocks[b11 + 3];
+    }
+
+    /**
+     * Reports the quality of a region if the display is interested in it.
+     */
+    static void report(Display display, int x, int y, int w, int h, boolean full) {
+        if (display instanceof DeadlineDisplay) {
+            ((DeadlineDisplay) display).imageQuality(x, y, w, h, full);
+        }
+    }
+
+    /**
+     * Prints how much of the image reached full quality.
+     *
+     * @param module module to print the message for
+     * @param fullPixels number of pixels rendered at full quality
+     * @param numPixels number of pixels in the image
+     */
+    static void printSummary(Module module, long fullPixels, long numPixels) {
+        if (fullPixels < numPixels) {
+            UI.printWarning(module, "Render deadline reached - %.2f%% of the image was rendered at full quality", (100.0 * fullPixels) / numPixels);
+        } else {
+            UI.printInfo(module, "Render deadline met - the whole image was rendered at full quality");
+        }
+    }
+}
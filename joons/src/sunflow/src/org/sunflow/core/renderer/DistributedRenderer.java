@@ -0,0 +1,442 @@
+package org.sunflow.core.renderer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import org.sunflow.SunflowAPI;
+import org.sunflow.core.BucketOrder;
+import org.sunflow.core.Display;
+import org.sunflow.core.ImageSampler;
+import org.sunflow.core.Options;
+import org.sunflow.core.Scene;
+import org.sunflow.core.bucket.BucketOrderFactory;
+import org.sunflow.core.display.RemoteDisplay;
+import org.sunflow.image.Color;
+import org.sunflow.math.MathUtils;
+import org.sunflow.system.Timer;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+
+/**
+ * Coordinates the rendering of a frame by worker processes. The scene file is
+ * translated to the binary scene format once and sent to every worker which
+ * connects, the workers then render buckets with the regular bucket renderer
+ * and send the filtered pixels back through a {@link RemoteDisplay}. Buckets
+ * are handed out in the order of the bucket sequence, buckets of workers which
+ * disconnect are handed out again, and once the sequence is exhausted idle
+ * workers duplicate buckets still in progress elsewhere so that a slow worker
+ * does not hold up the end of the frame.
+ * <p>
+ * The protocol has no authentication or encryption: anyone who can reach the
+ * port receives the whole scene and may send back pixels. The coordinator
+ * listens on all interfaces unless the <code>distributed.bind</code> option
+ * names a single address, so it should only be run on a trusted network.
+ */
+public class DistributedRenderer implements ImageSampler {
+
+    private static final int ACCEPT_TIMEOUT = 100;
+    private static final long CLOSE_TIMEOUT = 1000;
+
+    private Scene scene;
+    private Display display;
+    // resolution
+    private int imageWidth;
+    private int imageHeight;
+    // bucketing
+    private String bucketOrderName;
+    private BucketOrder bucketOrder;
+    private int bucketSize;
+    private int numBucketsX;
+    private int[] bucketCoords;
+    private int[] bucketIndex;
+    // network
+    private int port;
+    private String bindAddress;
+    private String sceneFilename;
+    private String sceneFolder;
+    private byte[] sceneData;
+    private long deadline;
+    // bucket assignments, guarded by this
+    private int nextBucket;
+    private ArrayDeque<Integer> retryQueue;
+    private int[] assignCount;
+    private boolean[] finished;
+    private int numFinished;
+    private boolean closed;
+    private int numRequeued;
+    private int numDuplicated;
+
+    public DistributedRenderer() {
+        bucketSize = 32;
+        bucketOrderName = "hilbert";
+        port = 7777;
+    }
+
+    public boolean prepare(Options options, Scene scene, int w, int h) {
+        this.scene = scene;
+        imageWidth = w;
+        imageHeight = h;
+
+        // fetch options
+        bucketSize = options.getInt("bucket.size", bucketSize);
+        bucketOrderName = options.getString("bucket.order", bucketOrderName);
+        port = options.getInt("distributed.port", port);
+        bindAddress = options.getString("distributed.bind", null);
+        sceneFilename = options.getString("distributed.scene", null);
+        deadline = scene.getDeadline();
+
+        // use the same bucket layout as the bucket renderer on the workers
+        bucketSize = MathUtils.clamp(bucketSize, 16, 512);
+        numBucketsX = (imageWidth + bucketSize - 1) / bucketSize;
+        int numBucketsY = (imageHeight + bucketSize - 1) / bucketSize;
+        bucketOrder = BucketOrderFactory.create(bucketOrderName);
+        bucketCoords = bucketOrder.getBucketSequence(numBucketsX, numBucketsY);
+        bucketIndex = new int[numBucketsX * numBucketsY];
+        for (int i = 0; i < bucketCoords.length / 2; i++) {
+            bucketIndex[bucketCoords[2 * i + 0] + bucketCoords[2 * i + 1] * numBucketsX] = i;
+        }
+
+        UI.printInfo(Module.BCKT, "Distributed renderer settings:");
+        UI.printInfo(Module.BCKT, "  * Resolution:         %dx%d", imageWidth, imageHeight);
+        UI.printInfo(Module.BCKT, "  * Bucket size:        %d", bucketSize);
+        UI.printInfo(Module.BCKT, "  * Number of buckets:  %dx%d", numBucketsX, numBucketsY);
+        UI.printInfo(Module.BCKT, "  * Port:               %d", port);
+        UI.printInfo(Module.BCKT, "  * Address:            %s", bindAddress == null ? "<all interfaces>" : bindAddress);
+        UI.printInfo(Module.BCKT, "  * Scene:              %s", sceneFilename == null ? "<none>" : sceneFilename);
+
+        // translate the scene once for all workers
+        sceneData = null;
+        if (sceneFilename == null) {
+            UI.printError(Module.BCKT, "No scene file was specified - set the \"distributed.scene\" option");
+            return false;
+        }
+        Timer t = new Timer();
+        t.start();
+        sceneData = SunflowAPI.serialize(sceneFilename, options);
+        t.end();
+        if (sceneData == null) {
+            UI.printError(Module.BCKT, "Unable to translate scene \"%s\" for the workers", sceneFilename);
+            return false;
+        }
+        sceneFolder = new File(sceneFilename).getAbsoluteFile().getParentFile().getAbsolutePath();
+        UI.printInfo(Module.BCKT, "  * Scene data:         %d bytes (translated in %s)", sceneData.length, t);
+        return true;
+    }
+
+    public void render(Display display) {
+        if (sceneData == null) {
+            return;
+        }
+        this.display = display;
+        display.imageBegin(imageWidth, imageHeight, bucketSize);
+        int numBuckets = bucketCoords.length / 2;
+        synchronized (this) {
+            nextBucket = 0;
+            retryQueue = new ArrayDeque<Integer>();
+            assignCount = new int[numBuckets];
+            finished = new boolean[numBuckets];
+            numFinished = 0;
+            closed = false;
+            numRequeued = numDuplicated = 0;
+        }
+        UI.taskStart("Rendering", 0, numBuckets);
+        Timer timer = new Timer();
+        timer.start();
+        CoarseImage coarseImage = null;
+        if (deadline != Long.MAX_VALUE) {
+            coarseImage = new CoarseImage(scene, Module.BCKT, imageWidth, imageHeight);
+            coarseImage.render();
+        }
+        ArrayList<WorkerConnection> workers = new ArrayList<WorkerConnection>();
+        ServerSocket server = null;
+        try {
+            server = new ServerSocket(port, 0, bindAddress == null ? null : InetAddress.getByName(bindAddress));
+            server.setSoTimeout(ACCEPT_TIMEOUT);
+            UI.printInfo(Module.BCKT, "Waiting for workers on %s ...", server.getLocalSocketAddress());
+            while (!isFrameDone()) {
+                try {
+                    WorkerConnection worker = new WorkerConnection(server.accept(), workers.size());
+                    workers.add(worker);
+                    worker.start();
+                } catch (SocketTimeoutException e) {
+                    // check for completion again
+                }
+            }
+        } catch (IOException e) {
+            UI.printError(Module.BCKT, "Unable to accept workers on port %d: %s", port, e.getMessage());
+        } finally {
+            synchronized (this) {
+                closed = true;
+            }
+            if (server != null) {
+                try {
+                    server.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        // give workers a moment to finish the frame cleanly before cutting
+        // them off
+        long closeTime = System.currentTimeMillis() + CLOSE_TIMEOUT;
+        for (WorkerConnection worker : workers) {
+            try {
+                worker.join(Math.max(1, closeTime - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+            }
+            worker.close();
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                UI.printError(Module.BCKT, "Worker connection %d was interrupted", worker.id);
+            }
+        }
+        UI.taskStop();
+        if (coarseImage != null) {
+            long fullPixels = 0;
+            for (int i = 0; i < numBuckets; i++) {
+                int x0 = bucketCoords[2 * i + 0] * bucketSize;
+                int y0 = bucketCoords[2 * i + 1] * bucketSize;
+                int bw = Math.min(bucketSize, imageWidth - x0);
+                int bh = Math.min(bucketSize, imageHeight - y0);
+                if (finished[i]) {
+                    fullPixels += bw * bh;
+                } else {
+                    coarseImage.fill(display, x0, y0, bw, bh);
+                }
+                CoarseImage.report(display, x0, y0, bw, bh, finished[i]);
+            }
+            CoarseImage.printSummary(Module.BCKT, fullPixels, (long) imageWidth * imageHeight);
+        }
+        timer.end();
+        UI.printInfo(Module.BCKT, "Render time: %s", timer.toString());
+        UI.printInfo(Module.BCKT, "Distributed render stats:");
+        UI.printInfo(Module.BCKT, "  * Buckets finished:   %d of %d", numFinished, numBuckets);
+        UI.printInfo(Module.BCKT, "  * Buckets requeued:   %d", numRequeued);
+        UI.printInfo(Module.BCKT, "  * Buckets duplicated: %d", numDuplicated);
+        for (WorkerConnection worker : workers) {
+            UI.printInfo(Module.BCKT, "  * Worker %d:           %d buckets from %s", worker.id, worker.buckets, worker.address);
+        }
+        if (numFinished < numBuckets && coarseImage == null) {
+            UI.printWarning(Module.BCKT, "Frame was stopped with %d buckets left to render", numBuckets - numFinished);
+        }
+        display.imageEnd();
+    }
+
+    private synchronized boolean isFrameDone() {
+        return numFinished == finished.length || UI.taskCanceled() || System.nanoTime() > deadline;
+    }
+
+    /**
+     * Picks the next bucket for a worker. Buckets which were never handed out
+     * come first, then buckets lost by other workers, and finally a second
+     * copy of a bucket which is still in progress.
+     */
+    private synchronized int assignBucket(WorkerConnection worker) {
+        if (closed || numFinished == finished.length) {
+            return RemoteDisplay.DONE;
+        }
+        int bucket = -1;
+        while (bucket < 0 && !retryQueue.isEmpty()) {
+            int b = retryQueue.poll();
+            if (!finished[b]) {
+                bucket = b;
+            }
+        }
+        if (bucket < 0 && nextBucket < finished.length) {
+            bucket = nextBucket++;
+        }
+        if (bucket < 0) {
+            for (int i = 0; i < finished.length; i++) {
+                if (!finished[i] && assignCount[i] < 2 && !worker.held.contains(i)) {
+                    bucket = i;
+                    numDuplicated++;
+                    break;
+                }
+            }
+        }
+        if (bucket < 0) {
+            return RemoteDisplay.WAIT;
+        }
+        assignCount[bucket]++;
+        worker.held.add(bucket);
+        return bucket;
+    }
+
+    /**
+     * Checks that a worker was handed the specified bucket and has not
+     * delivered it yet.
+     */
+    private synchronized void checkHeld(WorkerConnection worker, int bucket) throws IOException {
+        if (!worker.held.contains(bucket)) {
+            throw new IOException(String.format("bucket %d was not assigned to this worker", bucket));
+        }
+    }
+
+    /**
+     * Records a finished bucket.
+     *
+     * @return <code>true</code> if the bucket should be shown, or
+     * <code>false</code> if another worker already delivered it
+     * @throws IOException if the bucket was not assigned to the worker
+     */
+    private synchronized boolean finishBucket(WorkerConnection worker, int bucket) throws IOException {
+        checkHeld(worker, bucket);
+        worker.held.remove(bucket);
+        assignCount[bucket]--;
+        if (closed || finished[bucket]) {
+            return false;
+        }
+        finished[bucket] = true;
+        numFinished++;
+        worker.buckets++;
+        UI.taskUpdate(numFinished);
+        return true;
+    }
+
+    /**
+     * Hands the buckets of a worker which went away to the others.
+     */
+    private synchronized void releaseBuckets(WorkerConnection worker) {
+        for (int b : worker.held) {
+            assignCount[b]--;
+            if (!finished[b] && assignCount[b] == 0) {
+                retryQueue.add(b);
+                numRequeued++;
+            }
+        }
+        worker.held.clear();
+    }
+
+    private final class WorkerConnection extends Thread {
+
+        private final Socket socket;
+        private final int id;
+        private final String address;
+        // buckets handed to this worker which it has not delivered yet
+        private final HashSet<Integer> held;
+        private int buckets;
+
+        WorkerConnection(Socket socket, int id) {
+            this.socket = socket;
+            this.id = id;
+            address = socket.getRemoteSocketAddress().toString();
+            held = new HashSet<Integer>();
+            buckets = 0;
+        }
+
+        @Override
+        public void run() {
+            boolean ended = false;
+            try {
+                socket.setTcpNoDelay(true);
+                DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                if (input.readInt() != RemoteDisplay.MAGIC || input.readInt() != RemoteDisplay.PROTOCOL_VERSION) {
+                    UI.printWarning(Module.BCKT, "Rejected connection from %s - not a compatible worker", address);
+                    return;
+                }
+                output.writeInt(RemoteDisplay.MAGIC);
+                output.writeInt(RemoteDisplay.PROTOCOL_VERSION);
+                output.writeUTF(sceneFolder);
+                output.writeInt(imageWidth);
+                output.writeInt(imageHeight);
+                output.writeInt(bucketSize);
+                output.writeInt(sceneData.length);
+                output.write(sceneData);
+                output.flush();
+                UI.printInfo(Module.BCKT, "Worker %d connected from %s", id, address);
+                while (!ended) {
+                    int type = input.read();
+                    switch (type) {
+                        case RemoteDisplay.NEXT_BUCKET:
+                            output.writeInt(assignBucket(this));
+                            output.flush();
+                            break;
+                        case RemoteDisplay.PREPARE: {
+                            int x = input.readInt();
+                            int y = input.readInt();
+                            int w = input.readInt();
+                            int h = input.readInt();
+                            input.readInt();
+                            checkBucket(x, y, w, h);
+                            checkHeld(this, bucketIndex[x / bucketSize + (y / bucketSize) * numBucketsX]);
+                            display.imagePrepare(x, y, w, h, id);
+                            break;
+                        }
+                        case RemoteDisplay.UPDATE:
+                            readUpdate(input);
+                            break;
+                        case RemoteDisplay.END:
+                            ended = true;
+                            break;
+                        case -1:
+                            throw new IOException("connection closed");
+                        default:
+                            throw new IOException(String.format("unexpected message 0x%02x", type));
+                    }
+                }
+            } catch (IOException e) {
+                synchronized (DistributedRenderer.this) {
+                    if (!closed) {
+                        UI.printWarning(Module.BCKT, "Lost worker %d: %s", id, e.getMessage());
+                    }
+                }
+            } finally {
+                releaseBuckets(this);
+                close();
+            }
+        }
+
+        private void readUpdate(DataInputStream input) throws IOException {
+            int x = input.readInt();
+            int y = input.readInt();
+            int w = input.readInt();
+            int h = input.readInt();
+            checkBucket(x, y, w, h);
+            int bucket = bucketIndex[x / bucketSize + (y / bucketSize) * numBucketsX];
+            checkHeld(this, bucket);
+            byte[] pixels = new byte[16 * w * h];
+            input.readFully(pixels);
+            if (!finishBucket(this, bucket)) {
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(pixels);
+            Color[] data = new Color[w * h];
+            float[] alpha = new float[w * h];
+            for (int i = 0; i < w * h; i++) {
+                data[i] = new Color(buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+                alpha[i] = buffer.getFloat();
+            }
+            display.imageUpdate(x, y, w, h, data, alpha);
+        }
+
+        /**
+         * Checks that a worker sent the exact rectangle of a bucket of this
+         * frame.
+         */
+        private void checkBucket(int x, int y, int w, int h) throws IOException {
+            if (x < 0 || y < 0 || x >= imageWidth || y >= imageHeight || x % bucketSize != 0 || y % bucketSize != 0 || w != Math.min(bucketSize, imageWidth - x) || h != Math.min(bucketSize, imageHeight - y)) {
+                throw new IOException(String.format("invalid bucket (%d, %d) %dx%d", x, y, w, h));
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
@@ -12,6 +12,7 @@ import org.sunflow.core.bucket.BucketOrderFactory;
 import org.sunflow.image.Color;
 import org.sunflow.math.MathUtils;
 import org.sunflow.math.QMC;
+import org.sunflow.system.Memory;
 import org.sunflow.system.Timer;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
@@ -33,6 +34,10 @@ public class MultipassRenderer implements ImageSampler {
     private int numSamples;
     private float invNumSamples;
     private boolean shadingCache;
+    // deadline
+    private long deadline;
+    private CoarseImage coarseImage;
+    private boolean[] bucketFinished;
 
     public MultipassRenderer() {
         bucketSize = 32;
@@ -51,6 +56,7 @@ public class MultipassRenderer implements ImageSampler {
         bucketOrderName = options.getString("bucket.order", bucketOrderName);
         numSamples = options.getInt("aa.samples", numSamples);
         shadingCache = options.getBoolean("aa.cache", shadingCache);
+        deadline = scene.getDeadline();
 
         // limit bucket size and compute number of buckets in each direction
         bucketSize = MathUtils.clamp(bucketSize, 16, 512);
@@ -80,6 +86,11 @@ public class MultipassRenderer implements ImageSampler {
         Timer timer = new Timer();
         timer.start();
         UI.taskStart("Rendering", 0, bucketCoords.length);
+        if (deadline != Long.MAX_VALUE) {
+            coarseImage = new CoarseImage(scene, Module.BCKT, imageWidth, imageHeight);
+            coarseImage.render();
+            bucketFinished = new boolean[bucketCoords.length / 2];
+        }
         BucketThread[] renderThreads = new BucketThread[scene.getThreads()];
         for (int i = 0; i < renderThreads.length; i++) {
             renderThreads[i] = new BucketThread(i);
@@ -96,6 +107,11 @@ public class MultipassRenderer implements ImageSampler {
             }
         }
         UI.taskStop();
+        if (coarseImage != null) {
+            fillUnfinishedBuckets();
+            coarseImage = null;
+            bucketFinished = null;
+        }
         timer.end();
         UI.printInfo(Module.BCKT, "Render time: %s", timer.toString());
         display.imageEnd();
@@ -116,17 +132,23 @@ public class MultipassRenderer implements ImageSampler {
         @Override
         public void run() {
             while (true) {
-                int bx, by;
+                int bucket, bx, by;
                 synchronized (MultipassRenderer.this) {
-                    if (bucketCounter >= bucketCoords.length) {
+                    if (bucketCounter >= bucketCoords.length || System.nanoTime() > deadline) {
                         return;
                     }
                     UI.taskUpdate(bucketCounter);
+                    bucket = bucketCounter;
                     bx = bucketCoords[bucketCounter + 0];
                     by = bucketCoords[bucketCounter + 1];
                     bucketCounter += 2;
                 }
-                renderBucket(display, bx, by, threadID, istate, cache);
+                long a0 = Memory.getAllocatedBytes();
+                boolean finished = renderBucket(display, bx, by, threadID, istate, cache);
+                istate.addAllocatedBytes(Memory.getAllocatedBytes() - a0);
+                if (finished && bucketFinished != null) {
+                    bucketFinished[bucket / 2] = true;
+                }
             }
         }
 
@@ -138,7 +160,28 @@ public class MultipassRenderer implements ImageSampler {
         }
     }
 
-    private void renderBucket(Display display, int bx, int by, int threadID, IntersectionState istate, ShadingCache cache) {
+    /**
+     * Fills the buckets which were not finished before the deadline from the
+     * coarse image, and reports the quality of every bucket to the display.
+     */
+    private void fillUnfinishedBuckets() {
+        long fullPixels = 0;
+        for (int i = 0; i < bucketFinished.length; i++) {
+            int x0 = bucketCoords[2 * i + 0] * bucketSize;
+            int y0 = bucketCoords[2 * i + 1] * bucketSize;
+            int bw = Math.min(bucketSize, imageWidth - x0);
+            int bh = Math.min(bucketSize, imageHeight - y0);
+            if (bucketFinished[i]) {
+                fullPixels += bw * bh;
+            } else {
+                coarseImage.fill(display, x0, y0, bw, bh);
+            }
+            CoarseImage.report(display, x0, y0, bw, bh, bucketFinished[i]);
+        }
+        CoarseImage.printSummary(Module.BCKT, fullPixels, (long) imageWidth * imageHeight);
+    }
+
+    private boolean renderBucket(Display display, int bx, int by, int threadID, IntersectionState istate, ShadingCache cache) {
         // pixel sized extents
         int x0 = bx * bucketSize;
         int y0 = by * bucketSize;
@@ -152,6 +195,10 @@ public class MultipassRenderer implements ImageSampler {
         float[] bucketAlpha = new float[bw * bh];
 
         for (int y = 0, i = 0, cy = imageHeight - 1 - y0; y < bh; y++, cy--) {
+            if (System.nanoTime() > deadline) {
+                // the bucket will be filled from the coarse image instead
+                return false;
+            }
             for (int x = 0, cx = x0; x < bw; x++, i++, cx++) {
                 // sample pixel
                 Color c = Color.black();
@@ -183,6 +230,7 @@ public class MultipassRenderer implements ImageSampler {
         }
         // update pixels
         display.imageUpdate(x0, y0, bw, bh, bucketRGB, bucketAlpha);
+        return true;
     }
 
     /**
@@ -208,7 +256,7 @@ public class MultipassRenderer implements ImageSampler {
      * @param x samples in the [0,1) range
      * @return warped sample in the [-2,+2) range
      */
-    private static final double warpCubic(double x) {
+    static final double warpCubic(double x) {
         if (x < (1.0 / 24)) {
             return qpow(24 * x) - 2;
         }
@@ -1,6 +1,8 @@
 package org.sunflow.core.renderer;
 
 import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.sunflow.core.Display;
 import org.sunflow.core.ImageSampler;
@@ -9,7 +11,9 @@ import org.sunflow.core.Options;
 import org.sunflow.core.Scene;
 import org.sunflow.core.ShadingState;
 import org.sunflow.image.Color;
+import org.sunflow.math.MathUtils;
 import org.sunflow.math.QMC;
+import org.sunflow.system.Memory;
 import org.sunflow.system.Timer;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
@@ -21,22 +25,69 @@ public class ProgressiveRenderer implements ImageSampler {
     private PriorityBlockingQueue<SmallBucket> smallBucketQueue;
     private Display display;
     private int counter, counterMax;
+    private long renderDeadline;
+    // adaptive sampling
+    private static final int ADAPTIVE_TILE_SIZE = 16;
+    // pixels darker than this are measured against it, so that noise in
+    // nearly black regions doesn't need a huge number of samples
+    private static final float NOISE_FLOOR = 0.05f;
+    private boolean adaptive;
+    private float noiseTarget;
+    private float timeBudget;
+    private int minSamples;
+    private int maxSamples;
+    private PriorityBlockingQueue<AdaptiveTile> adaptiveTileQueue;
+    private int numAdaptiveTiles;
+    // tiles are only counted once they converge, a tile which is put back
+    // into the queue stays pending the whole time
+    private AtomicInteger convergedTiles;
+    private long deadline;
+    // per pixel running mean of the color and alpha, and running mean and
+    // sum of squared deviations of the luminance
+    private float[] pixelColor;
+    private float[] pixelAlpha;
+    private float[] pixelMean;
+    private float[] pixelM2;
+    private int[] pixelSamples;
 
     public ProgressiveRenderer() {
         imageWidth = 640;
         imageHeight = 480;
         smallBucketQueue = null;
+        adaptive = false;
+        noiseTarget = 0.02f;
+        timeBudget = 0;
+        minSamples = 8;
+        maxSamples = 1024;
     }
 
     public boolean prepare(Options options, Scene scene, int w, int h) {
         this.scene = scene;
         imageWidth = w;
         imageHeight = h;
-        // prepare table used by deterministic anti-aliasing
+        adaptive = options.getBoolean("progressive.adaptive", adaptive);
+        noiseTarget = options.getFloat("progressive.noise", noiseTarget);
+        timeBudget = options.getFloat("progressive.time", timeBudget);
+        minSamples = options.getInt("progressive.minsamples", minSamples);
+        maxSamples = options.getInt("progressive.maxsamples", maxSamples);
+        minSamples = MathUtils.clamp(minSamples, 2, 1 << 16);
+        maxSamples = Math.max(minSamples, maxSamples);
+        renderDeadline = scene.getDeadline();
+        if (adaptive) {
+            UI.printInfo(Module.IPR, "Adaptive progressive renderer settings:");
+            UI.printInfo(Module.IPR, "  * Resolution:         %dx%d", imageWidth, imageHeight);
+            UI.printInfo(Module.IPR, "  * Noise target:       %.2f%%", 100 * noiseTarget);
+            UI.printInfo(Module.IPR, "  * Samples / pixel:    %d to %d", minSamples, maxSamples);
+            UI.printInfo(Module.IPR, "  * Time budget:        %s", timeBudget > 0 ? Timer.toString(timeBudget) : "none");
+        }
         return true;
     }
 
     public void render(Display display) {
+        if (adaptive) {
+            renderAdaptive(display);
+            return;
+        }
         this.display = display;
         display.imageBegin(imageWidth, imageHeight, 0);
         // create first bucket
@@ -71,10 +122,29 @@ public class ProgressiveRenderer implements ImageSampler {
         }
         UI.taskStop();
         t.end();
+        if (renderDeadline != Long.MAX_VALUE) {
+            reportUnrefinedBuckets();
+        }
         UI.printInfo(Module.IPR, "Rendering time: %s", t.toString());
         display.imageEnd();
     }
 
+    /**
+     * Reports the regions which were still waiting to be refined when
+     * rendering stopped. They already hold a coarse version of the image, so
+     * they don't need to be filled.
+     */
+    private void reportUnrefinedBuckets() {
+        long fullPixels = (long) imageWidth * imageHeight;
+        for (SmallBucket b : smallBucketQueue) {
+            int w = Math.min(b.size, imageWidth - b.x);
+            int h = Math.min(b.size, imageHeight - b.y);
+            CoarseImage.report(display, b.x, b.y, w, h, false);
+            fullPixels -= w * h;
+        }
+        CoarseImage.printSummary(Module.IPR, fullPixels, (long) imageWidth * imageHeight);
+    }
+
     private class SmallBucketThread extends Thread {
 
         private final IntersectionState istate = new IntersectionState();
@@ -82,7 +152,9 @@ public class ProgressiveRenderer implements ImageSampler {
         @Override
         public void run() {
             while (true) {
+                long a0 = Memory.getAllocatedBytes();
                 int n = progressiveRenderNext(istate);
+                istate.addAllocatedBytes(Memory.getAllocatedBytes() - a0);
                 synchronized (ProgressiveRenderer.this) {
                     if (counter >= counterMax) {
                         return;
@@ -90,7 +162,7 @@ public class ProgressiveRenderer implements ImageSampler {
                     counter += n;
                     UI.taskUpdate(counter);
                 }
-                if (UI.taskCanceled()) {
+                if (UI.taskCanceled() || System.nanoTime() > renderDeadline) {
                     return;
                 }
             }
@@ -149,6 +221,283 @@ public class ProgressiveRenderer implements ImageSampler {
         return pixels;
     }
 
+    /**
+     * Renders the image by repeatedly adding samples to the tiles with the
+     * highest estimated error. Pixels stop receiving samples once the
+     * standard error of their mean luminance drops below the noise target,
+     * and rendering ends when every pixel has converged or the time budget
+     * runs out.
+     */
+    private void renderAdaptive(Display display) {
+        this.display = display;
+        int numPixels = imageWidth * imageHeight;
+        pixelColor = new float[3 * numPixels];
+        pixelAlpha = new float[numPixels];
+        pixelMean = new float[numPixels];
+        pixelM2 = new float[numPixels];
+        pixelSamples = new int[numPixels];
+        display.imageBegin(imageWidth, imageHeight, ADAPTIVE_TILE_SIZE);
+        adaptiveTileQueue = new PriorityBlockingQueue<AdaptiveTile>();
+        numAdaptiveTiles = 0;
+        for (int y = 0; y < imageHeight; y += ADAPTIVE_TILE_SIZE) {
+            for (int x = 0; x < imageWidth; x += ADAPTIVE_TILE_SIZE) {
+                AdaptiveTile tile = new AdaptiveTile();
+                tile.x = x;
+                tile.y = y;
+                tile.error = Float.POSITIVE_INFINITY;
+                adaptiveTileQueue.add(tile);
+                numAdaptiveTiles++;
+            }
+        }
+        convergedTiles = new AtomicInteger();
+        UI.taskStart("Adaptive Render", 0, numAdaptiveTiles);
+        Timer t = new Timer();
+        t.start();
+        deadline = timeBudget > 0 ? System.nanoTime() + (long) (timeBudget * 1e9) : Long.MAX_VALUE;
+        deadline = Math.min(deadline, renderDeadline);
+        CoarseImage coarseImage = null;
+        if (renderDeadline != Long.MAX_VALUE) {
+            coarseImage = new CoarseImage(scene, Module.IPR, imageWidth, imageHeight);
+            coarseImage.render();
+        }
+        AdaptiveTileThread[] renderThreads = new AdaptiveTileThread[scene.getThreads()];
+        for (int i = 0; i < renderThreads.length; i++) {
+            renderThreads[i] = new AdaptiveTileThread(i);
+            renderThreads[i].setPriority(scene.getThreadPriority());
+            renderThreads[i].start();
+        }
+        for (int i = 0; i < renderThreads.length; i++) {
+            try {
+                renderThreads[i].join();
+            } catch (InterruptedException e) {
+                UI.printError(Module.IPR, "Thread %d of %d was interrupted", i + 1, renderThreads.length);
+            } finally {
+                renderThreads[i].updateStats();
+            }
+        }
+        UI.taskStop();
+        t.end();
+        // summarize where the samples went
+        long totalSamples = 0;
+        int minTaken = Integer.MAX_VALUE;
+        int maxTaken = 0;
+        int converged = 0;
+        for (int i = 0; i < numPixels; i++) {
+            totalSamples += pixelSamples[i];
+            minTaken = Math.min(minTaken, pixelSamples[i]);
+            maxTaken = Math.max(maxTaken, pixelSamples[i]);
+            if (pixelSamples[i] >= maxSamples || getError(i) <= noiseTarget) {
+                converged++;
+            }
+        }
+        String reason;
+        if (convergedTiles.get() == numAdaptiveTiles) {
+            reason = "converged";
+        } else if (System.nanoTime() >= deadline) {
+            reason = "time budget reached";
+        } else {
+            reason = "canceled";
+        }
+        UI.printInfo(Module.IPR, "Adaptive sampling stats:");
+        UI.printInfo(Module.IPR, "  * Stopped:            %s", reason);
+        UI.printInfo(Module.IPR, "  * Samples / pixel:    %.2f (min %d, max %d)", (double) totalSamples / numPixels, minTaken, maxTaken);
+        UI.printInfo(Module.IPR, "  * Converged pixels:   %.2f%%", (100.0 * converged) / numPixels);
+        if (coarseImage != null) {
+            fillUnfinishedTiles(coarseImage);
+        }
+        UI.printInfo(Module.IPR, "Rendering time: %s", t.toString());
+        pixelColor = pixelAlpha = pixelMean = pixelM2 = null;
+        pixelSamples = null;
+        display.imageEnd();
+    }
+
+    /**
+     * Fills the pixels which did not get any samples before the deadline from
+     * the coarse image, and reports which tiles converged to the display.
+     */
+    private void fillUnfinishedTiles(CoarseImage coarseImage) {
+        long fullPixels = (long) imageWidth * imageHeight;
+        for (AdaptiveTile tile : adaptiveTileQueue) {
+            int tw = Math.min(ADAPTIVE_TILE_SIZE, imageWidth - tile.x);
+            int th = Math.min(ADAPTIVE_TILE_SIZE, imageHeight - tile.y);
+            if (tile.error == Float.POSITIVE_INFINITY) {
+                Color[] tileRGB = new Color[tw * th];
+                float[] tileAlpha = new float[tw * th];
+                for (int y = 0, i = 0; y < th; y++) {
+                    for (int x = 0; x < tw; x++, i++) {
+                        int p = (tile.y + y) * imageWidth + tile.x + x;
+                        if (pixelSamples[p] > 0) {
+                            tileRGB[i] = new Color(pixelColor[3 * p + 0], pixelColor[3 * p + 1], pixelColor[3 * p + 2]);
+                            tileAlpha[i] = pixelAlpha[p];
+                        } else {
+                            tileRGB[i] = new Color();
+                            tileAlpha[i] = coarseImage.lookup(tile.x + x, tile.y + y, tileRGB[i]);
+                        }
+                    }
+                }
+                display.imageUpdate(tile.x, tile.y, tw, th, tileRGB, tileAlpha);
+            }
+            CoarseImage.report(display, tile.x, tile.y, tw, th, false);
+            fullPixels -= tw * th;
+        }
+        CoarseImage.printSummary(Module.IPR, fullPixels, (long) imageWidth * imageHeight);
+    }
+
+    private class AdaptiveTileThread extends Thread {
+
+        private final int threadID;
+        private final IntersectionState istate = new IntersectionState();
+
+        AdaptiveTileThread(int threadID) {
+            this.threadID = threadID;
+        }
+
+        @Override
+        public void run() {
+            while (!UI.taskCanceled() && System.nanoTime() < deadline) {
+                AdaptiveTile tile = adaptiveTileQueue.poll();
+                if (tile == null) {
+                    if (convergedTiles.get() == numAdaptiveTiles) {
+                        // nothing is left to refine
+                        return;
+                    }
+                    // another thread is working on a tile that may come back
+                    try {
+                        tile = adaptiveTileQueue.poll(10, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (tile == null) {
+                        continue;
+                    }
+                }
+                long a0 = Memory.getAllocatedBytes();
+                renderAdaptiveTile(tile, threadID, istate);
+                istate.addAllocatedBytes(Memory.getAllocatedBytes() - a0);
+                if (tile.error > noiseTarget) {
+                    adaptiveTileQueue.put(tile);
+                } else {
+                    UI.taskUpdate(convergedTiles.incrementAndGet());
+                }
+            }
+        }
+
+        void updateStats() {
+            scene.accumulateStats(istate);
+        }
+    }
+
+    /**
+     * Adds samples to the pixels of a tile which have not converged yet, then
+     * updates the tile's error to the largest error of its pixels.
+     */
+    private void renderAdaptiveTile(AdaptiveTile tile, int threadID, IntersectionState istate) {
+        int tw = Math.min(ADAPTIVE_TILE_SIZE, imageWidth - tile.x);
+        int th = Math.min(ADAPTIVE_TILE_SIZE, imageHeight - tile.y);
+        display.imagePrepare(tile.x, tile.y, tw, th, threadID);
+        Color[] tileRGB = new Color[tw * th];
+        float[] tileAlpha = new float[tw * th];
+        float error = 0;
+        for (int y = 0, i = 0; y < th; y++) {
+            int py = tile.y + y;
+            int cy = imageHeight - 1 - py;
+            boolean stop = System.nanoTime() > deadline;
+            for (int x = 0; x < tw; x++, i++) {
+                int cx = tile.x + x;
+                int p = py * imageWidth + cx;
+                int n = pixelSamples[p];
+                int count = 0;
+                if (n < minSamples) {
+                    count = minSamples - n;
+                } else if (n < maxSamples && getError(p) > noiseTarget) {
+                    // double the samples of the pixel, a few at a time so
+                    // other tiles get their turn
+                    count = Math.min(Math.min(n, maxSamples - n), 64);
+                }
+                if (count > 0 && !stop) {
+                    samplePixel(p, cx, cy, n, n + count, istate);
+                }
+                if (pixelSamples[p] < maxSamples) {
+                    error = Math.max(error, getError(p));
+                }
+                tileRGB[i] = new Color(pixelColor[3 * p + 0], pixelColor[3 * p + 1], pixelColor[3 * p + 2]);
+                tileAlpha[i] = pixelAlpha[p];
+            }
+        }
+        tile.error = error;
+        display.imageUpdate(tile.x, tile.y, tw, th, tileRGB, tileAlpha);
+    }
+
+    /**
+     * Takes samples <code>s0</code> to <code>s1 - 1</code> of a pixel and
+     * adds them to its running statistics.
+     */
+    private void samplePixel(int p, int cx, int cy, int s0, int s1, IntersectionState istate) {
+        int instance = ((cx & ((1 << QMC.MAX_SIGMA_ORDER) - 1)) << QMC.MAX_SIGMA_ORDER) + QMC.sigma(cy & ((1 << QMC.MAX_SIGMA_ORDER) - 1), QMC.MAX_SIGMA_ORDER);
+        double jitterX = QMC.halton(0, instance);
+        double jitterY = QMC.halton(1, instance);
+        double jitterT = QMC.halton(2, instance);
+        double jitterU = QMC.halton(3, instance);
+        double jitterV = QMC.halton(4, instance);
+        float r = pixelColor[3 * p + 0];
+        float g = pixelColor[3 * p + 1];
+        float b = pixelColor[3 * p + 2];
+        float a = pixelAlpha[p];
+        float mean = pixelMean[p];
+        float m2 = pixelM2[p];
+        for (int s = s0; s < s1; s++) {
+            // the number of samples isn't known in advance, so the sample
+            // positions come from an open ended sequence
+            float rx = cx + 0.5f + (float) MultipassRenderer.warpCubic(QMC.mod1(jitterX + QMC.halton(0, s)));
+            float ry = cy + 0.5f + (float) MultipassRenderer.warpCubic(QMC.mod1(jitterY + QMC.halton(1, s)));
+            double time = QMC.mod1(jitterT + QMC.halton(2, s));
+            double lensU = QMC.mod1(jitterU + QMC.halton(3, s));
+            double lensV = QMC.mod1(jitterV + QMC.halton(4, s));
+            ShadingState state = scene.getRadiance(istate, rx, ry, lensU, lensV, time, instance + s, 5, null);
+            Color c = state != null ? state.getResult() : Color.BLACK;
+            float w = 1.0f / (s + 1);
+            float[] rgb = c.getRGB();
+            r += (rgb[0] - r) * w;
+            g += (rgb[1] - g) * w;
+            b += (rgb[2] - b) * w;
+            a += ((state != null ? 1 : 0) - a) * w;
+            float lum = c.getLuminance();
+            float delta = lum - mean;
+            mean += delta * w;
+            m2 += delta * (lum - mean);
+        }
+        pixelColor[3 * p + 0] = r;
+        pixelColor[3 * p + 1] = g;
+        pixelColor[3 * p + 2] = b;
+        pixelAlpha[p] = a;
+        pixelMean[p] = mean;
+        pixelM2[p] = m2;
+        pixelSamples[p] = s1;
+    }
+
+    /**
+     * Estimates the relative standard error of the mean luminance of a pixel.
+     */
+    private float getError(int p) {
+        int n = pixelSamples[p];
+        if (n < 2) {
+            return Float.POSITIVE_INFINITY;
+        }
+        float variance = pixelM2[p] / (n - 1);
+        return (float) Math.sqrt(variance / n) / Math.max(pixelMean[p], NOISE_FLOOR);
+    }
+
+    // adaptive rendering, tiles with the highest error come first
+    private static class AdaptiveTile implements Comparable<AdaptiveTile> {
+
+        int x, y;
+        float error;
+
+        public int compareTo(AdaptiveTile o) {
+            return Float.compare(o.error, error);
+        }
+    }
+
     // progressive rendering
     private static class SmallBucket implements Comparable<SmallBucket> {
 
@@ -7,6 +7,7 @@ import org.sunflow.core.Options;
 import org.sunflow.core.Scene;
 import org.sunflow.core.ShadingState;
 import org.sunflow.image.Color;
+import org.sunflow.system.Memory;
 import org.sunflow.system.Timer;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
@@ -18,6 +19,10 @@ public class SimpleRenderer implements ImageSampler {
     private int imageWidth, imageHeight;
     private int numBucketsX, numBucketsY;
     private int bucketCounter, numBuckets;
+    // deadline
+    private long deadline;
+    private CoarseImage coarseImage;
+    private boolean[] bucketFinished;
 
     public boolean prepare(Options options, Scene scene, int w, int h) {
         this.scene = scene;
@@ -26,6 +31,7 @@ public class SimpleRenderer implements ImageSampler {
         numBucketsX = (imageWidth + 31) >>> 5;
         numBucketsY = (imageHeight + 31) >>> 5;
         numBuckets = numBucketsX * numBucketsY;
+        deadline = scene.getDeadline();
         return true;
     }
 
@@ -37,6 +43,11 @@ public class SimpleRenderer implements ImageSampler {
         // start task
         Timer timer = new Timer();
         timer.start();
+        if (deadline != Long.MAX_VALUE) {
+            coarseImage = new CoarseImage(scene, Module.BCKT, imageWidth, imageHeight);
+            coarseImage.render();
+            bucketFinished = new boolean[numBuckets];
+        }
         BucketThread[] renderThreads = new BucketThread[scene.getThreads()];
         for (int i = 0; i < renderThreads.length; i++) {
             renderThreads[i] = new BucketThread();
@@ -51,6 +62,11 @@ public class SimpleRenderer implements ImageSampler {
                 renderThreads[i].updateStats();
             }
         }
+        if (coarseImage != null) {
+            fillUnfinishedBuckets();
+            coarseImage = null;
+            bucketFinished = null;
+        }
         timer.end();
         UI.printInfo(Module.BCKT, "Render time: %s", timer.toString());
         display.imageEnd();
@@ -63,16 +79,22 @@ public class SimpleRenderer implements ImageSampler {
         @Override
         public void run() {
             while (true) {
-                int bx, by;
+                int bucket, bx, by;
                 synchronized (SimpleRenderer.this) {
-                    if (bucketCounter >= numBuckets) {
+                    if (bucketCounter >= numBuckets || System.nanoTime() > deadline) {
                         return;
                     }
+                    bucket = bucketCounter;
                     by = bucketCounter / numBucketsX;
                     bx = bucketCounter % numBucketsX;
                     bucketCounter++;
                 }
+                long a0 = Memory.getAllocatedBytes();
                 renderBucket(bx, by, istate);
+                istate.addAllocatedBytes(Memory.getAllocatedBytes() - a0);
+                if (bucketFinished != null) {
+                    bucketFinished[bucket] = true;
+                }
             }
         }
 
@@ -81,6 +103,27 @@ public class SimpleRenderer implements ImageSampler {
         }
     }
 
+    /**
+     * Fills the buckets which were not started before the deadline from the
+     * coarse image, and reports the quality of every bucket to the display.
+     */
+    private void fillUnfinishedBuckets() {
+        long fullPixels = 0;
+        for (int i = 0; i < numBuckets; i++) {
+            int x0 = (i % numBucketsX) * 32;
+            int y0 = (i / numBucketsX) * 32;
+            int bw = Math.min(32, imageWidth - x0);
+            int bh = Math.min(32, imageHeight - y0);
+            if (bucketFinished[i]) {
+                fullPixels += bw * bh;
+            } else {
+                coarseImage.fill(display, x0, y0, bw, bh);
+            }
+            CoarseImage.report(display, x0, y0, bw, bh, bucketFinished[i]);
+        }
+        CoarseImage.printSummary(Module.BCKT, fullPixels, (long) imageWidth * imageHeight);
+    }
+
     public void renderBucket(int bx, int by, IntersectionState istate) {
         // pixel sized extents
         int x0 = bx * 32;
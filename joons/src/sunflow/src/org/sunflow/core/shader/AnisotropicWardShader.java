@@ -60,6 +60,27 @@ public class AnisotropicWardShader implements Shader {
         return fr;
     }
 
+    /**
+     * Computes the density, with respect to solid angle, with which the
+     * reflected direction <code>o</code> is sampled.
+     */
+    private float pdf(Vector3 i, Vector3 o, OrthoNormalBasis basis) {
+        Vector3 h = Vector3.add(i, o, new Vector3());
+        if (h.length() == 0) {
+            return 0;
+        }
+        h.normalize();
+        float ho = Vector3.dot(h, o);
+        basis.untransform(h);
+        if (h.z <= 0 || ho <= 0) {
+            return 0;
+        }
+        float hx = h.x / alphaX;
+        float hy = h.y / alphaY;
+        float hn = h.z * h.z;
+        return (float) Math.exp(-(hx * hx + hy * hy) / hn) / (4 * (float) Math.PI * alphaX * alphaY * ho * hn * h.z);
+    }
+
     public Color getRadiance(ShadingState state) {
         // make sure we are on the right side of the material
         state.faceforward();
@@ -71,15 +92,21 @@ public class AnisotropicWardShader implements Shader {
         // compute specular contribution
         if (state.includeSpecular()) {
             Vector3 in = state.getRay().getDirection().negate(new Vector3());
+            int n = state.getDepth() == 0 ? numRays : 1;
+            // light samples which can also be reached by glossy rays are
+            // weighted against them
+            boolean mis = numRays > 0 && state.canTraceGlossy();
             for (LightSample sample : state) {
                 float cosNL = sample.dot(state.getNormal());
                 float fr = brdf(in, sample.getShadowRay().getDirection(), onb);
+                if (mis) {
+                    fr *= sample.getMisWeight(n * pdf(in, sample.getShadowRay().getDirection(), onb));
+                }
                 lr.madd(cosNL * fr, sample.getSpecularRadiance());
             }
 
             // indirect lighting - specular
             if (numRays > 0) {
-                int n = state.getDepth() == 0 ? numRays : 1;
                 for (int i = 0; i < n; i++) {
                     // specular indirect lighting
                     double r1 = state.getRandom(i, 0, n);
@@ -130,7 +157,7 @@ public class AnisotropicWardShader implements Shader {
                     float w = ih * cosTheta * cosTheta * cosTheta * (float) Math.sqrt(Math.abs(no / ni));
 
                     Ray r = new Ray(state.getPoint(), o);
-                    lr.madd(w / n, state.traceGlossy(r, i));
+                    lr.madd(w / n, state.traceGlossy(r, i, n * pdf(in, o, onb)));
                 }
             }
             lr.mul(rhoS);
@@ -1,12 +1,10 @@
 package org.sunflow.core.tesselatable;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedReader;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
@@ -17,9 +15,9 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.sunflow.SunflowAPI;
+import org.sunflow.core.ParallelTesselatable;
 import org.sunflow.core.ParameterList;
 import org.sunflow.core.PrimitiveList;
-import org.sunflow.core.Tesselatable;
 import org.sunflow.core.ParameterList.InterpolationType;
 import org.sunflow.core.primitive.TriangleMesh;
 import org.sunflow.math.BoundingBox;
@@ -29,13 +27,18 @@ import org.sunflow.math.Vector3;
 import org.sunflow.system.Memory;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
-import org.sunflow.util.FloatArray;
-import org.sunflow.util.IntArray;
 
-public class FileMesh implements Tesselatable {
+public class FileMesh implements ParallelTesselatable {
 
     private String filename = null;
     private boolean smoothNormals = false;
+    private String storage = "heap";
+    private int threads = 0;
+
+    @Override
+    public void setTesselationThreads(int threads) {
+        this.threads = threads;
+    }
 
     public BoundingBox getWorldBounds(Matrix4 o2w) {
         // world bounds can't be computed without reading file
@@ -76,49 +79,24 @@ public class FileMesh implements Tesselatable {
                 UI.printError(Module.GEOM, "Unable to read mesh file \"%s\" - I/O error occured", filename);
             }
         } else if (filename.endsWith(".obj")) {
-            int lineNumber = 1;
             try {
                 UI.printInfo(Module.GEOM, "OBJ - Reading geometry: \"%s\" ...", filename);
-                FloatArray verts = new FloatArray();
-                IntArray tris = new IntArray();
-                FileReader file = new FileReader(filename);
-                BufferedReader bf = new BufferedReader(file);
-                String line;
-                while ((line = bf.readLine()) != null) {
-                    if (line.startsWith("v")) {
-                        String[] v = line.split("\\s+");
-                        verts.add(Float.parseFloat(v[1]));
-                        verts.add(Float.parseFloat(v[2]));
-                        verts.add(Float.parseFloat(v[3]));
-                    } else if (line.startsWith("f")) {
-                        String[] f = line.split("\\s+");
-                        if (f.length == 5) {
-                            tris.add(Integer.parseInt(f[1]) - 1);
-                            tris.add(Integer.parseInt(f[2]) - 1);
-                            tris.add(Integer.parseInt(f[3]) - 1);
-                            tris.add(Integer.parseInt(f[1]) - 1);
-                            tris.add(Integer.parseInt(f[3]) - 1);
-                            tris.add(Integer.parseInt(f[4]) - 1);
-                        } else if (f.length == 4) {
-                            tris.add(Integer.parseInt(f[1]) - 1);
-                            tris.add(Integer.parseInt(f[2]) - 1);
-                            tris.add(Integer.parseInt(f[3]) - 1);
-                        }
-                    }
-                    if (lineNumber % 100000 == 0) {
-                        UI.printInfo(Module.GEOM, "OBJ -   * Parsed %7d lines ...", lineNumber);
-                    }
-                    lineNumber++;
-                }
-                file.close();
+                ObjReader obj = ObjReader.read(filename, threads);
                 UI.printInfo(Module.GEOM, "OBJ -   * Creating mesh ...");
-                return generate(tris.trim(), verts.trim(), smoothNormals);
+                // normals from the file replace the computed ones, the mesh
+                // stays faceted unless smoothing is enabled
+                if (!smoothNormals) {
+                    return generate(obj.tris, obj.verts, null, InterpolationType.VERTEX, obj.uvs, obj.uvsInterp);
+                }
+                if (obj.normals != null) {
+                    return generate(obj.tris, obj.verts, obj.normals, obj.normalsInterp, obj.uvs, obj.uvsInterp);
+                }
+                return generate(obj.tris, obj.verts, computeNormals(obj.tris, obj.verts), InterpolationType.VERTEX, obj.uvs, obj.uvsInterp);
             } catch (FileNotFoundException e) {
                 Logger.getLogger(FileMesh.class.getName()).log(Level.SEVERE, null, e);
                 UI.printError(Module.GEOM, "Unable to read mesh file \"%s\" - file not found", filename);
             } catch (NumberFormatException e) {
-                Logger.getLogger(FileMesh.class.getName()).log(Level.SEVERE, null, e);
-                UI.printError(Module.GEOM, "Unable to read mesh file \"%s\" - syntax error at line %d", lineNumber);
+                UI.printError(Module.GEOM, "Unable to read mesh file \"%s\" - %s", filename, e.getMessage());
             } catch (IOException e) {
                 Logger.getLogger(FileMesh.class.getName()).log(Level.SEVERE, null, e);
                 UI.printError(Module.GEOM, "Unable to read mesh file \"%s\" - I/O error occured", filename);
@@ -176,45 +154,19 @@ public class FileMesh implements Tesselatable {
     }
 
     private TriangleMesh generate(int[] tris, float[] verts, boolean smoothNormals) {
+        return generate(tris, verts, smoothNormals ? computeNormals(tris, verts) : null, InterpolationType.VERTEX, null, null);
+    }
+
+    private TriangleMesh generate(int[] tris, float[] verts, float[] normals, InterpolationType normalsInterp, float[] uvs, InterpolationType uvsInterp) {
         ParameterList pl = new ParameterList();
         pl.addIntegerArray("triangles", tris);
         pl.addPoints("points", InterpolationType.VERTEX, verts);
-        if (smoothNormals) {
-            float[] normals = new float[verts.length]; // filled with 0's
-            Point3 p0 = new Point3();
-            Point3 p1 = new Point3();
-            Point3 p2 = new Point3();
-            Vector3 n = new Vector3();
-            for (int i3 = 0; i3 < tris.length; i3 += 3) {
-                int v0 = tris[i3 + 0];
-                int v1 = tris[i3 + 1];
-                int v2 = tris[i3 + 2];
-                p0.set(verts[3 * v0 + 0], verts[3 * v0 + 1], verts[3 * v0 + 2]);
-                p1.set(verts[3 * v1 + 0], verts[3 * v1 + 1], verts[3 * v1 + 2]);
-                p2.set(verts[3 * v2 + 0], verts[3 * v2 + 1], verts[3 * v2 + 2]);
-                Point3.normal(p0, p1, p2, n); // compute normal
-                // add face normal to each vertex
-                // note that these are not normalized so this in fact weights
-                // each normal by the area of the triangle
-                normals[3 * v0 + 0] += n.x;
-                normals[3 * v0 + 1] += n.y;
-                normals[3 * v0 + 2] += n.z;
-                normals[3 * v1 + 0] += n.x;
-                normals[3 * v1 + 1] += n.y;
-                normals[3 * v1 + 2] += n.z;
-                normals[3 * v2 + 0] += n.x;
-                normals[3 * v2 + 1] += n.y;
-                normals[3 * v2 + 2] += n.z;
-            }
-            // normalize all the vectors
-            for (int i3 = 0; i3 < normals.length; i3 += 3) {
-                n.set(normals[i3 + 0], normals[i3 + 1], normals[i3 + 2]);
-                n.normalize();
-                normals[i3 + 0] = n.x;
-                normals[i3 + 1] = n.y;
-                normals[i3 + 2] = n.z;
-            }
-            pl.addVectors("normals", InterpolationType.VERTEX, normals);
+        pl.addString("storage", storage);
+        if (normals != null) {
+            pl.addVectors("normals", normalsInterp, normals);
+        }
+        if (uvs != null) {
+            pl.addTexCoords("uvs", uvsInterp, uvs);
         }
         TriangleMesh m = new TriangleMesh();
         if (m.update(pl, null)) {
@@ -225,12 +177,51 @@ public class FileMesh implements Tesselatable {
         return null;
     }
 
+    private float[] computeNormals(int[] tris, float[] verts) {
+        float[] normals = new float[verts.length]; // filled with 0's
+        Point3 p0 = new Point3();
+        Point3 p1 = new Point3();
+        Point3 p2 = new Point3();
+        Vector3 n = new Vector3();
+        for (int i3 = 0; i3 < tris.length; i3 += 3) {
+            int v0 = tris[i3 + 0];
+            int v1 = tris[i3 + 1];
+            int v2 = tris[i3 + 2];
+            p0.set(verts[3 * v0 + 0], verts[3 * v0 + 1], verts[3 * v0 + 2]);
+            p1.set(verts[3 * v1 + 0], verts[3 * v1 + 1], verts[3 * v1 + 2]);
+            p2.set(verts[3 * v2 + 0], verts[3 * v2 + 1], verts[3 * v2 + 2]);
+            Point3.normal(p0, p1, p2, n); // compute normal
+            // add face normal to each vertex
+            // note that these are not normalized so this in fact weights
+            // each normal by the area of the triangle
+            normals[3 * v0 + 0] += n.x;
+            normals[3 * v0 + 1] += n.y;
+            normals[3 * v0 + 2] += n.z;
+            normals[3 * v1 + 0] += n.x;
+            normals[3 * v1 + 1] += n.y;
+            normals[3 * v1 + 2] += n.z;
+            normals[3 * v2 + 0] += n.x;
+            normals[3 * v2 + 1] += n.y;
+            normals[3 * v2 + 2] += n.z;
+        }
+        // normalize all the vectors
+        for (int i3 = 0; i3 < normals.length; i3 += 3) {
+            n.set(normals[i3 + 0], normals[i3 + 1], normals[i3 + 2]);
+            n.normalize();
+            normals[i3 + 0] = n.x;
+            normals[i3 + 1] = n.y;
+            normals[i3 + 2] = n.z;
+        }
+        return normals;
+    }
+
     public boolean update(ParameterList pl, SunflowAPI api) {
         String file = pl.getString("filename", null);
         if (file != null) {
             filename = api.resolveIncludeFilename(file);
         }
         smoothNormals = pl.getBoolean("smooth_normals", smoothNormals);
+        storage = pl.getString("storage", storage);
         return filename != null;
     }
 
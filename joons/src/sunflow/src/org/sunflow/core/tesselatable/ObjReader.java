@@ -0,0 +1,609 @@
+package org.sunflow.core.tesselatable;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.sunflow.core.ParameterList.InterpolationType;
+import org.sunflow.system.Memory;
+import org.sunflow.system.Timer;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+import org.sunflow.util.FloatArray;
+import org.sunflow.util.IntArray;
+
+/**
+ * Reads the geometry of Wavefront OBJ files. The file is split into chunks at
+ * line boundaries, which are read and parsed in parallel and then
+ * concatenated. Vertex positions, texture coordinates and normals are read,
+ * polygons with any number of vertices are triangulated as fans. Other
+ * statements are ignored.
+ */
+final class ObjReader {
+
+    private static final int CHUNK_SIZE = 8 << 20;
+
+    float[] verts;
+    int[] tris;
+    // texture coordinates and normals, or null if the file has none
+    float[] uvs;
+    InterpolationType uvsInterp;
+    float[] normals;
+    InterpolationType normalsInterp;
+
+    private ObjReader() {
+    }
+
+    /**
+     * Reads the specified file.
+     *
+     * @param filename OBJ file to read
+     * @param threads number of parsing threads, 0 to use one per processor
+     * @return parsed geometry
+     * @throws IOException if the file could not be read
+     * @throws NumberFormatException if the file contains a syntax error or an
+     *             invalid index
+     */
+    static ObjReader read(String filename, int threads) throws IOException {
+        Timer t = new Timer();
+        t.start();
+        RandomAccessFile file = new RandomAccessFile(filename, "r");
+        final Chunk[] chunks;
+        long size;
+        try {
+            final FileChannel channel = file.getChannel();
+            size = channel.size();
+            final long[] bounds = findChunks(channel, size);
+            chunks = new Chunk[bounds.length - 1];
+            final AtomicInteger nextChunk = new AtomicInteger();
+            final AtomicInteger chunksDone = new AtomicInteger();
+            final IOException[] error = new IOException[1];
+            int numThreads = Math.max(1, Math.min(threads <= 0 ? Runtime.getRuntime().availableProcessors() : threads, chunks.length));
+            UI.taskStart("Parsing OBJ file", 0, chunks.length);
+            Thread[] workers = new Thread[numThreads];
+            for (int i = 0; i < workers.length; i++) {
+                workers[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        byte[] data = new byte[0];
+                        for (int c; (c = nextChunk.getAndIncrement()) < chunks.length;) {
+                            int length = (int) (bounds[c + 1] - bounds[c]);
+                            if (data.length < length) {
+                                data = new byte[length];
+                            }
+                            try {
+                                ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+                                while (buffer.hasRemaining()) {
+                                    if (channel.read(buffer, bounds[c] + buffer.position()) < 0) {
+                                        throw new IOException("unexpected end of file");
+                                    }
+                                }
+                            } catch (IOException e) {
+                                synchronized (error) {
+                                    error[0] = e;
+                                }
+                                return;
+                            }
+                            chunks[c] = new Chunk(data, length, bounds[c]);
+                            chunks[c].parse();
+                            UI.taskUpdate(chunksDone.incrementAndGet());
+                        }
+                    }
+                };
+                workers[i].start();
+            }
+            for (Thread thread : workers) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    UI.printError(Module.GEOM, "OBJ - Parsing thread interrupted");
+                }
+            }
+            UI.taskStop();
+            if (error[0] != null) {
+                throw error[0];
+            }
+        } finally {
+            file.close();
+        }
+        for (Chunk c : chunks) {
+            if (c == null) {
+                throw new IOException("parsing was interrupted");
+            }
+            if (c.error != null) {
+                throw new NumberFormatException(c.error);
+            }
+        }
+        ObjReader obj = merge(chunks);
+        t.end();
+        UI.printInfo(Module.GEOM, "OBJ -   * Parsed %s in %d chunks in %s (%.1f MB/s)", Memory.bytesToString(size), chunks.length, t, size / (1e6 * Math.max(t.seconds(), 1e-6)));
+        UI.printInfo(Module.GEOM, "OBJ -   * Vertices: %d, triangles: %d%s%s", obj.verts.length / 3, obj.tris.length / 3, obj.uvs != null ? ", uvs" : "", obj.normals != null ? ", normals" : "");
+        return obj;
+    }
+
+    /**
+     * Splits the file into chunks of roughly equal size which start at the
+     * beginning of a line.
+     */
+    private static long[] findChunks(FileChannel channel, long size) throws IOException {
+        LongList bounds = new LongList();
+        bounds.add(0);
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        long pos = CHUNK_SIZE;
+        while (pos < size) {
+            // move forward to the start of the next line
+            long next = size;
+            search: for (long p = pos; p < size;) {
+                buffer.clear();
+                int n = channel.read(buffer, p);
+                if (n <= 0) {
+                    break;
+                }
+                for (int i = 0; i < n; i++) {
+                    if (buffer.get(i) == '\n') {
+                        next = p + i + 1;
+                        break search;
+                    }
+                }
+                p += n;
+            }
+            if (next >= size) {
+                break;
+            }
+            bounds.add(next);
+            pos = next + CHUNK_SIZE;
+        }
+        bounds.add(size);
+        return bounds.trim();
+    }
+
+    private static ObjReader merge(Chunk[] chunks) {
+        int numChunks = chunks.length;
+        // offsets of each chunk into the concatenated arrays
+        int[] vOffset = new int[numChunks + 1];
+        int[] vtOffset = new int[numChunks + 1];
+        int[] vnOffset = new int[numChunks + 1];
+        int[] cornerOffset = new int[numChunks + 1];
+        boolean hasUVs = false;
+        boolean hasNormals = false;
+        for (int c = 0; c < numChunks; c++) {
+            vOffset[c + 1] = vOffset[c] + chunks[c].verts.getSize() / 3;
+            vtOffset[c + 1] = vtOffset[c] + chunks[c].uvs.getSize() / 2;
+            vnOffset[c + 1] = vnOffset[c] + chunks[c].normals.getSize() / 3;
+            cornerOffset[c + 1] = cornerOffset[c] + chunks[c].tris.getSize();
+            hasUVs |= chunks[c].uvIndices != null;
+            hasNormals |= chunks[c].normalIndices != null;
+        }
+        int numCorners = cornerOffset[numChunks];
+        ObjReader obj = new ObjReader();
+        obj.verts = new float[3 * vOffset[numChunks]];
+        obj.tris = new int[numCorners];
+        float[] vt = new float[2 * vtOffset[numChunks]];
+        float[] vn = new float[3 * vnOffset[numChunks]];
+        int[] uvIndices = hasUVs ? new int[numCorners] : null;
+        int[] normalIndices = hasNormals ? new int[numCorners] : null;
+        for (int c = 0; c < numChunks; c++) {
+            Chunk chunk = chunks[c];
+            copy(chunk.verts, obj.verts, 3 * vOffset[c]);
+            copy(chunk.uvs, vt, 2 * vtOffset[c]);
+            copy(chunk.normals, vn, 3 * vnOffset[c]);
+            copy(chunk.tris, chunk.trisRelative, obj.tris, cornerOffset[c], vOffset[c]);
+            if (uvIndices != null) {
+                copy(chunk.uvIndices, chunk.uvRelative, uvIndices, cornerOffset[c], cornerOffset[c + 1], vtOffset[c]);
+            }
+            if (normalIndices != null) {
+                copy(chunk.normalIndices, chunk.normalRelative, normalIndices, cornerOffset[c], cornerOffset[c + 1], vnOffset[c]);
+            }
+            // release the chunk as soon as it has been copied
+            chunks[c] = null;
+        }
+        int numVerts = vOffset[numChunks];
+        for (int i = 0; i < numCorners; i++) {
+            if (obj.tris[i] < 0 || obj.tris[i] >= numVerts) {
+                throw new NumberFormatException(String.format("invalid vertex index %d", obj.tris[i] + 1));
+            }
+        }
+        if (uvIndices != null) {
+            obj.uvsInterp = isPerVertex(uvIndices, obj.tris) ? InterpolationType.VERTEX : InterpolationType.FACEVARYING;
+            obj.uvs = expand(vt, 2, uvIndices, obj.tris, numVerts, obj.uvsInterp);
+        }
+        if (normalIndices != null && contains(normalIndices, -1)) {
+            UI.printWarning(Module.GEOM, "OBJ - Some faces have no normals, ignoring normals");
+            normalIndices = null;
+        }
+        if (normalIndices != null) {
+            obj.normalsInterp = isPerVertex(normalIndices, obj.tris) ? InterpolationType.VERTEX : InterpolationType.FACEVARYING;
+            obj.normals = expand(vn, 3, normalIndices, obj.tris, numVerts, obj.normalsInterp);
+        }
+        return obj;
+    }
+
+    private static void copy(FloatArray src, float[] dest, int offset) {
+        if (src.getSize() > 0) {
+            System.arraycopy(src.trim(), 0, dest, offset, src.getSize());
+        }
+    }
+
+    /**
+     * Copies the attribute indices of a chunk, which may not have any.
+     */
+    private static void copy(IntArray src, IntArray relative, int[] dest, int start, int end, int base) {
+        if (src == null) {
+            Arrays.fill(dest, start, end, -1);
+        } else {
+            copy(src, relative, dest, start, base);
+        }
+    }
+
+    /**
+     * Copies the indices of a chunk, resolving relative indices using the
+     * number of elements read by the previous chunks.
+     */
+    private static void copy(IntArray src, IntArray relative, int[] dest, int offset, int base) {
+        if (src.getSize() > 0) {
+            System.arraycopy(src.trim(), 0, dest, offset, src.getSize());
+        }
+        for (int i = 0; i < relative.getSize(); i++) {
+            dest[offset + relative.get(i)] += base;
+        }
+    }
+
+    /**
+     * Checks to see if every corner uses the attribute with the same index as
+     * its vertex, so the attribute can be interpolated per vertex.
+     */
+    private static boolean isPerVertex(int[] indices, int[] tris) {
+        for (int i = 0; i < indices.length; i++) {
+            if (indices[i] != tris[i] && indices[i] >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean contains(int[] a, int v) {
+        for (int x : a) {
+            if (x == v) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Builds the attribute array for the mesh. Corners without an attribute
+     * get zeros.
+     */
+    private static float[] expand(float[] values, int n, int[] indices, int[] tris, int numVerts, InterpolationType interp) {
+        int numValues = values.length / n;
+        for (int i = 0; i < indices.length; i++) {
+            if (indices[i] >= numValues || indices[i] < -1) {
+                throw new NumberFormatException(String.format("invalid %s index %d", n == 2 ? "texture coordinate" : "normal", indices[i] + 1));
+            }
+        }
+        if (interp == InterpolationType.VERTEX) {
+            float[] data = new float[n * numVerts];
+            System.arraycopy(values, 0, data, 0, Math.min(values.length, data.length));
+            return data;
+        }
+        float[] data = new float[n * indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            if (indices[i] >= 0) {
+                System.arraycopy(values, n * indices[i], data, n * i, n);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Parses a single chunk of the file. Positive indices are stored zero
+     * based, relative indices are stored relative to the start of the chunk
+     * and their positions recorded so they can be offset during the merge.
+     */
+    private static final class Chunk {
+
+        // powers of ten which are exact floats
+        private static final float[] POWERS_OF_TEN = new float[11];
+
+        static {
+            POWERS_OF_TEN[0] = 1;
+            for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+                POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+            }
+        }
+
+        private byte[] data;
+        private final int length;
+        private final long offset;
+        private int pos;
+        String error;
+
+        final FloatArray verts = new FloatArray();
+        final FloatArray uvs = new FloatArray();
+        final FloatArray normals = new FloatArray();
+        final IntArray tris = new IntArray();
+        final IntArray trisRelative = new IntArray();
+        IntArray uvIndices;
+        final IntArray uvRelative = new IntArray();
+        IntArray normalIndices;
+        final IntArray normalRelative = new IntArray();
+
+        // corners of the polygon being read
+        private int numCorners;
+        private int[] cornerV = new int[16];
+        private int[] cornerVT = new int[16];
+        private int[] cornerVN = new int[16];
+
+        Chunk(byte[] data, int length, long offset) {
+            this.data = data;
+            this.length = length;
+            this.offset = offset;
+        }
+
+        void parse() {
+            pos = 0;
+            try {
+                while (pos < length) {
+                    skipBlanks();
+                    if (pos + 1 < length && isBlank(data[pos + 1])) {
+                        if (data[pos] == 'v') {
+                            pos++;
+                            verts.add(parseFloat());
+                            verts.add(parseFloat());
+                            verts.add(parseFloat());
+                        } else if (data[pos] == 'f') {
+                            pos++;
+                            parseFace();
+                        }
+                    } else if (pos + 2 < length && data[pos] == 'v' && isBlank(data[pos + 2])) {
+                        if (data[pos + 1] == 't') {
+                            pos += 2;
+                            uvs.add(parseFloat());
+                            // the v coordinate is optional
+                            skipBlanks();
+                            uvs.add(isEndOfLine() ? 0 : parseFloat());
+                        } else if (data[pos + 1] == 'n') {
+                            pos += 2;
+                            normals.add(parseFloat());
+                            normals.add(parseFloat());
+                            normals.add(parseFloat());
+                        }
+                    }
+                    skipLine();
+                }
+            } catch (NumberFormatException e) {
+                error = String.format("syntax error at byte offset %d", offset + pos);
+            }
+            // the buffer is reused for the next chunk
+            data = null;
+        }
+
+        private void parseFace() {
+            numCorners = 0;
+            skipBlanks();
+            while (!isEndOfLine()) {
+                if (numCorners == cornerV.length) {
+                    cornerV = grow(cornerV);
+                    cornerVT = grow(cornerVT);
+                    cornerVN = grow(cornerVN);
+                }
+                int v = parseInt();
+                int vt = 0;
+                int vn = 0;
+                if (pos < length && data[pos] == '/') {
+                    pos++;
+                    if (pos < length && data[pos] != '/') {
+                        vt = parseInt();
+                    }
+                    if (pos < length && data[pos] == '/') {
+                        pos++;
+                        vn = parseInt();
+                    }
+                }
+                if (v == 0) {
+                    throw new NumberFormatException();
+                }
+                cornerV[numCorners] = v;
+                cornerVT[numCorners] = vt;
+                cornerVN[numCorners] = vn;
+                numCorners++;
+                skipBlanks();
+            }
+            if (numCorners < 3) {
+                return;
+            }
+            for (int i = 1; i + 1 < numCorners; i++) {
+                addCorner(0);
+                addCorner(i);
+                addCorner(i + 1);
+            }
+        }
+
+        private void addCorner(int i) {
+            int position = tris.getSize();
+            tris.add(resolve(cornerV[i], verts.getSize() / 3, trisRelative, position));
+            if (cornerVT[i] != 0 && uvIndices == null) {
+                uvIndices = missing(position);
+            }
+            if (uvIndices != null) {
+                uvIndices.add(cornerVT[i] == 0 ? -1 : resolve(cornerVT[i], uvs.getSize() / 2, uvRelative, position));
+            }
+            if (cornerVN[i] != 0 && normalIndices == null) {
+                normalIndices = missing(position);
+            }
+            if (normalIndices != null) {
+                normalIndices.add(cornerVN[i] == 0 ? -1 : resolve(cornerVN[i], normals.getSize() / 3, normalRelative, position));
+            }
+        }
+
+        private static IntArray missing(int n) {
+            IntArray a = new IntArray();
+            for (int i = 0; i < n; i++) {
+                a.add(-1);
+            }
+            return a;
+        }
+
+        private static int resolve(int index, int count, IntArray relative, int position) {
+            if (index > 0) {
+                return index - 1;
+            }
+            relative.add(position);
+            return count + index;
+        }
+
+        private static int[] grow(int[] a) {
+            int[] b = new int[2 * a.length];
+            System.arraycopy(a, 0, b, 0, a.length);
+            return b;
+        }
+
+        private static boolean isBlank(byte c) {
+            return c == ' ' || c == '\t';
+        }
+
+        private boolean isEndOfLine() {
+            return pos >= length || data[pos] == '\n' || data[pos] == '\r' || data[pos] == '#';
+        }
+
+        private void skipBlanks() {
+            while (pos < length && isBlank(data[pos])) {
+                pos++;
+            }
+        }
+
+        private void skipLine() {
+            while (pos < length && data[pos] != '\n') {
+                pos++;
+            }
+            pos++;
+        }
+
+        private int parseInt() {
+            boolean negative = false;
+            if (pos < length && (data[pos] == '-' || data[pos] == '+')) {
+                negative = data[pos] == '-';
+                pos++;
+            }
+            int start = pos;
+            int value = 0;
+            while (pos < length && data[pos] >= '0' && data[pos] <= '9') {
+                value = 10 * value + (data[pos] - '0');
+                pos++;
+            }
+            if (pos == start || pos - start > 9) {
+                throw new NumberFormatException();
+            }
+            return negative ? -value : value;
+        }
+
+        private float parseFloat() {
+            skipBlanks();
+            int start = pos;
+            boolean negative = false;
+            if (pos < length && (data[pos] == '-' || data[pos] == '+')) {
+                negative = data[pos] == '-';
+                pos++;
+            }
+            long mantissa = 0;
+            int digits = 0;
+            int exponent = 0;
+            int numDigits = 0;
+            while (pos < length && data[pos] >= '0' && data[pos] <= '9') {
+                mantissa = 10 * mantissa + (data[pos] - '0');
+                if (mantissa > 0) {
+                    digits++;
+                }
+                numDigits++;
+                pos++;
+            }
+            if (pos < length && data[pos] == '.') {
+                pos++;
+                while (pos < length && data[pos] >= '0' && data[pos] <= '9') {
+                    mantissa = 10 * mantissa + (data[pos] - '0');
+                    if (mantissa > 0) {
+                        digits++;
+                    }
+                    exponent--;
+                    numDigits++;
+                    pos++;
+                }
+            }
+            if (digits > 18) {
+                // the mantissa might overflow
+                return parseFloatSlow(start);
+            }
+            if (numDigits == 0) {
+                return parseFloatSlow(start);
+            }
+            if (pos < length && (data[pos] == 'e' || data[pos] == 'E')) {
+                pos++;
+                exponent += parseInt();
+            }
+            if (pos < length && !isBlank(data[pos]) && !isEndOfLine()) {
+                return parseFloatSlow(start);
+            }
+            // drop trailing zeros such as the ones of "1.500000"
+            while (exponent < 0 && mantissa != 0 && mantissa % 10 == 0) {
+                mantissa /= 10;
+                exponent++;
+            }
+            if (mantissa > (1 << 24)) {
+                // the mantissa is no longer exactly representable as a float
+                return parseFloatSlow(start);
+            }
+            // both operands are exact, so a single float operation gives the
+            // correctly rounded result, the same as Float.parseFloat
+            float value;
+            if (exponent == 0) {
+                value = mantissa;
+            } else if (exponent > 0 && exponent < POWERS_OF_TEN.length) {
+                value = mantissa * POWERS_OF_TEN[exponent];
+            } else if (exponent < 0 && -exponent < POWERS_OF_TEN.length) {
+                value = mantissa / POWERS_OF_TEN[-exponent];
+            } else {
+                return parseFloatSlow(start);
+            }
+            return negative ? -value : value;
+        }
+
+        /**
+         * Handles the rare values the fast path can't parse exactly, as well
+         * as special values like NaN.
+         */
+        private float parseFloatSlow(int start) {
+            pos = start;
+            while (pos < length && !isBlank(data[pos]) && !isEndOfLine()) {
+                pos++;
+            }
+            return Float.parseFloat(new String(data, start, pos - start));
+        }
+    }
+
+    /**
+     * Growable array of long values.
+     */
+    private static final class LongList {
+
+        private long[] values = new long[16];
+        private int size;
+
+        void add(long v) {
+            if (size == values.length) {
+                long[] a = new long[2 * size];
+                System.arraycopy(values, 0, a, 0, size);
+                values = a;
+            }
+            values[size++] = v;
+        }
+
+        long[] trim() {
+            long[] a = new long[size];
+            System.arraycopy(values, 0, a, 0, size);
+            return a;
+        }
+    }
+}
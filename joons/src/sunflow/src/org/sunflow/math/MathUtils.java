@@ -156,4 +156,21 @@ public final class MathUtils {
         y = (y - y * y) * 0.33971f;
         return Float.intBitsToFloat((int) ((b + 127 - y) * (1 << 23)));
     }
-}
\ No newline at end of file
+
+    /**
+     * Computes the power heuristic weight of a sample when combining two
+     * sampling strategies. The densities should be multiplied by the number of
+     * samples each strategy takes.
+     *
+     * @param f density of the strategy which generated the sample
+     * @param g density of the other strategy
+     * @return weight of the sample, between 0 and 1
+     */
+    public static final float powerHeuristic(float f, float g) {
+        if (f <= 0) {
+            return 0;
+        }
+        float f2 = f * f;
+        return f2 / (f2 + g * g);
+    }
+}
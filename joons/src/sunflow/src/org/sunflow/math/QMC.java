@@ -6,7 +6,9 @@ import org.sunflow.system.UI.Module;
 public final class QMC {
 
     public static final int MAX_SIGMA_ORDER = 15;
-    private static final int NUM = 128;
+    // highest dimension the halton sequence is defined for
+    public static final int MAX_DIMENSION = 127;
+    private static final int NUM = MAX_DIMENSION + 1;
     private static final int[][] SIGMA = new int[NUM][];
     private static final int[] PRIMES = new int[NUM];
     private static final int[] FIBONACCI = new int[47];
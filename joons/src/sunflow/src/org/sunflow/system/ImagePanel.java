@@ -8,6 +8,7 @@ import java.awt.event.MouseWheelEvent;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -15,11 +16,11 @@ import javax.imageio.ImageIO;
 import javax.swing.JPanel;
 import javax.swing.event.MouseInputAdapter;
 
-import org.sunflow.core.Display;
+import org.sunflow.core.DeadlineDisplay;
 import org.sunflow.image.Color;
 
 @SuppressWarnings("serial")
-public class ImagePanel extends JPanel implements Display {
+public class ImagePanel extends JPanel implements DeadlineDisplay {
 
     private static final int[] BORDERS = {Color.RED.toRGB(),
         Color.GREEN.toRGB(), Color.BLUE.toRGB(), Color.YELLOW.toRGB(),
@@ -28,6 +29,8 @@ public class ImagePanel extends JPanel implements Display {
     private float xo, yo;
     private float w, h;
     private long repaintCounter;
+    // regions which missed the render deadline, outlined on top of the image
+    private final ArrayList<int[]> coarseRegions = new ArrayList<int[]>();
 
     private class ScrollZoomListener extends MouseInputAdapter {
 
@@ -201,6 +204,7 @@ public class ImagePanel extends JPanel implements Display {
             this.h = h;
             xo = yo = 0;
         }
+        coarseRegions.clear();
         repaintCounter = System.nanoTime();
         repaint();
     }
@@ -245,6 +249,13 @@ public class ImagePanel extends JPanel implements Display {
         fastRepaint();
     }
 
+    @Override
+    public synchronized void imageQuality(int x, int y, int w, int h, boolean full) {
+        if (!full) {
+            coarseRegions.add(new int[]{x, y, w, h});
+        }
+    }
+
     @Override
     public void imageEnd() {
         repaint();
@@ -278,5 +289,15 @@ public class ImagePanel extends JPanel implements Display {
         g.drawLine(x1, y1, x0, y1);
         g.drawLine(x0, y1, x0, y0);
         g.drawImage(image, x, y, iw, ih, java.awt.Color.BLACK, this);
+        if (!coarseRegions.isEmpty()) {
+            float sx = (float) iw / image.getWidth();
+            float sy = (float) ih / image.getHeight();
+            g.setColor(java.awt.Color.RED);
+            for (int[] r : coarseRegions) {
+                int rx = x + Math.round(r[0] * sx);
+                int ry = y + Math.round(r[1] * sy);
+                g.drawRect(rx, ry, Math.round((r[0] + r[2]) * sx) - Math.round(r[0] * sx) - 1, Math.round((r[1] + r[3]) * sy) - Math.round(r[1] * sy) - 1);
+            }
+        }
     }
 }
\ No newline at end of file
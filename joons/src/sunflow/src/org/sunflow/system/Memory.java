@@ -1,11 +1,20 @@
 package org.sunflow.system;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
 public final class Memory {
 
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
     public static String sizeof(int[] array) {
         return bytesToString(array == null ? 0 : 4 * array.length);
     }
 
+    public static String sizeof(float[] array) {
+        return bytesToString(array == null ? 0 : 4 * array.length);
+    }
+
     public static String bytesToString(long bytes) {
         if (bytes < 1024) {
             return String.format("%db", bytes);
@@ -15,4 +24,22 @@ public final class Memory {
         }
         return String.format("%dMb", (bytes + 512 * 1024) >>> 20);
     }
-}
\ No newline at end of file
+
+    /**
+     * Gets the total number of bytes allocated on the heap by the calling
+     * thread so far. Differences between two calls measure the allocations
+     * made in between.
+     *
+     * @return allocated bytes, or -1 if the virtual machine does not support
+     *         allocation tracking
+     */
+    public static long getAllocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+}